@@ -0,0 +1,619 @@
+package filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A class of in-process journals of the mutations of disk items, numbered
+ * by a sequence number, from which any number of consumers read at their
+ * own pace.
+ *    Each mutation is appended as a compact record, identifying its item by
+ *    its identifier, to a ring buffer of a fixed capacity. The mutating
+ *    thread claims a sequence number by incrementing a counter, and
+ *    publishes its record in the slot of that number, so that appending
+ *    never locks. Consumers read the journal through cursors, in batches.
+ *    Without a spill file, the oldest records are overwritten once the ring
+ *    is full; cursors that fall that far behind skip the lost records. With
+ *    a spill file, a single spiller thread copies each record to the file
+ *    before its slot may be reused, so that cursors read records that left
+ *    the ring from the file instead. A mutating thread then only waits if
+ *    the spiller is a full ring behind.
+ *
+ * @see DiskItem#getId()
+ */
+public final class ChangeJournal implements MutationListener, Closeable {
+
+	/**
+	 * An enumeration of the operations recorded in a journal.
+	 */
+	public enum Operation {
+		/** An item was created; the new value is the identifier of its parent. */
+		CREATE,
+		/** An item was renamed; the old and new names are registered. */
+		RENAME,
+		/** An item was moved; the old and new values are the identifiers of
+		 *  its parents, or 0 if it has no parent. */
+		MOVE,
+		/** The size of a file changed; the old and new values are its sizes. */
+		RESIZE,
+		/** The writability of an item changed; the new value is 1 if it is
+		 *  writable and 0 otherwise. */
+		WRITABILITY,
+		/** An item was terminated; the old value is the identifier of its
+		 *  last parent, or 0 if it had none. */
+		TERMINATE
+	}
+
+	/**
+	 * A class of records of a journal.
+	 *    Records are immutable, so that they are read by any number of
+	 *    threads.
+	 */
+	public static final class Record {
+
+		private Record(long sequence, long item, Operation operation,
+				long oldValue, long newValue, String oldName, String newName) {
+			this.sequence = sequence;
+			this.item = item;
+			this.operation = operation;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+			this.oldName = oldName;
+			this.newName = newName;
+		}
+
+		/**
+		 * Return the sequence number of this record.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Return the identifier of the item mutated by the operation of
+		 * this record.
+		 */
+		public long getItemId() {
+			return item;
+		}
+
+		/**
+		 * Return the operation of this record.
+		 */
+		public Operation getOperation() {
+			return operation;
+		}
+
+		/**
+		 * Return the parent identifier or size before the operation of
+		 * this record, or 0 if the operation has no such value.
+		 */
+		public long getOldValue() {
+			return oldValue;
+		}
+
+		/**
+		 * Return the parent identifier, size or writability after the
+		 * operation of this record, or 0 if the operation has no such value.
+		 */
+		public long getNewValue() {
+			return newValue;
+		}
+
+		/**
+		 * Return the name of the item before the operation of this record,
+		 * or null if the operation is not a renaming.
+		 */
+		public String getOldName() {
+			return oldName;
+		}
+
+		/**
+		 * Return the name of the item after the operation of this record,
+		 * or null if the operation is neither a creation nor a renaming.
+		 */
+		public String getNewName() {
+			return newName;
+		}
+
+		@Override
+		public String toString() {
+			return sequence + " " + operation + " " + item;
+		}
+
+		private final long sequence;
+		private final long item;
+		private final Operation operation;
+		private final long oldValue;
+		private final long newValue;
+		private final String oldName;
+		private final String newName;
+	}
+
+	/**
+	 * A class of cursors reading the records of a journal in order of their
+	 * sequence numbers.
+	 *    A cursor is used by a single consumer thread; several consumers
+	 *    each use their own cursor.
+	 */
+	public final class Cursor {
+
+		private Cursor(long position) {
+			this.position = position;
+		}
+
+		/**
+		 * Return the sequence number of the next record read by this cursor.
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Return the number of records this cursor skipped because they
+		 * were overwritten before it read them.
+		 */
+		public long getNbLost() {
+			return nbLost;
+		}
+
+		/**
+		 * Read at most the given number of the next records of the journal
+		 * of this cursor, without waiting for records to be appended.
+		 *
+		 * @param  maxRecords
+		 *         The maximum number of records to read.
+		 * @return The records read, in order of their sequence numbers,
+		 *         starting at the position of this cursor, except for lost
+		 *         records. The list is empty if no record has been
+		 *         appended since the last read.
+		 * @throws IllegalArgumentException
+		 *         The given maximum is not positive.
+		 * @throws IOException
+		 *         Reading the spill file of the journal has failed.
+		 */
+		public List<Record> read(int maxRecords) throws IOException {
+			if (maxRecords <= 0)
+				throw new IllegalArgumentException();
+			List<Record> result = new ArrayList<Record>(Math.min(maxRecords, 1024));
+			while (result.size() < maxRecords) {
+				Record record = slots.get(slot(position));
+				if ((record == null) || (record.sequence < position))
+					break;
+				if (record.sequence == position) {
+					result.add(record);
+					position++;
+				} else if ((spill != null) && (position < spilled)) {
+					readSpilled(this, maxRecords-result.size(), result);
+				} else {
+					// The record was overwritten; resume at the oldest
+					// record that may still be in the ring.
+					long oldest = Math.max(position+1, record.sequence-capacity+1);
+					nbLost += oldest-position;
+					position = oldest;
+				}
+			}
+			return result;
+		}
+
+		private long position;
+		private long nbLost;
+	}
+
+	/**
+	 * Open a journal of the given capacity without a spill file, and start
+	 * journaling all mutations of disk items.
+	 *
+	 * @param  capacity
+	 *         The number of records kept in memory, rounded up to a power
+	 *         of two.
+	 * @throws IllegalArgumentException
+	 *         The given capacity is not positive or too large.
+	 */
+	public static ChangeJournal open(int capacity) throws IllegalArgumentException {
+		try {
+			return open(capacity, null);
+		} catch (IOException e) {
+			// cannot occur without a spill file.
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Open a journal of the given capacity spilling to the file at the
+	 * given path, and start journaling all mutations of disk items.
+	 *    The file is truncated if it exists.
+	 *
+	 * @param  capacity
+	 *         The number of records kept in memory, rounded up to a power
+	 *         of two.
+	 * @param  spillPath
+	 *         The path of the spill file, or null if the journal must not
+	 *         spill.
+	 * @throws IllegalArgumentException
+	 *         The given capacity is not positive or too large.
+	 */
+	public static ChangeJournal open(int capacity, Path spillPath)
+			throws IllegalArgumentException, IOException {
+		if ((capacity <= 0) || (capacity > MAX_CAPACITY))
+			throw new IllegalArgumentException();
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		ChangeJournal result = new ChangeJournal(size, spillPath);
+		DiskItem.addMutationListener(result);
+		if (result.spiller != null)
+			result.spiller.start();
+		return result;
+	}
+
+	/**
+	 * Initialize a new journal with the given capacity, which is a power of
+	 * two, spilling to the file at the given path if it is effective.
+	 */
+	private ChangeJournal(int capacity, Path spillPath) throws IOException {
+		this.capacity = capacity;
+		this.slots = new AtomicReferenceArray<Record>(capacity);
+		if (spillPath == null) {
+			this.spill = null;
+			this.spiller = null;
+		} else {
+			this.spill = FileChannel.open(spillPath, StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			this.spiller = new Thread(new Runnable() {
+				public void run() {
+					runSpiller();
+				}
+			}, "change-journal-spiller");
+			this.spiller.setDaemon(true);
+		}
+	}
+
+	/**
+	 * Return the number of records kept in memory by this journal.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Return the sequence number of the next record appended to this
+	 * journal, which is the number of records appended so far.
+	 */
+	public long getNextSequence() {
+		return next.get();
+	}
+
+	/**
+	 * Return a new cursor positioned at the next record appended to this
+	 * journal.
+	 */
+	public Cursor newCursor() {
+		return new Cursor(next.get());
+	}
+
+	/**
+	 * Return a new cursor positioned at the record with the given sequence
+	 * number.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The given sequence number is negative.
+	 */
+	public Cursor newCursor(long sequence) throws IllegalArgumentException {
+		if (sequence < 0)
+			throw new IllegalArgumentException();
+		return new Cursor(sequence);
+	}
+
+	/**
+	 * Stop journaling the mutations of disk items, and close the spill file
+	 * of this journal, if any, after all appended records have been
+	 * spilled.
+	 *
+	 * @throws IOException
+	 *         Writing the spill file has failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		DiskItem.removeMutationListener(this);
+		closed = true;
+		if (spiller != null) {
+			try {
+				spiller.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			spill.close();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**********************************************************
+	 * appending
+	 **********************************************************/
+
+	@Override
+	public void itemCreated(DiskItem item) {
+		append(item, Operation.CREATE, 0, getId(item.getParentDirectory()), null,
+				item.getName());
+	}
+
+	@Override
+	public void nameChanged(DiskItem item, String oldName) {
+		append(item, Operation.RENAME, 0, 0, oldName, item.getName());
+	}
+
+	@Override
+	public void itemMoved(DiskItem item, Directory oldParent) {
+		append(item, Operation.MOVE, getId(oldParent), getId(item.getParentDirectory()),
+				null, null);
+	}
+
+	@Override
+	public void sizeChanged(File file, long delta) {
+		long size = file.getReportedSize();
+		append(file, Operation.RESIZE, size-delta, size, null, null);
+	}
+
+	@Override
+	public void writabilityChanged(RealDiskItem item) {
+		append(item, Operation.WRITABILITY, 0, item.isWritable()? 1 : 0, null, null);
+	}
+
+	@Override
+	public void itemTerminated(DiskItem item) {
+		append(item, Operation.TERMINATE, getId(item.getParentDirectory()), 0, null, null);
+	}
+
+	/**
+	 * Return the identifier of the given item, or 0 if it is not effective.
+	 */
+	private static long getId(DiskItem item) {
+		return (item == null)? 0 : item.getId();
+	}
+
+	/**
+	 * Append a record of the given operation on the given item.
+	 *    If this journal spills and the spiller has not yet copied the
+	 *    record in the slot to be reused, the mutating thread yields until
+	 *    it has.
+	 */
+	private void append(DiskItem item, Operation operation, long oldValue,
+			long newValue, String oldName, String newName) {
+		long sequence = next.getAndIncrement();
+		if (spiller != null)
+			while ((sequence-capacity >= spilled) && (failure == null) && !spillerStopped)
+				Thread.yield();
+		Record record = new Record(sequence, item.getId(), operation, oldValue, newValue,
+				oldName, newName);
+		int slot = slot(sequence);
+		// A slower thread may only publish its record if no later record
+		// has been published in the same slot meanwhile.
+		Record current;
+		do {
+			current = slots.get(slot);
+			if ((current != null) && (current.sequence > sequence))
+				return;
+		} while (!slots.compareAndSet(slot, current, record));
+	}
+
+	private int slot(long sequence) {
+		return (int) sequence & (capacity-1);
+	}
+
+	/**********************************************************
+	 * spilling
+	 **********************************************************/
+
+	/**
+	 * Copy the published records to the spill file in batches, until this
+	 * journal is closed and all appended records have been spilled, or
+	 * writing the file fails.
+	 *    Every SPILL_BLOCK records, the position of the next record in the
+	 *    file is registered, so that cursors find spilled records by
+	 *    scanning at most one block.
+	 */
+	private void runSpiller() {
+		try {
+			ByteArrayOutputStream batch = new ByteArrayOutputStream(1 << 16);
+			DataOutputStream out = new DataOutputStream(batch);
+			long written = 0;
+			while (true) {
+				long sequence = spilled;
+				long end = sequence;
+				Record record;
+				while ((end-sequence < SPILL_BATCH) &&
+					   ((record = slots.get(slot(end))) != null) && (record.sequence == end)) {
+					if (end % SPILL_BLOCK == 0)
+						registerBlock(end, written + batch.size());
+					writeRecord(out, record);
+					end++;
+				}
+				if (end > sequence) {
+					ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+					while (buffer.hasRemaining())
+						spill.write(buffer);
+					written += batch.size();
+					batch.reset();
+					spilled = end;
+				} else if (closed && (next.get() == end)) {
+					return;
+				} else {
+					LockSupport.parkNanos(SPILL_PAUSE);
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			spillerStopped = true;
+		}
+	}
+
+	/**
+	 * Register the given position in the spill file as the position of the
+	 * record with the given sequence number, which starts a block.
+	 */
+	private void registerBlock(long sequence, long position) {
+		int block = (int) (sequence / SPILL_BLOCK);
+		long[] positions = blockPositions;
+		if (block >= positions.length)
+			positions = Arrays.copyOf(positions, 2*positions.length);
+		positions[block] = position;
+		blockPositions = positions;
+	}
+
+	/**
+	 * Read records spilled to the file from the position of the given
+	 * cursor on, and add at most the given number of them to the given list.
+	 */
+	private void readSpilled(Cursor cursor, int maxRecords, List<Record> result)
+			throws IOException {
+		long end = spilled;
+		long position = blockPositions[(int) (cursor.position / SPILL_BLOCK)];
+		long sequence = cursor.position - cursor.position % SPILL_BLOCK;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new SpillInputStream(position), 1 << 16));
+		while ((sequence < cursor.position) && (sequence < end)) {
+			readRecord(in, sequence);
+			sequence++;
+		}
+		for (int i = 0; (i < maxRecords) && (cursor.position < end); i++)
+			result.add(readRecord(in, cursor.position++));
+	}
+
+	private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+		out.writeLong(record.item);
+		out.writeByte(record.operation.ordinal());
+		out.writeLong(record.oldValue);
+		out.writeLong(record.newValue);
+		writeName(out, record.oldName);
+		writeName(out, record.newName);
+	}
+
+	private static Record readRecord(DataInputStream in, long sequence) throws IOException {
+		long item = in.readLong();
+		Operation operation = OPERATIONS[in.readByte()];
+		long oldValue = in.readLong();
+		long newValue = in.readLong();
+		String oldName = readName(in);
+		String newName = readName(in);
+		return new Record(sequence, item, operation, oldValue, newValue, oldName, newName);
+	}
+
+	private static void writeName(DataOutputStream out, String name) throws IOException {
+		out.writeBoolean(name != null);
+		if (name != null)
+			out.writeUTF(name);
+	}
+
+	private static String readName(DataInputStream in) throws IOException {
+		return in.readBoolean()? in.readUTF() : null;
+	}
+
+	/**
+	 * A class of streams reading the spill file from a given position on,
+	 * without moving the position of its channel, so that any number of
+	 * cursors read it while the spiller appends to it.
+	 */
+	private final class SpillInputStream extends InputStream {
+
+		SpillInputStream(long position) {
+			this.position = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return (read(single, 0, 1) < 0)? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int result = spill.read(ByteBuffer.wrap(bytes, offset, length), position);
+			if (result > 0)
+				position += result;
+			return result;
+		}
+
+		private long position;
+	}
+
+	/**********************************************************
+	 * variables
+	 **********************************************************/
+
+	/**
+	 * The largest capacity of a journal.
+	 */
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	/**
+	 * The number of records between registered positions in the spill file.
+	 */
+	private static final int SPILL_BLOCK = 1024;
+
+	/**
+	 * The largest number of records written to the spill file at once.
+	 */
+	private static final int SPILL_BATCH = 16 * SPILL_BLOCK;
+
+	/**
+	 * The number of nanoseconds the spiller pauses when no record is ready.
+	 */
+	private static final long SPILL_PAUSE = 50000;
+
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	/**
+	 * Variables referencing the slots of the ring and registering their
+	 * number, which is a power of two.
+	 */
+	private final AtomicReferenceArray<Record> slots;
+	private final int capacity;
+
+	/**
+	 * Variable registering the sequence number of the next record to be
+	 * appended.
+	 */
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * Variables referencing the spill file and the spiller thread, or null
+	 * if this journal does not spill.
+	 */
+	private final FileChannel spill;
+	private final Thread spiller;
+
+	/**
+	 * Variable registering the number of records written to the spill file,
+	 * and thus the sequence number of the next record to be spilled.
+	 */
+	private volatile long spilled;
+
+	/**
+	 * Variable referencing the positions in the spill file of the records
+	 * starting each block, indexed by block. Only the spiller replaces it.
+	 */
+	private volatile long[] blockPositions = new long[64];
+
+	private volatile boolean closed;
+	private volatile boolean spillerStopped;
+	private volatile IOException failure;
+}
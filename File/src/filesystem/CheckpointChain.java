@@ -0,0 +1,751 @@
+package filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import filesystem.exception.DiskItemNotWritableException;
+import filesystem.exception.InvalidImageException;
+import filesystem.exception.NoSuchItemException;
+
+/**
+ * A class of chains of incremental checkpoints of a tree of disk items.
+ *    A chain consists of a base image, written by DiskImage, followed by
+ *    delta segments. Directories and files register themselves as dirty
+ *    when they change. Each checkpoint writes a single segment holding the
+ *    listings of the directories that changed or whose items changed since
+ *    the previous checkpoint, read from an MVCC snapshot of the tree, so
+ *    that the cost of a checkpoint scales with the number of changed items
+ *    rather than with the size of the tree. A directory attached to the
+ *    tree is checkpointed with all its direct and indirect items.
+ *    Once more segments than configured have accumulated, a background
+ *    thread merges the base image and all segments into a new base image.
+ *    Each base image and segment is named after the sequence number of
+ *    the last checkpoint it covers, and is moved into place atomically, so
+ *    that a crash at any moment leaves a recoverable chain.
+ *    Links are recorded with the path of their referral from the root,
+ *    and lose their referral if it lies outside the tree.
+ *
+ * @see DiskImage
+ * @see MutationLog
+ */
+public final class CheckpointChain implements Closeable {
+
+	/**
+	 * Start a new chain in the given directory for the tree with the given
+	 * root directory, replacing any chain recorded there before.
+	 *    The tree is first written as a whole to a new base image.
+	 *
+	 * @param  root
+	 *         The root directory of the tree to checkpoint.
+	 * @param  directory
+	 *         The directory holding the base image and the segments.
+	 * @param  maxSegments
+	 *         The number of segments above which they are merged into the
+	 *         base image.
+	 * @pre    No items of the given tree are mutated while the chain is
+	 *         opened.
+	 * @throws IllegalArgumentException
+	 *         The given root directory is not an effective root directory,
+	 *         or the given number of segments is smaller than one.
+	 */
+	public static CheckpointChain open(Directory root, Path directory, int maxSegments)
+			throws IOException {
+		if ((root == null) || !root.isRoot() || (maxSegments < 1))
+			throw new IllegalArgumentException();
+		Files.createDirectories(directory);
+		CheckpointChain result = new CheckpointChain(root, directory, maxSegments, 0);
+		DirtyItems.add(result);
+		try {
+			result.writeBase(root, 0);
+			result.deleteObsolete(0);
+		} catch (IOException e) {
+			DirtyItems.remove(result);
+			throw e;
+		}
+		return result;
+	}
+
+	/**
+	 * Recover the tree recorded by the chain in the given directory, and
+	 * continue that chain for the recovered tree.
+	 *    The latest base image is loaded, and all subsequent segments are
+	 *    applied to it in order.
+	 *
+	 * @param  directory
+	 *         The directory holding the base image and the segments.
+	 * @param  maxSegments
+	 *         The number of segments above which they are merged into the
+	 *         base image.
+	 * @return A chain whose root directory is the root of the recovered
+	 *         tree.
+	 * @throws IllegalArgumentException
+	 *         The given number of segments is smaller than one.
+	 * @throws InvalidImageException
+	 *         The directory holds no base image, or the base image or some
+	 *         segment is corrupt.
+	 */
+	public static CheckpointChain recover(Path directory, int maxSegments) throws IOException {
+		if (maxSegments < 1)
+			throw new IllegalArgumentException();
+		long base = findBase(directory);
+		Directory root = DiskImage.load(getBasePath(directory, base));
+		long last = replay(root, directory, base, Long.MAX_VALUE);
+		CheckpointChain result = new CheckpointChain(root, directory, maxSegments, last);
+		result.baseSequence = base;
+		result.deleteObsolete(base);
+		DirtyItems.add(result);
+		return result;
+	}
+
+	/**
+	 * Initialize a new chain for the tree with the given root directory.
+	 */
+	private CheckpointChain(Directory root, Path directory, int maxSegments, long last) {
+		this.root = root;
+		this.directory = directory;
+		this.maxSegments = maxSegments;
+		this.baseSequence = last;
+		this.lastSequence = last;
+		this.merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread result = new Thread(task, "checkpoint-merger");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Return the root directory of the tree of this chain.
+	 */
+	public Directory getRoot() {
+		return root;
+	}
+
+	/**
+	 * Return the number of segments following the base image of this
+	 * chain.
+	 */
+	public synchronized int getNbSegments() {
+		return (int) (lastSequence - baseSequence);
+	}
+
+	/**
+	 * Register the given item of the tree of this chain as dirty.
+	 */
+	void dirtied(DiskItem item) {
+		dirty.add(item);
+	}
+
+	/**********************************************************
+	 * checkpoints
+	 **********************************************************/
+
+	/**
+	 * Write a segment holding the listings of all directories of the tree
+	 * of this chain that changed, or whose items changed, since the last
+	 * checkpoint, as they are at the start of this checkpoint.
+	 *    Mutations may proceed during the checkpoint; those that are not
+	 *    covered by it are covered by the next checkpoint. No segment is
+	 *    written if nothing changed.
+	 *
+	 * @return The number of directory listings written.
+	 * @throws IOException
+	 *         The segment could not be written.
+	 */
+	public synchronized int checkpoint() throws IOException {
+		Set<DiskItem> items = Collections.newSetFromMap(new IdentityHashMap<DiskItem, Boolean>());
+		for (DiskItem item = dirty.poll(); item != null; item = dirty.poll()) {
+			item.clearDirty();
+			items.add(item);
+		}
+		if (items.isEmpty())
+			return 0;
+		SnapshotEpoch snapshot = Versions.takeSnapshot();
+		Map<DiskItem, List<String>> paths = new IdentityHashMap<DiskItem, List<String>>();
+		List<DirectorySnapshot> listings = new ArrayList<DirectorySnapshot>();
+		for (DiskItem item : items) {
+			SnapshotItem view = SnapshotItem.of(item, snapshot);
+			if (view instanceof DirectorySnapshot)
+				addListing((DirectorySnapshot) view, paths, listings);
+			if (view.getParentDirectory() != null)
+				addListing(view.getParentDirectory(), paths, listings);
+		}
+		if (listings.isEmpty())
+			return 0;
+		final Map<DiskItem, List<String>> depths = paths;
+		Collections.sort(listings, new Comparator<DirectorySnapshot>() {
+			public int compare(DirectorySnapshot first, DirectorySnapshot second) {
+				return depths.get(first.getItem()).size() - depths.get(second.getItem()).size();
+			}
+		});
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(SEGMENT_MAGIC);
+		out.writeInt(SEGMENT_VERSION);
+		out.writeLong(lastSequence + 1);
+		out.writeInt(listings.size());
+		for (DirectorySnapshot listing : listings)
+			writeListing(out, listing, paths.get(listing.getItem()));
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray(), 0, bytes.size());
+		out.writeInt((int) crc.getValue());
+		Path temporary = directory.resolve("segment.tmp");
+		Files.write(temporary, bytes.toByteArray());
+		Files.move(temporary, getSegmentPath(directory, lastSequence + 1),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		lastSequence++;
+		if ((getNbSegments() > maxSegments) && !isMerging) {
+			isMerging = true;
+			merger.submit(new Runnable() {
+				public void run() {
+					try {
+						mergeSegments();
+					} catch (IOException e) {
+						mergeFailure = e;
+					}
+				}
+			});
+		}
+		return listings.size();
+	}
+
+	/**
+	 * Merge the base image and all segments of this chain into a new base
+	 * image, and wait until they have been merged.
+	 *
+	 * @throws IOException
+	 *         The new base image could not be written.
+	 */
+	public void merge() throws IOException {
+		try {
+			merger.submit(new Runnable() {
+				public void run() {
+					try {
+						mergeSegments();
+					} catch (IOException e) {
+						mergeFailure = e;
+					}
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while merging", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		IOException failure = mergeFailure;
+		if (failure != null)
+			throw new IOException("Merge failed", failure);
+	}
+
+	/**
+	 * Checkpoint the tree of this chain, wait for pending merges, and stop
+	 * tracking the changes of its tree.
+	 *
+	 * @throws IOException
+	 *         The final segment could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			checkpoint();
+		} finally {
+			DirtyItems.remove(this);
+			merger.shutdown();
+			try {
+				merger.awaitTermination(Long.MAX_VALUE, java.util.concurrent.TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Add the listing of the given directory to the given listings, if it
+	 * is not terminated, belongs to the tree of this chain and is not
+	 * listed yet, and register its path from the root.
+	 */
+	private void addListing(DirectorySnapshot listing, Map<DiskItem, List<String>> paths,
+			List<DirectorySnapshot> listings) {
+		if (listing.isTerminated() || paths.containsKey(listing.getItem()))
+			return;
+		List<String> path = getPath(listing);
+		if (path != null) {
+			paths.put(listing.getItem(), path);
+			listings.add(listing);
+		}
+	}
+
+	/**
+	 * Return the names on the path from the root of the tree of this chain
+	 * to the given item, or null if the given item does not belong to that
+	 * tree.
+	 */
+	private List<String> getPath(SnapshotItem item) {
+		List<String> result = new ArrayList<String>();
+		SnapshotItem current = item;
+		while (current.getParentDirectory() != null) {
+			result.add(current.getName());
+			current = current.getParentDirectory();
+		}
+		if (current.getItem() != root)
+			return null;
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Write the listing of the given directory, with the given path.
+	 *    A listing holds the path, the name, flags, creation and
+	 *    modification time of the directory, followed by the number of its
+	 *    items and, for each item, its kind, flags, type ordinal, size,
+	 *    creation and modification time and name. For a link, a flag tells
+	 *    whether the path of its referral follows.
+	 */
+	private void writeListing(DataOutputStream out, DirectorySnapshot listing, List<String> path)
+			throws IOException {
+		writePath(out, path);
+		out.writeUTF(listing.getName());
+		out.writeByte(listing.isWritable()? DiskImage.WRITABLE : 0);
+		writeTimes(out, listing);
+		List<SnapshotItem> items = listing.getItems();
+		out.writeInt(items.size());
+		for (SnapshotItem item : items) {
+			if (item instanceof DirectorySnapshot) {
+				out.writeByte(DiskImage.DIRECTORY);
+				out.writeByte(((DirectorySnapshot) item).isWritable()? DiskImage.WRITABLE : 0);
+				out.writeByte(0);
+				out.writeInt(0);
+			} else if (item instanceof FileSnapshot) {
+				out.writeByte(DiskImage.FILE);
+				out.writeByte(((FileSnapshot) item).isWritable()? DiskImage.WRITABLE : 0);
+				out.writeByte(((FileSnapshot) item).getType().ordinal());
+				out.writeInt(((FileSnapshot) item).getSize());
+			} else {
+				out.writeByte((item.getItem() instanceof DirectoryLink)?
+						DiskImage.DIRECTORY_LINK : DiskImage.FILE_LINK);
+				out.writeByte(0);
+				out.writeByte(0);
+				out.writeInt(0);
+			}
+			writeTimes(out, item);
+			out.writeUTF(item.getName());
+			if (item instanceof LinkSnapshot) {
+				SnapshotItem referral = ((LinkSnapshot) item).getReferral();
+				List<String> referralPath = ((referral == null) || referral.isTerminated())?
+						null : getPath(referral);
+				out.writeBoolean(referralPath != null);
+				if (referralPath != null)
+					writePath(out, referralPath);
+			}
+		}
+	}
+
+	/**
+	 * Write the creation time and the modification time of the given item,
+	 * or DiskItem.NO_TIME if it has no modification time.
+	 */
+	private static void writeTimes(DataOutputStream out, SnapshotItem item) throws IOException {
+		out.writeLong(item.getCreationTimeMillis());
+		out.writeLong(item.getModificationTimeMillis());
+	}
+
+	/**
+	 * Write the given path.
+	 */
+	private static void writePath(DataOutputStream out, List<String> path) throws IOException {
+		out.writeInt(path.size());
+		for (String name : path)
+			out.writeUTF(name);
+	}
+
+	/**********************************************************
+	 * merging and recovery
+	 **********************************************************/
+
+	/**
+	 * Merge the base image and the segments written so far into a new base
+	 * image, and delete the merged files.
+	 */
+	private void mergeSegments() throws IOException {
+		long base, last;
+		synchronized (this) {
+			base = baseSequence;
+			last = lastSequence;
+		}
+		try {
+			if (last == base)
+				return;
+			Directory tree = DiskImage.load(getBasePath(directory, base));
+			if (replay(tree, directory, base, last) != last)
+				throw new InvalidImageException("Incomplete chain of segments");
+			writeBase(tree, last);
+			synchronized (this) {
+				baseSequence = last;
+			}
+			deleteObsolete(last);
+		} finally {
+			synchronized (this) {
+				isMerging = false;
+			}
+		}
+	}
+
+	/**
+	 * Write the tree with the given root directory as the base image with
+	 * the given sequence number.
+	 */
+	private void writeBase(Directory tree, long sequence) throws IOException {
+		Path temporary = directory.resolve("base.tmp");
+		DiskImage.write(tree, temporary);
+		Files.move(temporary, getBasePath(directory, sequence), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Delete all base images and segments superseded by the base image
+	 * with the given sequence number.
+	 */
+	private void deleteObsolete(long base) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				long sequence = getSequence(file, BASE_PREFIX);
+				if ((sequence >= 0) && (sequence != base))
+					Files.delete(file);
+				sequence = getSequence(file, SEGMENT_PREFIX);
+				if ((sequence >= 0) && (sequence <= base))
+					Files.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Return the sequence number of the latest base image in the given
+	 * directory.
+	 *
+	 * @throws InvalidImageException
+	 *         The given directory holds no base image.
+	 */
+	private static long findBase(Path directory) throws IOException {
+		long result = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files)
+				result = Math.max(result, getSequence(file, BASE_PREFIX));
+		}
+		if (result < 0)
+			throw new InvalidImageException("No base image in " + directory);
+		return result;
+	}
+
+	/**
+	 * Apply the segments following the base image with the given sequence
+	 * number in the given directory to the tree with the given root
+	 * directory, in order, up to the given sequence number or the first
+	 * missing segment.
+	 *
+	 * @return The sequence number of the last applied segment, or the
+	 *         given base sequence number if no segment has been applied.
+	 */
+	private static long replay(Directory root, Path directory, long base, long last)
+			throws IOException {
+		List<Link> links = new ArrayList<Link>();
+		List<List<String>> referrals = new ArrayList<List<String>>();
+		long sequence = base;
+		while ((sequence < last) && Files.exists(getSegmentPath(directory, sequence + 1))) {
+			applySegment(root, Files.readAllBytes(getSegmentPath(directory, sequence + 1)),
+					sequence + 1, links, referrals);
+			sequence++;
+		}
+		for (int i = 0; i < links.size(); i++) {
+			DiskItem referral = find(root, referrals.get(i));
+			links.get(i).setReferral((referral instanceof RealDiskItem)?
+					(RealDiskItem) referral : null);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Apply the given segment to the tree with the given root directory,
+	 * registering the links it creates together with the paths of their
+	 * referrals.
+	 */
+	private static void applySegment(Directory root, byte[] segment, long sequence,
+			List<Link> links, List<List<String>> referrals) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(segment, 0, Math.max(0, segment.length - 4));
+		if ((segment.length < 24) ||
+			((int) crc.getValue() != ByteBuffer.wrap(segment).getInt(segment.length - 4)))
+			throw new InvalidImageException("Segment checksum mismatch at " + sequence);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(segment));
+		if ((in.readInt() != SEGMENT_MAGIC) || (in.readInt() != SEGMENT_VERSION) ||
+			(in.readLong() != sequence))
+			throw new InvalidImageException("Invalid segment header at " + sequence);
+		int nbListings = in.readInt();
+		for (int i = 0; i < nbListings; i++) {
+			DiskItem found = find(root, readPath(in));
+			Directory listed = (found instanceof Directory)? (Directory) found : null;
+			applyListing(in, listed, links, referrals);
+		}
+	}
+
+	/**
+	 * Apply the next listing read from the given input to the given
+	 * directory, or skip it if the given directory is not effective.
+	 */
+	private static void applyListing(DataInputStream in, Directory listed, List<Link> links,
+			List<List<String>> referrals) throws IOException {
+		String name = in.readUTF();
+		byte flags = in.readByte();
+		long creationTime = in.readLong();
+		long modificationTime = in.readLong();
+		Map<String, DiskItem> existing = new HashMap<String, DiskItem>();
+		if (listed != null) {
+			if (!listed.getName().equals(name))
+				rename(listed, name);
+			restore(listed, flags, creationTime, modificationTime);
+			for (DiskItem item : listed.getItemArray())
+				existing.put(item.getName().toLowerCase(), item);
+		}
+		int nbItems = in.readInt();
+		List<DiskItem> items = new ArrayList<DiskItem>(nbItems);
+		for (int i = 0; i < nbItems; i++) {
+			byte kind = in.readByte();
+			byte itemFlags = in.readByte();
+			byte type = in.readByte();
+			int size = in.readInt();
+			long itemCreationTime = in.readLong();
+			long itemModificationTime = in.readLong();
+			String itemName = in.readUTF();
+			List<String> referral = null;
+			if (((kind == DiskImage.FILE_LINK) || (kind == DiskImage.DIRECTORY_LINK)) &&
+				in.readBoolean())
+				referral = readPath(in);
+			if (listed == null)
+				continue;
+			DiskItem item = reuse(existing.get(itemName.toLowerCase()), kind, type);
+			if (item == null)
+				item = create(listed, kind, type, size, itemName);
+			else if (!item.getName().equals(itemName))
+				rename(item, itemName);
+			if ((item instanceof File) && (((File) item).getSize() != size))
+				((File) item).restoreSize(size);
+			restore(item, itemFlags, itemCreationTime, itemModificationTime);
+			if (item instanceof Link) {
+				links.add((Link) item);
+				referrals.add(referral);
+			}
+			items.add(item);
+		}
+		if (listed != null)
+			listed.replaceItems(items);
+	}
+
+	/**
+	 * Return the given existing item if it is of the given kind and type,
+	 * or null otherwise.
+	 */
+	private static DiskItem reuse(DiskItem item, byte kind, byte type) {
+		if (item instanceof Directory)
+			return (kind == DiskImage.DIRECTORY)? item : null;
+		if (item instanceof File)
+			return ((kind == DiskImage.FILE) && (((File) item).getType().ordinal() == type))?
+					item : null;
+		if (item instanceof DirectoryLink)
+			return (kind == DiskImage.DIRECTORY_LINK)? item : null;
+		if (item instanceof FileLink)
+			return (kind == DiskImage.FILE_LINK)? item : null;
+		return null;
+	}
+
+	/**
+	 * Return a new item of the given kind in the given directory, without
+	 * registering it there.
+	 */
+	private static DiskItem create(Directory parent, byte kind, byte type, int size,
+			String name) throws InvalidImageException {
+		try {
+			switch (kind) {
+			case DiskImage.DIRECTORY:
+				return Directory.createUnregistered(parent, name, true);
+			case DiskImage.FILE:
+				if ((type < 0) || (type >= Type.values().length))
+					throw new InvalidImageException("Unknown file type " + type);
+				return File.createUnregistered(parent, name, Type.values()[type], size, true);
+			case DiskImage.FILE_LINK:
+				return FileLink.createUnregistered(parent, name, null);
+			case DiskImage.DIRECTORY_LINK:
+				return DirectoryLink.createUnregistered(parent, name, null);
+			default:
+				throw new InvalidImageException("Unknown item kind " + kind);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new InvalidImageException("Invalid item " + name);
+		}
+	}
+
+	/**
+	 * Give the given item the given name, leaving its position in its
+	 * parent directory untouched.
+	 */
+	private static void rename(DiskItem item, String name) {
+		try {
+			item.changeNameWithoutReordering(name);
+		} catch (DiskItemNotWritableException e) {
+			// cannot occur: recovered trees are never frozen.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Restore the writability, creation and modification time of the given
+	 * item.
+	 */
+	private static void restore(DiskItem item, byte flags, long creationTime,
+			long modificationTime) {
+		if (item instanceof RealDiskItem)
+			((RealDiskItem) item).initializeWritability((flags & DiskImage.WRITABLE) != 0);
+		item.restoreCreationTime(creationTime);
+		if (modificationTime != Long.MIN_VALUE)
+			item.setModificationTime(modificationTime);
+	}
+
+	/**
+	 * Return the item at the given path from the given root directory, or
+	 * null if there is no such item.
+	 */
+	private static DiskItem find(Directory root, List<String> path) {
+		if (path == null)
+			return null;
+		DiskItem result = root;
+		for (String name : path) {
+			if (!(result instanceof Directory))
+				return null;
+			try {
+				result = ((Directory) result).getItem(name);
+			} catch (NoSuchItemException e) {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Read a path.
+	 */
+	private static List<String> readPath(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new InvalidImageException("Invalid path length " + length);
+		List<String> result = new ArrayList<String>(length);
+		for (int i = 0; i < length; i++)
+			result.add(in.readUTF());
+		return result;
+	}
+
+	/**********************************************************
+	 * files
+	 **********************************************************/
+
+	/**
+	 * Return the path of the base image with the given sequence number in
+	 * the given directory.
+	 */
+	private static Path getBasePath(Path directory, long sequence) {
+		return directory.resolve(String.format("%s%016x", BASE_PREFIX, sequence));
+	}
+
+	/**
+	 * Return the path of the segment with the given sequence number in the
+	 * given directory.
+	 */
+	private static Path getSegmentPath(Path directory, long sequence) {
+		return directory.resolve(String.format("%s%016x", SEGMENT_PREFIX, sequence));
+	}
+
+	/**
+	 * Return the sequence number in the name of the given file if that
+	 * name starts with the given prefix, or -1 otherwise.
+	 */
+	private static long getSequence(Path file, String prefix) {
+		String name = file.getFileName().toString();
+		if (!name.startsWith(prefix) || (name.length() != prefix.length() + 16))
+			return -1;
+		try {
+			return Long.parseLong(name.substring(prefix.length()), 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The prefixes of the names of base images and segments.
+	 */
+	private static final String BASE_PREFIX = "base-";
+	private static final String SEGMENT_PREFIX = "delta-";
+
+	/**
+	 * The magic number at the start of each segment ("FSDS"), and the
+	 * version of the segment format.
+	 */
+	private static final int SEGMENT_MAGIC = 0x46534453;
+	private static final int SEGMENT_VERSION = 1;
+
+	/**
+	 * Variables referencing the root directory of the tree of this chain,
+	 * and the directory holding its files.
+	 */
+	private final Directory root;
+	private final Path directory;
+
+	/**
+	 * Variable registering the number of segments above which they are
+	 * merged.
+	 */
+	private final int maxSegments;
+
+	/**
+	 * Variables registering the sequence number of the base image and of
+	 * the last segment of this chain.
+	 */
+	private long baseSequence;
+	private long lastSequence;
+
+	/**
+	 * Variable referencing the items registered as dirty since the last
+	 * checkpoint.
+	 */
+	private final Queue<DiskItem> dirty = new ConcurrentLinkedQueue<DiskItem>();
+
+	/**
+	 * Variables referencing the background thread merging segments,
+	 * registering whether a merge is pending, and its last failure.
+	 */
+	private final ExecutorService merger;
+	private boolean isMerging;
+	private volatile IOException mergeFailure;
+}
@@ -0,0 +1,223 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class of pagers materializing the items of cloned directories on
+ * demand.
+ *    A cloned directory starts out with the number of items and the total
+ *    disk usage of its source directory, but without items. Its items are
+ *    copied from the items of its source directory when they are first
+ *    used, and its subdirectories are cloned the same way, so that cloning
+ *    a directory costs the same regardless of the size of its subtree.
+ *    Once materialized, the items of a cloned directory are no longer
+ *    paged.
+ *    A clone reflects its source as it was when it was cloned. Before any
+ *    disk item is mutated, the pending clones of the directories on its
+ *    path are materialized, from the top down, so that they copy the state
+ *    before the mutation.
+ *    Files share their content with their clone, chunk by chunk, until
+ *    either of them is written. Links are cloned with the same referral.
+ *    The pager references each pending clone and its source until the
+ *    clone is materialized, terminated, released with its tree, or
+ *    discarded because it could not be registered. Clones of empty
+ *    directories are never pending.
+ *
+ * @see RealDiskItem#cloneInto(Directory, String)
+ */
+final class ClonePager extends Pager {
+
+	/**
+	 * Initialize the single clone pager, which never evicts items.
+	 */
+	private ClonePager() {
+		super(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Return a new directory with the given name in the given directory,
+	 * without registering it there, whose items are cloned from the given
+	 * directory on their first use.
+	 */
+	static Directory copy(Directory source, Directory parent, String name) {
+		Directory result = Directory.createUnregistered(parent, name, source.isWritable());
+		copyTimes(source, result);
+		if (source.getNbItems() == 0)
+			return result;
+		synchronized (INSTANCE) {
+			result.page(INSTANCE, 0, source.getNbItems(), source.getTotalDiskUsage(),
+					source.getTotalAllocatedUsage(), source.getSubtreeChangeTimeMillis());
+			sources.put(result, source);
+			List<Directory> clones = pending.get(source);
+			if (clones == null) {
+				clones = new ArrayList<Directory>(1);
+				pending.put(source, clones);
+			}
+			clones.add(result);
+			hasPending = true;
+		}
+		return result;
+	}
+
+	/**
+	 * Set the creation and modification time of the given copy to those
+	 * of the given disk item.
+	 */
+	static void copyTimes(DiskItem item, DiskItem copy) {
+		copy.restoreCreationTime(item.getCreationTimeMillis());
+		if (item.getModificationTimeMillis() != DiskItem.NO_TIME)
+			copy.setModificationTime(item.getModificationTimeMillis());
+	}
+
+	/**
+	 * Check whether some cloned directories are not materialized yet.
+	 */
+	static boolean hasPendingClones() {
+		return hasPending;
+	}
+
+	/**
+	 * Materialize the pending clones of the directories on the path from
+	 * the root of the given disk item to the given disk item, because it is
+	 * about to be mutated.
+	 */
+	static void materializeClonesOf(DiskItem item) {
+		if (isMaterializing.get())
+			return;
+		List<Directory> path = new ArrayList<Directory>();
+		for (Directory directory = (item instanceof Directory)? (Directory) item :
+				item.getParentDirectory(); directory != null;
+				directory = directory.getParentDirectory())
+			path.add(directory);
+		for (int i = path.size() - 1; i >= 0; i--) {
+			List<Directory> clones;
+			synchronized (INSTANCE) {
+				clones = pending.get(path.get(i));
+				if (clones == null)
+					continue;
+				clones = new ArrayList<Directory>(clones);
+			}
+			for (Directory clone : clones)
+				INSTANCE.load(clone);
+		}
+	}
+
+	/**
+	 * Copy the items of the source of the given cloned directory into it,
+	 * and stop paging its items.
+	 *    Mutation listeners are notified of the creation of each copy.
+	 */
+	@Override
+	synchronized void load(Directory directory) {
+		if (directory.areItemsLoaded())
+			return;
+		List<DiskItem> children;
+		boolean wasMaterializing = isMaterializing.get();
+		isMaterializing.set(true);
+		directory.setLoading(true);
+		try {
+			children = readItems(directory);
+		} finally {
+			directory.setLoading(false);
+			isMaterializing.set(wasMaterializing);
+		}
+		directory.installPagedItems(children);
+		directory.stopPaging();
+		if (!directory.isTerminated())
+			for (DiskItem child : children)
+				MutationListeners.itemCreated(child);
+	}
+
+	/**
+	 * Return copies of the items of the source of the given cloned
+	 * directory, in order, and forget that source.
+	 */
+	@Override
+	List<DiskItem> readItems(Directory directory) {
+		Directory source = forget(directory);
+		if (source == null)
+			return Collections.emptyList();
+		DiskItem[] items = source.getItemArray();
+		List<DiskItem> result = new ArrayList<DiskItem>(items.length);
+		for (DiskItem item : items) {
+			if (item instanceof RealDiskItem) {
+				result.add(((RealDiskItem) item).copy(directory, item.getName()));
+			} else {
+				Link link = (Link) item;
+				Link copy = (link instanceof FileLink)?
+						FileLink.createUnregistered(directory, link.getName(), (File) link.getReferral()) :
+						DirectoryLink.createUnregistered(directory, link.getName(),
+								(Directory) link.getReferral());
+				copyTimes(link, copy);
+				result.add(copy);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forget the given pending clone, which will never be materialized.
+	 */
+	@Override
+	synchronized void dropped(Directory directory) {
+		forget(directory);
+	}
+
+	/**
+	 * Forget the given pending clone, and return its source, or null if it
+	 * is not pending.
+	 */
+	private Directory forget(Directory clone) {
+		Directory source = sources.remove(clone);
+		if (source == null)
+			return null;
+		List<Directory> clones = pending.get(source);
+		clones.remove(clone);
+		if (clones.isEmpty())
+			pending.remove(source);
+		hasPending = !pending.isEmpty();
+		return source;
+	}
+
+	/**
+	 * Return null, since cloned links resolve their referral on copying.
+	 */
+	@Override
+	RealDiskItem resolveReferral(long key, String name) {
+		return null;
+	}
+
+	/**
+	 * The single clone pager.
+	 */
+	private static final ClonePager INSTANCE = new ClonePager();
+
+	/**
+	 * Variables referencing the source of each pending clone, and the
+	 * pending clones of each source.
+	 */
+	private static final Map<Directory, Directory> sources =
+			new IdentityHashMap<Directory, Directory>();
+	private static final Map<Directory, List<Directory>> pending =
+			new IdentityHashMap<Directory, List<Directory>>();
+
+	/**
+	 * Variable registering whether there are pending clones.
+	 */
+	private static volatile boolean hasPending;
+
+	/**
+	 * Variable registering whether the current thread is materializing a
+	 * clone, which only creates new disk items and mutates no source.
+	 */
+	private static final ThreadLocal<Boolean> isMaterializing = new ThreadLocal<Boolean>() {
+		@Override
+		protected Boolean initialValue() {
+			return false;
+		}
+	};
+}
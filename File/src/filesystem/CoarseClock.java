@@ -0,0 +1,79 @@
+package filesystem;
+
+import java.io.Closeable;
+
+/**
+ * A class of clocks caching the time of the system, which is refreshed
+ * every millisecond by a daemon thread.
+ *    Reading a coarse clock reads a single volatile field, so that hot
+ *    mutation paths do not query the system for each timestamp. The time
+ *    read may lag the time of the system by about a millisecond, but it
+ *    never decreases.
+ */
+public final class CoarseClock implements ItemClock, Closeable {
+
+	/**
+	 * Initialize a new coarse clock, and start refreshing it.
+	 *
+	 * @post   The new clock returns the time of the system, as it was
+	 *         at most about a millisecond ago.
+	 */
+	public CoarseClock() {
+		time = System.currentTimeMillis();
+		refresher = new Thread(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, "coarse-clock");
+		refresher.setDaemon(true);
+		refresher.start();
+	}
+
+	/**
+	 * Return the cached time of the system.
+	 */
+	public long currentTimeMillis() {
+		return time;
+	}
+
+	/**
+	 * Stop refreshing this clock, which keeps returning the time at which
+	 * it was last refreshed.
+	 */
+	@Override
+	public void close() {
+		refresher.interrupt();
+		try {
+			refresher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Refresh the cached time every millisecond, until interrupted.
+	 */
+	private void refresh() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(1);
+				long now = System.currentTimeMillis();
+				if (now > time)
+					time = now;
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Variable registering the cached time, in milliseconds since the
+	 * epoch.
+	 */
+	private volatile long time;
+
+	/**
+	 * Variable referencing the thread refreshing the cached time.
+	 */
+	private final Thread refresher;
+}
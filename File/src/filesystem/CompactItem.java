@@ -0,0 +1,412 @@
+package filesystem;
+
+import java.util.Date;
+
+import filesystem.exception.NoSuchItemException;
+
+/**
+ * A class of handles to items of compact trees.
+ *    A handle only references its tree and the index of its item, so that
+ *    handles can be created and dropped freely while traversing large
+ *    trees. Two handles are equal if they reference the same item.
+ *    Handles offer the inspectors and mutators of disk items, files,
+ *    directories and links, under the same names. Inspectors and mutators
+ *    that do not apply to the kind of the referenced item throw an
+ *    IllegalStateException, as do mutations of items that are not
+ *    writable or in directories that are not writable.
+ *
+ * @see CompactTree
+ */
+public final class CompactItem {
+
+	/**
+	 * Initialize a new handle to the item at the given index in the given
+	 * tree.
+	 */
+	CompactItem(CompactTree tree, int index) {
+		this.tree = tree;
+		this.index = index;
+	}
+
+	/**
+	 * Return the tree of this handle.
+	 */
+	public CompactTree getTree() {
+		return tree;
+	}
+
+	/**
+	 * Return the index of the item of this handle in its tree.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**********************************************************
+	 * disk items
+	 **********************************************************/
+
+	/**
+	 * Return the name of this item.
+	 */
+	public String getName() {
+		return tree.getName(index);
+	}
+
+	/**
+	 * Change the name of this item into the given name.
+	 *
+	 * @param  name
+	 *         The new name of this item.
+	 * @throws IllegalArgumentException
+	 *         The given name is not a valid name, or another item of the
+	 *         parent directory of this item has that name, ignoring case.
+	 * @throws IllegalStateException
+	 *         This item or its parent directory is terminated or not
+	 *         writable.
+	 */
+	public void changeName(String name) throws IllegalArgumentException, IllegalStateException {
+		tree.changeName(index, name);
+	}
+
+	/**
+	 * Return the creation time of this item.
+	 */
+	public Date getCreationTime() {
+		return new Date(tree.getCreationTime(index));
+	}
+
+	/**
+	 * Return the modification time of this item, or null if it has not
+	 * been modified since its creation.
+	 */
+	public Date getModificationTime() {
+		long time = tree.getModificationTime(index);
+		return (time == 0)? null : new Date(time);
+	}
+
+	/**
+	 * Check whether this item is terminated.
+	 */
+	public boolean isTerminated() {
+		return tree.isTerminated(index);
+	}
+
+	/**
+	 * Check whether this item is writable. Links are always writable.
+	 */
+	public boolean isWritable() {
+		return tree.isWritable(index);
+	}
+
+	/**
+	 * Set the writability of this directory or file to the given
+	 * writability.
+	 *
+	 * @throws IllegalStateException
+	 *         This item is a link or is terminated.
+	 */
+	public void setWritability(boolean isWritable) throws IllegalStateException {
+		if (isLink())
+			throw new IllegalStateException("Not a directory or file!");
+		tree.setWritable(index, isWritable);
+	}
+
+	/**
+	 * Return the parent directory of this item, or null if this item is the
+	 * root of its tree.
+	 */
+	public CompactItem getParentDirectory() {
+		int parent = tree.getParent(index);
+		return (parent < 0)? null : new CompactItem(tree, parent);
+	}
+
+	/**
+	 * Check whether this item is the root of its tree.
+	 */
+	public boolean isRoot() {
+		return tree.getParent(index) < 0;
+	}
+
+	/**
+	 * Return the absolute path of this item, with the names of its
+	 * ancestors separated by slashes.
+	 */
+	public String getAbsolutePath() {
+		StringBuilder result = new StringBuilder();
+		for (int current = index; current >= 0; current = tree.getParent(current))
+			result.insert(0, tree.getName(current)).insert(0, '/');
+		return result.toString();
+	}
+
+	/**
+	 * Return the total disk usage of this item: the size of a file, the
+	 * sum of the sizes of all direct and indirect files of a directory, or
+	 * 0 for a link.
+	 */
+	public long getTotalDiskUsage() {
+		return tree.getTotalDiskUsage(index);
+	}
+
+	/**
+	 * Move this item to the given directory.
+	 *
+	 * @param  target
+	 *         The directory to move this item to.
+	 * @throws IllegalArgumentException
+	 *         The given target is not effective or belongs to another tree,
+	 *         it is this item or one of its direct or indirect items, or it
+	 *         has an item with the name of this item.
+	 * @throws IllegalStateException
+	 *         This item is the root, or this item, its parent directory or
+	 *         the given target is not writable or not a directory.
+	 */
+	public void move(CompactItem target) throws IllegalArgumentException, IllegalStateException {
+		tree.move(index, check(target));
+	}
+
+	/**
+	 * Terminate this item, removing it from its parent directory.
+	 *
+	 * @throws IllegalStateException
+	 *         This item is the root, a directory that still has items, or
+	 *         this item or its parent directory is not writable.
+	 */
+	public void terminate() throws IllegalStateException {
+		tree.terminate(index);
+	}
+
+	/**********************************************************
+	 * kinds
+	 **********************************************************/
+
+	/**
+	 * Check whether this item is a directory.
+	 */
+	public boolean isDirectory() {
+		return tree.getKind(index) == DiskImage.DIRECTORY;
+	}
+
+	/**
+	 * Check whether this item is a file.
+	 */
+	public boolean isFile() {
+		return tree.getKind(index) == DiskImage.FILE;
+	}
+
+	/**
+	 * Check whether this item is a link to a file or a directory.
+	 */
+	public boolean isLink() {
+		return tree.getKind(index) >= DiskImage.FILE_LINK;
+	}
+
+	/**********************************************************
+	 * files
+	 **********************************************************/
+
+	/**
+	 * Return the size of this file.
+	 *
+	 * @throws IllegalStateException
+	 *         This item is not a file.
+	 */
+	public int getSize() throws IllegalStateException {
+		return tree.getSize(index);
+	}
+
+	/**
+	 * Return the type of this file.
+	 *
+	 * @throws IllegalStateException
+	 *         This item is not a file.
+	 */
+	public Type getType() throws IllegalStateException {
+		return tree.getType(index);
+	}
+
+	/**
+	 * Increase the size of this file with the given delta.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The new size would exceed the maximum size of files.
+	 * @throws IllegalStateException
+	 *         This item is not a writable file.
+	 */
+	public void enlarge(long delta) throws IllegalArgumentException, IllegalStateException {
+		tree.changeSize(index, delta);
+	}
+
+	/**
+	 * Decrease the size of this file with the given delta.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The new size would be negative.
+	 * @throws IllegalStateException
+	 *         This item is not a writable file.
+	 */
+	public void shorten(int delta) throws IllegalArgumentException, IllegalStateException {
+		tree.changeSize(index, -delta);
+	}
+
+	/**********************************************************
+	 * directories
+	 **********************************************************/
+
+	/**
+	 * Return the number of items of this directory.
+	 *
+	 * @throws IllegalStateException
+	 *         This item is not a directory.
+	 */
+	public int getNbItems() throws IllegalStateException {
+		return tree.getNbItems(index);
+	}
+
+	/**
+	 * Return the item at the given position in this directory, in
+	 * lexicographic order of names ignoring case, starting from 1.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The given position is not between 1 and the number of items.
+	 * @throws IllegalStateException
+	 *         This item is not a directory.
+	 */
+	public CompactItem getItemAt(int position)
+			throws IllegalArgumentException, IllegalStateException {
+		return new CompactItem(tree, tree.getItemAt(index, position));
+	}
+
+	/**
+	 * Return the item of this directory with the given name, ignoring
+	 * case.
+	 *
+	 * @throws NoSuchItemException
+	 *         This directory has no item with the given name.
+	 * @throws IllegalStateException
+	 *         This item is not a directory.
+	 * @O      Logarithmic in the number of items of this directory.
+	 */
+	public CompactItem getItem(String name) throws NoSuchItemException, IllegalStateException {
+		int result = tree.getItem(index, name);
+		if (result < 0)
+			throw new NoSuchItemException();
+		return new CompactItem(tree, result);
+	}
+
+	/**
+	 * Check whether this directory has an item with the given name,
+	 * ignoring case.
+	 *
+	 * @throws IllegalStateException
+	 *         This item is not a directory.
+	 */
+	public boolean exists(String name) throws IllegalStateException {
+		return tree.getItem(index, name) >= 0;
+	}
+
+	/**
+	 * Create a new directory with the given name and writability in this
+	 * directory, and return it.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The given name is not valid or already used in this
+	 *         directory.
+	 * @throws IllegalStateException
+	 *         This item is not a writable directory.
+	 */
+	public CompactItem createDirectory(String name, boolean writable)
+			throws IllegalArgumentException, IllegalStateException {
+		return new CompactItem(tree, tree.create(index, DiskImage.DIRECTORY, name, writable, 0));
+	}
+
+	/**
+	 * Create a new file with the given name, type, size and writability in
+	 * this directory, and return it.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The given name is not valid or already used in this
+	 *         directory, the given type is not effective, or the given size
+	 *         is not a valid size.
+	 * @throws IllegalStateException
+	 *         This item is not a writable directory.
+	 */
+	public CompactItem createFile(String name, Type type, int size, boolean writable)
+			throws IllegalArgumentException, IllegalStateException {
+		return new CompactItem(tree, tree.create(index, DiskImage.FILE, name, writable,
+				CompactTree.newFileValue(type, size)));
+	}
+
+	/**
+	 * Create a new link with the given name in this directory, referring
+	 * to the given file or directory, and return it.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The given name is not valid or already used in this
+	 *         directory, or the given referral is not effective, belongs to
+	 *         another tree or is a link.
+	 * @throws IllegalStateException
+	 *         This item is not a writable directory.
+	 */
+	public CompactItem createLink(String name, CompactItem referral)
+			throws IllegalArgumentException, IllegalStateException {
+		int target = check(referral);
+		if (referral.isLink())
+			throw new IllegalArgumentException("Cannot refer to a link!");
+		byte kind = referral.isFile()? DiskImage.FILE_LINK : DiskImage.DIRECTORY_LINK;
+		return new CompactItem(tree, tree.create(index, kind, name, true, target));
+	}
+
+	/**********************************************************
+	 * links
+	 **********************************************************/
+
+	/**
+	 * Return the item this link refers to, or null if it refers to no item
+	 * or to a terminated item.
+	 *
+	 * @throws IllegalStateException
+	 *         This item is not a link.
+	 */
+	public CompactItem getReferral() throws IllegalStateException {
+		int referral = tree.getReferral(index);
+		return (referral < 0)? null : new CompactItem(tree, referral);
+	}
+
+	/**********************************************************
+	 * identity
+	 **********************************************************/
+
+	@Override
+	public boolean equals(Object other) {
+		return (other instanceof CompactItem) && (((CompactItem) other).tree == tree) &&
+				(((CompactItem) other).index == index);
+	}
+
+	@Override
+	public int hashCode() {
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return getAbsolutePath();
+	}
+
+	/**
+	 * Return the index of the given item, which belongs to the tree of this
+	 * handle.
+	 */
+	private int check(CompactItem item) throws IllegalArgumentException {
+		if ((item == null) || (item.tree != tree))
+			throw new IllegalArgumentException();
+		return item.index;
+	}
+
+	/**
+	 * Variables referencing the tree of this handle and registering the
+	 * index of its item.
+	 */
+	private final CompactTree tree;
+	private final int index;
+}
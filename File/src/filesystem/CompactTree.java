@@ -0,0 +1,868 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class of trees of disk items stored compactly in primitive arrays,
+ * for trees of a hundred million items and more.
+ *    Each item is a node, identified by its index. Rather than an object
+ *    per item, a tree holds one array per attribute, split in pages, so
+ *    that a node costs 32 bytes:
+ *    - an int holding the index of its parent directory, its kind, its
+ *      writability and whether it is terminated; links are always
+ *      writable;
+ *    - an int holding the offset of its name in a pool of names;
+ *    - a long holding the size and type of a file, the total disk usage
+ *      of a directory or the index of the referral of a link;
+ *    - two longs holding its creation and modification time.
+ *    On top of that, each node takes an int in the table of items of its
+ *    parent directory. Item tables are sorted on names, ignoring case, so
+ *    that items are looked up by binary search. Names are stored once, as
+ *    ASCII bytes preceded by their length. Names of the items of large
+ *    directories copied into a tree are front-coded per directory instead,
+ *    until items are added to or removed from that directory.
+ *    Items are manipulated through lightweight handles, which carry no
+ *    state other than their tree and index and offer the inspectors and
+ *    mutators of disk items.
+ *    Nodes and names are only ever appended: terminated nodes and the old
+ *    names of renamed items are not reused, so that handles and links never
+ *    end up referencing another item.
+ *
+ * @see CompactItem
+ */
+public final class CompactTree {
+
+	/**
+	 * Initialize a new compact tree with a root directory with the given
+	 * name and writability.
+	 *
+	 * @param  name
+	 *         The name of the root directory.
+	 * @param  writable
+	 *         The writability of the root directory.
+	 * @throws IllegalArgumentException
+	 *         The given name is not a valid name.
+	 *         | !DiskItem.isValidName(name)
+	 */
+	public CompactTree(String name, boolean writable) throws IllegalArgumentException {
+		if (!DiskItem.isValidName(name))
+			throw new IllegalArgumentException("Invalid name!");
+		addNode(NONE, DiskImage.DIRECTORY, name, writable, 0,
+				DiskItem.getClock().currentTimeMillis());
+	}
+
+	/**
+	 * Return a compact tree holding a copy of the given directory and all
+	 * its direct and indirect items.
+	 *    Links whose referral is not part of the given tree are copied
+	 *    without a referral.
+	 *
+	 * @param  root
+	 *         The directory to copy.
+	 * @throws IllegalArgumentException
+	 *         The given directory is not effective.
+	 *         | root == null
+	 */
+	public static CompactTree copyOf(Directory root) throws IllegalArgumentException {
+		if (root == null)
+			throw new IllegalArgumentException();
+		CompactTree result = new CompactTree(root.getName(), root.isWritable());
+		result.copyTimes(0, root);
+		Map<DiskItem, Integer> indices = new IdentityHashMap<DiskItem, Integer>();
+		List<Link> links = new ArrayList<Link>();
+		List<Directory> directories = new ArrayList<Directory>();
+		directories.add(root);
+		indices.put(root, 0);
+		for (int next = 0; next < directories.size(); next++) {
+			Directory directory = directories.get(next);
+			int parent = indices.get(directory);
+			int nbItems = directory.getNbItems();
+			int[] table = result.newTable(nbItems);
+			boolean coded = nbItems >= CODED_THRESHOLD;
+			String[] names = coded? new String[nbItems] : null;
+			for (int i = 1; i <= nbItems; i++) {
+				DiskItem item = directory.getItemAt(i);
+				String name = item.getName();
+				if (coded) {
+					names[i-1] = name;
+					name = null;
+				}
+				int index;
+				if (item instanceof Directory) {
+					index = result.addNode(parent, DiskImage.DIRECTORY, name,
+							((Directory) item).isWritable(), 0, 0);
+					directories.add((Directory) item);
+				} else if (item instanceof File) {
+					File file = (File) item;
+					index = result.addNode(parent, DiskImage.FILE, name,
+							file.isWritable(), fileValue(file.getType(), file.getSize()), 0);
+				} else {
+					index = result.addNode(parent, (item instanceof FileLink)?
+							DiskImage.FILE_LINK : DiskImage.DIRECTORY_LINK,
+							name, true, NONE, 0);
+					links.add((Link) item);
+				}
+				if (coded)
+					result.nameOffsets.set(index, CODED | i);
+				result.copyTimes(index, item);
+				indices.put(item, index);
+				table[i] = index;
+			}
+			table[0] = nbItems;
+			if (nbItems > 0)
+				result.tables.put(parent, table);
+			if (coded)
+				result.codedNames.put(parent, new FrontCodedNames(names));
+			result.values.set(parent, directory.getTotalDiskUsage());
+		}
+		for (Link link : links) {
+			Integer referral = indices.get(link.getReferral());
+			if (referral != null)
+				result.values.set(indices.get(link), referral);
+		}
+		return result;
+	}
+
+	/**
+	 * Return a handle to the root directory of this tree.
+	 */
+	public CompactItem getRoot() {
+		return new CompactItem(this, 0);
+	}
+
+	/**
+	 * Return the number of nodes of this tree, including terminated ones.
+	 */
+	public synchronized int getNbNodes() {
+		return nbNodes;
+	}
+
+	/**
+	 * Return the number of bytes reserved by this tree, for its nodes,
+	 * its item tables and its names, plain or front-coded.
+	 *    Headers of arrays are counted as 16 bytes, and entries of the
+	 *    table of item tables as 32 bytes.
+	 */
+	public synchronized long getMemoryUsage() {
+		long result = (long) parents.getNbPages()*PAGE_SIZE*(4+4+8+8+8);
+		result += (long) names.size()*NAME_PAGE_SIZE;
+		result += tables.getMemoryUsage();
+		for (FrontCodedNames coded : codedNames.values())
+			result += coded.getMemoryUsage();
+		return result;
+	}
+
+	/**********************************************************
+	 * nodes
+	 **********************************************************/
+
+	/**
+	 * Return the kind of the node at the given index.
+	 *
+	 * @return One of DiskImage.DIRECTORY, DiskImage.FILE,
+	 *         DiskImage.FILE_LINK or DiskImage.DIRECTORY_LINK.
+	 */
+	synchronized byte getKind(int index) {
+		return (byte) ((parents.get(check(index)) >>> KIND_SHIFT) & 3);
+	}
+
+	/**
+	 * Check whether the node at the given index is terminated.
+	 */
+	synchronized boolean isTerminated(int index) {
+		return (parents.get(check(index)) & TERMINATED) != 0;
+	}
+
+	/**
+	 * Check whether the node at the given index is writable.
+	 */
+	synchronized boolean isWritable(int index) {
+		return (parents.get(check(index)) & WRITABLE) != 0;
+	}
+
+	/**
+	 * Set the writability of the node at the given index.
+	 */
+	synchronized void setWritable(int index, boolean writable) {
+		int value = parents.get(checkLive(index));
+		parents.set(index, writable? (value | WRITABLE) : (value & ~WRITABLE));
+	}
+
+	/**
+	 * Return the index of the parent directory of the node at the given
+	 * index, or -1 for the root.
+	 */
+	synchronized int getParent(int index) {
+		int result = parents.get(check(index)) & NONE;
+		return (result == NONE)? -1 : result;
+	}
+
+	/**
+	 * Return the name of the node at the given index.
+	 */
+	synchronized String getName(int index) {
+		int offset = nameOffsets.get(check(index));
+		if ((offset & CODED) != 0)
+			return codedNames.get(getParent(index)).get((offset & ~CODED)-1);
+		byte[] page = names.get(offset >>> NAME_PAGE_BITS);
+		int position = offset & (NAME_PAGE_SIZE-1);
+		int length = ((page[position] & 0xFF) << 8) | (page[position+1] & 0xFF);
+		char[] result = new char[length];
+		for (int i = 0; i < length; i++)
+			result[i] = (char) page[position+2+i];
+		return new String(result);
+	}
+
+	/**
+	 * Return the creation time of the node at the given index.
+	 */
+	synchronized long getCreationTime(int index) {
+		return creationTimes.get(check(index));
+	}
+
+	/**
+	 * Return the modification time of the node at the given index, or 0 if
+	 * it has not been modified since its creation.
+	 */
+	synchronized long getModificationTime(int index) {
+		return modificationTimes.get(check(index));
+	}
+
+	/**
+	 * Return the size of the file at the given index.
+	 */
+	synchronized int getSize(int index) {
+		return (int) values.get(checkKind(index, DiskImage.FILE));
+	}
+
+	/**
+	 * Return the type of the file at the given index.
+	 */
+	synchronized Type getType(int index) {
+		return Type.values()[(int) (values.get(checkKind(index, DiskImage.FILE)) >>> 32)];
+	}
+
+	/**
+	 * Return the total disk usage of the node at the given index.
+	 */
+	synchronized long getTotalDiskUsage(int index) {
+		switch (getKind(index)) {
+		case DiskImage.DIRECTORY:
+			return values.get(index);
+		case DiskImage.FILE:
+			return (int) values.get(index);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Return the index of the referral of the link at the given index, or
+	 * -1 if it has no referral or its referral is terminated.
+	 */
+	synchronized int getReferral(int index) {
+		if (getKind(check(index)) < DiskImage.FILE_LINK)
+			throw new IllegalStateException("Not a link!");
+		int result = (int) values.get(index);
+		return ((result == NONE) || isTerminated(result))? -1 : result;
+	}
+
+	/**
+	 * Return the number of items of the directory at the given index.
+	 */
+	synchronized int getNbItems(int index) {
+		int[] table = tables.get(checkKind(index, DiskImage.DIRECTORY));
+		return (table == null)? 0 : table[0];
+	}
+
+	/**
+	 * Return the index of the item at the given position, starting from 1,
+	 * in the directory at the given index.
+	 */
+	synchronized int getItemAt(int index, int position) {
+		if ((position < 1) || (position > getNbItems(index)))
+			throw new IllegalArgumentException("Index out of bounds!");
+		return tables.get(index)[position];
+	}
+
+	/**
+	 * Return the index of the item with the given name, ignoring case, in
+	 * the directory at the given index, or -1 if there is no such item.
+	 */
+	synchronized int getItem(int index, String name) {
+		int position = search(index, name);
+		return (position > 0)? tables.get(index)[position] : -1;
+	}
+
+	/**********************************************************
+	 * mutation
+	 **********************************************************/
+
+	/**
+	 * Add a new node of the given kind with the given name and writability
+	 * to the directory at the given index, and return its index.
+	 *
+	 * @param  value
+	 *         The size and type of a new file, or the referral of a new
+	 *         link.
+	 * @throws IllegalArgumentException
+	 *         The given name is not valid or already used in the directory.
+	 * @throws IllegalStateException
+	 *         The directory is not writable.
+	 */
+	synchronized int create(int parent, byte kind, String name, boolean writable, long value)
+			throws IllegalArgumentException, IllegalStateException {
+		checkWritableDirectory(parent);
+		if (!DiskItem.isValidName(name))
+			throw new IllegalArgumentException("Invalid name!");
+		int position = search(parent, name);
+		if (position > 0)
+			throw new IllegalArgumentException("Name already used!");
+		int result = addNode(parent, kind, name, writable, value,
+				DiskItem.getClock().currentTimeMillis());
+		insertInTable(parent, -position, result);
+		touch(parent);
+		if (kind == DiskImage.FILE)
+			propagateUsage(parent, (int) value);
+		return result;
+	}
+
+	/**
+	 * Change the name of the node at the given index into the given name.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The given name is not valid or already used by another item
+	 *         of the parent directory.
+	 * @throws IllegalStateException
+	 *         The node or its parent directory is not writable.
+	 */
+	synchronized void changeName(int index, String name)
+			throws IllegalArgumentException, IllegalStateException {
+		checkMutable(index);
+		if (!DiskItem.isValidName(name))
+			throw new IllegalArgumentException("Invalid name!");
+		int parent = getParent(index);
+		if (parent < 0) {
+			nameOffsets.set(index, addName(name));
+			touch(index);
+			return;
+		}
+		checkWritableDirectory(parent);
+		int target = search(parent, name);
+		if ((target > 0) && (tables.get(parent)[target] != index))
+			throw new IllegalArgumentException("Name already used!");
+		removeFromTable(parent, index);
+		nameOffsets.set(index, addName(name));
+		insertInTable(parent, -search(parent, name), index);
+		touch(index);
+		touch(parent);
+	}
+
+	/**
+	 * Change the size of the file at the given index with the given delta.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The new size would be negative or exceed the maximum size.
+	 * @throws IllegalStateException
+	 *         The file is not writable.
+	 */
+	synchronized void changeSize(int index, long delta)
+			throws IllegalArgumentException, IllegalStateException {
+		checkMutable(checkKind(index, DiskImage.FILE));
+		long value = values.get(index);
+		long size = (int) value + delta;
+		if ((size < 0) || (size > File.getMaximumSize()))
+			throw new IllegalArgumentException("Invalid size!");
+		values.set(index, (value & ~0xFFFFFFFFL) | size);
+		touch(index);
+		propagateUsage(getParent(index), delta);
+	}
+
+	/**
+	 * Move the node at the given index to the directory at the given
+	 * target index.
+	 *
+	 * @throws IllegalArgumentException
+	 *         The target is the node itself or one of its items, or already
+	 *         has an item with the name of the node.
+	 * @throws IllegalStateException
+	 *         The node is the root, or the node, its parent directory or
+	 *         the target is not writable.
+	 */
+	synchronized void move(int index, int target)
+			throws IllegalArgumentException, IllegalStateException {
+		int parent = getParent(check(index));
+		if (parent < 0)
+			throw new IllegalStateException("Cannot move the root!");
+		checkWritableDirectory(parent);
+		checkWritableDirectory(target);
+		checkMutable(index);
+		for (int current = target; current >= 0; current = getParent(current))
+			if (current == index)
+				throw new IllegalArgumentException("Cannot move into itself!");
+		int position = search(target, getName(index));
+		if (position > 0)
+			throw new IllegalArgumentException("Name already used!");
+		long usage = getTotalDiskUsage(index);
+		removeFromTable(parent, index);
+		propagateUsage(parent, -usage);
+		touch(parent);
+		parents.set(index, (parents.get(index) & ~NONE) | target);
+		insertInTable(target, -position, index);
+		propagateUsage(target, usage);
+		touch(target);
+	}
+
+	/**
+	 * Terminate the node at the given index, removing it from its parent
+	 * directory.
+	 *
+	 * @throws IllegalStateException
+	 *         The node is the root or a directory that still has items, or
+	 *         it or its parent directory is not writable.
+	 */
+	synchronized void terminate(int index) throws IllegalStateException {
+		int parent = getParent(checkLive(index));
+		if (parent < 0)
+			throw new IllegalStateException("Cannot terminate the root!");
+		byte kind = getKind(index);
+		if ((kind == DiskImage.DIRECTORY) && (getNbItems(index) > 0))
+			throw new IllegalStateException("Directory is not empty!");
+		checkMutable(index);
+		checkWritableDirectory(parent);
+		long usage = getTotalDiskUsage(index);
+		removeFromTable(parent, index);
+		tables.remove(index);
+		propagateUsage(parent, -usage);
+		touch(parent);
+		parents.set(index, parents.get(index) | TERMINATED);
+	}
+
+	/**********************************************************
+	 * helpers
+	 **********************************************************/
+
+	/**
+	 * Append a node with the given attributes, without registering it in
+	 * its parent directory, and return its index.
+	 *    A node without name gets its name from the front-coded names of
+	 *    its parent directory, and must be given its position in them.
+	 */
+	private int addNode(int parent, byte kind, String name, boolean writable, long value,
+			long creationTime) {
+		if (nbNodes == NONE)
+			throw new IllegalStateException("Too many items!");
+		int result = nbNodes++;
+		parents.set(result, parent | (kind << KIND_SHIFT) | (writable? WRITABLE : 0));
+		nameOffsets.set(result, (name == null)? CODED : addName(name));
+		values.set(result, value);
+		creationTimes.set(result, creationTime);
+		modificationTimes.set(result, 0);
+		return result;
+	}
+
+	/**
+	 * Append the given name to the pool of names, and return its offset.
+	 */
+	private int addName(String name) {
+		int length = name.length();
+		if (length > 0xFFFF)
+			throw new IllegalArgumentException("Name too long!");
+		if (names.isEmpty() || (namesEnd+length+2 > NAME_PAGE_SIZE)) {
+			if (names.size() == (Integer.MAX_VALUE >>> NAME_PAGE_BITS) + 1)
+				throw new IllegalStateException("Too many names!");
+			names.add(new byte[NAME_PAGE_SIZE]);
+			namesEnd = 0;
+		}
+		byte[] page = names.get(names.size()-1);
+		int result = ((names.size()-1) << NAME_PAGE_BITS) | namesEnd;
+		page[namesEnd++] = (byte) (length >>> 8);
+		page[namesEnd++] = (byte) length;
+		for (int i = 0; i < length; i++)
+			page[namesEnd++] = (byte) name.charAt(i);
+		return result;
+	}
+
+	/**
+	 * Compare the name of the node at the given index with the given name,
+	 * ignoring case, without building a string.
+	 */
+	private int compareName(int index, String name) {
+		int offset = nameOffsets.get(index);
+		byte[] page = names.get(offset >>> NAME_PAGE_BITS);
+		int position = offset & (NAME_PAGE_SIZE-1);
+		int length = ((page[position] & 0xFF) << 8) | (page[position+1] & 0xFF);
+		int common = Math.min(length, name.length());
+		for (int i = 0; i < common; i++) {
+			char first = Character.toLowerCase((char) page[position+2+i]);
+			char second = Character.toLowerCase(name.charAt(i));
+			if (first != second)
+				return first-second;
+		}
+		return length-name.length();
+	}
+
+	/**
+	 * Return the position of the item with the given name in the table of
+	 * the directory at the given index, or minus the position at which such
+	 * an item would be inserted.
+	 */
+	private int search(int directory, String name) {
+		int[] table = tables.get(checkKind(directory, DiskImage.DIRECTORY));
+		if ((table == null) || (name == null))
+			return -1;
+		FrontCodedNames coded = codedNames.get(directory);
+		if (coded != null) {
+			int result = coded.search(name);
+			return (result >= 0)? result+1 : result;
+		}
+		int low = 1, high = table[0];
+		while (low <= high) {
+			int middle = (low+high) >>> 1;
+			int comparison = compareName(table[middle], name);
+			if (comparison < 0)
+				low = middle+1;
+			else if (comparison > 0)
+				high = middle-1;
+			else
+				return middle;
+		}
+		return -low;
+	}
+
+	/**
+	 * Insert the given node at the given position in the table of the
+	 * directory at the given index.
+	 */
+	private void insertInTable(int directory, int position, int node) {
+		decodeNames(directory);
+		int[] table = tables.get(directory);
+		if (table == null) {
+			table = newTable(1);
+		} else if (table[0]+1 == table.length) {
+			table = Arrays.copyOf(table, table.length+(table.length >> 1)+1);
+		}
+		System.arraycopy(table, position, table, position+1, table[0]+1-position);
+		table[position] = node;
+		table[0]++;
+		tables.put(directory, table);
+	}
+
+	/**
+	 * Remove the given node from the table of the directory at the given
+	 * index.
+	 */
+	private void removeFromTable(int directory, int node) {
+		decodeNames(directory);
+		int[] table = tables.get(directory);
+		int position = search(directory, getName(node));
+		System.arraycopy(table, position+1, table, position, table[0]-position);
+		table[0]--;
+		if (table[0] == 0)
+			tables.remove(directory);
+	}
+
+	/**
+	 * Move the front-coded names of the items of the directory at the
+	 * given index, if any, to the pool of names, so that its table of
+	 * items can change.
+	 */
+	private void decodeNames(int directory) {
+		FrontCodedNames coded = codedNames.remove(directory);
+		if (coded == null)
+			return;
+		int[] table = tables.get(directory);
+		for (int i = 1; i <= table[0]; i++)
+			nameOffsets.set(table[i], addName(coded.get(i-1)));
+	}
+
+	/**
+	 * Return a new table for the given number of items.
+	 */
+	private int[] newTable(int nbItems) {
+		return new int[nbItems+1];
+	}
+
+	/**
+	 * Add the given delta to the total disk usage of the directory at the
+	 * given index and all its ancestors.
+	 */
+	private void propagateUsage(int directory, long delta) {
+		if (delta == 0)
+			return;
+		for (int current = directory; current >= 0; current = getParent(current))
+			values.set(current, values.get(current)+delta);
+	}
+
+	/**
+	 * Set the modification time of the node at the given index to the
+	 * current time of the clock of disk items.
+	 */
+	private void touch(int index) {
+		modificationTimes.set(index, DiskItem.getClock().currentTimeMillis());
+	}
+
+	/**
+	 * Set the creation and modification time of the node at the given
+	 * index to those of the given disk item.
+	 */
+	private void copyTimes(int index, DiskItem item) {
+		creationTimes.set(index, item.getCreationTimeMillis());
+		if (item.getModificationTimeMillis() != DiskItem.NO_TIME)
+			modificationTimes.set(index, item.getModificationTimeMillis());
+	}
+
+	/**
+	 * Return the value of a file with the given type and size.
+	 */
+	private static long fileValue(Type type, int size) {
+		return ((long) type.ordinal() << 32) | size;
+	}
+
+	/**
+	 * Return the value of a new file with the given type and size.
+	 */
+	static long newFileValue(Type type, int size) throws IllegalArgumentException {
+		if ((type == null) || (size < 0) || (size > File.getMaximumSize()))
+			throw new IllegalArgumentException();
+		return fileValue(type, size);
+	}
+
+	private int check(int index) {
+		if ((index < 0) || (index >= nbNodes))
+			throw new IllegalArgumentException("Index out of bounds!");
+		return index;
+	}
+
+	private int checkLive(int index) {
+		if (isTerminated(index))
+			throw new IllegalStateException("Item is terminated!");
+		return index;
+	}
+
+	private int checkKind(int index, byte kind) {
+		if (getKind(index) != kind)
+			throw new IllegalStateException("Wrong kind of item!");
+		return index;
+	}
+
+	private void checkMutable(int index) {
+		if (!isWritable(checkLive(index)))
+			throw new IllegalStateException("Item is not writable!");
+	}
+
+	private void checkWritableDirectory(int index) {
+		checkMutable(checkKind(index, DiskImage.DIRECTORY));
+	}
+
+	/**
+	 * A class of growable arrays of ints, split in pages so that growing
+	 * them never copies existing entries.
+	 */
+	private static final class IntPages {
+
+		int get(int index) {
+			return pages[index >>> PAGE_BITS][index & (PAGE_SIZE-1)];
+		}
+
+		void set(int index, int value) {
+			int page = index >>> PAGE_BITS;
+			if (page == pages.length)
+				pages = Arrays.copyOf(pages, page+1);
+			if (pages[page] == null)
+				pages[page] = new int[PAGE_SIZE];
+			pages[page][index & (PAGE_SIZE-1)] = value;
+		}
+
+		int getNbPages() {
+			return pages.length;
+		}
+
+		private int[][] pages = new int[0][];
+	}
+
+	/**
+	 * A class of growable arrays of longs, split in pages so that growing
+	 * them never copies existing entries.
+	 */
+	private static final class LongPages {
+
+		long get(int index) {
+			return pages[index >>> PAGE_BITS][index & (PAGE_SIZE-1)];
+		}
+
+		void set(int index, long value) {
+			int page = index >>> PAGE_BITS;
+			if (page == pages.length)
+				pages = Arrays.copyOf(pages, page+1);
+			if (pages[page] == null)
+				pages[page] = new long[PAGE_SIZE];
+			pages[page][index & (PAGE_SIZE-1)] = value;
+		}
+
+		private long[][] pages = new long[0][];
+	}
+
+	/**
+	 * A class of open addressing hash tables mapping indices of directories
+	 * onto their item tables.
+	 *    Only directories with items have a table, so that files, links and
+	 *    empty directories take no entry. Removals shift later entries of
+	 *    the same run back, so that no tombstones are needed.
+	 */
+	private static final class Tables {
+
+		int[] get(int directory) {
+			for (int slot = slot(directory); tables[slot] != null; slot = (slot+1) & (keys.length-1))
+				if (keys[slot] == directory)
+					return tables[slot];
+			return null;
+		}
+
+		void put(int directory, int[] table) {
+			int slot = slot(directory);
+			while ((tables[slot] != null) && (keys[slot] != directory))
+				slot = (slot+1) & (keys.length-1);
+			if (tables[slot] == null) {
+				if (2*(size+1) > keys.length) {
+					resize(keys.length*2);
+					put(directory, table);
+					return;
+				}
+				size++;
+			}
+			keys[slot] = directory;
+			tables[slot] = table;
+		}
+
+		void remove(int directory) {
+			int mask = keys.length-1;
+			int slot = slot(directory);
+			while (keys[slot] != directory) {
+				if (tables[slot] == null)
+					return;
+				slot = (slot+1) & mask;
+			}
+			if (tables[slot] == null)
+				return;
+			size--;
+			for (int next = (slot+1) & mask; tables[next] != null; next = (next+1) & mask) {
+				int home = slot(keys[next]);
+				if (((next-home) & mask) >= ((next-slot) & mask)) {
+					keys[slot] = keys[next];
+					tables[slot] = tables[next];
+					slot = next;
+				}
+			}
+			keys[slot] = 0;
+			tables[slot] = null;
+		}
+
+		long getMemoryUsage() {
+			long result = (long) keys.length*(4+4);
+			for (int[] table : tables)
+				if (table != null)
+					result += 16+4L*table.length;
+			return result;
+		}
+
+		private int slot(int directory) {
+			return (directory*0x9E3779B9 >>> 8) & (keys.length-1);
+		}
+
+		private void resize(int capacity) {
+			int[] oldKeys = keys;
+			int[][] oldTables = tables;
+			keys = new int[capacity];
+			tables = new int[capacity][];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldTables[i] != null)
+					put(oldKeys[i], oldTables[i]);
+		}
+
+		private int[] keys = new int[16];
+		private int[][] tables = new int[16][];
+		private int size;
+	}
+
+	/**
+	 * The number of entries in a page of node attributes, as a power of 2.
+	 */
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	/**
+	 * The number of bytes in a page of names, as a power of 2.
+	 */
+	private static final int NAME_PAGE_BITS = 20;
+	private static final int NAME_PAGE_SIZE = 1 << NAME_PAGE_BITS;
+
+	/**
+	 * The bits of the parent attribute holding the index of the parent,
+	 * which also is the largest number of nodes and the value standing
+	 * for no node.
+	 */
+	static final int NONE = (1 << 28)-1;
+
+	/**
+	 * The position of the kind of a node in its parent attribute, and the
+	 * flags stored above it.
+	 */
+	private static final int KIND_SHIFT = 28;
+	private static final int WRITABLE = 1 << 30;
+	private static final int TERMINATED = 1 << 31;
+
+	/**
+	 * The flag of a name offset standing for the position of a node in
+	 * the front-coded names of its parent directory, rather than for an
+	 * offset in the pool of names.
+	 */
+	private static final int CODED = 1 << 31;
+
+	/**
+	 * The smallest number of items of a directory copied into a tree for
+	 * its names to be front-coded.
+	 */
+	static final int CODED_THRESHOLD = 4*FrontCodedNames.BLOCK_SIZE;
+
+	/**
+	 * Variables referencing the attributes of the nodes, indexed by node.
+	 */
+	private final IntPages parents = new IntPages();
+	private final IntPages nameOffsets = new IntPages();
+	private final LongPages values = new LongPages();
+	private final LongPages creationTimes = new LongPages();
+	private final LongPages modificationTimes = new LongPages();
+
+	/**
+	 * Variable registering the number of nodes.
+	 */
+	private int nbNodes;
+
+	/**
+	 * Variable referencing the item tables of the directories with items.
+	 *    The first entry of a table holds the number of items; the indices
+	 *    of the items follow, sorted on their names ignoring case.
+	 */
+	private final Tables tables = new Tables();
+
+	/**
+	 * Variables referencing the pages of names, and registering the end of
+	 * the names in the last page.
+	 */
+	private final List<byte[]> names = new ArrayList<byte[]>();
+	private int namesEnd;
+
+	/**
+	 * Variable referencing the front-coded names of the items of
+	 * directories, indexed by directory.
+	 */
+	private final Map<Integer, FrontCodedNames> codedNames =
+			new HashMap<Integer, FrontCodedNames>();
+}
@@ -0,0 +1,425 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A class storing fixed-size chunks of file content outside the heap.
+ *    Chunks are carved from slabs, large direct buffers that are never
+ *    returned to the operating system. A chunk is identified by a strictly
+ *    positive handle, so that a file only needs a table of handles to
+ *    reference its content, and 0 can stand for a chunk that reads as
+ *    zeroes. Released chunks are kept on a free list and reused before a
+ *    new slab is allocated.
+ *    Chunks are content addressed. Once a chunk has been written, it can
+ *    be sealed: its content is hashed, and if a chunk with the same content
+ *    is stored already, that chunk is shared instead and the new one is
+ *    released. Chunks holding only zeroes are released as well. Files seal
+ *    their chunks lazily, before they share them or account for them, so
+ *    that repeated writes to a chunk hash it only once. Each chunk is
+ *    reference counted, and a shared chunk is copied before it is written
+ *    again.
+ *    The index of sealed chunks is striped by hash, each stripe guarded by
+ *    its own lock, and chunks are hashed outside any lock. The reference
+ *    counts and the free list are guarded by the lock of this class, which
+ *    is only ever acquired after the lock of a stripe, never before.
+ */
+final class ContentChunks {
+
+	/**
+	 * Prevent the instantiation of this class.
+	 */
+	private ContentChunks() {
+	}
+
+	/**
+	 * The number of bytes in a chunk.
+	 */
+	static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * The number of chunks in a slab.
+	 */
+	static final int CHUNKS_PER_SLAB = 256;
+
+	/**
+	 * Return the handle of a new, unshared chunk filled with zeroes.
+	 */
+	static synchronized int allocate() {
+		if (nbFree == 0)
+			addSlab();
+		int result = free[--nbFree];
+		references[result] = 1;
+		nbStored++;
+		nbReferences++;
+		ByteBuffer chunk = getChunk(result);
+		chunk.put(ZEROES, 0, CHUNK_SIZE);
+		return result;
+	}
+
+	/**
+	 * Register an additional reference to the chunk with the given handle,
+	 * and return that handle.
+	 */
+	static synchronized int share(int handle) {
+		references[handle]++;
+		nbReferences++;
+		return handle;
+	}
+
+	/**
+	 * Release a reference to the chunk with the given handle, and return
+	 * the chunk to the free list if no references remain.
+	 */
+	static void release(int handle) {
+		// the hash of a chunk only changes while it is not shared, and
+		// then only its single owner can release it.
+		long hash = getHash(handle);
+		if (hash == 0) {
+			releaseUnindexed(handle);
+			return;
+		}
+		ChunkIndex index = getIndex(hash);
+		synchronized (index) {
+			synchronized (ContentChunks.class) {
+				if (references[handle] == 1) {
+					index.remove(hash, handle);
+					hashes[handle] = 0;
+				}
+				releaseUnindexed(handle);
+			}
+		}
+	}
+
+	/**
+	 * Release a reference to the chunk with the given handle, which is not
+	 * registered in the index of sealed chunks once no references remain.
+	 */
+	private static synchronized void releaseUnindexed(int handle) {
+		nbReferences--;
+		if (--references[handle] > 0)
+			return;
+		if (nbFree == free.length)
+			free = Arrays.copyOf(free, free.length * 2);
+		free[nbFree++] = handle;
+		nbStored--;
+	}
+
+	/**
+	 * Return the hash under which the chunk with the given handle is
+	 * registered in the index of sealed chunks, or 0 if it is not.
+	 */
+	private static synchronized long getHash(int handle) {
+		return hashes[handle];
+	}
+
+	/**
+	 * Return the handle of a chunk with the content of the chunk with the
+	 * given handle, that can be written without affecting other
+	 * references.
+	 *    An unshared chunk is returned itself, after it has been removed
+	 *    from the index; a shared chunk is copied, and the reference to it
+	 *    is released.
+	 */
+	static int unshare(int handle) {
+		synchronized (ContentChunks.class) {
+			if (references[handle] > 1) {
+				int result = allocate();
+				getChunk(result).put(getChunk(handle));
+				releaseUnindexed(handle);
+				return result;
+			}
+		}
+		// the chunk is not shared, so only the caller can use it.
+		long hash = getHash(handle);
+		if (hash != 0) {
+			ChunkIndex index = getIndex(hash);
+			synchronized (index) {
+				synchronized (ContentChunks.class) {
+					index.remove(hash, handle);
+					hashes[handle] = 0;
+				}
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * Seal the unshared chunk with the given handle after it has been
+	 * written, and return the handle under which its content is stored
+	 * from now on.
+	 *    The chunk is hashed without locking, since only the caller uses
+	 *    it; only the stripe of the index for its hash is locked to look
+	 *    it up. A chunk in the index cannot be written or released while
+	 *    that stripe is locked, so it can be compared safely.
+	 *
+	 * @return 0 if the chunk holds only zeroes; the handle of a chunk with
+	 *         the same content if there is such a chunk already; the given
+	 *         handle otherwise. In the first two cases, the given chunk is
+	 *         released.
+	 */
+	static int seal(int handle) {
+		ByteBuffer chunk = getChunk(handle);
+		long hash = 0x84222325CBF29CE4L;
+		long bits = 0;
+		for (int i = chunk.position(); i < chunk.limit(); i += 8) {
+			long value = chunk.getLong(i);
+			bits |= value;
+			hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+			hash ^= hash >>> 29;
+		}
+		if (bits == 0) {
+			releaseUnindexed(handle);
+			return 0;
+		}
+		if (hash == 0)
+			hash = 1;
+		ChunkIndex index = getIndex(hash);
+		synchronized (index) {
+			int existing = index.get(hash);
+			if (existing == 0) {
+				index.put(hash, handle);
+				synchronized (ContentChunks.class) {
+					hashes[handle] = hash;
+				}
+				return handle;
+			}
+			if (getChunk(existing).equals(chunk)) {
+				releaseUnindexed(handle);
+				return share(existing);
+			}
+			return handle;
+		}
+	}
+
+	/**
+	 * Return the stripe of the index of sealed chunks for the given hash.
+	 */
+	private static ChunkIndex getIndex(long hash) {
+		return indexes[(int) (hash >>> (64 - STRIPE_BITS))];
+	}
+
+	/**
+	 * Copy the given number of bytes at the given offset in the chunk with
+	 * the given handle into the given buffer.
+	 */
+	static void read(int handle, int offset, ByteBuffer destination, int length) {
+		ByteBuffer chunk = getChunk(handle);
+		chunk.position(chunk.position() + offset);
+		chunk.limit(chunk.position() + length);
+		destination.put(chunk);
+	}
+
+	/**
+	 * Copy the given number of bytes from the given buffer into the chunk
+	 * with the given handle, at the given offset.
+	 */
+	static void write(int handle, int offset, ByteBuffer source, int length) {
+		ByteBuffer chunk = getChunk(handle);
+		chunk.position(chunk.position() + offset);
+		ByteBuffer part = source.duplicate();
+		part.limit(part.position() + length);
+		chunk.put(part);
+		source.position(source.position() + length);
+	}
+
+	/**
+	 * Fill the given number of bytes at the given offset in the chunk with
+	 * the given handle with zeroes.
+	 */
+	static void clear(int handle, int offset, int length) {
+		ByteBuffer chunk = getChunk(handle);
+		chunk.position(chunk.position() + offset);
+		chunk.put(ZEROES, 0, length);
+	}
+
+	/**
+	 * Write the given number of zeroes into the given buffer.
+	 */
+	static void readZeroes(ByteBuffer destination, int length) {
+		destination.put(ZEROES, 0, length);
+	}
+
+	/**
+	 * Return the number of chunks currently stored.
+	 */
+	static synchronized long getNbStoredChunks() {
+		return nbStored;
+	}
+
+	/**
+	 * Return the number of references to stored chunks.
+	 *    This exceeds the number of stored chunks by the number of chunks
+	 *    saved by deduplication.
+	 */
+	static synchronized long getNbReferences() {
+		return nbReferences;
+	}
+
+	/**
+	 * Return the number of bytes reserved outside the heap for chunks.
+	 */
+	static long getReservedBytes() {
+		return (long) slabs.length * CHUNKS_PER_SLAB * CHUNK_SIZE;
+	}
+
+	/**
+	 * Return a buffer positioned at and limited to the chunk with the given
+	 * handle.
+	 */
+	private static ByteBuffer getChunk(int handle) {
+		int index = handle - 1;
+		ByteBuffer result = slabs[index / CHUNKS_PER_SLAB].duplicate();
+		int start = (index % CHUNKS_PER_SLAB) * CHUNK_SIZE;
+		result.limit(start + CHUNK_SIZE);
+		result.position(start);
+		return result;
+	}
+
+	/**
+	 * Allocate a new slab and add its chunks to the free list.
+	 */
+	private static void addSlab() {
+		ByteBuffer[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+		newSlabs[slabs.length] = ByteBuffer.allocateDirect(CHUNKS_PER_SLAB * CHUNK_SIZE);
+		if (free.length < CHUNKS_PER_SLAB)
+			free = Arrays.copyOf(free, CHUNKS_PER_SLAB);
+		int first = slabs.length * CHUNKS_PER_SLAB + 1;
+		for (int i = CHUNKS_PER_SLAB - 1; i >= 0; i--)
+			free[nbFree++] = first + i;
+		references = Arrays.copyOf(references, first + CHUNKS_PER_SLAB);
+		hashes = Arrays.copyOf(hashes, first + CHUNKS_PER_SLAB);
+		slabs = newSlabs;
+	}
+
+	/**
+	 * A class of open addressing hash tables mapping content hashes onto
+	 * chunk handles.
+	 *    Keys are never 0, so that 0 can mark an empty slot. Removals shift
+	 *    later entries of the same run back, so that no tombstones are
+	 *    needed.
+	 */
+	private static final class ChunkIndex {
+
+		/**
+		 * Return the handle registered for the given hash, or 0 if there is
+		 * none.
+		 */
+		int get(long hash) {
+			for (int slot = slot(hash); keys[slot] != 0; slot = (slot + 1) & (keys.length - 1))
+				if (keys[slot] == hash)
+					return values[slot];
+			return 0;
+		}
+
+		/**
+		 * Register the given handle for the given hash, which is not
+		 * registered yet.
+		 */
+		void put(long hash, int handle) {
+			if (2 * (size + 1) > keys.length)
+				resize(keys.length * 2);
+			int slot = slot(hash);
+			while (keys[slot] != 0)
+				slot = (slot + 1) & (keys.length - 1);
+			keys[slot] = hash;
+			values[slot] = handle;
+			size++;
+		}
+
+		/**
+		 * Remove the registration of the given handle for the given hash,
+		 * if any.
+		 */
+		void remove(long hash, int handle) {
+			int mask = keys.length - 1;
+			int slot = slot(hash);
+			while ((keys[slot] != hash) || (values[slot] != handle)) {
+				if (keys[slot] == 0)
+					return;
+				slot = (slot + 1) & mask;
+			}
+			size--;
+			for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+				int home = slot(keys[next]);
+				if (((next - home) & mask) >= ((next - slot) & mask)) {
+					keys[slot] = keys[next];
+					values[slot] = values[next];
+					slot = next;
+				}
+			}
+			keys[slot] = 0;
+			values[slot] = 0;
+		}
+
+		private int slot(long hash) {
+			return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[capacity];
+			values = new int[capacity];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != 0)
+					put(oldKeys[i], oldValues[i]);
+		}
+
+		private long[] keys = new long[16];
+		private int[] values = new int[16];
+		private int size;
+	}
+
+	/**
+	 * A chunk worth of zeroes.
+	 */
+	private static final byte[] ZEROES = new byte[CHUNK_SIZE];
+
+	/**
+	 * Variable referencing the slabs, in order of allocation.
+	 *    The array is replaced as a whole when a slab is added, so that
+	 *    chunks can be read and written without locking.
+	 */
+	private static volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+	/**
+	 * Variables referencing the stack of free chunk handles, and
+	 * registering the number of free chunks.
+	 */
+	private static int[] free = new int[0];
+	private static int nbFree;
+
+	/**
+	 * Variables referencing the number of references to and the content
+	 * hash of each chunk, indexed by handle. A hash of 0 marks a chunk that
+	 * is not registered in the index.
+	 */
+	private static int[] references = new int[1];
+	private static long[] hashes = new long[1];
+
+	/**
+	 * The number of bits of a hash selecting the stripe of the index for
+	 * that hash. The lowest bits select the slot within the stripe.
+	 */
+	private static final int STRIPE_BITS = 4;
+
+	/**
+	 * Variable referencing the stripes of the index of sealed chunks by
+	 * content hash. Each stripe is guarded by its own lock.
+	 */
+	private static final ChunkIndex[] indexes = new ChunkIndex[1 << STRIPE_BITS];
+
+	static {
+		for (int i = 0; i < indexes.length; i++)
+			indexes[i] = new ChunkIndex();
+	}
+
+	/**
+	 * Variables registering the number of stored chunks and the number of
+	 * references to them.
+	 */
+	private static long nbStored;
+	private static long nbReferences;
+}
@@ -1,7 +1,15 @@
 package filesystem;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import be.kuleuven.cs.som.annotate.Model;
 import be.kuleuven.cs.som.annotate.Raw;
@@ -36,7 +44,8 @@ public class Directory extends RealDiskItem {
     */
     public Directory(String name, boolean writable) throws IllegalArgumentException, DiskItemNotWritableException {
     	super(name);
-    	setWritability(writable);
+    	initializeWritability(writable);
+    	MutationListeners.itemCreated(this);
     }
     
     /**
@@ -74,7 +83,43 @@ public class Directory extends RealDiskItem {
                   DiskItemNotWritableException,
                   IllegalAddException    {
         super(parent,name, writable);
-        
+        MutationListeners.itemCreated(this);
+    }
+
+    /**
+     * Initialize a new directory with given parent directory, name and 
+     * writability, without registering it in the given parent directory.
+     * 
+     * @param  parent
+     *         The parent directory of the new directory.
+     * @param  name
+     *         The name of the new directory.
+     * @param  writable
+     *         The writability of the new directory.
+     * @param  unregistered
+     *         The marker selecting this constructor.
+     * @post   The new directory has no items.
+     *         | new.getNbItems() == 0
+	 * @effect The new directory is an unregistered disk item with the
+     *         given parent, name and writability.
+     *         | super(parent,name,writable,unregistered)        
+     */
+    @Model private Directory(Directory parent, String name, boolean writable,
+           Unregistered unregistered) throws IllegalArgumentException {
+        super(parent,name,writable,unregistered);
+    }
+
+    /**
+     * Return a new directory with given parent directory, name and
+     * writability, that is not registered in the given parent directory yet.
+     *
+     * @return A new unregistered directory with the given parent, name and
+     *         writability.
+     *         | result == new Directory(parent,name,writable,UNREGISTERED)
+     */
+    static Directory createUnregistered(Directory parent, String name, boolean writable)
+           throws IllegalArgumentException {
+        return new Directory(parent,name,writable,UNREGISTERED);
     }
 
     /**
@@ -118,6 +163,60 @@ public class Directory extends RealDiskItem {
     public boolean canBeTerminated() {
         return super.canBeTerminated() && (isRoot() || getParentDirectory().isWritable()) && getNbItems() == 0;
     }
+
+    /**
+     * Terminate this directory.
+     *
+     * @effect This directory is terminated as a disk item.
+     *         | super.terminate()
+     * @effect If the items of this directory are paged and not loaded,
+     *         its pager is notified that this directory is dropped.
+     *         | if (!areItemsLoaded())
+     *         | then getPager().dropped(this)
+     */
+    @Override
+    public void terminate() throws ImpossibleDeletionException {
+        super.terminate();
+        dropPagedItems();
+    }
+
+    /**
+     * Release this root directory and all its loaded direct and indirect
+     * items, so that they are no longer registered under their identifier.
+     *    Registered items are kept alive by the registry of identifiers,
+     *    so a tree that is dropped without terminating its items must be
+     *    released. Items that are not loaded are not registered, and are
+     *    not loaded by this method; the pagers of directories whose items
+     *    are not loaded are notified that those directories are dropped. The tree must not be mutated while it
+     *    is released, and its items must no longer be used afterwards.
+     *
+     * @post   No loaded item of this tree is registered any longer.
+     *         | for each item in DiskItem:
+     *         |   if (equalsOrIsDirectOrIndirectParentOf(item))
+     *         |   then lookupById(item.getId()) != item
+     * @throws IllegalStateException
+     *         This directory is not a root directory.
+     *         | !isRoot()
+     */
+    public void releaseTree() throws IllegalStateException {
+        if (!isRoot())
+            throw new IllegalStateException("Not a root directory!");
+        ArrayDeque<Directory> pending = new ArrayDeque<Directory>();
+        pending.add(this);
+        while (!pending.isEmpty()) {
+            Directory directory = pending.poll();
+            unregister(directory);
+            if (!directory.areItemsLoaded()) {
+                directory.dropPagedItems();
+                continue;
+            }
+            for (DiskItem item : directory.getItemArray())
+                if (item instanceof Directory)
+                    pending.add((Directory) item);
+                else
+                    unregister(item);
+        }
+    }
     
 	/**********************************************************
 	 * Contents
@@ -168,6 +267,15 @@ public class Directory extends RealDiskItem {
      *         | ! exists(name)
      */
     public DiskItem getItem(String name) throws NoSuchItemException {
+        FrozenTree frozen = this.frozen;
+        if (frozen != null) {
+            DiskItem result = frozen.getItem(frozenIndex, name);
+            if (result == null)
+                throw new NoSuchItemException();
+            return result;
+        }
+        if (!mayContain(name))
+            throw new NoSuchItemException();
         try {
             int index = getIndexOfFirstItemNotBefore(name);
             if (getItemAt(index).getName().equalsIgnoreCase(name))
@@ -274,8 +382,9 @@ public class Directory extends RealDiskItem {
                                              IllegalArgumentException {
     	  if (!canHaveAsItemAt(item,position))
     		throw new IllegalAddException(this,item);
+    	  preserveVersion();
     	  try {
-	    items.add(position-1,item);
+	    items = getLoadedItems().insert(position-1,item);
 	  } catch (IndexOutOfBoundsException e) {
 		throw new IllegalArgumentException();
 	  }
@@ -300,6 +409,13 @@ public class Directory extends RealDiskItem {
 	   *          | for each I in 1..getNbItems():
 	   *          |   if (getItemAt(I).isOrderedAfter(item))
 	   *          |     then new.getItemAt(I+1) == getItemAt(I)
+	   * @effect  This directory, the given item and all its direct and
+	   *          indirect items are registered as changed since the last
+	   *          checkpoint.
+	   *          | markDirty() && markSubtreeDirty(item)
+	   * @effect  The latest change in the subtree of the given item is
+	   *          propagated to this directory and its ancestors.
+	   *          | propagateChangeTime(getSubtreeChangeTime(item))
 	   * @throws  IllegalAddException [must]
 	   *          This directory can not have the given item as item.
 	   *          | !canHaveAsItem(item)
@@ -307,6 +423,9 @@ public class Directory extends RealDiskItem {
 	  private void addToItems(@Raw DiskItem item) throws IllegalAddException{
 	    try {
 	    	    setItemAt(item, getIndexOfFirstItemNotBefore(item));
+	    	    markDirty();
+	    	    markSubtreeDirty(item);
+	    	    propagateChangeTime(getSubtreeChangeTime(item));
 	    }
 	    catch (IllegalArgumentException e) {
 	    	  //item.getName() != null is a precondition
@@ -326,16 +445,21 @@ public class Directory extends RealDiskItem {
 	   * @effect The given item is added to the items registered in this
 	   *         directory.
 	   *         | addToItems(item)        
+	   * @effect The disk usage of the given item is added to the disk
+	   *         usage of this directory and all its ancestors.
+	   *         | propagateDiskUsageDelta(item.getTotalDiskUsage(),
+	   *         |     item.getTotalAllocatedUsage())
   	   * @throws DiskItemNotWritableException [must]
-	   *         This directory is not writable.
-	   *         | !isWritable()
+	   *         This directory is not writable or is frozen.
+	   *         | !isWritable() || isFrozen()
 	   */
 	  @Model void addToItemsAndUpdateModificationTime(@Raw DiskItem item) 
 	       throws DiskItemNotWritableException,IllegalAddException {
-	    if (!isWritable())
+	    if (!isWritable() || isFrozen())
 	        throw new DiskItemNotWritableException(this);
 	    addToItems(item);
 	    setModificationTime();
+	    propagateDiskUsageDelta(item.getTotalDiskUsage(), item.getTotalAllocatedUsage());
 	  }	  
 
 	  /**
@@ -370,17 +494,44 @@ public class Directory extends RealDiskItem {
 	   *        |   new.getItemAt(I-1) == getItemAt(I)
 	   * @post  The number of items has decreased.
 	   *        | new.getNbItems() == getNbItems() - 1
+	   * @effect This directory is registered as changed since the last
+	   *        checkpoint.
+	   *        | markDirty()
 	   * @throws IllegalArgumentException [must]
 	   *         The given position is not positive or exceeds the number
 	   *         of items registered in this directory. 
 	   *         | (position < 1) || (position > getNbItems())
 	   */
 	  @Model private void removeItemAt(int position) throws IllegalArgumentException{
+		preserveVersion();
 		try {
-			items.remove(position-1);
+			items = getLoadedItems().remove(position-1);
 		} catch (IndexOutOfBoundsException e) {
 			throw new IllegalArgumentException();
 		}
+		markDirty();
+	  }
+
+	  /**
+	   * Register the given item and all its direct and indirect items as
+	   * changed since the last checkpoint, so that an attached subtree is
+	   * checkpointed as a whole.
+	   *
+	   * @param  item
+	   *         The item to register.
+	   * @effect The given item is registered as changed, and so are the
+	   *         items of the given item if it is a directory.
+	   *         | item.markDirty() &&
+	   *         | for each I in 1..item.getNbItems():
+	   *         |   markSubtreeDirty(item.getItemAt(I))
+	   */
+	  @Model private static void markSubtreeDirty(@Raw DiskItem item) {
+		if (!DirtyItems.isTracking())
+			return;
+		item.markDirty();
+		if (item instanceof Directory)
+			for (DiskItem child : ((Directory) item).getItemArray())
+				markSubtreeDirty(child);
 	  }
 	  
 	  /**
@@ -419,6 +570,11 @@ public class Directory extends RealDiskItem {
 	   *        |      new.getItemAt(J) == getItemAt(I)
 	   * @post  The directory has a valid (ordered) list of items.
 	   *        | new.hasValidItems()       
+	   * @effect This directory and the item at the given position are
+	   *         registered as changed since the last checkpoint. Unlike
+	   *         an attached item, the direct and indirect items of the
+	   *         moved item are not.
+	   *         | markDirty() && getItemAt(position).markDirty()
 	   * @throws IllegalArgumentException [must]
 	   *         The given position is not positive or exceeds the number
 	   *         of items registered in this directory. 
@@ -429,11 +585,162 @@ public class Directory extends RealDiskItem {
 		DiskItem item = getItemAt(position);
 	    removeItemAt(position);
 		try {
-			addToItems(item);
+			setItemAt(item, getIndexOfFirstItemNotBefore(item));
 		} catch (IllegalAddException e) {
 			//cannot occur since
 			//@pre canHaveAsItem(getItemAt(position))
 		}
+		item.markDirty();
+	  }
+
+	  /**
+	   * Add all the given items to the items registered in this directory,
+	   * in a single pass. Also updates the modification time and enforces
+	   * writability.
+	   *
+	   * @param  newItems
+	   *         The items to be added, sorted on their names ignoring case.
+	   * @pre    Each of the given items references this directory as its
+	   *         parent directory, and this directory can have it as an item.
+	   *         | for each item in newItems:
+	   *         |   item.getParentDirectory() == this && canHaveAsItem(item)
+	   * @pre    The names of the given items are distinct, ignoring case.
+	   * @post   Each of the given items is added to the items registered
+	   *         in this directory.
+	   *         | for each item in newItems: new.hasAsItem(item)
+	   * @post   The items registered in this directory remain ordered.
+	   *         | new.hasValidItems()
+	   * @effect The new modification time of this directory is updated.
+	   *         | setModificationTime()
+	   * @effect The disk usage of the given items is added to the disk
+	   *         usage of this directory and all its ancestors.
+	   *         | propagateDiskUsageDelta(SUM(item.getTotalDiskUsage()))
+	   * @throws DiskItemNotWritableException [must]
+	   *         This directory is not writable or is frozen.
+	   *         | !isWritable() || isFrozen()
+	   * @O      Linear in the number of items of this directory plus
+	   *         the number of given items.
+	   */
+	  @Model void addAllToItemsAndUpdateModificationTime(List<DiskItem> newItems)
+	       throws DiskItemNotWritableException {
+	    if (!isWritable() || isFrozen())
+	        throw new DiskItemNotWritableException(this);
+	    if (newItems.isEmpty())
+	        return;
+	    List<DiskItem> merged = new ArrayList<DiskItem>(getNbItems()+newItems.size());
+	    int i = 1, j = 0;
+	    long usage = 0, allocated = 0;
+	    while ((i <= getNbItems()) || (j < newItems.size())) {
+	        if ((j == newItems.size()) ||
+	            ((i <= getNbItems()) && getItemAt(i).isOrderedBefore(newItems.get(j)))) {
+	            merged.add(getItemAt(i++));
+	        } else {
+	            DiskItem item = newItems.get(j++);
+	            usage += item.getTotalDiskUsage();
+	            allocated += item.getTotalAllocatedUsage();
+	            merged.add(item);
+	        }
+	    }
+	    preserveVersion();
+	    getLoadedItems();
+	    items = ItemList.of(merged);
+	    setModificationTime();
+	    for (DiskItem item : newItems)
+	        markSubtreeDirty(item);
+	    propagateDiskUsageDelta(usage, allocated);
+	    propagateChangeTime(getSubtreeChangeTime(newItems));
+	  }
+
+	  /**
+	   * Register the given items as the items of this empty directory,
+	   * when reconstructing a tree in bulk.
+	   *    Neither the writability of this directory nor the validity of
+	   *    the given items is checked, and the modification time of this
+	   *    directory is left untouched.
+	   *
+	   * @param  newItems
+	   *         The items to be registered, sorted on their names ignoring
+	   *         case.
+	   * @pre    This directory has no items.
+	   *         | getNbItems() == 0
+	   * @pre    Each of the given items references this directory as its
+	   *         parent directory, and their names are distinct, ignoring
+	   *         case.
+	   * @post   The given items are the items of this directory, in the
+	   *         given order.
+	   *         | for each I in 1..newItems.size():
+	   *         |   new.getItemAt(I) == newItems.get(I-1)
+	   * @effect The disk usage of the given items is added to the disk
+	   *         usage of this directory and all its ancestors.
+	   *         | propagateDiskUsageDelta(SUM(item.getTotalDiskUsage()))
+	   */
+	  @Model void loadItems(List<DiskItem> newItems) {
+	    preserveVersion();
+	    long usage = 0, allocated = 0;
+	    for (DiskItem item : newItems) {
+	        usage += item.getTotalDiskUsage();
+	        allocated += item.getTotalAllocatedUsage();
+	    }
+	    items = getLoadedItems().appendAll(newItems);
+	    propagateDiskUsageDelta(usage, allocated);
+	    propagateChangeTime(getSubtreeChangeTime(newItems));
+	  }
+
+	  /**
+	   * Replace the items registered in this directory by the given items,
+	   * when applying a checkpoint to a reconstructed tree.
+	   *    Neither the writability of this directory nor the validity of
+	   *    the given items is checked, and the modification time of this
+	   *    directory is left untouched.
+	   *
+	   * @param  newItems
+	   *         The items to be registered, sorted on their names ignoring
+	   *         case.
+	   * @pre    Each of the given items references this directory as its
+	   *         parent directory, and their names are distinct, ignoring
+	   *         case.
+	   * @post   The given items are the items of this directory, in the
+	   *         given order.
+	   *         | for each I in 1..newItems.size():
+	   *         |   new.getItemAt(I) == newItems.get(I-1)
+	   * @effect The difference between the disk usage of the given items and
+	   *         the disk usage of the replaced items is added to the disk
+	   *         usage of this directory and all its ancestors.
+	   */
+	  @Model void replaceItems(List<DiskItem> newItems) {
+	    preserveVersion();
+	    long usage = 0, allocated = 0;
+	    for (DiskItem item : getLoadedItems()) {
+	        usage -= item.getTotalDiskUsage();
+	        allocated -= item.getTotalAllocatedUsage();
+	    }
+	    for (DiskItem item : newItems) {
+	        usage += item.getTotalDiskUsage();
+	        allocated += item.getTotalAllocatedUsage();
+	    }
+	    items = ItemList.of(newItems);
+	    propagateDiskUsageDelta(usage, allocated);
+	    propagateChangeTime(getSubtreeChangeTime(newItems));
+	  }
+
+	  /**
+	   * Restore the order of the items registered in this directory, after
+	   * some of them have changed their names.
+	   *
+	   * @post  The items registered in this directory are the same as
+	   *        before, in lexicographic order of their names ignoring case.
+	   *        | new.hasValidItems()
+	   * @O     Log-linear in the number of items.
+	   */
+	  @Model void sortItems() {
+		preserveVersion();
+		DiskItem[] sorted = getLoadedItems().toArray();
+		Arrays.sort(sorted, new Comparator<DiskItem>() {
+			public int compare(DiskItem first, DiskItem second) {
+				return first.getName().compareToIgnoreCase(second.getName());
+			}
+		});
+		items = ItemList.of(sorted);
 	  }
 
 	/**
@@ -446,16 +753,21 @@ public class Directory extends RealDiskItem {
 	 *         | removeFromItems(item)        
 	 * @effect The new modification time of this directory is updated.
 	 *         | setModificationTime()
+	 * @effect The disk usage of the given item is subtracted from the
+	 *         disk usage of this directory and all its ancestors.
+	 *         | propagateDiskUsageDelta(-item.getTotalDiskUsage(),
+	 *         |     -item.getTotalAllocatedUsage())
 	 * @throws DiskItemNotWritableException [must]
-	 *         This directory is not writable.
-	 *         | !isWritable()
+	 *         This directory is not writable or is frozen.
+	 *         | !isWritable() || isFrozen()
 	 */
 	@Model void removeFromItemsAndUpdateModificationTime(@Raw DiskItem item) 
 	     throws DiskItemNotWritableException,NoSuchItemException {
-	    if (!isWritable())
+	    if (!isWritable() || isFrozen())
 	        throw new DiskItemNotWritableException(this);
 	    removeFromItems(item);
 	    setModificationTime();
+	    propagateDiskUsageDelta(-item.getTotalDiskUsage(), -item.getTotalAllocatedUsage());
 	}
 
 	  /**
@@ -515,20 +827,9 @@ public class Directory extends RealDiskItem {
 		  if (name == null)
 			      throw new IllegalArgumentException();
 
-          // Binary search:
-          int low = 1;
-	      int high = getNbItems();
-	      int middle = 0;
-	      while (low <= high) {
-	    	    middle = (low+high)/2; 	    
-	        DiskItem middleItem = getItemAt(middle);
-	        if (middleItem.isOrderedBefore(name)) {
-	          low = middle + 1;
-	        } else {
-	          high = middle - 1;
-	        }
-	      }
-	      return high+1;
+	      if (items == null)
+	          return 1;
+	      return getLoadedItems().indexOfFirstNotBefore(name)+1;
 	  }
 	  
     /**
@@ -583,12 +884,14 @@ public class Directory extends RealDiskItem {
 	*        |      getItemAt(I).getName().equalsIgnoreCase(name))
     */
    @Raw public boolean exists(String name) {
-	   for (int i=1;i<=getNbItems();i++) {
-		   if (getItemAt(i).getName().equalsIgnoreCase(name)){
-			   return true;
-		   }
-	   }
-	   return false;
+	   FrozenTree frozen = this.frozen;
+	   if (frozen != null)
+		   return frozen.getItem(frozenIndex, name) != null;
+	   if ((name == null) || !mayContain(name))
+		   return false;
+	   int index = getIndexOfFirstItemNotBefore(name);
+	   return (index <= getNbItems()) &&
+			   getItemAt(index).getName().equalsIgnoreCase(name);
    }
 	  /**
 	   * Check whether the given item is registered in this directory.
@@ -603,15 +906,9 @@ public class Directory extends RealDiskItem {
 	   *         |        getItemAt(I) == item
 	   */
      @Raw public boolean hasAsItem(@Raw DiskItem item) {
-    	   try {
-         for (int i=1; i<=getNbItems(); i++) {
-    	       if (getItemAt(i)==item)
-        	     return true;
-         }
-        	return false;
-       } catch (IllegalArgumentException e) {
-			return false;
-       }
+    	   if (items == null)
+    	       return false;
+    	   return getLoadedItems().contains(item);
 	 }  
     
 	  /**
@@ -712,6 +1009,8 @@ public class Directory extends RealDiskItem {
 	 * Return the number of items of this directory.
 	 */
 	@Raw public int getNbItems() {
+		if ((pager != null) && !itemsLoaded)
+			return pagedNbItems;
 		try {
 			return items.size();
 		} catch (NullPointerException e) {
@@ -734,7 +1033,7 @@ public class Directory extends RealDiskItem {
 	@Raw
 	public DiskItem getItemAt(int position) throws IllegalArgumentException {
 		try {
-			return items.get(position - 1);
+			return getLoadedItems().get(position - 1);
 		} catch (IndexOutOfBoundsException e) {
 			// (implicitly) propagating the IndexOutOfBoundsException
 			// would be perfectly OK if the assignment didn't prohibit it.
@@ -767,8 +1066,35 @@ public class Directory extends RealDiskItem {
 	 *        back to this directory.
 	 *        | for each I in 1..items.size() - 1:
 	 *        | !items.get(I).getParentDirectory() == this
+	 *    The representation of the list adapts to the number of items:
+	 *    empty directories share a single empty list, and only large
+	 *    directories pay for spare capacity and an index.
 	 */	
-	private final List<DiskItem> items = new ArrayList<DiskItem>();
+	private ItemList items = ItemList.EMPTY;
+
+	/**
+	 * Return a new array containing the items of this directory, in order.
+	 */
+	@Raw DiskItem[] getItemArray() {
+		if (items == null)
+			return new DiskItem[0];
+		return getLoadedItems().toArray();
+	}
+
+	/**
+	 * Return the list of items of this directory, after loading them from
+	 * the pager by which they are paged, if they are not loaded yet.
+	 */
+	@Raw private ItemList getLoadedItems() {
+		Pager pager = this.pager;
+		if (pager != null) {
+			if (!itemsLoaded)
+				pager.load(this);
+			else
+				isReferenced = true;
+		}
+		return items;
+	}
 	
 	public boolean canAcceptAsNewName(String name) {
 		  try {
@@ -810,10 +1136,15 @@ public class Directory extends RealDiskItem {
 	 *         is not writable.
 	 *         | !isRoot() && (!isWritable() || 
 	 *         |               !getParentDirectory().isWritable())
+	 * @throws DiskItemNotWritableException [must]
+	 *         This diskitem is not a root item and is frozen.
+	 *         | !isRoot() && isFrozen()
+	 * @effect If this disk item was not a root, all mutation listeners
+	 *         are notified of the move.
 	 */ 
 	public void makeRoot() throws DiskItemNotWritableException {
       if (!isRoot()) {
-        if (!isWritable()) {
+        if (!isWritable() || isFrozen()) {
 	      throw new DiskItemNotWritableException(this);
 		}	          
 		try {
@@ -824,8 +1155,10 @@ public class Directory extends RealDiskItem {
 		  //cannot occur
 		  assert false;
 		}
+		Directory oldParent = getParentDirectory();
 		setParentDirectory(null);
 		setModificationTime();
+		MutationListeners.itemMoved(this, oldParent);
 	  }
 	}
 	/**
@@ -848,7 +1181,7 @@ public class Directory extends RealDiskItem {
 			 * @see		DirectoryIterator
 			 */
 			public int getNbRemainingItems() {
-				return items.size() - currentIndex;
+				return getLoadedItems().size() - currentIndex;
 			}
 			/**
 			 * Return the current disk item of this directory-iterator.
@@ -856,7 +1189,7 @@ public class Directory extends RealDiskItem {
 			 * @see		DirectoryIterator
 			 */
 			public DiskItem getCurrentItem() throws IndexOutOfBoundsException {
-				return items.get(currentIndex);
+				return getLoadedItems().get(currentIndex);
 			}
 			/**
 			 * Advance the current item of this directory-iterator to the
@@ -881,23 +1214,812 @@ public class Directory extends RealDiskItem {
 	}
 	/**
 	 * Returns the total diskspace this directory uses
+	 *    The total is maintained incrementally as items are added, removed
+	 *    or resized, so it is returned in constant time.
 	 * 
 	 * @return The size of each file in the direct or indirect subdirectories 
 	 * 		   of this directory, added together
 	 * 			| foreach diskItem in items
 	 * 				SUM(diskItem.getTotalDiskUsage())
 	 */
-	public long getTotalDiskUsage()
+	@Raw public long getTotalDiskUsage()
 	{
-		
-		long result = 0;
-		for(DirectoryIterator iterator = getItems(); iterator.getNbRemainingItems() > 0; iterator.advance())
-		{
-			result += iterator.getCurrentItem().getTotalDiskUsage();
+		FrozenTree frozen = this.frozen;
+		if (frozen != null)
+			return frozen.getTotalDiskUsage(frozenIndex);
+		try {
+			return totalDiskUsage.sum();
+		} catch (NullPointerException e) {
+			// this directory is still being registered in its parent
+			// directory by the constructor of its superclass.
+			assert totalDiskUsage == null;
+			return 0;
 		}
-		return result;
 	}
+
+	/**
+	 * Return the total number of bytes of content allocated for the direct
+	 * and indirect items of this directory.
+	 *    Like the total disk usage, the total is maintained incrementally,
+	 *    so it is returned in constant time.
+	 *
+	 * @return The allocated usage of each item of this directory, added
+	 *         together.
+	 *         | result == SUM(getItemAt(I).getTotalAllocatedUsage()
+	 *         |               for I in 1..getNbItems())
+	 */
+	@Raw public long getTotalAllocatedUsage() {
+		FrozenTree frozen = this.frozen;
+		if (frozen != null)
+			return frozen.getTotalAllocatedUsage(frozenIndex);
+		StripedCounter allocatedUsage = this.allocatedUsage;
+		return (allocatedUsage == null)? 0 : allocatedUsage.sum();
+	}
+
+	/**
+	 * Return a copy of this directory with the given name in the given
+	 * directory, whose items are copied on their first use.
+	 *
+	 * @see superclass
+	 */
+	@Override
+	public Directory cloneInto(Directory target, String name)
+			throws IllegalArgumentException, DiskItemNotWritableException,
+			       IllegalAddException {
+		return (Directory) super.cloneInto(target, name);
+	}
+
+	/**
+	 * Return a copy of this directory with the given name in the given
+	 * directory, without registering it there, whose items are cloned
+	 * from the items of this directory on their first use.
+	 */
+	@Override
+	@Model Directory copy(Directory parent, String name) {
+		return ClonePager.copy(this, parent, name);
+	}
+
+	/**
+	 * Discard this copy, and let the clone pager forget it if its items
+	 * have not been cloned yet.
+	 */
+	@Override
+	@Model void discardCopy() {
+		super.discardCopy();
+		dropPagedItems();
+	}
+
+	/**
+	 * Let the pager by which the items of this directory are paged know
+	 * that this directory is dropped, if its items are not loaded.
+	 */
+	private void dropPagedItems() {
+		Pager pager = this.pager;
+		if ((pager != null) && !itemsLoaded)
+			pager.dropped(this);
+	}
+
+	/**
+	 * Add the handles of the chunks holding the content of all direct and
+	 * indirect items of this directory to the given set.
+	 *    Directories whose items are not loaded are skipped rather than
+	 *    loaded: items paged from an image or a store have no content, and
+	 *    clones share the chunks of their sources until they are loaded.
+	 */
+	@Override
+	@Model void collectContentChunks(BitSet handles) {
+		if (!areItemsLoaded())
+			return;
+		for (DiskItem item : getItemArray())
+			item.collectContentChunks(handles);
+	}
+
+	/**
+	 * Adapt the total disk usage of this directory and all its direct or
+	 * indirect parent directories with the given delta.
+	 * 
+	 * @param  delta
+	 *         The amount of bytes by which the disk usage changes.
+	 * @post   The total disk usage of this directory and of each of its
+	 *         ancestors is adapted with the given delta.
+	 *         | for each dir such that dir.equalsOrIsDirectOrIndirectParentOf(this):
+	 *         |   (new dir).getTotalDiskUsage() == dir.getTotalDiskUsage() + delta
+	 */
+	@Model void propagateDiskUsageDelta(long delta) {
+		propagateDiskUsageDelta(delta, 0);
+	}
+
+	/**
+	 * Adapt the total disk usage and the total allocated usage of this
+	 * directory and all its direct or indirect parent directories with the
+	 * given deltas.
+	 *
+	 * @param  delta
+	 *         The amount of bytes by which the disk usage changes.
+	 * @param  allocatedDelta
+	 *         The amount of bytes by which the allocated usage changes.
+	 * @post   The total disk usage and the total allocated usage of this
+	 *         directory and of each of its ancestors are adapted with the
+	 *         given deltas.
+	 *         | for each dir such that dir.equalsOrIsDirectOrIndirectParentOf(this):
+	 *         |   (new dir).getTotalDiskUsage() == dir.getTotalDiskUsage() + delta &&
+	 *         |   (new dir).getTotalAllocatedUsage() ==
+	 *         |     dir.getTotalAllocatedUsage() + allocatedDelta
+	 */
+	@Model void propagateDiskUsageDelta(long delta, long allocatedDelta) {
+		if ((delta == 0) && (allocatedDelta == 0))
+			return;
+		for (Directory dir = this; dir != null; dir = dir.getParentDirectory()) {
+			dir.preserveVersion();
+			if (delta != 0)
+				dir.totalDiskUsage.add(delta);
+			if (allocatedDelta != 0)
+				dir.allocatedUsage.add(allocatedDelta);
+		}
+	}
+
+	/**
+	 * Variable referencing the total disk usage of all direct and indirect
+	 * items of this directory.
+	 *    The usage is kept in a striped counter, so that many threads
+	 *    resizing files in this subtree do not contend on the ancestors.
+	 * 
+	 * @invar The counter equals the sum of the disk usage of the items.
+	 *        | totalDiskUsage.sum() == 
+	 *        |   SUM(getItemAt(I).getTotalDiskUsage() for I in 1..getNbItems())
+	 */
+	private final StripedCounter totalDiskUsage = new StripedCounter();
+
+	/**
+	 * Variable referencing the total number of bytes of content allocated
+	 * for all direct and indirect items of this directory.
+	 *
+	 * @invar The counter equals the sum of the allocated usage of the
+	 *        items.
+	 *        | allocatedUsage.sum() ==
+	 *        |   SUM(getItemAt(I).getTotalAllocatedUsage() for I in 1..getNbItems())
+	 */
+	private final StripedCounter allocatedUsage = new StripedCounter();
 	
+	/**********************************************************
+	 * change times
+	 **********************************************************/
+
+	/**
+	 * Return the latest time at which this directory or any of its direct
+	 * or indirect items changed.
+	 *    The time is maintained incrementally: each change propagates its
+	 *    time up the ancestors of the changed item, until it reaches a
+	 *    directory that already registers a time as late. Removing items
+	 *    does not lower the time, so that it may be later than the change
+	 *    time of each remaining item. Directories whose items are paged
+	 *    register the time recorded with them, so that their items need
+	 *    not be loaded to answer it.
+	 *
+	 * @return The result is not before the change time of this directory
+	 *         and of each of its direct or indirect items.
+	 *         | result >= getChangeTimeMillis() &&
+	 *         | for each I in 1..getNbItems():
+	 *         |   if (getItemAt(I) instanceof Directory)
+	 *         |   then result >= getItemAt(I).getSubtreeChangeTimeMillis()
+	 *         |   else result >= getItemAt(I).getChangeTimeMillis()
+	 */
+	@Raw public long getSubtreeChangeTimeMillis() {
+		return Math.max(subtreeChangeTime, getChangeTimeMillis());
+	}
+
+	/**
+	 * Return all direct and indirect items of this directory that changed
+	 * at or after the given time, in pre-order.
+	 *    Subtrees whose latest change is older than the given time are
+	 *    skipped, so that the cost of the walk is proportional to the
+	 *    number of changed items and their ancestors, rather than to the
+	 *    size of this directory.
+	 *
+	 * @param  time
+	 *         The time from which on changes are returned, in milliseconds
+	 *         since the epoch.
+	 * @return Each direct or indirect item of this directory whose change
+	 *         time is not before the given time.
+	 *         | for each item in result:
+	 *         |   this.isDirectOrIndirectParentOf(item) &&
+	 *         |   item.getChangeTimeMillis() >= time
+	 * @O      Linear in the number of items of the directories visited.
+	 */
+	public List<DiskItem> changedSince(long time) {
+		List<DiskItem> result = new ArrayList<DiskItem>();
+		if (getSubtreeChangeTimeMillis() >= time)
+			collectChangedSince(time, result);
+		return result;
+	}
+
+	/**
+	 * Add all direct and indirect items of this directory that changed at
+	 * or after the given time to the given list, in pre-order.
+	 */
+	private void collectChangedSince(long time, List<DiskItem> result) {
+		for (DiskItem item : getLoadedItems()) {
+			if (item.getChangeTimeMillis() >= time)
+				result.add(item);
+			if ((item instanceof Directory) && (((Directory) item).subtreeChangeTime >= time))
+				((Directory) item).collectChangedSince(time, result);
+		}
+	}
+
+	/**
+	 * Register the given time as a change time in this directory and all
+	 * its ancestors, stopping at the first directory that already
+	 * registers a time as late, since its ancestors do as well.
+	 */
+	@Override
+	@Model void propagateChangeTime(long time) {
+		for (Directory dir = this; dir != null; dir = dir.getParentDirectory()) {
+			long current;
+			do {
+				current = dir.subtreeChangeTime;
+				if (current >= time)
+					return;
+			} while (!subtreeChangeTimeUpdater.compareAndSet(dir, current, time));
+		}
+	}
+
+	/**
+	 * Return the latest change time in the subtree of the given item.
+	 */
+	private static long getSubtreeChangeTime(DiskItem item) {
+		if (item instanceof Directory)
+			return ((Directory) item).getSubtreeChangeTimeMillis();
+		return item.getChangeTimeMillis();
+	}
+
+	/**
+	 * Return the latest change time in the subtrees of the given items.
+	 */
+	private static long getSubtreeChangeTime(List<DiskItem> items) {
+		long result = Long.MIN_VALUE;
+		for (DiskItem item : items)
+			result = Math.max(result, getSubtreeChangeTime(item));
+		return result;
+	}
+
+	/**
+	 * Variable registering the latest change time propagated to this
+	 * directory from itself or its direct or indirect items.
+	 *
+	 * @invar The time is not before the time registered by any of the
+	 *        subdirectories of this directory.
+	 *        | for each I in 1..getNbItems():
+	 *        |   if (getItemAt(I) instanceof Directory)
+	 *        |   then subtreeChangeTime >= getItemAt(I).subtreeChangeTime
+	 */
+	private volatile long subtreeChangeTime;
+
+	private static final AtomicLongFieldUpdater<Directory> subtreeChangeTimeUpdater =
+			AtomicLongFieldUpdater.newUpdater(Directory.class, "subtreeChangeTime");
+
+	/**
+	 * Return the path epoch of the tree rooted at this directory.
+	 *    The epoch is only meaningful as long as this directory is a root.
+	 *
+	 * @see DiskItem#getAbsolutePath()
+	 */
+	long getPathEpoch() {
+		return pathEpoch;
+	}
+
+	/**
+	 * Advance the path epoch of the tree rooted at this directory, after
+	 * some item of that tree has been renamed or moved.
+	 */
+	void advancePathEpoch() {
+		pathEpochUpdater.incrementAndGet(this);
+	}
+
+	/**
+	 * Variable registering the path epoch of the tree rooted at this
+	 * directory, which is advanced each time an item of that tree whose
+	 * path may be cached is renamed or moved.
+	 */
+	private volatile long pathEpoch;
+
+	private static final AtomicLongFieldUpdater<Directory> pathEpochUpdater =
+			AtomicLongFieldUpdater.newUpdater(Directory.class, "pathEpoch");
+
+	/**********************************************************
+	 * paging
+	 **********************************************************/
+
+	/**
+	 * Let the items of this directory be paged by the given pager under
+	 * the given key, and set the number of items and the total disk usage
+	 * of this directory to the given values until its items are loaded.
+	 *
+	 * @param  pager
+	 *         The pager by which the items of this directory are paged.
+	 * @param  key
+	 *         The key under which the items of this directory are recorded.
+	 * @param  nbItems
+	 *         The number of items recorded for this directory.
+	 * @param  usage
+	 *         The total disk usage recorded for this directory.
+	 * @param  changeTime
+	 *         The latest change time in the subtree of this directory
+	 *         recorded for this directory.
+	 * @pre    This directory has no items.
+	 *         | getNbItems() == 0
+	 * @pre    The given time is not before the change time of any of the
+	 *         direct or indirect items recorded for this directory.
+	 * @post   The items of this directory are not loaded.
+	 *         | !new.areItemsLoaded()
+	 */
+	@Model void page(Pager pager, long key, int nbItems, long usage, long changeTime) {
+		page(pager, key, nbItems, usage, 0, changeTime);
+	}
+
+	/**
+	 * Let the items of this directory be paged by the given pager under
+	 * the given key, and set the number of items, the total disk usage and
+	 * the total allocated usage of this directory to the given values
+	 * until its items are loaded.
+	 *
+	 * @param  allocated
+	 *         The total allocated usage recorded for this directory.
+	 * @see    #page(Pager, long, int, long, long)
+	 */
+	@Model void page(Pager pager, long key, int nbItems, long usage, long allocated,
+			long changeTime) {
+		subtreeChangeTime = changeTime;
+		pagedKey = key;
+		pagedNbItems = nbItems;
+		itemsLoaded = false;
+		totalDiskUsage.reset(usage);
+		allocatedUsage.reset(allocated);
+		this.pager = pager;
+	}
+
+	/**
+	 * Let the items of this directory, which are all loaded, be paged by
+	 * the given pager under the given key from now on, and pin this
+	 * directory until its items have been recorded.
+	 *
+	 * @param  pager
+	 *         The pager by which the items of this directory are paged.
+	 * @param  key
+	 *         The key under which the items of this directory are recorded.
+	 * @post   The items of this directory are loaded, and this directory
+	 *         is pinned.
+	 *         | new.areItemsLoaded() && new.isPinned()
+	 */
+	@Model void adopt(Pager pager, long key) {
+		pagedKey = key;
+		nbPagedItems = 0;
+		itemsLoaded = true;
+		isPinned = true;
+		this.pager = pager;
+		pager.pinned(this);
+	}
+
+	/**
+	 * Stop paging the items of this directory and of all its direct and
+	 * indirect subdirectories, after loading all of them.
+	 *
+	 * @post   The items of this directory are no longer paged.
+	 *         | new.getPager() == null
+	 */
+	@Model void unpage() {
+		Pager pager = this.pager;
+		for (DiskItem item : getLoadedItems())
+			if (item instanceof Directory)
+				((Directory) item).unpage();
+		if (pager != null) {
+			pager.release(this);
+			this.pager = null;
+			pagedItems = null;
+			isPinned = false;
+		}
+	}
+
+	/**
+	 * Stop paging the items of this directory, which are loaded, leaving
+	 * the items of its subdirectories paged as they are.
+	 *
+	 * @pre    The items of this directory are loaded.
+	 *         | areItemsLoaded()
+	 * @post   The items of this directory are no longer paged.
+	 *         | new.getPager() == null
+	 */
+	@Model void stopPaging() {
+		pager = null;
+		pagedItems = null;
+		nbPagedItems = 0;
+		isPinned = false;
+	}
+
+	/**
+	 * Return the pager by which the items of this directory are paged, or
+	 * null if they are not paged.
+	 */
+	Pager getPager() {
+		return pager;
+	}
+
+	/**
+	 * Return the key under which the items of this directory are recorded
+	 * by the pager by which they are paged.
+	 */
+	long getPagedKey() {
+		return pagedKey;
+	}
+
+	/**
+	 * Check whether this directory may have an item with the given name,
+	 * asking the pager by which its items are paged if they are not loaded,
+	 * so that looking up absent names does not load them.
+	 */
+	@Raw private boolean mayContain(String name) {
+		Pager pager = this.pager;
+		return (pager == null) || itemsLoaded || (name == null) ||
+				pager.mayContain(this, name);
+	}
+
+	/**
+	 * Check whether the items of this directory are loaded, which is
+	 * always the case if they are not paged.
+	 */
+	boolean areItemsLoaded() {
+		return (pager == null) || itemsLoaded;
+	}
+
+	/**
+	 * Register the given items, loaded by the pager by which the items of
+	 * this directory are paged, as the items of this directory.
+	 *
+	 * @param  loaded
+	 *         The loaded items, in the order of their records.
+	 * @pre    The items of this directory are not loaded.
+	 *         | !areItemsLoaded()
+	 * @post   The given items are the items of this directory.
+	 *         | new.areItemsLoaded()
+	 */
+	@Model void installPagedItems(List<DiskItem> loaded) {
+		reclaimEvictedItems(loaded);
+		items = items.appendAll(loaded);
+		if (isPinned)
+			pagedItems = loaded.toArray(new DiskItem[loaded.size()]);
+		else
+			nbPagedItems = loaded.size();
+		isReferenced = true;
+		itemsLoaded = true;
+	}
+
+	/**
+	 * Replace each of the given loaded items by the item that was evicted
+	 * for the same record, if that item is still referenced elsewhere.
+	 *    Items evicted from a directory can only be renamed, moved or
+	 *    deleted after the items of that directory have been loaded again,
+	 *    so an evicted item still carries the name of its record.
+	 *
+	 * @param  loaded
+	 *         The loaded items, in the order of their records.
+	 */
+	private void reclaimEvictedItems(List<DiskItem> loaded) {
+		List<WeakReference<DiskItem>> evicted = evictedItems;
+		if (evicted == null)
+			return;
+		evictedItems = null;
+		Map<String, DiskItem> survivors = new HashMap<String, DiskItem>();
+		for (WeakReference<DiskItem> reference : evicted) {
+			DiskItem item = reference.get();
+			if ((item != null) && !item.isTerminated() && (item.getParentDirectory() == this))
+				survivors.put(item.getName(), item);
+		}
+		if (survivors.isEmpty())
+			return;
+		for (int i = 0; i < loaded.size(); i++) {
+			DiskItem item = loaded.get(i);
+			DiskItem survivor = survivors.get(item.getName());
+			if ((survivor != null) && (survivor.getClass() == item.getClass())) {
+				unregister(item);
+				register(survivor);
+				loaded.set(i, survivor);
+			}
+		}
+	}
+
+	/**
+	 * Drop the loaded items of this directory and of all its loaded direct
+	 * and indirect subdirectories, so that they are loaded again by its
+	 * pager on their next use.
+	 *    Evicted items that are still referenced elsewhere, for example by
+	 *    the caller of a method that mutates the tree, take the place of
+	 *    the items loaded for their records again, so that they do not
+	 *    become stale.
+	 *
+	 * @pre    This directory is not pinned.
+	 *         | !isPinned()
+	 * @return The number of loaded items released, as by
+	 *         releaseNbPagedItems(), for this directory and its loaded
+	 *         subdirectories.
+	 * @post   The items of this directory are not loaded.
+	 *         | !new.areItemsLoaded()
+	 */
+	@Model int evictItems() {
+		if ((pager == null) || !itemsLoaded || isPinned)
+			return 0;
+		int result = releaseNbPagedItems();
+		List<WeakReference<DiskItem>> evicted =
+				new ArrayList<WeakReference<DiskItem>>(items.size());
+		for (DiskItem item : items) {
+			if (item instanceof Directory)
+				result += ((Directory) item).evictItems();
+			unregister(item);
+			evicted.add(new WeakReference<DiskItem>(item));
+		}
+		evictedItems = evicted;
+		pagedNbItems = items.size();
+		itemsLoaded = false;
+		items = ItemList.EMPTY;
+		return result;
+	}
+
+	/**
+	 * Return the number of items loaded for this directory by the pager by
+	 * which its items are paged, and forget that number, so that it is
+	 * only released once.
+	 */
+	int releaseNbPagedItems() {
+		int result = nbPagedItems;
+		nbPagedItems = 0;
+		return result;
+	}
+
+	/**
+	 * Return the item that was loaded from the record at the given offset
+	 * from the first item record of this directory, even if that item has
+	 * been moved or renamed since.
+	 *
+	 * @pre    The items of this directory are loaded.
+	 *         | areItemsLoaded()
+	 */
+	DiskItem getPagedItemAt(int offset) {
+		DiskItem[] loaded = pagedItems;
+		if (loaded != null)
+			return loaded[offset];
+		return items.get(offset);
+	}
+
+	/**
+	 * Check whether this directory is pinned, which means that its items
+	 * can no longer be evicted.
+	 */
+	boolean isPinned() {
+		return isPinned;
+	}
+
+	/**
+	 * Pin this directory and all its ancestors that are paged, because their items are about to be mutated or referenced.
+	 *    The items loaded for pinned directories are remembered, so that
+	 *    the referrals of links can still be resolved to them.
+	 *
+	 * @post   If the items of this directory are paged, this directory and
+	 *         its ancestors are pinned.
+	 */
+	@Model void pin() {
+		for (Directory dir = this; (dir != null) && (dir.pager != null) &&
+				!dir.isPinned && !dir.isLoading; dir = dir.getParentDirectory()) {
+			if (dir.itemsLoaded)
+				dir.pagedItems = dir.items.toArray();
+			dir.isPinned = true;
+			dir.pager.pinned(dir);
+		}
+	}
+
+	/**
+	 * Unpin this directory.
+	 *
+	 * @return The number of items loaded for this directory that were not
+	 *         accounted for by its pager, if it was pinned and its items
+	 *         are loaded, or -1 otherwise.
+	 * @post   This directory is not pinned.
+	 *         | !new.isPinned()
+	 */
+	int unpin() {
+		if (!isPinned)
+			return -1;
+		isPinned = false;
+		pagedItems = null;
+		if (!itemsLoaded)
+			return -1;
+		int result = items.size() - nbPagedItems;
+		nbPagedItems = items.size();
+		return result;
+	}
+
+	/**
+	 * Check whether this directory has been used since the last time this
+	 * method was invoked, and clear that mark.
+	 */
+	boolean testAndClearReferenced() {
+		boolean result = isReferenced;
+		isReferenced = false;
+		return result;
+	}
+
+	/**
+	 * Set whether the items of this directory are being loaded.
+	 */
+	void setLoading(boolean flag) {
+		isLoading = flag;
+	}
+
+	/**
+	 * Preserve the current state of this directory as a version, after
+	 * pinning it if its items are paged.
+	 */
+	@Override
+	@Model void preserveVersion() {
+		if ((pager != null) && !isPinned)
+			pin();
+		super.preserveVersion();
+	}
+
+	/**
+	 * Variable referencing the pager by which the items of this directory
+	 * are paged, or null if they are not paged.
+	 */
+	private volatile Pager pager;
+
+	/**
+	 * Variables registering the key under which the items of this
+	 * directory are recorded by its pager, and the number of items recorded
+	 * for it, as long as they are not loaded.
+	 */
+	private long pagedKey;
+	private int pagedNbItems;
+
+	/**
+	 * Variables registering whether the items of this directory are
+	 * loaded, are being loaded, have been used recently, and whether this
+	 * directory is pinned.
+	 */
+	private volatile boolean itemsLoaded;
+	private volatile boolean isLoading;
+	private volatile boolean isReferenced;
+	private volatile boolean isPinned;
+
+	/**
+	 * Variable referencing the items as they were loaded, once this
+	 * directory is pinned, or null.
+	 */
+	private DiskItem[] pagedItems;
+
+	/**
+	 * Variable registering the number of items loaded for this directory
+	 * that have not been released yet.
+	 */
+	private int nbPagedItems;
+
+	/**
+	 * Variable referencing weak references to the items last evicted from
+	 * this directory, until its items are loaded again, or null.
+	 */
+	private List<WeakReference<DiskItem>> evictedItems;
+
+	/**********************************************************
+	 * freezing
+	 **********************************************************/
+
+	/**
+	 * Freeze this directory and all its direct and indirect items, so
+	 * that they can no longer be mutated until this directory is thawed.
+	 *    The items are first loaded if they are paged, and then compiled
+	 *    into a frozen tree: a pre-order array of all items, a perfect hash
+	 *    of the names of the items of each directory, and the total usage
+	 *    of each directory. Frozen directories look up names and report
+	 *    their usage from that tree, without locking. Freezing a directory
+	 *    that holds frozen subtrees compiles them into a single tree.
+	 *
+	 * @post   This directory and all its direct and indirect items are
+	 *         frozen.
+	 *         | new.isFrozen()
+	 * @throws IllegalStateException
+	 *         This directory is terminated.
+	 *         | isTerminated()
+	 * @O      Linear in the number of direct and indirect items.
+	 * @see    #thaw()
+	 */
+	public void freeze() throws IllegalStateException {
+		if (isTerminated())
+			throw new IllegalStateException("Directory is terminated!");
+		if (isFrozen())
+			return;
+		unpage();
+		FrozenTree tree = new FrozenTree(this);
+		for (int i = tree.getNbNodes()-1; i >= 0; i--)
+			if (tree.getNode(i) instanceof Directory)
+				((Directory) tree.getNode(i)).setFrozen(tree, i);
+	}
+
+	/**
+	 * Thaw this directory and all its direct and indirect items, which
+	 * were frozen together with this directory, so that they can be
+	 * mutated again.
+	 *
+	 * @post   This directory and all its direct and indirect items are
+	 *         no longer frozen.
+	 *         | !new.isFrozen()
+	 * @throws IllegalStateException
+	 *         This directory is frozen as part of a subtree frozen at one
+	 *         of its parent directories.
+	 *         | isFrozen() && !isRoot() && getParentDirectory().isFrozen()
+	 * @see    #freeze()
+	 */
+	public void thaw() throws IllegalStateException {
+		FrozenTree tree = frozen;
+		if (tree == null)
+			return;
+		if (frozenIndex != 0)
+			throw new IllegalStateException("Directory is frozen by a parent directory!");
+		for (int i = 0; i < tree.getEnd(0); i++)
+			if (tree.getNode(i) instanceof Directory)
+				((Directory) tree.getNode(i)).setFrozen(null, i);
+	}
+
+	/**
+	 * Check whether this directory is frozen, on its own or as part of a
+	 * subtree frozen at one of its parent directories.
+	 *
+	 * @see superclass
+	 */
+	@Override
+	@Raw public boolean isFrozen() {
+		return frozen != null;
+	}
+
+	/**
+	 * Register this directory as the node at the given index of the given
+	 * frozen tree, or as not frozen if the given tree is not effective.
+	 *    The index is written before the tree, so that readers that see
+	 *    the tree also see its index.
+	 */
+	@Model private void setFrozen(FrozenTree tree, int index) {
+		frozenIndex = index;
+		frozen = tree;
+	}
+
+	/**
+	 * Variable referencing the frozen tree of which this directory is a
+	 * node, or null if this directory is not frozen.
+	 */
+	private volatile FrozenTree frozen;
+
+	/**
+	 * Variable registering the index of this directory in its frozen tree.
+	 */
+	private int frozenIndex;
+
+	/**********************************************************
+	 * snapshots
+	 **********************************************************/
+
+	/**
+	 * Return a frozen, read-only view of this directory and all its direct
+	 * and indirect items, as they are now.
+	 *    Taking a snapshot takes constant time. Later mutations first
+	 *    preserve the state seen by the snapshot, once per mutated item. 
+	 *    Preserved states are reclaimed automatically once no snapshot
+	 *    that can see them is referenced any more.
+	 *
+	 * @return A snapshot of this directory, with the same name, items and
+	 *         total disk usage as this directory.
+	 *         | result.getName().equals(getName()) &&
+	 *         | result.getNbItems() == getNbItems() &&
+	 *         | result.getTotalDiskUsage() == getTotalDiskUsage()
+	 */
+	public DirectorySnapshot snapshot() {
+		return new DirectorySnapshot(this, Versions.takeSnapshot());
+	}
+
 	/**
 	 * Check whether this item and all its direct or indirect subitems can be deleted
 	 * 
@@ -22,5 +22,26 @@ public class DirectoryLink extends Link{
 		super(parent, name, referral);
 		
 	}
+	/**
+	 * Initialize this new link with a given parent, name and referral,
+	 * without registering it in the given parent.
+	 * @effect This directory link is initialized as an unregistered link
+	 * 			to refer the given directory
+	 * 			| super(parent, name, referral, unregistered)
+	 */
+	private DirectoryLink(Directory parent, String name, Directory referral, Unregistered unregistered)
+			throws IllegalArgumentException {
+		super(parent, name, referral, unregistered);
+	}
+	/**
+	 * Return a new directory link with a given parent, name and referral,
+	 * that is not registered in the given parent yet.
+	 * @return A new unregistered directory link to the given directory
+	 * 			| result == new DirectoryLink(parent, name, referral, UNREGISTERED)
+	 */
+	static DirectoryLink createUnregistered(Directory parent, String name, Directory referral)
+			throws IllegalArgumentException {
+		return new DirectoryLink(parent, name, referral, UNREGISTERED);
+	}
 
 }
@@ -0,0 +1,123 @@
+package filesystem;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import filesystem.exception.NoSuchItemException;
+
+/**
+ * A class of directory snapshots, offering a frozen, read-only view of a
+ * directory and all its direct and indirect items as they were when a
+ * snapshot was taken.
+ */
+public class DirectorySnapshot extends SnapshotItem {
+
+	/**
+	 * Initialize a new directory snapshot for the given directory and
+	 * snapshot.
+	 */
+	DirectorySnapshot(Directory directory, SnapshotEpoch snapshot) {
+		super(directory, snapshot);
+	}
+
+	/**
+	 * Check whether this directory snapshot is writable.
+	 */
+	public boolean isWritable() {
+		return getVersion().isWritable;
+	}
+
+	/**
+	 * Return the number of items of this directory snapshot.
+	 */
+	public int getNbItems() {
+		return getVersion().items.length;
+	}
+
+	/**
+	 * Return the item registered at the given position in this directory
+	 * snapshot.
+	 *
+	 * @param  position
+	 *         The position of the item to be returned.
+	 * @throws IllegalArgumentException [must]
+	 *         The given position is not positive or exceeds the number
+	 *         of items registered in this directory snapshot.
+	 *         | (position < 1) || (position > getNbItems())
+	 */
+	public SnapshotItem getItemAt(int position) throws IllegalArgumentException {
+		DiskItem[] items = getVersion().items;
+		if ((position < 1) || (position > items.length))
+			throw new IllegalArgumentException("Index out of bounds!");
+		return SnapshotItem.of(items[position - 1], getSnapshot());
+	}
+
+	/**
+	 * Return the items of this directory snapshot, in order.
+	 *
+	 * @return An immutable list of the items of this directory snapshot.
+	 *         | for each I in 1..getNbItems():
+	 *         |   result.get(I-1).equals(getItemAt(I))
+	 */
+	public List<SnapshotItem> getItems() {
+		final DiskItem[] items = getVersion().items;
+		return new AbstractList<SnapshotItem>() {
+			@Override
+			public SnapshotItem get(int index) {
+				return SnapshotItem.of(items[index], getSnapshot());
+			}
+			@Override
+			public int size() {
+				return items.length;
+			}
+		};
+	}
+
+	/**
+	 * Return the item in this directory snapshot with the given name.
+	 *
+	 * @param  name
+	 *         The name of the item to be looked up.
+	 * @return The resulting item belongs to this directory snapshot and
+	 *         has the given name, ignoring case.
+	 *         | result.getName().equalsIgnoreCase(name)
+	 * @throws NoSuchItemException [must]
+	 *         This directory snapshot does not contain an item with the
+	 *         given name.
+	 *         | ! exists(name)
+	 * @O      Logaritmic in the number of items.
+	 */
+	public SnapshotItem getItem(String name) throws NoSuchItemException {
+		if (name == null)
+			throw new NoSuchItemException();
+		SnapshotEpoch snapshot = getSnapshot();
+		DiskItem[] items = getVersion().items;
+		int low = 0;
+		int high = items.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			SnapshotItem middleItem = SnapshotItem.of(items[middle], snapshot);
+			int comparison = middleItem.getName().compareToIgnoreCase(name);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return middleItem;
+		}
+		throw new NoSuchItemException();
+	}
+
+	/**
+	 * Check whether an item with the given name is registered in this
+	 * directory snapshot, ignoring case.
+	 */
+	public boolean exists(String name) {
+		try {
+			getItem(name);
+			return true;
+		} catch (NoSuchItemException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package filesystem;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A class registering the disk items that changed since the last
+ * checkpoint of the checkpoint chain of their tree.
+ *    Without open checkpoint chains, marking a disk item dirty only checks
+ *    whether the list of chains is empty. Disk items of trees without a
+ *    checkpoint chain are not registered.
+ *
+ * @see CheckpointChain
+ */
+final class DirtyItems {
+
+	/**
+	 * Prevent the instantiation of this class.
+	 */
+	private DirtyItems() {
+	}
+
+	/**
+	 * Start tracking the changes of the tree of the given chain.
+	 */
+	static void add(CheckpointChain chain) {
+		chains.add(chain);
+	}
+
+	/**
+	 * Stop tracking the changes of the tree of the given chain.
+	 */
+	static void remove(CheckpointChain chain) {
+		chains.remove(chain);
+	}
+
+	/**
+	 * Check whether the changes of some tree are tracked.
+	 */
+	static boolean isTracking() {
+		return !chains.isEmpty();
+	}
+
+	/**
+	 * Register the given disk item, which is not registered as dirty yet,
+	 * with the checkpoint chain of its tree, if any.
+	 *
+	 * @return True if and only if the given disk item has been registered.
+	 */
+	static boolean dirtied(DiskItem item) {
+		DiskItem root = item;
+		while (root.getParentDirectory() != null)
+			root = root.getParentDirectory();
+		for (CheckpointChain chain : chains)
+			if (chain.getRoot() == root) {
+				chain.dirtied(item);
+				return true;
+			}
+		return false;
+	}
+
+	/**
+	 * Variable referencing the open checkpoint chains.
+	 */
+	private static final List<CheckpointChain> chains =
+			new CopyOnWriteArrayList<CheckpointChain>();
+}
@@ -0,0 +1,548 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+import filesystem.exception.InvalidImageException;
+
+/**
+ * A class of persistent binary images of trees of disk items.
+ *    An image records the identifiers, names, types, sizes, writability,
+ *    creation and modification times, hierarchy and link referrals of all
+ *    items of a directory tree. It consists of a header, a table of fixed-size item
+ *    records and a pool of names.
+ *
+ *    Records are laid out in breadth-first order, so that the items of
+ *    each directory occupy consecutive records, in the order they have in
+ *    their directory. Each record holds the index of its parent directory.
+ *    Each directory record holds the index of its first item, its number
+ *    of items and its total disk usage; each link record holds the index of
+ *    its referral, or -1 if that referral lies outside the image. The header
+ *    holds a magic number, the format version, the layout of the image, a
+ *    CRC32 checksum of the records and of the names, and a checksum of the
+ *    header itself.
+ *
+ *    Images are written sequentially through a file channel, and loaded
+ *    by memory-mapping them and constructing each directory with all its
+ *    items at once, without re-validating names or checking for
+ *    duplicates. Alternatively, images are opened by memory-mapping them
+ *    and paging the items of each directory in when they are first used.
+ */
+public final class DiskImage {
+
+	/**
+	 * Prevent the instantiation of this class.
+	 */
+	private DiskImage() {
+	}
+
+	/**********************************************************
+	 * writing
+	 **********************************************************/
+
+	/**
+	 * Write an image of the given directory and all its direct and
+	 * indirect items to the file at the given path.
+	 *    The file is created if it does not exist, and truncated otherwise.
+	 *    The directory tree must not be mutated while it is written.
+	 *
+	 * @param  root
+	 *         The directory to write.
+	 * @param  path
+	 *         The path of the image to write.
+	 * @return A value identifying the contents of the written image,
+	 *         derived from the checksums of its records and names.
+	 *         | result == readIdentity(path)
+	 * @throws IllegalArgumentException
+	 *         The given directory is not effective or terminated.
+	 *         | root == null || root.isTerminated()
+	 * @throws IOException
+	 *         The image could not be written.
+	 */
+	public static long write(Directory root, Path path)
+			throws IllegalArgumentException, IOException {
+		if ((root == null) || root.isTerminated())
+			throw new IllegalArgumentException();
+		// first pass: count the items and find the referrals of links.
+		Map<DiskItem, Integer> referrals = new IdentityHashMap<DiskItem, Integer>();
+		long nbItems = 0;
+		for (Traversal traversal = new Traversal(root); traversal.hasNext();) {
+			DiskItem item = traversal.next();
+			nbItems++;
+			if ((item instanceof Link) && (((Link) item).getReferral() != null))
+				referrals.put(((Link) item).getReferral(), -1);
+		}
+		if (nbItems > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many items for one image");
+		// second pass, only if there are links: number the referrals.
+		if (!referrals.isEmpty()) {
+			int index = 0;
+			for (Traversal traversal = new Traversal(root); traversal.hasNext(); index++) {
+				DiskItem item = traversal.next();
+				if (referrals.containsKey(item))
+					referrals.put(item, index);
+			}
+		}
+		// last pass: write the records and the names.
+		long namesOffset = HEADER_SIZE + nbItems * RECORD_SIZE;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Output records = new Output(channel, HEADER_SIZE);
+			Output names = new Output(channel, namesOffset);
+			long maxId = 0;
+			for (Traversal traversal = new Traversal(root); traversal.hasNext();) {
+				DiskItem item = traversal.next();
+				maxId = Math.max(maxId, item.getId());
+				byte[] name = item.getName().getBytes(ASCII);
+				writeRecord(records.reserve(RECORD_SIZE), item, traversal, referrals,
+						names.getCount(), name.length);
+				names.put(name);
+			}
+			records.flush();
+			names.flush();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putLong(8, nbItems);
+			header.putLong(16, namesOffset);
+			header.putLong(24, names.getCount());
+			header.putInt(32, records.getChecksum());
+			header.putInt(36, names.getChecksum());
+			header.putLong(40, maxId + 1);
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, HEADER_SIZE - 4);
+			header.putInt(HEADER_SIZE - 4, (int) crc.getValue());
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+			channel.force(true);
+			return identity(records.getChecksum(), names.getChecksum());
+		}
+	}
+
+	/**
+	 * Write the record of the given item to the given buffer.
+	 */
+	private static void writeRecord(ByteBuffer record, DiskItem item,
+			Traversal traversal, Map<DiskItem, Integer> referrals,
+			long nameOffset, int nameLength) {
+		byte flags = 0;
+		if ((item instanceof RealDiskItem) && ((RealDiskItem) item).isWritable())
+			flags |= WRITABLE;
+		long modificationTime = item.getModificationTimeMillis();
+		if (modificationTime != DiskItem.NO_TIME)
+			flags |= MODIFIED;
+		int start = record.position();
+		if (item instanceof Directory) {
+			record.put(DIRECTORY).put(flags).put((byte) 0).put((byte) 0);
+			record.putInt(nameLength).putLong(item.getTotalDiskUsage());
+			record.putInt(traversal.getFirstChildOfCurrent());
+			record.putInt(((Directory) item).getNbItems());
+		} else if (item instanceof File) {
+			record.put(FILE).put(flags).put((byte) ((File) item).getType().ordinal()).put((byte) 0);
+			record.putInt(nameLength).putLong(((File) item).getSize());
+			record.putInt(0).putInt(0);
+		} else {
+			Integer referral = referrals.get(((Link) item).getReferral());
+			record.put(item instanceof DirectoryLink ? DIRECTORY_LINK : FILE_LINK);
+			record.put(flags).put((byte) 0).put((byte) 0);
+			record.putInt(nameLength).putLong(0);
+			record.putInt(referral == null ? -1 : referral).putInt(0);
+		}
+		record.putLong(item.getCreationTimeMillis());
+		record.putLong(modificationTime == DiskItem.NO_TIME ? 0 : modificationTime);
+		record.putLong(nameOffset);
+		record.putInt(traversal.getParentOfCurrent()).putInt(0);
+		record.putLong((item instanceof Directory)?
+				((Directory) item).getSubtreeChangeTimeMillis() : 0);
+		record.putLong(item.getId());
+		assert record.position() - start == RECORD_SIZE;
+	}
+
+	/**
+	 * A class of breadth-first traversals of a directory tree, in the order
+	 * in which items are recorded in an image.
+	 */
+	private static final class Traversal {
+
+		Traversal(Directory root) {
+			this.root = root;
+		}
+
+		/**
+		 * Check whether there are items left to return.
+		 */
+		boolean hasNext() {
+			if (root != null)
+				return true;
+			while ((current == null) || (position >= current.getNbItems())) {
+				if (pending.isEmpty())
+					return false;
+				current = pending.poll();
+				currentIndex = pendingIndices.poll();
+				position = 0;
+			}
+			return true;
+		}
+
+		/**
+		 * Return the next item, and assign the indices of the items of the
+		 * returned item if it is a directory.
+		 */
+		DiskItem next() {
+			DiskItem result;
+			if (root != null) {
+				result = root;
+				root = null;
+				parentOfCurrent = -1;
+			} else {
+				hasNext();
+				result = current.getItemAt(++position);
+				parentOfCurrent = currentIndex;
+			}
+			int index = nextIndex++;
+			firstChildOfCurrent = nextFirstChild;
+			if (result instanceof Directory) {
+				Directory directory = (Directory) result;
+				nextFirstChild += directory.getNbItems();
+				if (directory.getNbItems() > 0) {
+					pending.add(directory);
+					pendingIndices.add(index);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Return the index of the first item of the item last returned.
+		 */
+		int getFirstChildOfCurrent() {
+			return firstChildOfCurrent;
+		}
+
+		/**
+		 * Return the index of the parent directory of the item last
+		 * returned, or -1 if it is the root.
+		 */
+		int getParentOfCurrent() {
+			return parentOfCurrent;
+		}
+
+		private final Queue<Directory> pending = new ArrayDeque<Directory>();
+		private final Queue<Integer> pendingIndices = new ArrayDeque<Integer>();
+		private Directory root;
+		private Directory current;
+		private int currentIndex;
+		private int position;
+		private int nextIndex;
+		private int nextFirstChild = 1;
+		private int firstChildOfCurrent;
+		private int parentOfCurrent;
+	}
+
+	/**
+	 * A class of sequential outputs to a region of a file channel, keeping
+	 * track of the number of bytes written and their checksum.
+	 */
+	private static final class Output {
+
+		Output(FileChannel channel, long start) {
+			this.channel = channel;
+			this.position = start;
+		}
+
+		/**
+		 * Return a buffer with room for the given number of bytes, to be
+		 * filled by the caller.
+		 */
+		ByteBuffer reserve(int length) throws IOException {
+			if (buffer.remaining() < length)
+				flush();
+			count += length;
+			return buffer;
+		}
+
+		/**
+		 * Write the given bytes.
+		 */
+		void put(byte[] bytes) throws IOException {
+			reserve(bytes.length).put(bytes);
+		}
+
+		/**
+		 * Write all buffered bytes to the channel.
+		 */
+		void flush() throws IOException {
+			buffer.flip();
+			crc.update(buffer.array(), 0, buffer.limit());
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			buffer.clear();
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		int getChecksum() {
+			return (int) crc.getValue();
+		}
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		private final CRC32 crc = new CRC32();
+		private long position;
+		private long count;
+	}
+
+	/**********************************************************
+	 * loading
+	 **********************************************************/
+
+	/**
+	 * Load the tree recorded in the image at the given path.
+	 *
+	 * @param  path
+	 *         The path of the image to load.
+	 * @return A new root directory, with the same name, writability,
+	 *         creation and modification times, and the same direct and
+	 *         indirect items as the directory from which the image was
+	 *         written.
+	 * @throws InvalidImageException
+	 *         The image is truncated or corrupted, or written in an
+	 *         unsupported version of the format.
+	 * @throws IOException
+	 *         The image could not be read.
+	 */
+	public static Directory load(Path path) throws IOException {
+		MappedImage image = MappedImage.open(path, true);
+		if (image.getKind(0) != DIRECTORY)
+			throw new InvalidImageException("Image is not rooted at a directory");
+		DiskItem.reserveIds(image.getNextId());
+		Directory root;
+		try {
+			root = new Directory(image.getName(0), image.isWritable(0));
+		} catch (Exception e) {
+			throw new InvalidImageException("Invalid root directory");
+		}
+		Map<Integer, RealDiskItem> referrals = new HashMap<Integer, RealDiskItem>();
+		List<Link> links = new ArrayList<Link>();
+		List<Integer> linkReferrals = new ArrayList<Integer>();
+		for (int index = 0; index < image.getNbItems(); index++) {
+			byte kind = image.getKind(index);
+			if ((kind == FILE_LINK) || (kind == DIRECTORY_LINK))
+				referrals.put(image.getReferral(index), null);
+		}
+		restore(root, image, 0, referrals);
+		Queue<Directory> directories = new ArrayDeque<Directory>();
+		Queue<Integer> indices = new ArrayDeque<Integer>();
+		directories.add(root);
+		indices.add(0);
+		while (!directories.isEmpty()) {
+			Directory directory = directories.poll();
+			int index = indices.poll();
+			int first = image.getFirstChild(index);
+			int nbChildren = image.getNbChildren(index);
+			if ((nbChildren < 0) || (first <= index) || (first + (long) nbChildren > image.getNbItems()))
+				throw new InvalidImageException("Invalid directory record " + index);
+			List<DiskItem> children = new ArrayList<DiskItem>(nbChildren);
+			for (int child = first; child < first + nbChildren; child++) {
+				DiskItem item = createItem(directory, image, child);
+				restore(item, image, child, referrals);
+				children.add(item);
+				if (item instanceof Directory) {
+					directories.add((Directory) item);
+					indices.add(child);
+				} else if (item instanceof Link) {
+					links.add((Link) item);
+					linkReferrals.add(image.getReferral(child));
+				}
+			}
+			directory.loadItems(children);
+		}
+		for (int i = 0; i < links.size(); i++)
+			links.get(i).setReferral(referrals.get(linkReferrals.get(i)));
+		return root;
+	}
+
+	/**
+	 * Open the tree recorded in the image at the given path, paging the
+	 * items of its directories from the image on demand.
+	 *    Opening takes constant time: the items of a directory are only
+	 *    loaded when they are first used. Directories that have not been
+	 *    used recently are evicted again, unless they have been mutated,
+	 *    once more than the given number of items is loaded. Items that
+	 *    were obtained from an evicted directory must no longer be used;
+	 *    they are replaced by fresh items when that directory is loaded
+	 *    again.
+	 *    Only the checksum of the header is verified; the image must not
+	 *    be modified while the tree is in use.
+	 *
+	 * @param  path
+	 *         The path of the image to open.
+	 * @param  maxLoadedItems
+	 *         The number of loaded items above which directories are
+	 *         evicted.
+	 * @return A new root directory, with the same name, writability,
+	 *         creation and modification times, and the same direct and
+	 *         indirect items as the directory from which the image was
+	 *         written.
+	 * @throws IllegalArgumentException
+	 *         The given maximum is negative.
+	 *         | maxLoadedItems < 0
+	 * @throws InvalidImageException
+	 *         The header of the image is truncated or corrupted, or the
+	 *         image is written in an unsupported version of the format.
+	 * @throws IOException
+	 *         The image could not be read.
+	 */
+	public static Directory open(Path path, int maxLoadedItems)
+			throws IllegalArgumentException, IOException {
+		if (maxLoadedItems < 0)
+			throw new IllegalArgumentException();
+		return new PagedImage(MappedImage.open(path, false), maxLoadedItems).getRoot();
+	}
+
+	/**
+	 * Create the item recorded at the given index of the given image, in
+	 * the given directory, without registering it there.
+	 */
+	static DiskItem createItem(Directory parent, MappedImage image, int index)
+			throws InvalidImageException {
+		try {
+			String name = image.getName(index);
+			switch (image.getKind(index)) {
+			case DIRECTORY:
+				return Directory.createUnregistered(parent, name, image.isWritable(index));
+			case FILE:
+				return File.createUnregistered(parent, name, image.getType(index),
+						image.getSize(index), image.isWritable(index));
+			case FILE_LINK:
+				return FileLink.createUnregistered(parent, name, null);
+			case DIRECTORY_LINK:
+				return DirectoryLink.createUnregistered(parent, name, null);
+			default:
+				throw new InvalidImageException("Unknown item kind at " + index);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new InvalidImageException("Invalid item record " + index);
+		}
+	}
+
+	/**
+	 * Restore the identifier, and the creation and modification time of
+	 * the given item from the record at the given index, and remember the
+	 * item if it is the referral of some link.
+	 */
+	static void restore(DiskItem item, MappedImage image, int index,
+			Map<Integer, RealDiskItem> referrals) {
+		DiskItem.restoreId(item, image.getId(index));
+		item.restoreCreationTime(image.getCreationTime(index));
+		long modificationTime = image.getModificationTime(index);
+		if (modificationTime != Long.MIN_VALUE)
+			item.setModificationTime(modificationTime);
+		if ((referrals != null) && referrals.containsKey(index) &&
+			(item instanceof RealDiskItem))
+			referrals.put(index, (RealDiskItem) item);
+	}
+
+	/**
+	 * Return the value identifying the contents of the image at the given
+	 * path.
+	 *    Only the header of the image is read; the image is not mapped, so
+	 *    that it can be replaced right away.
+	 *
+	 * @param  path
+	 *         The path of the image.
+	 * @throws InvalidImageException
+	 *         The image is truncated or has an invalid header.
+	 */
+	static long readIdentity(Path path) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (header.hasRemaining())
+				if (channel.read(header, header.position()) < 0)
+					throw new InvalidImageException("Image is truncated");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, HEADER_SIZE - 4);
+		if (header.getInt(0) != MAGIC)
+			throw new InvalidImageException("Not an image of disk items");
+		if ((int) crc.getValue() != header.getInt(HEADER_SIZE - 4))
+			throw new InvalidImageException("Header checksum mismatch");
+		return identity(header.getInt(32), header.getInt(36));
+	}
+
+	/**
+	 * Return the value identifying the contents of an image with the given
+	 * checksums of its records and names.
+	 */
+	static long identity(int recordsChecksum, int namesChecksum) {
+		return ((long) recordsChecksum << 32) | (namesChecksum & 0xFFFFFFFFL);
+	}
+
+	/**********************************************************
+	 * format
+	 **********************************************************/
+
+	/**
+	 * The magic number at the start of each image ("FSIM").
+	 */
+	static final int MAGIC = 0x4653494D;
+
+	/**
+	 * The version of the image format.
+	 */
+	static final int VERSION = 4;
+
+	/**
+	 * The size of the header in bytes. The header holds, in order, the
+	 * magic number, the version, the number of items, the offset and the
+	 * length of the name pool, the checksums of the records and the names,
+	 * the identifier following the largest identifier of a recorded item,
+	 * reserved space, and the checksum of the preceding header bytes.
+	 */
+	static final int HEADER_SIZE = 64;
+
+	/**
+	 * The size of an item record in bytes. A record holds, in order, its
+	 * kind, its flags, the ordinal of its type, a reserved byte, the length
+	 * of its name, its size or, for a directory, its total disk usage, the
+	 * index of its first item or referral, its number of items, its
+	 * creation time, its modification time, the offset of its name in the
+	 * name pool, the index of its parent directory, a reserved int, for a
+	 * directory, the latest change time in its subtree, and the identifier
+	 * of the item.
+	 */
+	static final int RECORD_SIZE = 72;
+
+	/**
+	 * The kinds of items.
+	 */
+	static final byte DIRECTORY = 0;
+	static final byte FILE = 1;
+	static final byte FILE_LINK = 2;
+	static final byte DIRECTORY_LINK = 3;
+
+	/**
+	 * The flags of item records.
+	 */
+	static final byte WRITABLE = 1;
+	static final byte MODIFIED = 2;
+
+	/**
+	 * The character set of names.
+	 */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+}
@@ -1,6 +1,8 @@
 package filesystem;
 
+import java.util.BitSet;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 import be.kuleuven.cs.som.annotate.Model;
 import be.kuleuven.cs.som.annotate.Raw;
@@ -68,6 +70,9 @@ public abstract class DiskItem implements DiskItemInterface{
 	 * @throws DiskItemNotWritableException [must]
 	 *         The given directory is not writable.
 	 *         | !parent.isWritable()
+	 * @throws DiskItemNotWritableException [must]
+	 *         The given directory is frozen.
+	 *         | parent.isFrozen()
 	 * @throws IllegalArgumentException [must]
 	 *         The given directory is not effective or the new disk item
 	 *         can not have the given valid name as its name and the given
@@ -81,6 +86,8 @@ public abstract class DiskItem implements DiskItemInterface{
 	   if ((parent == null) ||
 		   (parent.isWritable() && !canHaveAsNameInParentDirectory(name,parent)))
 	     throw new IllegalArgumentException();
+	   if (parent.isFrozen())
+	     throw new DiskItemNotWritableException(parent);
 	   setNameForParentDirectory(name,parent);
 	   try {
 		setParentDirectory(parent);
@@ -97,8 +104,60 @@ public abstract class DiskItem implements DiskItemInterface{
 		   //cannot occur
 		   assert false;
 	   }
+	   registry.put(this);
 	 }
 	 
+	/**
+	 * Initialize a new disk item with given parent directory and name,
+	 * without registering it in that directory.
+	 *    The new disk item must be registered in the given directory
+	 *    afterwards by adding it, together with other new items, to the
+	 *    items of that directory in a single bulk operation.
+	 * 
+	 * @param  parent
+	 *         The parent directory of the new disk item.
+	 * @param  name
+	 *         The name of the new disk item.
+	 * @param  unregistered
+	 *         The marker selecting this constructor.
+	 * @pre    The given directory is effective and writable, and the
+	 *         given name does not occur in it.
+	 *         | parent != null && parent.isWritable() && !parent.exists(name)
+	 * @post   The given directory is registered as the parent 
+	 *         directory of this item.
+	 *         | new.getParentDirectory() == parent
+	 * @post   The given directory does not (yet) register this item.
+	 *         | !(new parent).hasAsItem(this)
+	 * @throws IllegalArgumentException [must]
+	 *         The given name is not a valid name.
+	 *         | !isValidName(name)
+	 */
+	@Model DiskItem(Directory parent, String name, Unregistered unregistered) 
+	              throws IllegalArgumentException {
+		if (!isValidName(name))
+			throw new IllegalArgumentException();
+		setName(name);
+		this.parentDirectory = parent;
+		registry.put(this);
+	}
+
+	/**
+	 * A class with a single marker, selecting the constructors of disk
+	 * items that do not register the new item in its parent directory.
+	 *    Those constructors are only invoked by the package-private
+	 *    factory methods named createUnregistered.
+	 */
+	static final class Unregistered {
+
+		private Unregistered() {
+		}
+	}
+
+	/**
+	 * The marker selecting the constructors of unregistered disk items.
+	 */
+	static final Unregistered UNREGISTERED = new Unregistered();
+
 	/**
 	 * Initialize a new root disk item with given name.
 	 * 
@@ -113,6 +172,7 @@ public abstract class DiskItem implements DiskItemInterface{
 				throws DiskItemNotWritableException
 	{
 		   setName(name);
+		   registry.put(this);
 	}
 	/**
 	 * Check whether this diskitem is a root disk item.
@@ -165,11 +225,20 @@ public abstract class DiskItem implements DiskItemInterface{
      *         | if (!isRoot())
      *         | then getParentDirectory().
      *         |          removeFromItemsAndUpdateModificationTime(this)
+     * @effect All mutation listeners are notified of the termination.
+     * @post No item is registered under the identifier of this disk item
+     *       any longer.
+     *       | lookupById(getId()) == null
 	 * @throws ImpossibleDeleteException [must]
 	 * 		   This disk item can not be deleted.
 	 * 		   | ! canBeTerminated()
+	 * @throws ImpossibleDeletionException [must]
+	 * 		   This disk item is frozen.
+	 * 		   | isFrozen()
 	 */
 	public void terminate() throws ImpossibleDeletionException {
+		if (isFrozen())
+			throw new ImpossibleDeletionException(this);
 		/*if (!canBeTerminated()) {
 			throw new ImpossibleDeletionException(this);
 		}*/
@@ -193,6 +262,8 @@ public abstract class DiskItem implements DiskItemInterface{
 		} catch (IllegalArgumentException e) {
 			assert false;
 		}
+		registry.remove(this);
+		MutationListeners.itemTerminated(this);
 	}
 	
 	/**
@@ -226,6 +297,7 @@ public abstract class DiskItem implements DiskItemInterface{
 		if (!canHaveAsTerminationState(flag)) {
 			throw new IllegalArgumentException();
 		}
+		preserveVersion();
 		this.isTerminated = flag;
 	}
 
@@ -398,12 +470,20 @@ public abstract class DiskItem implements DiskItemInterface{
 	 *          | if (canAcceptAsNewName(name) && !isRoot())
 	 *          | then let parent = getParentDirectory() in
 	 *          | (new parent).hasValidItems()
+	 * @effect  If this disk item can accept the given name as its name,
+	 *          all mutation listeners are notified of the change.
 	 * @throws  DiskItemNotWritableException
 	 *          This disk item is not writable.
 	 *          | !isWritable() [must]
+	 * @throws  DiskItemNotWritableException [must]
+	 *          This disk item is frozen.
+	 *          | isFrozen()
 	 */
 	public void changeName(String name) throws DiskItemNotWritableException{
+	  if (isFrozen())
+		  throw new DiskItemNotWritableException(this);
 	  if (canAcceptAsNewName(name)) {
+	    String oldName = getName();
 	    setModificationTime();
         if (isRoot()) {
     	      setName(name);
@@ -418,9 +498,40 @@ public abstract class DiskItem implements DiskItemInterface{
 			assert false;
 		  }
 	    }
+	    MutationListeners.nameChanged(this, oldName);
 	  }
 	}
 
+	/**
+	 * Set the name of this disk item to the given name, leaving the
+	 * position of this disk item in its parent directory untouched.
+	 *    The caller is responsible for restoring the order of the
+	 *    items in the parent directory afterwards, typically once for a
+	 *    whole batch of renamed items.
+	 *
+	 * @param   name
+	 *          The new name for this disk item.
+	 * @pre     This disk item can accept the given name as its name,
+	 *          ignoring its current position in its parent directory.
+	 * @effect  The name of this disk item is set to the given name.
+	 *          | setName(name)
+	 * @effect  The modification time of this disk item is updated.
+	 *          | setModificationTime()
+	 * @effect  All mutation listeners are notified of the change.
+	 * @throws  DiskItemNotWritableException [must]
+	 *          This disk item is frozen.
+	 *          | isFrozen()
+	 */
+	@Model void changeNameWithoutReordering(String name)
+			throws DiskItemNotWritableException {
+		if (isFrozen())
+			throw new DiskItemNotWritableException(this);
+		String oldName = getName();
+		setModificationTime();
+		setName(name);
+		MutationListeners.nameChanged(this, oldName);
+	}
+
 	/**
 	 * Return the name for a new disk item which is to be used
 	 * when the given name is not valid.
@@ -483,12 +594,14 @@ public abstract class DiskItem implements DiskItemInterface{
 	 */
 	@Model @Raw
 	private void setName(String name) {
+		preserveVersion();
 		if (isValidName(name)) {
 			this.name = name;
 		}
 		else {
 			this.name = getDefaultName();
 		}
+		invalidatePaths();
 	}
 
 	/**
@@ -502,44 +615,91 @@ public abstract class DiskItem implements DiskItemInterface{
 
 	/**
 	 * Return the time at which this disk item was created.
+	 *
+	 * @return A new date for the creation time of this disk item.
+	 *         | result.getTime() == getCreationTimeMillis()
 	 */
 	@Raw public Date getCreationTime() {
-		return creationTime == null ? null : new Date(creationTime.getTime());
+		return new Date(creationTime);
+	}
+
+	/**
+	 * Return the time at which this disk item was created, in
+	 * milliseconds since the epoch, without allocating a date.
+	 */
+	@Raw public long getCreationTimeMillis() {
+		return creationTime;
 	}
 
 	/**
 	 * Return whether this disk item has a valid creation time.
 	 *
-	 * @return True if and only if this disk item has an effective
-	 *         creation time which does not lie in the future.
-	 *         | result == (getCreationTime() != null) &&
-	 *         | (getCreationTime().getTime() <=
-	 *         |              System.currentTimeMillis())
+	 * @return True if and only if the creation time of this disk item
+	 *         does not lie in the future.
+	 *         | result == (getCreationTimeMillis() <=
+	 *         |              getClock().currentTimeMillis())
 	 */
 	@Raw public boolean hasValidCreationTime() {
-		Date creationTime = getCreationTime();
-		return creationTime != null
-			&& creationTime.getTime() <= System.currentTimeMillis();
+		return creationTime <= clock.currentTimeMillis();
+	}
+
+	/**
+	 * Restore the creation time of this disk item to the given time.
+	 *    This method is only used when disk items are reconstructed from
+	 *    a persistent image of a tree.
+	 *
+	 * @param  time
+	 *         The original creation time, in milliseconds since the epoch.
+	 * @pre    The given time does not lie in the future.
+	 *         | time <= getClock().currentTimeMillis()
+	 * @post   The given time is registered as the creation time.
+	 *         | new.getCreationTimeMillis() == time
+	 */
+	@Model void restoreCreationTime(long time) {
+		creationTime = time;
+		propagateChangeTime(time);
 	}
 
 	/**
-	 * Variable referencing the time of creation.
+	 * Variable registering the time of creation, in milliseconds since
+	 * the epoch.
 	 */
-	private final Date creationTime = new Date();
+	private long creationTime = clock.currentTimeMillis();
 
 	/**********************************************************
 	 * modificationTime
 	 **********************************************************/
 
+	/**
+	 * The value standing for the modification time of a disk item that
+	 * has not been modified after its construction.
+	 */
+	public static final long NO_TIME = Long.MIN_VALUE;
+
 	/**
 	 * Return the time at which this disk item was last modified, 
 	 * that is at which the name or contents was last changed.
 	 * If this disk item has not yet been modified after
 	 * construction, null is returned.
+	 *
+	 * @return A new date for the modification time of this disk item, or
+	 *         null if it has not been modified.
+	 *         | if (getModificationTimeMillis() == NO_TIME)
+	 *         |   then result == null
+	 *         |   else result.getTime() == getModificationTimeMillis()
 	 */
 	@Raw public Date getModificationTime() {
-		return modificationTime == null ? null : new Date(modificationTime
-			.getTime());
+		long time = getModificationTimeMillis();
+		return (time == NO_TIME)? null : new Date(time);
+	}
+
+	/**
+	 * Return the time at which this disk item was last modified, in
+	 * milliseconds since the epoch, without allocating a date, or NO_TIME
+	 * if it has not been modified after its construction.
+	 */
+	@Raw public long getModificationTimeMillis() {
+		return modificationTime;
 	}
 
 	/**
@@ -548,20 +708,17 @@ public abstract class DiskItem implements DiskItemInterface{
 	 * @pre    This disk item has a valid creation time.
 	 *         | hasValidCreationTime()
 	 * @return True if and only if this disk item either has no
-	 *         effective modification time, or the modification time
-	 *         lies between the creation time and the current time.
-	 *         | result == (getModificationTime() == null) ||
-	 *         | ( (getModificationTime().getTime() >=
-	 *         |                   getCreationTime().getTime()) &&
-	 *         |   (getModificationTime().getTime() <=
-	 *         |                   System.currentTimeMillis()))
+	 *         modification time, or the modification time lies between
+	 *         the creation time and the current time.
+	 *         | result == (getModificationTimeMillis() == NO_TIME) ||
+	 *         | ( (getModificationTimeMillis() >= getCreationTimeMillis()) &&
+	 *         |   (getModificationTimeMillis() <=
+	 *         |                   getClock().currentTimeMillis()))
 	 */
 	@Raw public boolean hasValidModificationTime() {
-		Date modificationTime = getModificationTime();
-
-		return (modificationTime == null)
-			|| ((modificationTime.getTime() >= getCreationTime().getTime()) && 
-				(modificationTime.getTime() <= System.currentTimeMillis()) );
+		long time = getModificationTimeMillis();
+		return (time == NO_TIME)
+			|| ((time >= creationTime) && (time <= clock.currentTimeMillis()));
 	}
 
 	/**
@@ -569,25 +726,113 @@ public abstract class DiskItem implements DiskItemInterface{
 	 *
 	 * @pre    This disk item is not terminated.
      *         | ! isTerminated()
-	 * @post   The new modification time is effective.
-	 *         | new.getModificationTime() != null
-	 * @post   The new modification time lies between the system
-	 *         time at the beginning of method execution and
-	 *         the system time at the end of method execution.
-	 *         | (new.getModificationTime().getTime() >=
-	 *         |                    System.currentTimeMillis()) &&
-	 *         | (new.getModificationTime().getTime() <=
-	 *         |                    (new System).currentTimeMillis())
+	 * @post   The new modification time is the time of the clock of disk
+	 *         items during method execution.
+	 *         | (new.getModificationTimeMillis() >=
+	 *         |                    getClock().currentTimeMillis()) &&
+	 *         | (new.getModificationTimeMillis() <=
+	 *         |                    (new getClock()).currentTimeMillis())
+	 * @effect This disk item is registered as changed since the last
+	 *         checkpoint.
+	 *         | markDirty()
+	 * @effect The new modification time is propagated to the directories
+	 *         this disk item belongs to.
+	 *         | propagateChangeTime(new.getModificationTimeMillis())
 	 */
 	@Model protected void setModificationTime() {
-		modificationTime = new Date();
+		preserveVersion();
+		long time = clock.currentTimeMillis();
+		modificationTime = time;
+		markDirty();
+		propagateChangeTime(time);
 	}
 
 	/**
-	 * Variable referencing the time of the last modification,
-	 * possibly null.
+	 * Set the modification time of this disk item to the given time.
+	 *
+	 * @param  time
+	 *         The new modification time, in milliseconds since the epoch.
+	 * @pre    This disk item is not terminated.
+	 *         | ! isTerminated()
+	 * @pre    The given time does not lie in the future.
+	 *         | time <= getClock().currentTimeMillis()
+	 * @post   The given time is registered as the modification time.
+	 *         | new.getModificationTimeMillis() == time
+	 * @effect The given time is propagated to the directories this disk
+	 *         item belongs to.
+	 *         | propagateChangeTime(time)
 	 */
-	private Date modificationTime = null;
+	@Model void setModificationTime(long time) {
+		preserveVersion();
+		modificationTime = time;
+		propagateChangeTime(time);
+	}
+
+	/**
+	 * Variable registering the time of the last modification, in
+	 * milliseconds since the epoch, or NO_TIME.
+	 */
+	private long modificationTime = NO_TIME;
+
+	/**
+	 * Return the time at which this disk item was last changed, which is
+	 * its modification time or, if it has not been modified after its
+	 * creation, its creation time.
+	 *
+	 * @return | result == Math.max(getCreationTimeMillis(),
+	 *         |                    getModificationTimeMillis())
+	 */
+	@Raw public long getChangeTimeMillis() {
+		return Math.max(creationTime, getModificationTimeMillis());
+	}
+
+	/**
+	 * Register the given time as a change time in this disk item and all
+	 * the directories it directly or indirectly belongs to, so that they
+	 * know that their subtree changed at that time.
+	 *
+	 * @see Directory#getSubtreeChangeTimeMillis()
+	 */
+	@Model void propagateChangeTime(long time) {
+		Directory parent = getParentDirectory();
+		if (parent != null)
+			parent.propagateChangeTime(time);
+	}
+
+	/**********************************************************
+	 * clock
+	 **********************************************************/
+
+	/**
+	 * Return the clock from which disk items take their creation and
+	 * modification times.
+	 */
+	public static ItemClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Set the clock from which all disk items take their creation and
+	 * modification times from now on to the given clock.
+	 *
+	 * @param  clock
+	 *         The new clock.
+	 * @post   The given clock is the clock of disk items.
+	 *         | getClock() == clock
+	 * @throws IllegalArgumentException
+	 *         The given clock is not effective.
+	 *         | clock == null
+	 */
+	public static void setClock(ItemClock clock) throws IllegalArgumentException {
+		if (clock == null)
+			throw new IllegalArgumentException();
+		DiskItem.clock = clock;
+	}
+
+	/**
+	 * Variable referencing the clock of disk items.
+	 */
+	private static volatile ItemClock clock = ItemClock.SYSTEM;
 
 	/**
 	 * Return whether this disk item and the given other disk item
@@ -609,12 +854,13 @@ public abstract class DiskItem implements DiskItemInterface{
 	 *        |     other.getCreationTime().before(getModificationTime()))
 	 */
 	public boolean hasOverlappingUsePeriod(DiskItem other) {
-		if ((getModificationTime() == null)
-			|| other.getModificationTime() == null) {
+		long modificationTime = getModificationTimeMillis();
+		long otherModificationTime = other.getModificationTimeMillis();
+		if ((modificationTime == NO_TIME) || (otherModificationTime == NO_TIME)) {
 			return false;
 		}
-		return (getCreationTime().before(other.getModificationTime()) && other
-			.getCreationTime().before(getModificationTime()));
+		return (getCreationTimeMillis() < otherModificationTime) &&
+			(other.getCreationTimeMillis() < modificationTime);
 	}
 
 
@@ -663,22 +909,31 @@ public abstract class DiskItem implements DiskItemInterface{
 	 * @post   The given directory is registered as the parent directory 
 	 *         of this item.
 	 *         | new.getParentDirectory() == target
+	 * @effect All mutation listeners are notified of the move.
 	 * @throws IllegalArgumentException [must]
 	 *         The given target directory is not effective, or the parent
 	 *         directory of this disk item is the given target directory.
 	 *         | (target == null) || 
 	 *         | (target == getParentDirectory())
+	 * @throws DiskItemNotWritableException [must]
+	 *         This disk item or the given target directory is frozen.
+	 *         | isFrozen() || target.isFrozen()
  	 */
 	public void move(Directory target) throws IllegalArgumentException, 
                                               IllegalAddException,
                                               DiskItemNotWritableException {
 	  if ( (target == null) || (getParentDirectory() == target) )
 		  throw new IllegalArgumentException();
+	  if (isFrozen())
+		  throw new DiskItemNotWritableException(this);
+	  if (target.isFrozen())
+		  throw new DiskItemNotWritableException(target);
 	  if (!target.isWritable())
 		  throw new DiskItemNotWritableException(target);
 	  if (!target.canHaveAsItem(this))
 		  throw new IllegalAddException(target,this);
 	  
+	  Directory oldParent = getParentDirectory();
 	  if (!isRoot()) {
 	    try {
 		  getParentDirectory().removeFromItemsAndUpdateModificationTime(this);
@@ -705,6 +960,7 @@ public abstract class DiskItem implements DiskItemInterface{
 		  assert false;
   	  }
 	  setModificationTime();
+	  MutationListeners.itemMoved(this, oldParent);
 	}
 		
 	 
@@ -857,7 +1113,9 @@ public abstract class DiskItem implements DiskItemInterface{
 		if (!canHaveAsParentDirectory(parentDirectory)) {
 			throw new IllegalArgumentException("Inappropriate item!");
 		}
+		preserveVersion();
 		this.parentDirectory = parentDirectory;
+		invalidatePaths();
 	}
 
 	/**
@@ -877,6 +1135,392 @@ public abstract class DiskItem implements DiskItemInterface{
 	 *        | canHaveAsParentDirectory(parentDirectory)
 	 */
 	private Directory parentDirectory;
+
+	/**********************************************************
+	 * identifier
+	 **********************************************************/
+
+	/**
+	 * Return the identifier of this disk item.
+	 *    Identifiers are assigned in order of construction, starting
+	 *    from 1, and are not changed by renaming or moving the item.
+	 *    Items loaded from an image or a stored tree take the identifier
+	 *    recorded for them, if it is not in use.
+	 */
+	@Raw
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Return the disk item with the given identifier, or null if there is
+	 * no such item.
+	 *    Items are registered under their identifier once they are
+	 *    constructed, until they are terminated. Items dropped from memory
+	 *    by the pager of their directory are unregistered as well, and are
+	 *    registered under the same identifier when they are loaded again,
+	 *    because images and stored trees record the identifiers of their
+	 *    items. An item loaded while another item is registered under its
+	 *    recorded identifier, for example because the tree from which an
+	 *    image was written is still in use, is given a new identifier.
+	 *    The registry keeps registered items alive: trees that are dropped
+	 *    without terminating their items must be released explicitly.
+	 *
+	 * @param  id
+	 *         The identifier of the item to return.
+	 * @return The registered item whose identifier is the given identifier,
+	 *         or null if no such item is registered.
+	 *         | if (result != null)
+	 *         | then result.getId() == id && !result.isTerminated()
+	 * @O      Constant, on average.
+	 */
+	public static DiskItem lookupById(long id) {
+		return registry.get(id);
+	}
+
+	/**
+	 * Register the given disk item again, after it has been unregistered.
+	 */
+	static void register(DiskItem item) {
+		registry.put(item);
+	}
+
+	/**
+	 * Unregister the given disk item, which is no longer part of any tree.
+	 */
+	static void unregister(DiskItem item) {
+		registry.remove(item);
+	}
+
+	/**
+	 * Give the given disk item the given recorded identifier, and register
+	 * it under that identifier instead of its current one, unless another
+	 * item is registered under it.
+	 *    The given item must not be published to other threads yet.
+	 *
+	 * @param  item
+	 *         The item, just loaded from some record.
+	 * @param  id
+	 *         The identifier recorded for the item.
+	 * @post   Identifiers assigned from now on exceed the given identifier.
+	 */
+	static void restoreId(DiskItem item, long id) {
+		reserveIds(id+1);
+		if ((id <= 0) || (id == item.id) || !registry.putIfAbsent(id, item))
+			return;
+		registry.remove(item.id, item);
+		item.id = id;
+	}
+
+	/**
+	 * Make sure that identifiers assigned from now on are at least the
+	 * given identifier, so that they do not collide with identifiers
+	 * recorded for items that have not been loaded yet.
+	 */
+	static void reserveIds(long next) {
+		long current = nextId.get();
+		while ((current < next) && !nextId.compareAndSet(current, next))
+			current = nextId.get();
+	}
+
+	/**
+	 * Return the identifier that will be assigned to the next disk item
+	 * constructed.
+	 */
+	static long getNextId() {
+		return nextId.get();
+	}
+
+	/**
+	 * Variable registering the identifier of this disk item.
+	 *    The identifier is only changed when the item is loaded, before it
+	 *    is published.
+	 */
+	private long id = nextId.getAndIncrement();
+
+	/**
+	 * Variable registering the identifier of the next disk item to be
+	 * constructed.
+	 */
+	private static final AtomicLong nextId = new AtomicLong(1);
+
+	/**
+	 * Variable referencing the registered disk items, by identifier.
+	 */
+	private static final ItemRegistry registry = new ItemRegistry();
+
+	/**********************************************************
+	 * mutation listeners
+	 **********************************************************/
+
+	/**
+	 * Register the given listener, so that it is notified of all
+	 * subsequent mutations of disk items.
+	 *
+	 * @param  listener
+	 *         The listener to register.
+	 * @throws IllegalArgumentException
+	 *         The given listener is not effective.
+	 *         | listener == null
+	 */
+	public static void addMutationListener(MutationListener listener)
+			throws IllegalArgumentException {
+		MutationListeners.add(listener);
+	}
+
+	/**
+	 * Unregister the given listener, if it is registered.
+	 *
+	 * @param  listener
+	 *         The listener to unregister.
+	 */
+	public static void removeMutationListener(MutationListener listener) {
+		MutationListeners.remove(listener);
+	}
+
+	/**
+	 * Start notifying the given listener of all changes of the direct and
+	 * indirect items of the given directory, coalescing the changes of each
+	 * window of the given number of milliseconds into a single batch.
+	 *    The listener is invoked asynchronously; size changes of the same
+	 *    file within a window are merged into a single event.
+	 *
+	 * @param  directory
+	 *         The directory to watch.
+	 * @param  listener
+	 *         The listener to notify.
+	 * @param  windowMillis
+	 *         The number of milliseconds over which events are collected
+	 *         before they are delivered.
+	 * @return A new watch, notifying the given listener until it is closed.
+	 * @throws IllegalArgumentException
+	 *         The given directory or listener is not effective, or the
+	 *         given window is negative.
+	 *         | directory == null || listener == null || windowMillis < 0
+	 */
+	public static Watch watch(Directory directory, WatchListener listener,
+			long windowMillis) throws IllegalArgumentException {
+		return Watch.start(directory, listener, windowMillis);
+	}
+
+	/**
+	 * Start notifying the given listener of all changes of the direct and
+	 * indirect items of the given directory, with the default coalescing
+	 * window.
+	 *
+	 * @effect | watch(directory, listener, DEFAULT_WATCH_WINDOW)
+	 */
+	public static Watch watch(Directory directory, WatchListener listener)
+			throws IllegalArgumentException {
+		return watch(directory, listener, DEFAULT_WATCH_WINDOW);
+	}
+
+	/**
+	 * The default number of milliseconds over which the events of a watch
+	 * are coalesced.
+	 */
+	public static final long DEFAULT_WATCH_WINDOW = 10;
+
+	/**********************************************************
+	 * freezing
+	 **********************************************************/
+
+	/**
+	 * Check whether this disk item is part of a frozen subtree, which
+	 * means that it can not be mutated until that subtree is thawed.
+	 *
+	 * @return True if and only if this disk item is not a root and its
+	 *         parent directory is frozen.
+	 *         | result == (!isRoot() && getParentDirectory().isFrozen())
+	 * @see    Directory#freeze()
+	 */
+	@Raw public boolean isFrozen() {
+		Directory parent = getParentDirectory();
+		return (parent != null) && parent.isFrozen();
+	}
+
+	/**********************************************************
+	 * dirty tracking
+	 **********************************************************/
+
+	/**
+	 * Register this disk item as changed since the last checkpoint of the
+	 * checkpoint chain of its tree, if its tree has a checkpoint chain.
+	 *    Once registered, further changes before the next checkpoint only
+	 *    read a flag.
+	 *
+	 * @see CheckpointChain
+	 */
+	@Model void markDirty() {
+		if (!isDirty && DirtyItems.isTracking())
+			isDirty = DirtyItems.dirtied(this);
+	}
+
+	/**
+	 * Clear the registration of this disk item as changed, because its
+	 * changes are about to be checkpointed.
+	 */
+	void clearDirty() {
+		isDirty = false;
+	}
+
+	/**
+	 * Variable registering whether this disk item is registered as changed
+	 * since the last checkpoint of the checkpoint chain of its tree.
+	 */
+	private volatile boolean isDirty;
+
+	/**********************************************************
+	 * content usage
+	 **********************************************************/
+
+	/**
+	 * Return the number of bytes stored for the content of this disk item
+	 * and all its direct and indirect items.
+	 *    Content shared by several files, or by several parts of a file, is
+	 *    stored once and counted once, and content holding only zeroes is
+	 *    not stored at all. The total disk usage of this disk item is the
+	 *    corresponding logical number of bytes.
+	 *    Directories whose items are not loaded are not counted, so that
+	 *    the content of clones is only counted once they have been loaded.
+	 *
+	 * @return The number of bytes in the distinct chunks holding the
+	 *         content of the files in the tree rooted at this disk item.
+	 *       | result >= 0
+	 */
+	public long getPhysicalDiskUsage() {
+		BitSet handles = new BitSet();
+		collectContentChunks(handles);
+		return (long) handles.cardinality() * ContentChunks.CHUNK_SIZE;
+	}
+
+	/**
+	 * Add the handles of the chunks holding the content of this disk item
+	 * and all its direct and indirect items to the given set.
+	 *    Disk items without content add nothing.
+	 */
+	@Model void collectContentChunks(BitSet handles) {
+	}
+
+	/**********************************************************
+	 * versions
+	 **********************************************************/
+
+	/**
+	 * Preserve the current state of this disk item as a version, if this
+	 * is the first mutation of this disk item in the current epoch and
+	 * some live snapshot may still see its current state.
+	 *    This method must be invoked before each mutation of the state of
+	 *    this disk item. Without live snapshots, it only compares epochs.
+	 *
+	 * @post   This disk item is registered as written in the current epoch.
+	 * @post   If the state of this disk item before the invocation may be
+	 *         seen by some live snapshot, that state is the state of this
+	 *         disk item at each epoch up to the epoch preceding the
+	 *         current epoch, for which it was the state before.
+	 *         | for each epoch in writeEpoch..Versions.getCurrentEpoch()-1:
+	 *         |   (new this).getVersionAt(epoch) equals this state
+	 * @effect The parent directory of this disk item, if any, is pinned,
+	 *         so that this disk item is not evicted with the items paged
+	 *         from an image.
+	 *         | if (getParentDirectory() != null)
+	 *         |   then getParentDirectory().pin()
+	 * @effect The clones of the directories on the path to this disk item
+	 *         that have not been materialized yet are materialized, so that
+	 *         they copy the state before the mutation.
+	 *         | ClonePager.materializeClonesOf(this)
+	 */
+	@Model void preserveVersion() {
+		if (ClonePager.hasPendingClones())
+			ClonePager.materializeClonesOf(this);
+		Directory parent = parentDirectory;
+		if (parent != null)
+			parent.pin();
+		long epoch = Versions.getCurrentEpoch();
+		if (writeEpoch == epoch)
+			return;
+		boolean isFirstVersion = false;
+		synchronized (this) {
+			if (writeEpoch == epoch)
+				return;
+			if (Versions.isVisibleToSomeSnapshot(writeEpoch)) {
+				isFirstVersion = (versions == null);
+				versions = new ItemVersion(this, epoch - 1, versions);
+				pruneOlderVersions(versions, Versions.getOldestLiveEpoch());
+			}
+			writeEpoch = epoch;
+		}
+		if (isFirstVersion)
+			Versions.registerVersionedItem(this);
+	}
+
+	/**
+	 * Return the state of this disk item at the end of the given epoch.
+	 *
+	 * @param  epoch
+	 *         The epoch of a live snapshot.
+	 * @return The oldest preserved version of this disk item that is valid
+	 *         until the given epoch or a later one, or a fresh version
+	 *         capturing the current state of this disk item if there is no
+	 *         such version.
+	 */
+	ItemVersion getVersionAt(long epoch) {
+		while (true) {
+			ItemVersion head = versions;
+			ItemVersion result = null;
+			for (ItemVersion version = head;
+				 (version != null) && (version.getValidUntil() >= epoch);
+				 version = version.getOlder())
+				result = version;
+			if (result != null)
+				return result;
+			result = new ItemVersion(this, Long.MAX_VALUE, null);
+			// retry if a version was preserved while capturing the current
+			// state, since the capture may then have seen a later state.
+			if (versions == head)
+				return result;
+		}
+	}
+
+	/**
+	 * Drop the versions of this disk item no live snapshot can see.
+	 *
+	 * @param  oldestEpoch
+	 *         The epoch of the oldest live snapshot.
+	 * @return True if this disk item still has preserved versions.
+	 */
+	synchronized boolean pruneVersions(long oldestEpoch) {
+		if ((versions != null) && (versions.getValidUntil() < oldestEpoch))
+			versions = null;
+		if (versions == null)
+			return false;
+		pruneOlderVersions(versions, oldestEpoch);
+		return true;
+	}
+
+	/**
+	 * Drop the versions older than the given version that are valid
+	 * until an epoch before the given epoch.
+	 */
+	private static void pruneOlderVersions(ItemVersion version, long oldestEpoch) {
+		for (; version.getOlder() != null; version = version.getOlder())
+			if (version.getOlder().getValidUntil() < oldestEpoch) {
+				version.dropOlder();
+				return;
+			}
+	}
+
+	/**
+	 * Variable referencing the newest preserved version of this disk item,
+	 * or null if no versions are preserved.
+	 */
+	private volatile ItemVersion versions = null;
+
+	/**
+	 * Variable registering the epoch of the last mutation of this disk
+	 * item.
+	 */
+	private volatile long writeEpoch = Versions.getCurrentEpoch();
 	
 	@Override
 	public boolean canHaveAsName(String name) {
@@ -905,6 +1549,8 @@ public abstract class DiskItem implements DiskItemInterface{
 	}
 	/**
 	 * Return the absolute path of this diskitem
+	 *    The path is cached, and only rebuilt after this item or one of
+	 *    its direct or indirect parent directories is renamed or moved.
 	 * 
 	 * @return The name of this diskitem preceded by the names 
 	 * 		   of all the direct and indirect parent directories of this diskitem, separated by slashes
@@ -914,15 +1560,106 @@ public abstract class DiskItem implements DiskItemInterface{
 	 */
 	@Override
 	public String getAbsolutePath() {
-		DiskItem item = this;
-		String path = "";
-		do{
-			path =    "/" + item.toString() + path;
-			item = item.getParentDirectory();
-		}while(!item.isRoot());
-		path =   "/" + item.toString() + path;
-		return path;
+		return getCachedPath().path;
+	}
+
+	/**
+	 * Return the cached path of this disk item, revalidating it first if
+	 * some item of its tree has been renamed or moved since it was last
+	 * validated.
+	 *    Each root directory registers a path epoch of its own, so that
+	 *    renaming or moving an item only affects the cached paths in its
+	 *    own tree.
+	 */
+	CachedPath getCachedPath() {
+		DiskItem root = this;
+		for (Directory parent = getParentDirectory(); parent != null;
+				parent = parent.getParentDirectory())
+			root = parent;
+		return getCachedPath(root, (root instanceof Directory)?
+				((Directory) root).getPathEpoch() : NO_PATH_EPOCH);
 	}
+
+	/**
+	 * Return the cached path of this disk item, revalidating it first if it
+	 * was not validated in the given path epoch of the given root.
+	 *    A cached path remains valid as long as this item keeps the name
+	 *    and the parent path it was built with, so that revalidation only
+	 *    compares references up to the root, and only rebuilds the paths
+	 *    of the renamed or moved item and the items below it. A path that
+	 *    is still valid is stamped with the given epoch in place.
+	 */
+	CachedPath getCachedPath(DiskItem root, long epoch) {
+		CachedPath cached = cachedPath;
+		if ((cached != null) && (cached.root == root) && (cached.epoch == epoch) &&
+			(epoch != NO_PATH_EPOCH))
+			return cached;
+		Directory parent = getParentDirectory();
+		String parentPath = (parent == null)? null : parent.getCachedPath(root, epoch).path;
+		String name = getName();
+		if ((cached != null) && (cached.root == root) && (cached.name == name) &&
+			(cached.parentPath == parentPath)) {
+			cached.epoch = epoch;
+			return cached;
+		}
+		cached = new CachedPath(((parentPath == null)? "" : parentPath) + "/" + toString(),
+				name, parentPath, root, epoch);
+		cachedPath = cached;
+		return cached;
+	}
+
+	/**
+	 * Invalidate the cached paths of the tree this disk item belongs to,
+	 * if the path of this disk item, and thus of its direct and indirect
+	 * items, may be cached.
+	 *    Invalidating only advances the path epoch of the root directory
+	 *    of that tree; each cached path in it is revalidated on its next
+	 *    use. Paths cached in other trees remain valid.
+	 */
+	@Model private void invalidatePaths() {
+		if (cachedPath == null)
+			return;
+		DiskItem root = this;
+		for (Directory parent = getParentDirectory(); parent != null;
+				parent = parent.getParentDirectory())
+			root = parent;
+		if (root instanceof Directory)
+			((Directory) root).advancePathEpoch();
+	}
+
+	/**
+	 * A class of cached paths, registering the name and the path of the
+	 * parent directory they were built with, and the root and the path
+	 * epoch of that root in which they were last validated.
+	 */
+	static final class CachedPath {
+
+		CachedPath(String path, String name, String parentPath, DiskItem root, long epoch) {
+			this.path = path;
+			this.name = name;
+			this.parentPath = parentPath;
+			this.root = root;
+			this.epoch = epoch;
+		}
+
+		final String path;
+		final String name;
+		final String parentPath;
+		final DiskItem root;
+		volatile long epoch;
+	}
+
+	/**
+	 * Variable referencing the cached path of this disk item, or null if
+	 * its path has not been asked for.
+	 */
+	private volatile CachedPath cachedPath;
+
+	/**
+	 * The path epoch of trees that are not rooted at a directory, in which
+	 * cached paths are always revalidated.
+	 */
+	private static final long NO_PATH_EPOCH = -1;
 	
 
 	/**
@@ -326,6 +326,14 @@ public interface DiskItemInterface {
 	 * Return the time at which this disk item was created [raw].
 	 */
 	Date getCreationTime();
+
+	/**
+	 * Return the time at which this disk item was created, in
+	 * milliseconds since the epoch [raw].
+	 *
+	 * @return | result == getCreationTime().getTime()
+	 */
+	long getCreationTimeMillis();
 	
 	/**
 	 * Return whether this disk item has a proper creation time [raw].
@@ -351,6 +359,17 @@ public interface DiskItemInterface {
 	 * construction, null is returned [raw].
 	 */
 	Date getModificationTime();
+
+	/**
+	 * Return the time at which this disk item was last modified, in
+	 * milliseconds since the epoch, or DiskItem.NO_TIME if it has not
+	 * yet been modified after construction [raw].
+	 *
+	 * @return | if (getModificationTime() == null)
+	 *         |   then result == DiskItem.NO_TIME
+	 *         |   else result == getModificationTime().getTime()
+	 */
+	long getModificationTimeMillis();
 	
 	/**
 	 * Return whether this disk item has a proper modification 
@@ -601,4 +620,13 @@ public interface DiskItemInterface {
 	   */
 	  long getTotalDiskUsage();
 
+	  /**
+	   * Calculate the total number of bytes of content allocated, which
+	   * excludes holes in sparse files.
+	   * 
+	   * @return The result is positive.
+	   *       | result >= 0
+	   */
+	  long getTotalAllocatedUsage();
+
 }
@@ -1,5 +1,12 @@
 package filesystem;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import filesystem.exception.*;
 
 import be.kuleuven.cs.som.annotate.Raw;
@@ -57,8 +64,56 @@ public class File extends RealDiskItem{
     	    super(parent,name,writable);
         setSize(size);
         this.type=type;
+        getParentDirectory().propagateDiskUsageDelta(size);
+        MutationListeners.itemCreated(this);
     }
     
+    /**
+     * Initialize a new file with given parent directory, name, type,
+     * size and writability, without registering it in the given
+     * parent directory.
+     *
+     * @param  parent
+     *         The parent directory of the new file.       
+     * @param  name
+     *         The name of the new file.
+     * @param  type
+     *         The type of the new file. 
+     * @param  size
+     *         The size of the new file.
+     * @param  writable
+     *         The writability of the new file.
+     * @param  unregistered
+     *         The marker selecting this constructor.
+     * @effect The new file has the given size
+     *         | setSize(size)
+     * @effect The new file is an unregistered disk item with the given
+     *         name and writability.
+     *         | super(parent,name,writable,unregistered)
+     * @post   The type of this new file is set to the given type.
+     *         |new.getType() == type        
+     */
+    @Model private File(Directory parent, String name, Type type,
+    		       int size, boolean writable, Unregistered unregistered)
+                       throws IllegalArgumentException {
+        super(parent,name,writable,unregistered);
+        setSize(size);
+        this.type=type;
+    }
+
+    /**
+     * Return a new file with given parent directory, name, type, size and
+     * writability, that is not registered in the given parent directory yet.
+     *
+     * @return A new unregistered file with the given parent, name, type,
+     *         size and writability.
+     *         | result == new File(parent,name,type,size,writable,UNREGISTERED)
+     */
+    static File createUnregistered(Directory parent, String name, Type type,
+                       int size, boolean writable) throws IllegalArgumentException {
+        return new File(parent,name,type,size,writable,UNREGISTERED);
+    }
+
     /**
      * Check whether this directory can be deleted.
      * @return True if and only if the super method returns true and 
@@ -101,8 +156,20 @@ public class File extends RealDiskItem{
 	*          | result.equals(getName()+"."+getExtension())
 	*/    
     public String toString(){
-    	  return getName()+"."+getType();
+    	  String name = getName();
+    	  String[] label = this.label;
+    	  if ((label == null) || (label[0] != name)) {
+    	      label = new String[] {name, name+"."+getType()};
+    	      this.label = label;
+    	  }
+    	  return label[1];
     }
+
+    /**
+     * Variable referencing the name this file had when its textual
+     * representation was last built, followed by that representation.
+     */
+    private volatile String[] label;
     
 	/**********************************************************
 	 * delete/termination
@@ -219,6 +286,29 @@ public class File extends RealDiskItem{
         changeSize(delta);
     }
 
+    /**
+     * Increases the size of this file with the given delta, as a single
+     * batched update.
+     *    Appenders that accumulate several writes can hand them over in
+     *    one call, so that the modification stamp is bumped and the disk
+     *    usage of the ancestors is adapted only once for the whole batch.
+     *    In concurrent size mode, batches of concurrent appenders are
+     *    further coalesced into a single update of the ancestors.
+     *
+     * @param  delta
+     *         The amount of bytes by which the size of this file
+     *         must be increased.
+     * @pre    The given delta must be strictly positive.
+     *         | delta > 0
+     * @pre    The resulting size must be a valid size.
+     *         | isValidSize(getSize()+delta)
+     * @effect The size of this file is increased with the given delta.
+     *         | changeSize(delta)
+     */
+    public void enlarge(long delta) throws DiskItemNotWritableException {
+        changeSize(delta);
+    }
+
     /**
      * Decreases the size of this file with the given delta.
      *
@@ -246,16 +336,66 @@ public class File extends RealDiskItem{
      *         | setSize(getSize()+delta)
      * @effect The modification time is updated.
      *         | setModificationTime()
+     * @effect The disk usage of the parent directory and all its
+     *         ancestors is adapted with the given delta. In concurrent
+     *         size mode, the deltas of concurrent changes are coalesced
+     *         by propagateConcurrentSize().
+     *         | getParentDirectory().propagateDiskUsageDelta(delta)
+     * @post   The modification stamp of this file is incremented.
+     *         | new.getModificationStamp() > getModificationStamp()
+     * @effect If the size of this file decreases outside concurrent size
+     *         mode, its content beyond the new size is discarded.
+     *         | if (delta < 0 && !isInConcurrentSizeMode())
+     *         | then trimContent(getSize()+delta)
+     * @effect This file is registered as changed since the last
+     *         checkpoint, and all mutation listeners are notified of the
+     *         change. In concurrent size mode, this is done once for all
+     *         the changes coalesced by propagateConcurrentSize().
+     *         | markDirty()
      * @throws FileNotWritableException
-     *         This file is not writable.
-     *         | !isWritable() [must]
+     *         This file is not writable or is frozen.
+     *         | !isWritable() || isFrozen() [must]
+     * @throws IllegalArgumentException
+     *         The resulting size is not a valid size. In concurrent size
+     *         mode, this is only detected by the thread that coalesces the
+     *         change, and the change of that thread is undone.
+     *         | !isValidSize(getSize()+delta)
      */
-    @Model private void changeSize(int delta) throws DiskItemNotWritableException{
-        if (!isWritable()) {
+    @Model private void changeSize(long delta)
+            throws DiskItemNotWritableException, IllegalArgumentException {
+        if (!isWritable() || isFrozen()) {
             throw new DiskItemNotWritableException(this);
         }
-        setSize(getSize()+delta);
-        setModificationTime();
+        StripedCounter concurrentSize = this.concurrentSize;
+        if (concurrentSize != null) {
+            concurrentSize.add(delta);
+            concurrentStamp.add(1);
+            long time = getClock().currentTimeMillis();
+            if (raiseConcurrentModificationTime(time))
+                propagateChangeTime(time);
+            propagateConcurrentSize(concurrentSize, delta);
+        } else {
+            long size = getSize()+delta;
+            if (!isInSizeRange(size))
+                throw new IllegalArgumentException("Invalid size!");
+            setSize((int) size);
+            setModificationTime();
+            if ((delta < 0) && (chunks != null))
+                trimContent(getSize());
+            modificationStamp.incrementAndGet();
+            markDirty();
+            if (!isTerminated())
+                getParentDirectory().propagateDiskUsageDelta(delta);
+            MutationListeners.sizeChanged(this, delta);
+        }
+    }
+
+    /**
+     * Check whether the given size, computed as a long so that it does
+     * not overflow, is a valid size for a file.
+     */
+    private static boolean isInSizeRange(long size) {
+        return (size >= 0) && (size <= getMaximumSize());
     }
 
     /**
@@ -271,20 +411,885 @@ public class File extends RealDiskItem{
      *         | new.getSize() == size
      */
     @Model @Raw private void setSize(int size) {
-        this.size = size;
+        preserveVersion();
+        StripedCounter concurrentSize = this.concurrentSize;
+        if (concurrentSize != null) {
+            concurrentSize.reset(size);
+            propagatedSize = size;
+        }
+        else
+            this.size = size;
+    }
+
+    /**
+     * Set the size of this file to the given size, when applying a
+     * checkpoint to a reconstructed tree.
+     *    Neither the writability nor the modification time of this file
+     *    is affected.
+     *
+     * @param  size
+     *         The new size for this file.
+     * @pre    This file is registered in its parent directory, if any.
+     * @effect The size of this file is set to the given size.
+     *         | setSize(size)
+     * @effect The disk usage of the parent directory and all its
+     *         ancestors is adapted with the difference in size.
+     *         | getParentDirectory().propagateDiskUsageDelta(size-getSize())
+     */
+    @Model void restoreSize(int size) {
+        long delta = size - getSize();
+        setSize(size);
+        if (getParentDirectory() != null)
+            getParentDirectory().propagateDiskUsageDelta(delta);
     }
 
     /**
      * Return the size of this file (in bytes).
+     *    This is the apparent size of this file; the content actually
+     *    allocated for it may be smaller.
+     *
+     * @see #getAllocatedContentSize()
+     */
+    @Raw public int getSize() throws IllegalStateException {
+        StripedCounter concurrentSize = this.concurrentSize;
+        if (concurrentSize != null) {
+            long result = concurrentSize.sum();
+            if (!isInSizeRange(result))
+                throw new IllegalStateException("Invalid size!");
+            return (int) result;
+        }
+        return size;
+    }
+
+    /**
+     * Return the size of this file as last reported to the mutation
+     * listeners.
+     *    In concurrent size mode, this is the size that has been folded
+     *    into the disk usage of the ancestors of this file, which lags
+     *    behind the size of this file while changes are in progress. It
+     *    does not change while the listeners are notified.
      */
-    @Raw public int getSize() {
+    long getReportedSize() {
+        if (concurrentSize != null)
+            return propagatedSize;
         return size;
     }
 
     /**
-     * Variable registering the size of this file (in bytes).
+     * Variable registering the size of this file (in bytes), if this
+     * file is not in concurrent size mode.
      */
     private int size;
+
+    /**
+     * Return the modification stamp of this file.
+     *    The stamp is incremented atomically on each change of the size
+     *    or the content, and can be compared cheaply to detect whether this file has
+     *    changed since it was last inspected.
+     */
+    public long getModificationStamp() {
+        StripedCounter concurrentStamp = this.concurrentStamp;
+        if (concurrentStamp == null)
+            return modificationStamp.get();
+        return modificationStamp.get() + concurrentStamp.sum();
+    }
+
+    /**
+     * Variable referencing the modification stamp of this file, apart
+     * from the changes of the size in concurrent size mode.
+     */
+    private final AtomicLong modificationStamp = new AtomicLong();
+
+    /**
+     * Variable referencing the number of changes of the size of this file
+     * in concurrent size mode, or null if this file has never been in
+     * that mode.
+     *    The counter is kept when this file leaves concurrent size mode,
+     *    rather than folded into the modification stamp, so that the
+     *    stamp never decreases for threads reading it meanwhile.
+     */
+    private volatile StripedCounter concurrentStamp;
+
+    /**********************************************************
+     * concurrent size mode
+     **********************************************************/
+
+    /**
+     * Check whether this file is in concurrent size mode.
+     *    In concurrent size mode, the size of this file is registered
+     *    in a striped counter, so that many threads can enlarge or shorten
+     *    it at once without losing updates and without contending on a
+     *    single variable.
+     */
+    public boolean isInConcurrentSizeMode() {
+        return concurrentSize != null;
+    }
+
+    /**
+     * Switch this file into or out of concurrent size mode.
+     *    Switching modes must not be done while other threads change the
+     *    size of this file.
+     *
+     * @param  flag
+     *         True to switch to concurrent size mode, false to switch back
+     *         to plain size mode.
+     * @post   This file is in concurrent size mode if and only if the
+     *         given flag is true.
+     *         | new.isInConcurrentSizeMode() == flag
+     * @post   The size of this file is unchanged.
+     *         | new.getSize() == getSize()
+     * @effect If this file leaves concurrent size mode after it has been
+     *         changed in that mode, its modification time is set to the
+     *         time of the last change.
+     *         | if (isInConcurrentSizeMode() && !flag &&
+     *         |     getModificationTimeMillis() != NO_TIME)
+     *         | then setModificationTime(getModificationTimeMillis())
+     */
+    public synchronized void setConcurrentSizeMode(boolean flag) {
+        if (flag == isInConcurrentSizeMode())
+            return;
+        if (flag) {
+            concurrentModificationTime = 0;
+            propagatedSize = size;
+            if (concurrentStamp == null)
+                concurrentStamp = new StripedCounter();
+            concurrentSize = new StripedCounter(size);
+        } else {
+            long modificationTime = getModificationTimeMillis();
+            long result = concurrentSize.sum();
+            if (!isInSizeRange(result))
+                throw new IllegalStateException("Invalid size!");
+            size = (int) result;
+            concurrentSize = null;
+            if (modificationTime != NO_TIME)
+                setModificationTime(modificationTime);
+        }
+    }
+
+    /**
+     * Return the time at which this file was last modified.
+     *    In concurrent size mode, changes of the size register the time
+     *    of the change apart from the modification time of this disk
+     *    item, in a field that is written without further locking.
+     *
+     * @return The time of the last change of the size in concurrent size
+     *         mode, if there is such a change and it comes after the
+     *         modification time registered for this disk item; the
+     *         registered modification time otherwise.
+     * @see superclass
+     */
+    @Override
+    @Raw public long getModificationTimeMillis() {
+        long result = super.getModificationTimeMillis();
+        long concurrentTime = concurrentModificationTime;
+        if ((concurrentSize != null) && (concurrentTime != 0) &&
+            (result < concurrentTime))
+            return concurrentTime;
+        return result;
+    }
+
+    /**
+     * Variable referencing the striped counter holding the size of this
+     * file in concurrent size mode, or null in plain size mode.
+     */
+    private volatile StripedCounter concurrentSize;
+
+    /**
+     * Register the given time as the time of the last change of the size
+     * in concurrent size mode, unless a later time has been registered.
+     *    Concurrent changes within the same tick of the clock thus only
+     *    read the registered time, and do not write it.
+     *
+     * @return True if and only if the given time has been registered.
+     */
+    private boolean raiseConcurrentModificationTime(long time) {
+        long current;
+        do {
+            current = concurrentModificationTime;
+            if (current >= time)
+                return false;
+        } while (!concurrentModificationTimeUpdater.compareAndSet(this, current, time));
+        return true;
+    }
+
+    /**
+     * Variable registering the time of the last change of the size in
+     * concurrent size mode, or 0 if there has been no such change.
+     */
+    private volatile long concurrentModificationTime;
+
+    private static final AtomicLongFieldUpdater<File> concurrentModificationTimeUpdater =
+        AtomicLongFieldUpdater.newUpdater(File.class, "concurrentModificationTime");
+
+    /**
+     * Fold the size held by the given striped counter in concurrent size
+     * mode into the disk usage of the ancestors of this file, after the
+     * current thread has changed it with the given delta.
+     *    Only one thread at a time propagates; it propagates the difference
+     *    between the size of this file and the size already propagated,
+     *    until both are equal. Threads changing the size meanwhile return
+     *    at once, leaving their delta to that thread. The disk usage of the
+     *    ancestors may thus lag behind the size of this file while changes
+     *    are in progress, but it is exact as soon as no thread changes the
+     *    size of this file: the propagating thread checks the size again
+     *    after it has given up its turn, and each other thread checks the
+     *    turn after it has changed the size.
+     *    The propagating thread also preserves the version of this file,
+     *    registers it as changed since the last checkpoint and notifies the
+     *    mutation listeners, once per difference it propagates, so that
+     *    changes that are coalesced do not each pay for that. Versions and
+     *    clones of this file may thus include changes in progress.
+     *
+     * @throws IllegalArgumentException
+     *         The propagating thread is the current thread, and the size
+     *         held by the given counter is not a valid size. The given
+     *         delta is undone before the exception is thrown.
+     */
+    private void propagateConcurrentSize(StripedCounter concurrentSize, long change)
+            throws IllegalArgumentException {
+        boolean isUndone = false;
+        boolean isInvalid = false;
+        while ((propagating == 0) && propagatingUpdater.compareAndSet(this, 0, 1)) {
+            try {
+                long size;
+                while ((size = concurrentSize.sum()) != propagatedSize) {
+                    if (!isInSizeRange(size)) {
+                        if (isUndone) {
+                            // the changes of other threads make it invalid
+                            isInvalid = true;
+                            break;
+                        }
+                        concurrentSize.add(-change);
+                        isUndone = true;
+                        continue;
+                    }
+                    long delta = size - propagatedSize;
+                    preserveVersion();
+                    propagatedSize = size;
+                    markDirty();
+                    Directory parent = getParentDirectory();
+                    if (parent != null)
+                        parent.propagateDiskUsageDelta(delta);
+                    MutationListeners.sizeChanged(this, delta);
+                }
+            } finally {
+                propagating = 0;
+            }
+            if (isInvalid || (concurrentSize.sum() == propagatedSize))
+                break;
+        }
+        if (isUndone)
+            throw new IllegalArgumentException("Invalid size!");
+    }
+
+    /**
+     * Variable registering the size of this file in concurrent size mode
+     * that has been propagated to the disk usage of its ancestors.
+     *    The variable is only written by the thread that has the turn to
+     *    propagate.
+     */
+    private volatile long propagatedSize;
+
+    /**
+     * Variable registering whether some thread has the turn to propagate
+     * the size of this file to its ancestors (1) or not (0).
+     */
+    private volatile int propagating;
+
+    private static final AtomicIntegerFieldUpdater<File> propagatingUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(File.class, "propagating");
+
+    /**********************************************************
+     * content
+     **********************************************************/
+
+    /**
+     * Read bytes of the content of this file, starting at the given
+     * position, into the given buffer.
+     *    Parts of the content that were never written read as zeroes.
+     *
+     * @param  position
+     *         The position of the first byte to read.
+     * @param  destination
+     *         The buffer to read into.
+     * @return The number of bytes read, which is the number of bytes
+     *         remaining in the given buffer or the number of bytes from the
+     *         given position to the end of this file, whichever is smaller;
+     *         or -1 if the given position is not before the end of this
+     *         file.
+     *         | if (position >= getSize())
+     *         | then result == -1
+     *         | else result == min(destination.remaining(), getSize()-position)
+     * @throws IllegalArgumentException
+     *         The given position is negative or the given buffer is not
+     *         effective.
+     *         | (position < 0) || (destination == null)
+     */
+    public synchronized int read(long position, ByteBuffer destination)
+            throws IllegalArgumentException {
+        if ((position < 0) || (destination == null))
+            throw new IllegalArgumentException();
+        if (position >= getSize())
+            return -1;
+        int length = (int) Math.min(destination.remaining(), getSize()-position);
+        for (int done = 0; done < length; ) {
+            int index = (int) ((position+done) / ContentChunks.CHUNK_SIZE);
+            int offset = (int) ((position+done) % ContentChunks.CHUNK_SIZE);
+            int count = Math.min(length-done, ContentChunks.CHUNK_SIZE-offset);
+            int chunk = ((chunks != null) && (index < chunks.length))? chunks[index] : 0;
+            if (chunk == 0)
+                ContentChunks.readZeroes(destination, count);
+            else
+                ContentChunks.read(chunk, offset, destination, count);
+            done += count;
+        }
+        return length;
+    }
+
+    /**
+     * Write the bytes remaining in the given buffer into the content of
+     * this file, starting at the given position.
+     *    Writing beyond the end of this file enlarges it; the bytes
+     *    between its old end and the given position read as zeroes.
+     *
+     * @param  position
+     *         The position of the first byte to write.
+     * @param  source
+     *         The buffer to write from.
+     * @return The number of bytes written, which is the number of bytes
+     *         that were remaining in the given buffer.
+     *         | result == source.remaining()
+     * @effect If the write ends beyond the end of this file, the size of
+     *         this file is increased up to the end of the write.
+     *         | if (position+source.remaining() > getSize())
+     *         | then changeSize(position+source.remaining()-getSize())
+     * @effect Otherwise, if some bytes are written, the modification time
+     *         is updated.
+     *         | else if (source.hasRemaining())
+     *         | then setModificationTime()
+     * @effect The allocated disk usage of the parent directory and all its
+     *         ancestors is adapted with the change in allocated content.
+     * @throws IllegalArgumentException
+     *         The given position is negative, the given buffer is not
+     *         effective, or the write would end beyond the maximum size.
+     *         | (position < 0) || (source == null) ||
+     *         | (position+source.remaining() > getMaximumSize())
+     * @throws IllegalStateException
+     *         This file is in concurrent size mode.
+     *         | isInConcurrentSizeMode()
+     * @throws DiskItemNotWritableException
+     *         This file is not writable or is frozen.
+     *         | !isWritable() || isFrozen()
+     */
+    public int write(long position, ByteBuffer source)
+            throws IllegalArgumentException, IllegalStateException,
+                   DiskItemNotWritableException {
+        if ((position < 0) || (source == null) ||
+            (position+source.remaining() > getMaximumSize()))
+            throw new IllegalArgumentException();
+        if (isInConcurrentSizeMode())
+            throw new IllegalStateException();
+        if (!isWritable() || isFrozen())
+            throw new DiskItemNotWritableException(this);
+        int length = source.remaining();
+        if (length == 0)
+            return 0;
+        // pending clones must copy the content before it changes
+        preserveVersion();
+        synchronized (this) {
+            long allocated = getAllocatedContentSize();
+            long end = position+length;
+            int nbChunks = (int) ((end+ContentChunks.CHUNK_SIZE-1) / ContentChunks.CHUNK_SIZE);
+            if (chunks == null)
+                chunks = new int[nbChunks];
+            else if (chunks.length < nbChunks)
+                chunks = Arrays.copyOf(chunks, Math.max(nbChunks, chunks.length*2));
+            for (int done = 0; done < length; ) {
+                int index = (int) ((position+done) / ContentChunks.CHUNK_SIZE);
+                int offset = (int) ((position+done) % ContentChunks.CHUNK_SIZE);
+                int count = Math.min(length-done, ContentChunks.CHUNK_SIZE-offset);
+                ContentChunks.write(getWritableChunk(index), offset, source, count);
+                done += count;
+            }
+            propagateAllocationDelta(allocated);
+            if (end > getSize()) {
+                changeSize(end-getSize());
+            } else {
+                setModificationTime();
+                modificationStamp.incrementAndGet();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Set the size of this file to the given size, discarding its content
+     * beyond that size.
+     *    Enlarging this file this way does not allocate any content; the
+     *    new bytes read as zeroes.
+     *
+     * @param  size
+     *         The new size of this file.
+     * @effect If the given size differs from the size of this file, the
+     *         size of this file is changed to the given size.
+     *         | if (size != getSize())
+     *         | then changeSize(size-getSize())
+     * @throws IllegalArgumentException
+     *         The given size is negative or exceeds the maximum size.
+     *         | (size < 0) || (size > getMaximumSize())
+     * @throws IllegalStateException
+     *         This file is in concurrent size mode.
+     *         | isInConcurrentSizeMode()
+     * @throws DiskItemNotWritableException
+     *         This file is not writable or is frozen.
+     *         | !isWritable() || isFrozen()
+     */
+    public void truncate(long size)
+            throws IllegalArgumentException, IllegalStateException,
+                   DiskItemNotWritableException {
+        if ((size < 0) || (size > getMaximumSize()))
+            throw new IllegalArgumentException();
+        if (isInConcurrentSizeMode())
+            throw new IllegalStateException();
+        preserveVersion();
+        synchronized (this) {
+            if (size != getSize())
+                changeSize(size-getSize());
+        }
+    }
+
+    /**
+     * Discard the content of this file beyond the given size.
+     *    Chunks entirely beyond the given size are released, and the rest
+     *    of the chunk holding the given size is cleared, so that enlarging
+     *    this file later on does not bring discarded content back.
+     */
+    @Model private synchronized void trimContent(int size) {
+        if (chunks == null)
+            return;
+        int nbChunks = (int) (((long) size+ContentChunks.CHUNK_SIZE-1) / ContentChunks.CHUNK_SIZE);
+        if (nbChunks > chunks.length)
+            return;
+        long allocated = getAllocatedContentSize();
+        for (int i = chunks.length-1; i >= nbChunks; i--)
+            releaseChunk(i);
+        if (nbChunks == 0) {
+            chunks = null;
+            unsealedChunks = null;
+        } else {
+            int offset = size % ContentChunks.CHUNK_SIZE;
+            if ((offset != 0) && (chunks[nbChunks-1] != 0))
+                ContentChunks.clear(getWritableChunk(nbChunks-1), offset,
+                        ContentChunks.CHUNK_SIZE-offset);
+            if (nbChunks < chunks.length)
+                chunks = Arrays.copyOf(chunks, nbChunks);
+        }
+        propagateAllocationDelta(allocated);
+    }
+
+    /**
+     * Deallocate the content of this file in the given range, so that it
+     * reads as zeroes, without changing the size of this file.
+     *    Chunks entirely within the range are released, and the part of
+     *    the range in the chunks at its boundaries is cleared.
+     *
+     * @param  position
+     *         The position of the first byte to deallocate.
+     * @param  length
+     *         The number of bytes to deallocate.
+     * @effect If the range is not empty, the modification time is updated.
+     *         | if (length > 0)
+     *         | then setModificationTime()
+     * @effect The allocated disk usage of the parent directory and all its
+     *         ancestors is adapted with the change in allocated content.
+     * @throws IllegalArgumentException
+     *         The given position or the given length is negative.
+     *         | (position < 0) || (length < 0)
+     * @throws IllegalStateException
+     *         This file is in concurrent size mode.
+     *         | isInConcurrentSizeMode()
+     * @throws DiskItemNotWritableException
+     *         This file is not writable or is frozen.
+     *         | !isWritable() || isFrozen()
+     */
+    public void punchHole(long position, long length)
+            throws IllegalArgumentException, IllegalStateException,
+                   DiskItemNotWritableException {
+        if ((position < 0) || (length < 0))
+            throw new IllegalArgumentException();
+        if (isInConcurrentSizeMode())
+            throw new IllegalStateException();
+        if (!isWritable() || isFrozen())
+            throw new DiskItemNotWritableException(this);
+        if (length == 0)
+            return;
+        // pending clones must copy the content before it changes
+        preserveVersion();
+        synchronized (this) {
+            long allocated = getAllocatedContentSize();
+            long end = (chunks == null)? 0 :
+                    Math.min(position+length, (long) chunks.length*ContentChunks.CHUNK_SIZE);
+            for (long current = position; current < end; ) {
+                int index = (int) (current / ContentChunks.CHUNK_SIZE);
+                int offset = (int) (current % ContentChunks.CHUNK_SIZE);
+                int count = (int) Math.min(end-current, ContentChunks.CHUNK_SIZE-offset);
+                if (chunks[index] != 0) {
+                    if (count == ContentChunks.CHUNK_SIZE)
+                        releaseChunk(index);
+                    else
+                        ContentChunks.clear(getWritableChunk(index), offset, count);
+                }
+                current += count;
+            }
+            propagateAllocationDelta(allocated);
+            setModificationTime();
+            modificationStamp.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the position of the first byte at or after the given position
+     * that lies in allocated content, or -1 if there is no such byte before
+     * the end of this file.
+     *    Content is allocated in whole chunks, so the result is either the
+     *    given position or the start of a chunk.
+     *
+     * @param  position
+     *         The position to search from.
+     * @throws IllegalArgumentException
+     *         The given position is negative.
+     *         | position < 0
+     * @O      Logarithmic in the number of extents of this file.
+     */
+    public synchronized long seekData(long position) throws IllegalArgumentException {
+        if (position < 0)
+            throw new IllegalArgumentException();
+        if ((position >= getSize()) || (nbExtents == 0))
+            return -1;
+        int index = (int) (position / ContentChunks.CHUNK_SIZE);
+        int extent = findExtent(index);
+        if ((extent >= 0) && (extentEnds[extent] > index))
+            return position;
+        if (extent+1 == nbExtents)
+            return -1;
+        long result = (long) extentStarts[extent+1]*ContentChunks.CHUNK_SIZE;
+        return (result < getSize())? result : -1;
+    }
+
+    /**
+     * Return the position of the first byte at or after the given position
+     * that lies in a hole, or the size of this file if there is no such
+     * byte before its end, or -1 if the given position is not before the
+     * end of this file.
+     *
+     * @param  position
+     *         The position to search from.
+     * @throws IllegalArgumentException
+     *         The given position is negative.
+     *         | position < 0
+     * @O      Logarithmic in the number of extents of this file.
+     */
+    public synchronized long seekHole(long position) throws IllegalArgumentException {
+        if (position < 0)
+            throw new IllegalArgumentException();
+        if (position >= getSize())
+            return -1;
+        int index = (int) (position / ContentChunks.CHUNK_SIZE);
+        int extent = findExtent(index);
+        if ((extent < 0) || (extentEnds[extent] <= index))
+            return position;
+        return Math.min((long) extentEnds[extent]*ContentChunks.CHUNK_SIZE, getSize());
+    }
+
+    /**
+     * Return the number of allocated extents of this file, which are
+     * maximal runs of chunks holding content.
+     */
+    public synchronized int getNbExtents() {
+        return nbExtents;
+    }
+
+    /**
+     * Return the number of bytes of content allocated for this file.
+     *    This is the number of bytes in the chunks holding written content
+     *    other than zeroes, which may be smaller than the size of this
+     *    file, its apparent size. Chunks shared with other files or within
+     *    this file are counted for each reference.
+     */
+    public synchronized long getAllocatedContentSize() {
+        return (long) nbAllocatedChunks*ContentChunks.CHUNK_SIZE;
+    }
+
+    /**
+     * Return the number of bytes of content allocated for this file.
+     *
+     * @return | result == getAllocatedContentSize()
+     */
+    public long getTotalAllocatedUsage() {
+        return getAllocatedContentSize();
+    }
+
+    /**
+     * Return the handle of the chunk at the given index, after making sure
+     * that it can be written without affecting other references, and
+     * register it as written since it was last sealed.
+     *    A hole is replaced by a new chunk; a chunk that is sealed is
+     *    unshared. A chunk that has not been sealed since it was last
+     *    written is not shared, and is returned as it is.
+     */
+    @Model private int getWritableChunk(int index) {
+        if (unsealedChunks == null)
+            unsealedChunks = new BitSet();
+        else if (unsealedChunks.get(index))
+            return chunks[index];
+        int chunk = (chunks[index] == 0)? ContentChunks.allocate() :
+                ContentChunks.unshare(chunks[index]);
+        setChunk(index, chunk);
+        unsealedChunks.set(index);
+        return chunk;
+    }
+
+    /**
+     * Release the chunk at the given index, if any, turning it into a
+     * hole.
+     */
+    @Model private void releaseChunk(int index) {
+        if (chunks[index] == 0)
+            return;
+        ContentChunks.release(chunks[index]);
+        setChunk(index, 0);
+        if (unsealedChunks != null)
+            unsealedChunks.clear(index);
+    }
+
+    /**
+     * Seal the chunks of this file that have been written since they were
+     * last sealed, so that chunks with the same content as some other
+     * chunk are shared, and chunks holding only zeroes are released.
+     *    Chunks are sealed before they are shared and before they are
+     *    accounted for, rather than on each write, so that a chunk that is
+     *    written piecewise is hashed only once.
+     *
+     * @effect The allocated disk usage of the parent directory and all its
+     *         ancestors is adapted with the change in allocated content.
+     */
+    @Model synchronized void sealContent() {
+        BitSet unsealed = unsealedChunks;
+        if (unsealed == null)
+            return;
+        unsealedChunks = null;
+        long allocated = getAllocatedContentSize();
+        for (int index = unsealed.nextSetBit(0); index >= 0; index = unsealed.nextSetBit(index+1))
+            setChunk(index, ContentChunks.seal(chunks[index]));
+        propagateAllocationDelta(allocated);
+    }
+
+    /**
+     * Register the given handle for the chunk at the given index, and
+     * adapt the extents of this file if the chunk turns from a hole into
+     * content or back.
+     */
+    @Model private void setChunk(int index, int handle) {
+        boolean wasAllocated = (chunks[index] != 0);
+        chunks[index] = handle;
+        if (wasAllocated == (handle != 0))
+            return;
+        int extent = findExtent(index);
+        if (handle != 0) {
+            nbAllocatedChunks++;
+            boolean joinsPrevious = (extent >= 0) && (extentEnds[extent] == index);
+            boolean joinsNext = (extent+1 < nbExtents) && (extentStarts[extent+1] == index+1);
+            if (joinsPrevious && joinsNext) {
+                extentEnds[extent] = extentEnds[extent+1];
+                removeExtent(extent+1);
+            } else if (joinsPrevious) {
+                extentEnds[extent]++;
+            } else if (joinsNext) {
+                extentStarts[extent+1]--;
+            } else {
+                insertExtent(extent+1, index, index+1);
+            }
+        } else {
+            nbAllocatedChunks--;
+            if (extentEnds[extent]-extentStarts[extent] == 1)
+                removeExtent(extent);
+            else if (extentStarts[extent] == index)
+                extentStarts[extent]++;
+            else if (extentEnds[extent] == index+1)
+                extentEnds[extent]--;
+            else {
+                insertExtent(extent+1, index+1, extentEnds[extent]);
+                extentEnds[extent] = index;
+            }
+        }
+    }
+
+    /**
+     * Return the position of the last extent of this file starting at or
+     * before the chunk at the given index, or -1 if there is none.
+     */
+    private int findExtent(int index) {
+        int low = 0, high = nbExtents-1;
+        while (low <= high) {
+            int middle = (low+high) >>> 1;
+            if (extentStarts[middle] <= index)
+                low = middle+1;
+            else
+                high = middle-1;
+        }
+        return high;
+    }
+
+    /**
+     * Insert an extent with the given start and end at the given position.
+     */
+    private void insertExtent(int position, int start, int end) {
+        if (extentStarts == null) {
+            extentStarts = new int[4];
+            extentEnds = new int[4];
+        } else if (nbExtents == extentStarts.length) {
+            extentStarts = Arrays.copyOf(extentStarts, nbExtents*2);
+            extentEnds = Arrays.copyOf(extentEnds, nbExtents*2);
+        }
+        System.arraycopy(extentStarts, position, extentStarts, position+1, nbExtents-position);
+        System.arraycopy(extentEnds, position, extentEnds, position+1, nbExtents-position);
+        extentStarts[position] = start;
+        extentEnds[position] = end;
+        nbExtents++;
+    }
+
+    /**
+     * Remove the extent at the given position.
+     */
+    private void removeExtent(int position) {
+        nbExtents--;
+        System.arraycopy(extentStarts, position+1, extentStarts, position, nbExtents-position);
+        System.arraycopy(extentEnds, position+1, extentEnds, position, nbExtents-position);
+        if (nbExtents == 0) {
+            extentStarts = null;
+            extentEnds = null;
+        }
+    }
+
+    /**
+     * Adapt the allocated disk usage of the parent directory of this file
+     * and all its ancestors to a change from the given allocated content
+     * size.
+     */
+    @Model private void propagateAllocationDelta(long allocated) {
+        long delta = getAllocatedContentSize()-allocated;
+        Directory parent = getParentDirectory();
+        if ((delta != 0) && !isTerminated() && (parent != null))
+            parent.propagateDiskUsageDelta(0, delta);
+    }
+
+    /**********************************************************
+     * cloning
+     **********************************************************/
+
+    /**
+     * Return a copy of this file with the given name in the given
+     * directory, sharing its content with this file until either of them
+     * is written.
+     *
+     * @see superclass
+     */
+    @Override
+    public File cloneInto(Directory target, String name)
+            throws IllegalArgumentException, DiskItemNotWritableException,
+                   IllegalAddException {
+        return (File) super.cloneInto(target, name);
+    }
+
+    /**
+     * Return a copy of this file with the given name in the given
+     * directory, without registering it there.
+     *    The copy references the chunks holding the content of this file.
+     */
+    @Override
+    @Model synchronized File copy(Directory parent, String name) {
+        sealContent();
+        File result = File.createUnregistered(parent, name, getType(), getSize(), isWritable());
+        ClonePager.copyTimes(this, result);
+        if (chunks != null) {
+            result.chunks = chunks.clone();
+            for (int chunk : result.chunks)
+                if (chunk != 0)
+                    ContentChunks.share(chunk);
+        }
+        if (nbExtents > 0) {
+            result.extentStarts = extentStarts.clone();
+            result.extentEnds = extentEnds.clone();
+            result.nbExtents = nbExtents;
+            result.nbAllocatedChunks = nbAllocatedChunks;
+        }
+        return result;
+    }
+
+    /**
+     * Discard this copy, and release the chunks it shares with the file it
+     * was copied from.
+     *    The chunks are released without adapting the usage of the parent
+     *    directory, which never accounted for this copy.
+     */
+    @Override
+    @Model synchronized void discardCopy() {
+        super.discardCopy();
+        if (chunks == null)
+            return;
+        for (int i = 0; i < chunks.length; i++)
+            releaseChunk(i);
+        chunks = null;
+        unsealedChunks = null;
+    }
+
+    /**
+     * Add the handles of the chunks holding the content of this file to
+     * the given set.
+     */
+    @Override
+    @Model synchronized void collectContentChunks(BitSet handles) {
+        sealContent();
+        if (chunks != null)
+            for (int chunk : chunks)
+                if (chunk != 0)
+                    handles.set(chunk);
+    }
+
+    /**
+     * Variable referencing the table of handles of the chunks holding the
+     * content of this file, or null if this file has no content.
+     *    A handle of 0 stands for a chunk holding only zeroes. Chunks may
+     *    be shared with other files; they are copied before they are
+     *    written.
+     */
+    private int[] chunks;
+
+    /**
+     * Variable referencing the indices of the chunks of this file that
+     * have been written since they were last sealed, or null if there are
+     * no such chunks.
+     *    Those chunks are not shared, and are not registered in the index
+     *    of sealed chunks.
+     */
+    private BitSet unsealedChunks;
+
+    /**
+     * Variables referencing the start and the end of each allocated extent
+     * of this file, as indices of chunks, and registering the number of
+     * extents.
+     *    Extents are sorted, disjoint and not adjacent, so that the extent
+     *    holding a chunk, or the next one, is found by binary search.
+     */
+    private int[] extentStarts;
+    private int[] extentEnds;
+    private int nbExtents;
+
+    /**
+     * Variable registering the number of chunks holding content.
+     */
+    private int nbAllocatedChunks;
+
     /**
      * Returns the total disk usage of this file.
      * 
@@ -318,4 +1323,18 @@ public class File extends RealDiskItem{
 		terminate();
 		
 	}
+
+	/**
+	 * Terminate this file.
+	 *
+	 * @effect This file is terminated as a disk item.
+	 *         | super.terminate()
+	 * @effect The content of this file is discarded.
+	 *         | trimContent(0)
+	 */
+	@Override
+	public void terminate() throws ImpossibleDeletionException {
+		super.terminate();
+		trimContent(0);
+	}
 }
@@ -21,4 +21,25 @@ public class FileLink extends Link {
 		super(parent, name, referral);
 		
 	}
+	/**
+	 * Initialize this new link with a given parent, name and referral,
+	 * without registering it in the given parent.
+	 * @effect This file link is initialized as an unregistered link to
+	 * 			refer the given file
+	 * 			| super(parent, name, referral, unregistered)
+	 */
+	private FileLink(Directory parent, String name, File referral, Unregistered unregistered)
+			throws IllegalArgumentException {
+		super(parent, name, referral, unregistered);
+	}
+	/**
+	 * Return a new file link with a given parent, name and referral,
+	 * that is not registered in the given parent yet.
+	 * @return A new unregistered file link to the given file
+	 * 			| result == new FileLink(parent, name, referral, UNREGISTERED)
+	 */
+	static FileLink createUnregistered(Directory parent, String name, File referral)
+			throws IllegalArgumentException {
+		return new FileLink(parent, name, referral, UNREGISTERED);
+	}
 }
@@ -0,0 +1,48 @@
+package filesystem;
+
+/**
+ * A class of file snapshots, offering a frozen, read-only view of a file
+ * as it was when a snapshot was taken.
+ */
+public class FileSnapshot extends SnapshotItem {
+
+	/**
+	 * Initialize a new file snapshot for the given file and snapshot.
+	 */
+	FileSnapshot(File file, SnapshotEpoch snapshot) {
+		super(file, snapshot);
+	}
+
+	/**
+	 * Return the type of this file snapshot.
+	 */
+	public Type getType() {
+		return ((File) getItem()).getType();
+	}
+
+	/**
+	 * Return the size of this file snapshot (in bytes).
+	 */
+	public int getSize() {
+		return getVersion().size;
+	}
+
+	/**
+	 * Check whether this file snapshot is writable.
+	 */
+	public boolean isWritable() {
+		return getVersion().isWritable;
+	}
+
+	/**
+	 * Return a textual representation of this file snapshot.
+	 *
+	 * @return The name of this file snapshot followed by a dot and the
+	 *         extension of its type.
+	 *       | result.equals(getName()+"."+getType())
+	 */
+	@Override
+	public String toString() {
+		return getName() + "." + getType();
+	}
+}
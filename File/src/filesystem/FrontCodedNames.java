@@ -0,0 +1,234 @@
+package filesystem;
+
+import java.util.Arrays;
+
+/**
+ * A class of immutable sequences of names, sorted ignoring case, stored
+ * front-coded in a single array of bytes.
+ *    Names are split in blocks of BLOCK_SIZE names. The first name of a
+ *    block, its restart key, is stored in full; every other name only
+ *    stores the length of the prefix it shares with the name before it
+ *    and the remaining suffix. Names are searched by a binary search over
+ *    the restart keys, followed by a linear scan of a single block.
+ *    Sorted names of log and partition directories, such as part-00001
+ *    and part-00002, share most of their bytes, so that they shrink to
+ *    a fraction of their plain size.
+ *    Lengths are stored as variable-length integers of 7 bits per byte;
+ *    characters are stored as ASCII bytes.
+ */
+final class FrontCodedNames {
+
+	/**
+	 * The number of names in a block.
+	 */
+	static final int BLOCK_SIZE = 16;
+
+	/**
+	 * Initialize a new sequence of the given names.
+	 *
+	 * @param  names
+	 *         The names of the new sequence, sorted ignoring case.
+	 */
+	FrontCodedNames(String[] names) {
+		size = names.length;
+		restarts = new int[(size+BLOCK_SIZE-1) / BLOCK_SIZE];
+		byte[] data = new byte[64];
+		int end = 0;
+		int maxLength = 0;
+		String previous = "";
+		for (int i = 0; i < size; i++) {
+			String name = names[i];
+			int shared = 0;
+			if (i % BLOCK_SIZE == 0)
+				restarts[i / BLOCK_SIZE] = end;
+			else
+				shared = sharedPrefix(previous, name);
+			if (end+10+name.length() > data.length)
+				data = Arrays.copyOf(data, Math.max(2*data.length, end+10+name.length()));
+			if (i % BLOCK_SIZE != 0)
+				end = writeLength(data, end, shared);
+			end = writeLength(data, end, name.length()-shared);
+			for (int j = shared; j < name.length(); j++)
+				data[end++] = (byte) name.charAt(j);
+			maxLength = Math.max(maxLength, name.length());
+			previous = name;
+		}
+		this.data = Arrays.copyOf(data, end);
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Return the number of names in this sequence.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Return the name at the given index, starting from 0.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *         The given index is negative or not below the size.
+	 */
+	String get(int index) throws IndexOutOfBoundsException {
+		if ((index < 0) || (index >= size))
+			throw new IndexOutOfBoundsException();
+		char[] name = new char[maxLength];
+		int position = restarts[index / BLOCK_SIZE];
+		int length = 0;
+		for (int i = index - index % BLOCK_SIZE; i <= index; i++) {
+			int shared = 0;
+			if (i % BLOCK_SIZE != 0) {
+				shared = readLength(position);
+				position = skipLength(position);
+			}
+			int suffix = readLength(position);
+			position = skipLength(position);
+			for (int j = 0; j < suffix; j++)
+				name[shared+j] = (char) data[position++];
+			length = shared+suffix;
+		}
+		return new String(name, 0, length);
+	}
+
+	/**
+	 * Return the index of the given name, ignoring case, or minus one
+	 * more than the index at which it would be inserted if it is not
+	 * part of this sequence.
+	 */
+	int search(String name) {
+		int low = 0, high = restarts.length-1;
+		while (low <= high) {
+			int middle = (low+high) >>> 1;
+			int position = restarts[middle];
+			int comparison = compare(data, skipLength(position), readLength(position), name);
+			if (comparison < 0)
+				low = middle+1;
+			else if (comparison > 0)
+				high = middle-1;
+			else
+				return middle*BLOCK_SIZE;
+		}
+		// The name is ordered after the restart key of block high only.
+		if (high < 0)
+			return -1;
+		char[] current = new char[maxLength];
+		int position = restarts[high];
+		int end = Math.min(size, (high+1)*BLOCK_SIZE);
+		for (int i = high*BLOCK_SIZE; i < end; i++) {
+			int shared = 0;
+			if (i % BLOCK_SIZE != 0) {
+				shared = readLength(position);
+				position = skipLength(position);
+			}
+			int suffix = readLength(position);
+			position = skipLength(position);
+			for (int j = 0; j < suffix; j++)
+				current[shared+j] = (char) data[position++];
+			int comparison = compare(current, shared+suffix, name);
+			if (comparison == 0)
+				return i;
+			if (comparison > 0)
+				return -i-1;
+		}
+		return -end-1;
+	}
+
+	/**
+	 * Return the number of bytes reserved by this sequence, counting
+	 * headers of objects and arrays as 16 bytes.
+	 */
+	long getMemoryUsage() {
+		return 16 + 16+data.length + 16+4L*restarts.length;
+	}
+
+	/**
+	 * Return the length of the longest common prefix of the given names.
+	 */
+	private static int sharedPrefix(String first, String second) {
+		int result = 0;
+		int max = Math.min(Math.min(first.length(), second.length()), MAX_SHARED);
+		while ((result < max) && (first.charAt(result) == second.charAt(result)))
+			result++;
+		return result;
+	}
+
+	/**
+	 * Compare the given number of bytes at the given position with the
+	 * given name, ignoring case.
+	 */
+	private static int compare(byte[] bytes, int position, int length, String name) {
+		int common = Math.min(length, name.length());
+		for (int i = 0; i < common; i++) {
+			char first = Character.toLowerCase((char) bytes[position+i]);
+			char second = Character.toLowerCase(name.charAt(i));
+			if (first != second)
+				return first-second;
+		}
+		return length-name.length();
+	}
+
+	/**
+	 * Compare the given number of characters of the given array with the
+	 * given name, ignoring case.
+	 */
+	private static int compare(char[] chars, int length, String name) {
+		int common = Math.min(length, name.length());
+		for (int i = 0; i < common; i++) {
+			char first = Character.toLowerCase(chars[i]);
+			char second = Character.toLowerCase(name.charAt(i));
+			if (first != second)
+				return first-second;
+		}
+		return length-name.length();
+	}
+
+	/**
+	 * Write the given length at the given position of the given array, and
+	 * return the position following it.
+	 */
+	private static int writeLength(byte[] bytes, int position, int length) {
+		while (length >= 0x80) {
+			bytes[position++] = (byte) (length | 0x80);
+			length >>>= 7;
+		}
+		bytes[position++] = (byte) length;
+		return position;
+	}
+
+	private int readLength(int position) {
+		int result = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte value = data[position++];
+			result |= (value & 0x7F) << shift;
+			if (value >= 0)
+				return result;
+		}
+	}
+
+	private int skipLength(int position) {
+		while (data[position] < 0)
+			position++;
+		return position+1;
+	}
+
+	/**
+	 * The longest prefix shared with the previous name, so that a shared
+	 * length always takes a single byte.
+	 */
+	private static final int MAX_SHARED = 0x7F;
+
+	/**
+	 * Variables referencing the coded names and the positions of the
+	 * restart keys of the blocks in them.
+	 */
+	private final byte[] data;
+	private final int[] restarts;
+
+	/**
+	 * Variables registering the number of names and the length of the
+	 * longest one.
+	 */
+	private final int size;
+	private final int maxLength;
+}
@@ -0,0 +1,304 @@
+package filesystem;
+
+/**
+ * A class of compiled forms of frozen subtrees of directories.
+ *    The items of a frozen subtree are laid out in pre-order in a single
+ *    array, so that each item is followed by its own direct and indirect
+ *    items. Parallel arrays hold, for each node, the end of its subtree and
+ *    its total disk usage and allocated usage, computed once.
+ *    The items of each directory are indexed by a minimal perfect hash of
+ *    their names ignoring case. Names are spread over buckets of about two
+ *    names, and each bucket holds a seed under which its names hash to
+ *    distinct slots, or the slot itself for a bucket of a single name.
+ *    Looking up a name thus hashes it twice and compares it with a single
+ *    candidate. Each directory also holds a salt for the hash of its
+ *    names, which is only changed when two of its names collide.
+ *    A frozen tree is never changed once it is built, so that it is read
+ *    by any number of threads without locking.
+ *
+ * @see Directory#freeze()
+ */
+final class FrozenTree {
+
+	/**
+	 * Initialize a new frozen tree compiled from the given directory and
+	 * all its direct and indirect items.
+	 *
+	 * @pre    The items of the given directory and of all its direct and
+	 *         indirect subdirectories are loaded.
+	 */
+	FrozenTree(Directory root) {
+		int[] counts = new int[2];
+		count(root, counts);
+		nodes = new DiskItem[counts[0]];
+		ends = new int[counts[0]];
+		usages = new long[counts[0]];
+		allocatedUsages = new long[counts[0]];
+		firsts = new int[counts[0]];
+		nbItems = new int[counts[0]];
+		seedFirsts = new int[counts[0]];
+		slots = new int[counts[0]-1];
+		seeds = new int[counts[1]];
+		fill(root, 0);
+	}
+
+	/**
+	 * Return the number of nodes of this tree.
+	 */
+	int getNbNodes() {
+		return nodes.length;
+	}
+
+	/**
+	 * Return the item at the given node.
+	 */
+	DiskItem getNode(int index) {
+		return nodes[index];
+	}
+
+	/**
+	 * Return the index following the last node of the subtree of the node
+	 * at the given index.
+	 */
+	int getEnd(int index) {
+		return ends[index];
+	}
+
+	/**
+	 * Return the total disk usage of the node at the given index.
+	 */
+	long getTotalDiskUsage(int index) {
+		return usages[index];
+	}
+
+	/**
+	 * Return the total allocated usage of the node at the given index.
+	 */
+	long getTotalAllocatedUsage(int index) {
+		return allocatedUsages[index];
+	}
+
+	/**
+	 * Return the item with the given name, ignoring case, of the directory
+	 * at the given index, or null if it has no such item.
+	 */
+	DiskItem getItem(int directory, String name) {
+		int n = nbItems[directory];
+		if ((n == 0) || (name == null))
+			return null;
+		int seedFirst = seedFirsts[directory];
+		long hash = hash(name, seeds[seedFirst]);
+		int seed = seeds[seedFirst+1+bucket(hash, (n+1)/2)];
+		int slot = (seed < 0)? -seed-1 : slot(hash, seed, n);
+		DiskItem result = nodes[slots[firsts[directory]+slot]];
+		return result.getName().equalsIgnoreCase(name)? result : null;
+	}
+
+	/**
+	 * Add the number of nodes and the number of seeds needed for the given
+	 * item and all its direct and indirect items to the given counts.
+	 */
+	private static void count(DiskItem item, int[] counts) {
+		counts[0]++;
+		if (item instanceof Directory) {
+			Directory directory = (Directory) item;
+			int n = directory.getNbItems();
+			if (n > 0)
+				counts[1] += 1+(n+1)/2;
+			for (int i = 1; i <= n; i++)
+				count(directory.getItemAt(i), counts);
+		}
+	}
+
+	/**
+	 * Lay out the given item and all its direct and indirect items from the
+	 * given index on, and return the index following them.
+	 */
+	private int fill(DiskItem item, int index) {
+		nodes[index] = item;
+		int next = index+1;
+		if (item instanceof Directory) {
+			DiskItem[] items = ((Directory) item).getItemArray();
+			int[] children = new int[items.length];
+			long usage = 0, allocated = 0;
+			for (int i = 0; i < items.length; i++) {
+				children[i] = next;
+				next = fill(items[i], next);
+				usage += usages[children[i]];
+				allocated += allocatedUsages[children[i]];
+			}
+			usages[index] = usage;
+			allocatedUsages[index] = allocated;
+			index(index, children);
+		} else {
+			// frozen files are no longer written, so seal their chunks now
+			if (item instanceof File)
+				((File) item).sealContent();
+			usages[index] = item.getTotalDiskUsage();
+			allocatedUsages[index] = item.getTotalAllocatedUsage();
+		}
+		ends[index] = next;
+		return next;
+	}
+
+	/**
+	 * Build the perfect hash of the directory at the given index, whose
+	 * items are at the given nodes.
+	 */
+	private void index(int directory, int[] children) {
+		firsts[directory] = nbSlots;
+		nbItems[directory] = children.length;
+		seedFirsts[directory] = nbSeeds;
+		if (children.length == 0)
+			return;
+		for (int salt = 0; !place(children, salt); salt++)
+			;
+		nbSlots += children.length;
+		nbSeeds += 1+(children.length+1)/2;
+	}
+
+	/**
+	 * Try to place the given nodes in the slots of the directory being
+	 * indexed, hashing their names with the given salt.
+	 *
+	 * @return True if a seed was found for each bucket; false if some
+	 *         bucket can not be placed, because names collide under the
+	 *         given salt.
+	 */
+	private boolean place(int[] children, int salt) {
+		int n = children.length;
+		int nbBuckets = (n+1)/2;
+		long[] hashes = new long[n];
+		int[] sizes = new int[nbBuckets];
+		int maxSize = 0;
+		for (int i = 0; i < n; i++) {
+			hashes[i] = hash(nodes[children[i]].getName(), salt);
+			maxSize = Math.max(maxSize, ++sizes[bucket(hashes[i], nbBuckets)]);
+		}
+		int[] starts = new int[nbBuckets+1];
+		for (int b = 0; b < nbBuckets; b++)
+			starts[b+1] = starts[b]+sizes[b];
+		int[] keys = new int[n];
+		int[] filled = starts.clone();
+		for (int i = 0; i < n; i++)
+			keys[filled[bucket(hashes[i], nbBuckets)]++] = i;
+		boolean[] taken = new boolean[n];
+		int[] chosen = new int[maxSize];
+		// Place the largest buckets first, while most slots are free.
+		for (int size = maxSize; size >= 2; size--) {
+			for (int b = 0; b < nbBuckets; b++) {
+				if (sizes[b] != size)
+					continue;
+				int seed = findSeed(hashes, keys, starts[b], size, taken, chosen);
+				if (seed < 0)
+					return false;
+				seeds[nbSeeds+1+b] = seed;
+				for (int j = 0; j < size; j++)
+					slots[nbSlots+chosen[j]] = children[keys[starts[b]+j]];
+			}
+		}
+		int free = 0;
+		for (int b = 0; b < nbBuckets; b++) {
+			if (sizes[b] != 1)
+				continue;
+			while (taken[free])
+				free++;
+			taken[free] = true;
+			seeds[nbSeeds+1+b] = -free-1;
+			slots[nbSlots+free] = children[keys[starts[b]]];
+		}
+		seeds[nbSeeds] = salt;
+		return true;
+	}
+
+	/**
+	 * Return a seed under which the hashes of the keys of a bucket map to
+	 * distinct free slots, after taking those slots and registering them
+	 * in the given array, or -1 if no such seed is found.
+	 */
+	private static int findSeed(long[] hashes, int[] keys, int start, int size,
+			boolean[] taken, int[] chosen) {
+		int n = taken.length;
+		for (int seed = 0; seed < MAX_SEED; seed++) {
+			int j = 0;
+			while (j < size) {
+				int slot = slot(hashes[keys[start+j]], seed, n);
+				if (taken[slot])
+					break;
+				taken[slot] = true;
+				chosen[j++] = slot;
+			}
+			if (j == size)
+				return seed;
+			while (j > 0)
+				taken[chosen[--j]] = false;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the hash of the given name ignoring case, salted with the
+	 * given salt.
+	 */
+	private static long hash(String name, int salt) {
+		long result = 0xCBF29CE484222325L + salt*0x9E3779B97F4A7C15L;
+		for (int i = 0; i < name.length(); i++) {
+			result ^= Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+			result *= 0x100000001B3L;
+		}
+		return mix(result);
+	}
+
+	private static int bucket(long hash, int nbBuckets) {
+		return (int) ((hash >>> 1) % nbBuckets);
+	}
+
+	private static int slot(long hash, int seed, int nbSlots) {
+		return (int) ((mix(hash + seed*0x9E3779B97F4A7C15L) >>> 1) % nbSlots);
+	}
+
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= value >>> 33;
+		value *= 0xC4CEB93F53FE6FD5L;
+		return value ^ (value >>> 33);
+	}
+
+	/**
+	 * The number of seeds tried for a bucket before giving up on the salt.
+	 */
+	private static final int MAX_SEED = 1 << 16;
+
+	/**
+	 * Variables referencing the items of the nodes in pre-order, and the
+	 * ends of their subtrees and their total usage, indexed by node.
+	 */
+	private final DiskItem[] nodes;
+	private final int[] ends;
+	private final long[] usages;
+	private final long[] allocatedUsages;
+
+	/**
+	 * Variables referencing, for each directory, the position of its first
+	 * slot, its number of items and the position of its salt, followed by
+	 * the seeds of its buckets.
+	 */
+	private final int[] firsts;
+	private final int[] nbItems;
+	private final int[] seedFirsts;
+
+	/**
+	 * Variables referencing the nodes in the slots of all directories, and
+	 * the salts and seeds of all directories.
+	 */
+	private final int[] slots;
+	private final int[] seeds;
+
+	/**
+	 * Variables registering the number of slots and seeds used so far,
+	 * while this tree is built.
+	 */
+	private int nbSlots;
+	private int nbSeeds;
+}
@@ -0,0 +1,333 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A class of exporters of trees of disk items onto the host file system.
+ *    A tree is exported as it was when its export started, regardless of
+ *    mutations during the export. Each directory is exported by its own
+ *    task on a fork/join pool, which creates the host directory, its
+ *    files and its links, and then forks a task for each subdirectory,
+ *    so that the frontier of the tree is exported in parallel.
+ *    Files become host files with the name and extension of the file and
+ *    the size of the file. Their content is not written; host files are
+ *    extended sparsely, so that no zeroes are written where the host file
+ *    system supports holes. Links become symbolic links with a relative
+ *    target, provided their referral is part of the exported tree; other
+ *    links are skipped. Items that are not writable become read-only host
+ *    items, directories only after all their items have been exported.
+ *    An export can be resumed after it has been interrupted by exporting
+ *    the same tree to the same path again. Host items that already match
+ *    their disk item are left untouched, others are brought in line.
+ *    Host items without a counterpart in the tree are never removed.
+ */
+public final class HostExporter {
+
+	/**
+	 * Initialize a new exporter exporting at most the given number of
+	 * directories in parallel.
+	 *
+	 * @param  parallelism
+	 *         The number of threads exporting directories.
+	 * @throws IllegalArgumentException
+	 *         The given parallelism is not positive.
+	 *         | parallelism <= 0
+	 */
+	public HostExporter(int parallelism) throws IllegalArgumentException {
+		if (parallelism <= 0)
+			throw new IllegalArgumentException();
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Export the given directory, with all its direct and indirect items,
+	 * to the host directory at the given path.
+	 *
+	 * @param  directory
+	 *         The directory to export.
+	 * @param  path
+	 *         The path of the host directory corresponding to the given
+	 *         directory. Missing host directories on that path are created.
+	 * @throws IllegalArgumentException
+	 *         The given directory is not effective.
+	 *         | directory == null
+	 * @throws IOException
+	 *         Some item could not be exported. All other items have been
+	 *         exported all the same; exporting the tree again resumes the
+	 *         export.
+	 */
+	public void exportTree(Directory directory, Path path)
+			throws IllegalArgumentException, IOException {
+		if (directory == null)
+			throw new IllegalArgumentException();
+		DirectorySnapshot root = (DirectorySnapshot) SnapshotItem.of(directory,
+				Versions.takeSnapshot());
+		AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ExportTask(root, path.toAbsolutePath(), root, failure));
+		} finally {
+			pool.shutdown();
+		}
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	/**
+	 * Return the number of items exported by this exporter, including
+	 * items left untouched because they had been exported before.
+	 */
+	public long getNbItems() {
+		return nbItems.sum();
+	}
+
+	/**
+	 * Return the number of items left untouched by this exporter, because
+	 * their host item already matched them.
+	 */
+	public long getNbResumed() {
+		return nbResumed.sum();
+	}
+
+	/**
+	 * Return the number of links skipped by this exporter, because their
+	 * referral is not part of the exported tree.
+	 */
+	public long getNbSkipped() {
+		return nbSkipped.sum();
+	}
+
+	/**
+	 * Return the number of items this exporter failed to export.
+	 */
+	public long getNbFailures() {
+		return nbFailures.sum();
+	}
+
+	/**
+	 * A class of tasks exporting a single directory, and forking a task for
+	 * each of its subdirectories.
+	 */
+	private final class ExportTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		ExportTask(DirectorySnapshot directory, Path path, DirectorySnapshot root,
+				AtomicReference<IOException> failure) {
+			this.directory = directory;
+			this.path = path;
+			this.root = root;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				exportDirectory();
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+			List<ExportTask> subtasks = new ArrayList<ExportTask>();
+			for (SnapshotItem item : directory.getItems()) {
+				Path target = path.resolve(getHostName(item));
+				try {
+					if (item instanceof DirectorySnapshot)
+						subtasks.add(new ExportTask((DirectorySnapshot) item, target, root, failure));
+					else if (item instanceof FileSnapshot)
+						exportFile((FileSnapshot) item, target);
+					else
+						exportLink((LinkSnapshot) item, target);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+			invokeAll(subtasks);
+			try {
+				restoreTime(directory, path);
+				if (!directory.isWritable())
+					path.toFile().setWritable(false, false);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * Create the host directory of this task, or make it writable if it
+		 * was exported read-only before.
+		 */
+		private void exportDirectory() throws IOException {
+			if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				if (!Files.isWritable(path))
+					path.toFile().setWritable(true);
+				nbResumed.add(1);
+			} else {
+				Files.createDirectories(path);
+			}
+			nbItems.add(1);
+		}
+
+		/**
+		 * Export the given file to the given host path, extending or
+		 * truncating an existing host file to the size of the file.
+		 */
+		private void exportFile(FileSnapshot file, Path target) throws IOException {
+			BasicFileAttributes attributes = readAttributes(target);
+			if ((attributes != null) && attributes.isRegularFile() &&
+					(attributes.size() == file.getSize()) &&
+					(Files.isWritable(target) == file.isWritable())) {
+				nbResumed.add(1);
+				nbItems.add(1);
+				return;
+			}
+			if ((attributes != null) && !attributes.isRegularFile())
+				Files.delete(target);
+			else if ((attributes != null) && !Files.isWritable(target))
+				target.toFile().setWritable(true);
+			try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+				if (channel.size() > file.getSize())
+					channel.truncate(file.getSize());
+				else if (channel.size() < file.getSize())
+					channel.write(ByteBuffer.allocate(1), file.getSize() - 1);
+			}
+			restoreTime(file, target);
+			if (!file.isWritable())
+				target.toFile().setWritable(false, false);
+			nbItems.add(1);
+		}
+
+		/**
+		 * Export the given link as a symbolic link at the given host path,
+		 * replacing an existing host item with another target.
+		 */
+		private void exportLink(LinkSnapshot link, Path target) throws IOException {
+			Path referral = getHostPath(link.getReferral());
+			if (referral == null) {
+				nbSkipped.add(1);
+				return;
+			}
+			Path relative = target.getParent().relativize(referral);
+			BasicFileAttributes attributes = readAttributes(target);
+			if (attributes != null) {
+				if (attributes.isSymbolicLink() &&
+						Files.readSymbolicLink(target).equals(relative)) {
+					nbResumed.add(1);
+					nbItems.add(1);
+					return;
+				}
+				Files.delete(target);
+			}
+			Files.createSymbolicLink(target, relative);
+			nbItems.add(1);
+		}
+
+		/**
+		 * Return the host path of the given item, or null if the given item
+		 * is not effective or not part of the exported tree.
+		 */
+		private Path getHostPath(SnapshotItem item) {
+			if (item == null)
+				return null;
+			List<String> names = new ArrayList<String>();
+			SnapshotItem current = item;
+			while (current.getItem() != root.getItem()) {
+				names.add(getHostName(current));
+				current = current.getParentDirectory();
+				if (current == null)
+					return null;
+			}
+			Path result = rootPath();
+			for (int i = names.size() - 1; i >= 0; i--)
+				result = result.resolve(names.get(i));
+			return result;
+		}
+
+		/**
+		 * Return the host path of the exported tree.
+		 */
+		private Path rootPath() {
+			Path result = path;
+			for (SnapshotItem current = directory; current.getItem() != root.getItem();
+					current = current.getParentDirectory())
+				result = result.getParent();
+			return result;
+		}
+
+		/**
+		 * Register the given failure.
+		 */
+		private void fail(IOException exception) {
+			nbFailures.add(1);
+			failure.compareAndSet(null, exception);
+		}
+
+		private final DirectorySnapshot directory;
+		private final Path path;
+		private final DirectorySnapshot root;
+		private final AtomicReference<IOException> failure;
+	}
+
+	/**
+	 * Return the name of the host item for the given item.
+	 *    Files carry the extension of their type; directories and links
+	 *    carry their name.
+	 */
+	static String getHostName(SnapshotItem item) {
+		if (item instanceof FileSnapshot)
+			return item.getName() + "." + ((FileSnapshot) item).getType().getExtension();
+		return item.getName();
+	}
+
+	/**
+	 * Return the attributes of the host item at the given path, without
+	 * following symbolic links, or null if there is no such host item.
+	 */
+	private static BasicFileAttributes readAttributes(Path path) throws IOException {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Set the modification time of the host item at the given path to
+	 * that of the given item, or to its creation time if it was not
+	 * modified after its construction.
+	 */
+	private static void restoreTime(SnapshotItem item, Path path) throws IOException {
+		long time = item.getModificationTimeMillis();
+		if (time == DiskItem.NO_TIME)
+			time = item.getCreationTimeMillis();
+		Files.setLastModifiedTime(path, FileTime.fromMillis(time));
+	}
+
+	/**
+	 * Variable registering the number of threads exporting directories.
+	 */
+	private final int parallelism;
+
+	/**
+	 * Variables registering the number of exported items, items left
+	 * untouched, skipped links and failures.
+	 */
+	private final StripedCounter nbItems = new StripedCounter();
+	private final StripedCounter nbResumed = new StripedCounter();
+	private final StripedCounter nbSkipped = new StripedCounter();
+	private final StripedCounter nbFailures = new StripedCounter();
+}
@@ -0,0 +1,267 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import filesystem.exception.DiskItemNotWritableException;
+
+/**
+ * A class of importers of directory trees of the host file system into
+ * trees of disk items.
+ *    Each host directory is listed by its own task on a fork/join pool,
+ *    so that directories are listed in parallel. The items of a directory
+ *    are created without registering them one by one, sorted once, and
+ *    registered in bulk.
+ *    Regular files become files whose type is derived from their
+ *    extension and whose size is the size of the host file, capped at the
+ *    maximum file size. Files with another extension, symbolic links and
+ *    other special files are skipped. Items are writable if the host file
+ *    is writable. Names are reduced to valid names by replacing invalid
+ *    characters by underscores, and made unique, ignoring case, by
+ *    appending underscores.
+ *    The imported tree has a new root directory. It can be attached to an
+ *    existing tree by moving it, which notifies the mutation listeners of
+ *    that tree.
+ */
+public final class HostImporter {
+
+	/**
+	 * Initialize a new importer listing at most the given number of host
+	 * directories in parallel.
+	 *
+	 * @param  parallelism
+	 *         The number of threads listing host directories.
+	 * @throws IllegalArgumentException
+	 *         The given parallelism is not positive.
+	 *         | parallelism <= 0
+	 */
+	public HostImporter(int parallelism) throws IllegalArgumentException {
+		if (parallelism <= 0)
+			throw new IllegalArgumentException();
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Import the host directory at the given path, with all its direct and
+	 * indirect items.
+	 *
+	 * @param  path
+	 *         The path of the host directory to import.
+	 * @return A new root directory with the name of the given host
+	 *         directory, holding the imported items.
+	 * @throws IOException
+	 *         The given path is not a directory, or its attributes could
+	 *         not be read. Host directories below it that cannot be listed
+	 *         are imported empty and counted as failures instead.
+	 */
+	public Directory importTree(Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		if (!attributes.isDirectory())
+			throw new IOException("Not a directory: " + path);
+		Path fileName = path.getFileName();
+		Directory root;
+		try {
+			root = new Directory(toValidName((fileName == null)? "root" : fileName.toString()),
+					Files.isWritable(path));
+		} catch (DiskItemNotWritableException e) {
+			throw new AssertionError(e);
+		}
+		restoreTimes(root, attributes);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ImportTask(root, path));
+		} finally {
+			pool.shutdown();
+		}
+		nbItems.add(1);
+		return root;
+	}
+
+	/**
+	 * Return the number of items imported by this importer.
+	 */
+	public long getNbItems() {
+		return nbItems.sum();
+	}
+
+	/**
+	 * Return the number of host items skipped by this importer, because
+	 * they have no counterpart among disk items.
+	 */
+	public long getNbSkipped() {
+		return nbSkipped.sum();
+	}
+
+	/**
+	 * Return the number of host directories or items that could not be
+	 * read by this importer.
+	 */
+	public long getNbFailures() {
+		return nbFailures.sum();
+	}
+
+	/**
+	 * A class of tasks importing the items of a single host directory into
+	 * a directory, and forking a task for each host subdirectory.
+	 */
+	private final class ImportTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		ImportTask(Directory directory, Path path) {
+			this.directory = directory;
+			this.path = path;
+		}
+
+		@Override
+		protected void compute() {
+			List<DiskItem> items = new ArrayList<DiskItem>();
+			List<ImportTask> subtasks = new ArrayList<ImportTask>();
+			Set<String> names = new HashSet<String>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+				for (Path entry : entries) {
+					DiskItem item = createItem(entry, names);
+					if (item == null)
+						continue;
+					items.add(item);
+					if (item instanceof Directory)
+						subtasks.add(new ImportTask((Directory) item, entry));
+				}
+			} catch (IOException e) {
+				nbFailures.add(1);
+			}
+			Collections.sort(items, ORDER);
+			directory.loadItems(items);
+			nbItems.add(items.size());
+			invokeAll(subtasks);
+		}
+
+		/**
+		 * Return a new item in the directory of this task for the host
+		 * item at the given path, without registering it there, or null if
+		 * the host item is skipped. The name of the new item is added to
+		 * the given folded names.
+		 */
+		private DiskItem createItem(Path entry, Set<String> names) {
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				nbFailures.add(1);
+				return null;
+			}
+			String hostName = entry.getFileName().toString();
+			boolean writable = Files.isWritable(entry);
+			DiskItem result;
+			if (attributes.isDirectory()) {
+				result = Directory.createUnregistered(directory, uniqueName(toValidName(hostName), names),
+						writable);
+			} else if (attributes.isRegularFile()) {
+				int dot = hostName.lastIndexOf('.');
+				Type type = (dot > 0)? getType(hostName.substring(dot + 1)) : null;
+				if (type == null) {
+					nbSkipped.add(1);
+					return null;
+				}
+				int size = (int) Math.min(attributes.size(), File.getMaximumSize());
+				result = File.createUnregistered(directory,
+						uniqueName(toValidName(hostName.substring(0, dot)), names),
+						type, size, writable);
+			} else {
+				nbSkipped.add(1);
+				return null;
+			}
+			restoreTimes(result, attributes);
+			return result;
+		}
+
+		private final Directory directory;
+		private final Path path;
+	}
+
+	/**
+	 * Restore the creation and modification time of the given item from
+	 * the given attributes of a host item.
+	 *    The creation time is capped at the modification time, because
+	 *    not all host file systems record creation times.
+	 */
+	private static void restoreTimes(DiskItem item, BasicFileAttributes attributes) {
+		long modificationTime = Math.min(attributes.lastModifiedTime().toMillis(),
+				DiskItem.getClock().currentTimeMillis());
+		item.restoreCreationTime(Math.min(attributes.creationTime().toMillis(),
+				modificationTime));
+		item.setModificationTime(modificationTime);
+	}
+
+	/**
+	 * Return the type with the given extension, ignoring case, or null if
+	 * there is no such type.
+	 */
+	static Type getType(String extension) {
+		for (Type type : Type.values())
+			if (type.getExtension().equalsIgnoreCase(extension))
+				return type;
+		return null;
+	}
+
+	/**
+	 * Return the given host name with each character that may not occur
+	 * in the name of a disk item replaced by an underscore.
+	 */
+	static String toValidName(String name) {
+		StringBuilder result = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			boolean valid = ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) ||
+					((c >= '0') && (c <= '9')) || (c == '.') || (c == '-') || (c == '_');
+			result.append(valid? c : '_');
+		}
+		return (result.length() == 0)? "_" : result.toString();
+	}
+
+	/**
+	 * Return the given name, with underscores appended until it does not
+	 * occur among the given folded names, and add it to those names.
+	 */
+	static String uniqueName(String name, Set<String> names) {
+		while (!names.add(name.toLowerCase(Locale.ROOT)))
+			name = name + '_';
+		return name;
+	}
+
+	/**
+	 * The order of the items of a directory.
+	 */
+	private static final Comparator<DiskItem> ORDER = new Comparator<DiskItem>() {
+		public int compare(DiskItem first, DiskItem second) {
+			return first.getName().compareToIgnoreCase(second.getName());
+		}
+	};
+
+	/**
+	 * Variable registering the number of threads listing host directories.
+	 */
+	private final int parallelism;
+
+	/**
+	 * Variables registering the number of imported items, skipped host
+	 * items and failures.
+	 */
+	private final StripedCounter nbItems = new StripedCounter();
+	private final StripedCounter nbSkipped = new StripedCounter();
+	private final StripedCounter nbFailures = new StripedCounter();
+}
@@ -0,0 +1,656 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import filesystem.exception.DiskItemNotWritableException;
+import filesystem.exception.IllegalManipulationException;
+import filesystem.exception.NoSuchItemException;
+
+/**
+ * A class of sync engines, keeping a tree of disk items in line with a
+ * live directory tree of the host file system.
+ *    A sync engine registers a watch key for each directory of the tree.
+ *    Events are collected on a single sync thread. All events that arrive
+ *    within the coalescing delay after a first event form one batch, and
+ *    each directory touched by a batch is reconciled once with a fresh
+ *    listing of its host directory, however many events it received.
+ *    When the host drops events, the directories whose events overflowed
+ *    are rescanned with all their subdirectories.
+ *    Reconciling a directory terminates items whose host item is gone,
+ *    renames items whose host item was renamed, moves files whose host
+ *    file was moved in from another directory, enlarges or shortens files
+ *    whose host file changed size, adapts writability and creates items
+ *    for new host items. Host items are recognized by their file key where
+ *    the host offers one, and by name otherwise. Host items map onto disk
+ *    items as they do for host importers; links of the tree have no host
+ *    counterpart and are left untouched.
+ *    As long as a sync engine is open, the tree it keeps in line must only
+ *    be mutated by its sync thread. Other threads read the tree through
+ *    snapshots.
+ *
+ * @see HostImporter
+ */
+public final class HostSync implements Closeable {
+
+	/**
+	 * Return a new sync engine keeping the given directory in line with the
+	 * host directory at the given path, and start its sync thread.
+	 *    The given directory is reconciled with the host directory before
+	 *    this method returns, typically after it was imported from it.
+	 *
+	 * @param  directory
+	 *         The directory to keep in line.
+	 * @param  path
+	 *         The path of the host directory to follow.
+	 * @param  coalescingDelay
+	 *         The number of milliseconds during which events are gathered
+	 *         into one batch after the first event of that batch.
+	 * @throws IllegalArgumentException
+	 *         The given directory is not effective, or the given delay is
+	 *         negative.
+	 *         | (directory == null) || (coalescingDelay < 0)
+	 * @throws IOException
+	 *         The host directory could not be watched or listed.
+	 */
+	public static HostSync open(Directory directory, Path path, long coalescingDelay)
+			throws IllegalArgumentException, IOException {
+		if ((directory == null) || (coalescingDelay < 0))
+			throw new IllegalArgumentException();
+		HostSync result = new HostSync(path.getFileSystem().newWatchService(), coalescingDelay);
+		try {
+			result.root = path.toAbsolutePath();
+			result.reconcile(result.register(null, null, directory), true);
+		} catch (IOException e) {
+			result.watcher.close();
+			throw e;
+		}
+		result.thread.start();
+		return result;
+	}
+
+	/**
+	 * Initialize a new sync engine with the given watch service and
+	 * coalescing delay, without starting its sync thread.
+	 */
+	private HostSync(WatchService watcher, long coalescingDelay) {
+		this.watcher = watcher;
+		this.coalescingDelay = coalescingDelay;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				sync();
+			}
+		}, "host-sync");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Stop this sync engine.
+	 *    Batches still being reconciled are finished first.
+	 */
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Return the number of host events received by this sync engine.
+	 */
+	public long getNbEvents() {
+		return nbEvents.sum();
+	}
+
+	/**
+	 * Return the number of directory reconciliations performed by this
+	 * sync engine, rescans included.
+	 */
+	public long getNbReconciles() {
+		return nbReconciles.sum();
+	}
+
+	/**
+	 * Return the number of rescans performed by this sync engine after
+	 * the host dropped events.
+	 */
+	public long getNbRescans() {
+		return nbRescans.sum();
+	}
+
+	/**
+	 * Return the number of host directories this sync engine failed to
+	 * reconcile.
+	 */
+	public long getNbFailures() {
+		return nbFailures.sum();
+	}
+
+	/**
+	 * Return the number of milliseconds between the first event of the
+	 * last batch and the end of its reconciliation.
+	 */
+	public long getLastLag() {
+		return lastLag;
+	}
+
+	/**********************************************************
+	 * sync thread
+	 **********************************************************/
+
+	/**
+	 * Take batches of events and reconcile the directories they touched,
+	 * until the watch service of this sync engine is closed.
+	 */
+	private void sync() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				long start = System.nanoTime();
+				long deadline = start + TimeUnit.MILLISECONDS.toNanos(coalescingDelay);
+				Map<Registration, Boolean> batch = new LinkedHashMap<Registration, Boolean>();
+				while (key != null) {
+					collect(key, batch);
+					long remaining = deadline - System.nanoTime();
+					key = (remaining > 0)? watcher.poll(remaining, TimeUnit.NANOSECONDS) : watcher.poll();
+				}
+				for (Map.Entry<Registration, Boolean> entry : batch.entrySet()) {
+					if (entry.getValue())
+						nbRescans.add(1);
+					try {
+						reconcile(entry.getKey(), entry.getValue());
+					} catch (IOException e) {
+						nbFailures.add(1);
+					}
+				}
+				lastLag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			}
+		} catch (ClosedWatchServiceException e) {
+			// the sync engine has been closed
+		} catch (InterruptedException e) {
+			// the sync engine has been stopped
+		}
+	}
+
+	/**
+	 * Add the directory of the given signalled key to the given batch, and
+	 * mark it for a rescan if its events overflowed.
+	 */
+	private void collect(WatchKey key, Map<Registration, Boolean> batch) {
+		List<WatchEvent<?>> events = key.pollEvents();
+		nbEvents.add(events.size());
+		boolean overflow = false;
+		for (WatchEvent<?> event : events)
+			overflow |= (event.kind() == StandardWatchEventKinds.OVERFLOW);
+		Registration registration = registrations.get(key);
+		if (registration != null) {
+			Boolean rescan = batch.get(registration);
+			batch.put(registration, overflow || ((rescan != null) && rescan));
+		}
+		key.reset();
+	}
+
+	/**********************************************************
+	 * registrations
+	 **********************************************************/
+
+	/**
+	 * A class of registrations of directories whose host directory is
+	 * watched.
+	 *    A registration holds the name of its host directory relative to
+	 *    the registration of its parent, so that renaming a host directory
+	 *    only affects its own registration.
+	 */
+	private static final class Registration {
+
+		Registration(Registration parent, String hostName, Directory directory) {
+			this.parent = parent;
+			this.hostName = hostName;
+			this.directory = directory;
+		}
+
+		/**
+		 * Return the path of the host directory of this registration.
+		 */
+		Path getPath(Path root) {
+			return (parent == null)? root : parent.getPath(root).resolve(hostName);
+		}
+
+		final Registration parent;
+		String hostName;
+		final Directory directory;
+		WatchKey key;
+		boolean isRemoved;
+	}
+
+	/**
+	 * Watch the host directory with the given name in the host directory of
+	 * the given registration, or the host directory followed by this sync
+	 * engine if the given registration is not effective, on behalf of the
+	 * given directory.
+	 */
+	private Registration register(Registration parent, String hostName, Directory directory)
+			throws IOException {
+		Registration result = new Registration(parent, hostName, directory);
+		result.key = result.getPath(root).register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		registrations.put(result.key, result);
+		byDirectory.put(directory, result);
+		return result;
+	}
+
+	/**
+	 * Stop watching the host directory of the given directory, if any.
+	 */
+	private void unregister(Directory directory) {
+		Registration registration = byDirectory.remove(directory);
+		if (registration != null) {
+			registration.isRemoved = true;
+			registrations.remove(registration.key);
+			registration.key.cancel();
+		}
+	}
+
+	/**********************************************************
+	 * reconciliation
+	 **********************************************************/
+
+	/**
+	 * A class of entries of host directory listings.
+	 */
+	private static final class HostEntry {
+
+		HostEntry(String hostName, BasicFileAttributes attributes, Type type, boolean writable) {
+			this.hostName = hostName;
+			this.isDirectory = attributes.isDirectory();
+			this.type = type;
+			this.size = (int) Math.min(attributes.size(), File.getMaximumSize());
+			this.writable = writable;
+			this.fileKey = attributes.fileKey();
+		}
+
+		/**
+		 * Check whether the given item can stand for this entry.
+		 */
+		boolean accepts(DiskItem item) {
+			if (isDirectory)
+				return item instanceof Directory;
+			return (item instanceof File) && (((File) item).getType() == type);
+		}
+
+		final String hostName;
+		final boolean isDirectory;
+		final Type type;
+		final int size;
+		final boolean writable;
+		final Object fileKey;
+		String name;
+	}
+
+	/**
+	 * Reconcile the directory of the given registration with its host
+	 * directory, and with all its host subdirectories if a rescan is asked.
+	 */
+	private void reconcile(Registration registration, boolean rescan) throws IOException {
+		if (registration.isRemoved)
+			return;
+		nbReconciles.add(1);
+		Directory directory = registration.directory;
+		Path path = registration.getPath(root);
+		List<HostEntry> entries;
+		try {
+			entries = list(path);
+		} catch (NoSuchFileException | NotDirectoryException e) {
+			// the parent directory is reconciled after the removal
+			return;
+		}
+		boolean writable = Files.isWritable(path);
+		try {
+			if (!directory.isWritable())
+				directory.setWritability(true);
+			Map<String, DiskItem> children = new HashMap<String, DiskItem>();
+			Set<String> names = new HashSet<String>();
+			for (int i = 1; i <= directory.getNbItems(); i++) {
+				DiskItem child = directory.getItemAt(i);
+				children.put(fold(child.getName()), child);
+				if (child instanceof Link)
+					names.add(fold(child.getName()));
+			}
+			for (HostEntry entry : entries) {
+				String base = entry.isDirectory? entry.hostName :
+						entry.hostName.substring(0, entry.hostName.lastIndexOf('.'));
+				entry.name = HostImporter.uniqueName(HostImporter.toValidName(base), names);
+			}
+			Map<DiskItem, HostEntry> matches = match(directory, entries, children);
+			for (DiskItem child : children.values())
+				if (!(child instanceof Link) && !matches.containsKey(child))
+					remove(child);
+			place(directory, matches);
+			List<Registration> subdirectories = new ArrayList<Registration>();
+			for (Map.Entry<DiskItem, HostEntry> match : matches.entrySet())
+				update(match.getKey(), match.getValue(), registration, subdirectories);
+			for (HostEntry entry : entries)
+				if (!matches.containsValue(entry))
+					create(directory, entry, registration, subdirectories);
+			for (Registration subdirectory : subdirectories)
+				if (rescan || (subdirectory.key == null))
+					reconcileNew(subdirectory, rescan);
+		} catch (IllegalManipulationException e) {
+			nbFailures.add(1);
+		} finally {
+			try {
+				if (directory.isWritable() != writable)
+					directory.setWritability(writable);
+			} catch (DiskItemNotWritableException e) {
+				// the directory is frozen, so it was not reconciled either
+			}
+		}
+	}
+
+	/**
+	 * Watch and reconcile the given registration, which is not watched yet
+	 * if its key is not effective.
+	 */
+	private void reconcileNew(Registration registration, boolean rescan) throws IOException {
+		if (registration.key == null) {
+			Registration registered = register(registration.parent, registration.hostName,
+					registration.directory);
+			reconcile(registered, true);
+		} else {
+			reconcile(registration, rescan);
+		}
+	}
+
+	/**
+	 * Return the entries of the host directory at the given path that have
+	 * a counterpart among disk items, sorted by host name.
+	 */
+	private static List<HostEntry> list(Path path) throws IOException {
+		List<HostEntry> result = new ArrayList<HostEntry>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+			for (Path entry : stream) {
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				String hostName = entry.getFileName().toString();
+				Type type = null;
+				if (attributes.isRegularFile()) {
+					int dot = hostName.lastIndexOf('.');
+					type = (dot > 0)? HostImporter.getType(hostName.substring(dot + 1)) : null;
+					if (type == null)
+						continue;
+				} else if (!attributes.isDirectory()) {
+					continue;
+				}
+				result.add(new HostEntry(hostName, attributes, type, Files.isWritable(entry)));
+			}
+		}
+		Collections.sort(result, new Comparator<HostEntry>() {
+			public int compare(HostEntry first, HostEntry second) {
+				return first.hostName.compareTo(second.hostName);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Return the items standing for the given entries of the host directory
+	 * of the given directory, mapped onto those entries.
+	 *    An entry is matched with the item registered for its file key
+	 *    first, provided that item is a child of the given directory or a
+	 *    file, and with the child of the given directory with its name
+	 *    otherwise.
+	 */
+	private Map<DiskItem, HostEntry> match(Directory directory, List<HostEntry> entries,
+			Map<String, DiskItem> children) {
+		Map<DiskItem, HostEntry> result = new IdentityHashMap<DiskItem, HostEntry>();
+		for (HostEntry entry : entries) {
+			DiskItem item = (entry.fileKey == null)? null : byFileKey.get(entry.fileKey);
+			if ((item != null) && (item.isTerminated() || !entry.accepts(item) ||
+					result.containsKey(item) ||
+					((item.getParentDirectory() != directory) && !(item instanceof File))))
+				item = null;
+			if (item == null) {
+				item = children.get(fold(entry.name));
+				if ((item != null) && (!entry.accepts(item) || result.containsKey(item)))
+					item = null;
+			}
+			if (item != null)
+				result.put(item, entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Give each of the given items the name of its entry in the given
+	 * directory, moving files in from other directories first.
+	 *    Items whose new name is still taken by another item that is
+	 *    renamed as well are renamed after that other item, and cycles of
+	 *    such renames are broken with a temporary name.
+	 */
+	private void place(Directory directory, Map<DiskItem, HostEntry> matches)
+			throws IllegalManipulationException {
+		List<DiskItem> pending = new ArrayList<DiskItem>();
+		for (Map.Entry<DiskItem, HostEntry> match : matches.entrySet()) {
+			DiskItem item = match.getKey();
+			if (item.getParentDirectory() != directory) {
+				Directory source = item.getParentDirectory();
+				boolean sourceWritable = source.isWritable();
+				source.setWritability(true);
+				rename(item, getFreeName(item.getName(), source, directory));
+				item.move(directory);
+				source.setWritability(sourceWritable);
+			}
+			if (!item.getName().equals(match.getValue().name))
+				pending.add(item);
+		}
+		while (!pending.isEmpty()) {
+			boolean progress = false;
+			for (int i = pending.size() - 1; i >= 0; i--) {
+				DiskItem item = pending.get(i);
+				String name = matches.get(item).name;
+				if (!directory.exists(name) || (getItem(directory, name) == item)) {
+					rename(item, name);
+					pending.remove(i);
+					progress = true;
+				}
+			}
+			if (!progress)
+				rename(pending.get(0), getFreeName(pending.get(0).getName(), directory, directory));
+		}
+	}
+
+	/**
+	 * Change the size and writability of the given item to those of the
+	 * given entry, and collect the registration of the item if it is a
+	 * directory.
+	 */
+	private void update(DiskItem item, HostEntry entry, Registration parent,
+			List<Registration> subdirectories) throws IllegalManipulationException {
+		track(item, entry.fileKey);
+		if (item instanceof File) {
+			File file = (File) item;
+			if (file.getSize() != entry.size) {
+				if (!file.isWritable())
+					file.setWritability(true);
+				if (entry.size > file.getSize())
+					file.enlarge(entry.size - file.getSize());
+				else
+					file.shorten(file.getSize() - entry.size);
+			}
+			if (file.isWritable() != entry.writable)
+				file.setWritability(entry.writable);
+		} else {
+			Registration registration = byDirectory.get(item);
+			if (registration == null)
+				registration = new Registration(parent, entry.hostName, (Directory) item);
+			registration.hostName = entry.hostName;
+			subdirectories.add(registration);
+		}
+	}
+
+	/**
+	 * Create an item in the given directory for the given entry, and
+	 * collect its registration if it is a directory.
+	 */
+	private void create(Directory directory, HostEntry entry, Registration parent,
+			List<Registration> subdirectories) throws IllegalManipulationException {
+		if (entry.isDirectory) {
+			Directory item = new Directory(directory, entry.name, true);
+			track(item, entry.fileKey);
+			subdirectories.add(new Registration(parent, entry.hostName, item));
+		} else {
+			track(new File(directory, entry.name, entry.type, entry.size, entry.writable),
+					entry.fileKey);
+		}
+	}
+
+	/**
+	 * Terminate the given item, with all its direct and indirect items.
+	 */
+	private void remove(DiskItem item) throws IllegalManipulationException {
+		if (item instanceof RealDiskItem && !((RealDiskItem) item).isWritable())
+			((RealDiskItem) item).setWritability(true);
+		if (item instanceof Directory) {
+			Directory directory = (Directory) item;
+			unregister(directory);
+			List<DiskItem> items = new ArrayList<DiskItem>();
+			for (int i = 1; i <= directory.getNbItems(); i++)
+				items.add(directory.getItemAt(i));
+			for (DiskItem child : items)
+				remove(child);
+		}
+		Object fileKey = fileKeys.remove(item);
+		if (fileKey != null)
+			byFileKey.remove(fileKey);
+		item.terminate();
+	}
+
+	/**
+	 * Change the name of the given item to the given name, making the item
+	 * writable for the time being if needed.
+	 */
+	private static void rename(DiskItem item, String name) throws IllegalManipulationException {
+		boolean writable = !(item instanceof RealDiskItem) || ((RealDiskItem) item).isWritable();
+		if (!writable)
+			((RealDiskItem) item).setWritability(true);
+		item.changeName(name);
+		if (!writable)
+			((RealDiskItem) item).setWritability(false);
+	}
+
+	/**
+	 * Return the item of the given directory with the given name, or null
+	 * if there is no such item.
+	 */
+	private static DiskItem getItem(Directory directory, String name) {
+		try {
+			return directory.getItem(name);
+		} catch (NoSuchItemException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return a name derived from the given name that is taken in neither of
+	 * the given directories.
+	 */
+	private static String getFreeName(String name, Directory first, Directory second) {
+		for (int i = 0; ; i++) {
+			String result = name + ".sync" + i;
+			if (!first.exists(result) && !second.exists(result))
+				return result;
+		}
+	}
+
+	/**
+	 * Register the given file key for the given item.
+	 */
+	private void track(DiskItem item, Object fileKey) {
+		Object old = fileKeys.put(item, fileKey);
+		if ((old != null) && !old.equals(fileKey) && (byFileKey.get(old) == item))
+			byFileKey.remove(old);
+		if (fileKey != null)
+			byFileKey.put(fileKey, item);
+	}
+
+	/**
+	 * Return the given name folded to lower case.
+	 */
+	private static String fold(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Variable referencing the path of the host directory followed by this
+	 * sync engine.
+	 */
+	private Path root;
+
+	/**
+	 * Variables referencing the registrations of this sync engine by key
+	 * and by directory, and the items by the file key of their host item.
+	 *    These are only accessed by the sync thread, once it has started.
+	 */
+	private final Map<WatchKey, Registration> registrations = new HashMap<WatchKey, Registration>();
+	private final Map<Directory, Registration> byDirectory = new IdentityHashMap<Directory, Registration>();
+	private final Map<Object, DiskItem> byFileKey = new HashMap<Object, DiskItem>();
+	private final Map<DiskItem, Object> fileKeys = new IdentityHashMap<DiskItem, Object>();
+
+	/**
+	 * Variable referencing the watch service of this sync engine.
+	 */
+	private final WatchService watcher;
+
+	/**
+	 * Variable registering the coalescing delay of this sync engine, in
+	 * milliseconds.
+	 */
+	private final long coalescingDelay;
+
+	/**
+	 * Variable referencing the sync thread of this sync engine.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Variables registering the number of events, reconciliations, rescans
+	 * and failures of this sync engine, and the lag of its last batch.
+	 */
+	private final StripedCounter nbEvents = new StripedCounter();
+	private final StripedCounter nbReconciles = new StripedCounter();
+	private final StripedCounter nbRescans = new StripedCounter();
+	private final StripedCounter nbFailures = new StripedCounter();
+	private volatile long lastLag;
+}
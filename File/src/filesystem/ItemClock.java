@@ -0,0 +1,28 @@
+package filesystem;
+
+/**
+ * An interface of sources of the current time, from which disk items take
+ * their creation and modification times.
+ *    The clock in use is set for all disk items at once. The system clock
+ *    is used by default; a coarse clock avoids querying the system on
+ *    every mutation.
+ *
+ * @see DiskItem#setClock(ItemClock)
+ * @see CoarseClock
+ */
+public interface ItemClock {
+
+	/**
+	 * Return the current time, in milliseconds since the epoch.
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * The clock returning the time of the system.
+	 */
+	ItemClock SYSTEM = new ItemClock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+}
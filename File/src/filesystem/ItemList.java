@@ -0,0 +1,338 @@
+package filesystem;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A class of sequences of the items of a directory, choosing their
+ * representation after their number of items.
+ *    All empty sequences share a single instance. Sequences of at most
+ *    SMALL_LIMIT items hold an array of exactly their length, and are
+ *    searched linearly, which beats a binary search at that size. Larger
+ *    sequences hold an array with spare capacity, searched by binary
+ *    search, and an identity hash table of their items, so that checking
+ *    whether an item belongs to a large directory takes constant time.
+ *    A large sequence is demoted to a small one once it shrinks to at
+ *    most DEMOTE_LIMIT items, so that a directory hovering around the
+ *    limit does not switch representations on every change.
+ *    Sequences are updated by replacing them with the sequence returned
+ *    by their mutators, which may or may not be the same instance.
+ */
+abstract class ItemList implements Iterable<DiskItem> {
+
+	/**
+	 * The largest number of items of a small sequence.
+	 */
+	static final int SMALL_LIMIT = 8;
+
+	/**
+	 * The number of items at which a large sequence becomes small again.
+	 */
+	static final int DEMOTE_LIMIT = 4;
+
+	/**
+	 * The empty sequence.
+	 */
+	static final ItemList EMPTY = new Small(new DiskItem[0]);
+
+	/**
+	 * Return a sequence of the given items, in the given order.
+	 */
+	static ItemList of(DiskItem[] items) {
+		if (items.length == 0)
+			return EMPTY;
+		if (items.length <= SMALL_LIMIT)
+			return new Small(items);
+		return new Large(items, items.length);
+	}
+
+	/**
+	 * Return a sequence of the given items, in the given order.
+	 */
+	static ItemList of(List<DiskItem> items) {
+		return of(items.toArray(new DiskItem[items.size()]));
+	}
+
+	/**
+	 * Return the number of items in this sequence.
+	 */
+	abstract int size();
+
+	/**
+	 * Return the item at the given index, starting from 0.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *         The given index is negative or not below the size.
+	 */
+	abstract DiskItem get(int index) throws IndexOutOfBoundsException;
+
+	/**
+	 * Check whether the given item is part of this sequence.
+	 */
+	abstract boolean contains(DiskItem item);
+
+	/**
+	 * Return the index of the first item in this sequence that is not
+	 * ordered before the given name, or the size if there is none.
+	 */
+	abstract int indexOfFirstNotBefore(String name);
+
+	/**
+	 * Return this sequence with the given item inserted at the given
+	 * index.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *         The given index is negative or exceeds the size.
+	 */
+	abstract ItemList insert(int index, DiskItem item) throws IndexOutOfBoundsException;
+
+	/**
+	 * Return this sequence without the item at the given index.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *         The given index is negative or not below the size.
+	 */
+	abstract ItemList remove(int index) throws IndexOutOfBoundsException;
+
+	/**
+	 * Return a new array holding the items of this sequence, in order.
+	 */
+	abstract DiskItem[] toArray();
+
+	/**
+	 * Return this sequence with the given items appended.
+	 */
+	ItemList appendAll(List<DiskItem> items) {
+		if (items.isEmpty())
+			return this;
+		DiskItem[] result = Arrays.copyOf(toArray(), size()+items.size());
+		for (int i = 0; i < items.size(); i++)
+			result[size()+i] = items.get(i);
+		return of(result);
+	}
+
+	/**
+	 * Return an iterator over the items of this sequence, in order.
+	 */
+	public Iterator<DiskItem> iterator() {
+		return new Iterator<DiskItem>() {
+			public boolean hasNext() {
+				return next < size();
+			}
+			public DiskItem next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return get(next++);
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+			private int next;
+		};
+	}
+
+	/**
+	 * A class of sequences of at most SMALL_LIMIT items, held in an array
+	 * of exactly their length.
+	 */
+	private static final class Small extends ItemList {
+
+		Small(DiskItem[] items) {
+			this.items = items;
+		}
+
+		@Override
+		int size() {
+			return items.length;
+		}
+
+		@Override
+		DiskItem get(int index) {
+			return items[index];
+		}
+
+		@Override
+		boolean contains(DiskItem item) {
+			for (DiskItem current : items)
+				if (current == item)
+					return true;
+			return false;
+		}
+
+		@Override
+		int indexOfFirstNotBefore(String name) {
+			int result = 0;
+			while ((result < items.length) && items[result].isOrderedBefore(name))
+				result++;
+			return result;
+		}
+
+		@Override
+		ItemList insert(int index, DiskItem item) {
+			if ((index < 0) || (index > items.length))
+				throw new IndexOutOfBoundsException();
+			DiskItem[] result = new DiskItem[items.length+1];
+			System.arraycopy(items, 0, result, 0, index);
+			result[index] = item;
+			System.arraycopy(items, index, result, index+1, items.length-index);
+			if (result.length > SMALL_LIMIT)
+				return new Large(result, result.length);
+			return new Small(result);
+		}
+
+		@Override
+		ItemList remove(int index) {
+			if ((index < 0) || (index >= items.length))
+				throw new IndexOutOfBoundsException();
+			if (items.length == 1)
+				return EMPTY;
+			DiskItem[] result = new DiskItem[items.length-1];
+			System.arraycopy(items, 0, result, 0, index);
+			System.arraycopy(items, index+1, result, index, result.length-index);
+			return new Small(result);
+		}
+
+		@Override
+		DiskItem[] toArray() {
+			return items.clone();
+		}
+
+		private final DiskItem[] items;
+	}
+
+	/**
+	 * A class of sequences of more than DEMOTE_LIMIT items, held in an
+	 * array with spare capacity and indexed by identity.
+	 */
+	private static final class Large extends ItemList {
+
+		Large(DiskItem[] items, int size) {
+			this.items = items;
+			this.size = size;
+			index = new DiskItem[Integer.highestOneBit(Math.max(size, 4)*4)];
+			for (int i = 0; i < size; i++)
+				addToIndex(items[i]);
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		DiskItem get(int index) {
+			if ((index < 0) || (index >= size))
+				throw new IndexOutOfBoundsException();
+			return items[index];
+		}
+
+		@Override
+		boolean contains(DiskItem item) {
+			if (item == null)
+				return false;
+			int mask = index.length-1;
+			for (int slot = slot(item); index[slot] != null; slot = (slot+1) & mask)
+				if (index[slot] == item)
+					return true;
+			return false;
+		}
+
+		@Override
+		int indexOfFirstNotBefore(String name) {
+			int low = 0, high = size-1;
+			while (low <= high) {
+				int middle = (low+high) >>> 1;
+				if (items[middle].isOrderedBefore(name))
+					low = middle+1;
+				else
+					high = middle-1;
+			}
+			return low;
+		}
+
+		@Override
+		ItemList insert(int position, DiskItem item) {
+			if ((position < 0) || (position > size))
+				throw new IndexOutOfBoundsException();
+			if (size == items.length)
+				items = Arrays.copyOf(items, size+(size >> 1)+1);
+			System.arraycopy(items, position, items, position+1, size-position);
+			items[position] = item;
+			size++;
+			if (2*size > index.length)
+				rebuildIndex(index.length*2);
+			else
+				addToIndex(item);
+			return this;
+		}
+
+		@Override
+		ItemList remove(int position) {
+			if ((position < 0) || (position >= size))
+				throw new IndexOutOfBoundsException();
+			DiskItem item = items[position];
+			size--;
+			System.arraycopy(items, position+1, items, position, size-position);
+			items[size] = null;
+			if (size <= DEMOTE_LIMIT)
+				return of(Arrays.copyOf(items, size));
+			if (4*size < items.length)
+				items = Arrays.copyOf(items, 2*size);
+			if (8*size < index.length)
+				rebuildIndex(index.length/4);
+			else
+				removeFromIndex(item);
+			return this;
+		}
+
+		@Override
+		DiskItem[] toArray() {
+			return Arrays.copyOf(items, size);
+		}
+
+		private int slot(DiskItem item) {
+			return (System.identityHashCode(item)*0x9E3779B9 >>> 7) & (index.length-1);
+		}
+
+		private void addToIndex(DiskItem item) {
+			int slot = slot(item);
+			while (index[slot] != null)
+				slot = (slot+1) & (index.length-1);
+			index[slot] = item;
+		}
+
+		/**
+		 * Remove the given item from the index, shifting later entries of
+		 * the same run back, so that no tombstones are needed.
+		 */
+		private void removeFromIndex(DiskItem item) {
+			int mask = index.length-1;
+			int slot = slot(item);
+			while (index[slot] != item) {
+				if (index[slot] == null)
+					return;
+				slot = (slot+1) & mask;
+			}
+			for (int next = (slot+1) & mask; index[next] != null; next = (next+1) & mask) {
+				int home = slot(index[next]);
+				if (((next-home) & mask) >= ((next-slot) & mask)) {
+					index[slot] = index[next];
+					slot = next;
+				}
+			}
+			index[slot] = null;
+		}
+
+		private void rebuildIndex(int capacity) {
+			index = new DiskItem[capacity];
+			for (int i = 0; i < size; i++)
+				addToIndex(items[i]);
+		}
+
+		private DiskItem[] items;
+		private int size;
+		private DiskItem[] index;
+	}
+}
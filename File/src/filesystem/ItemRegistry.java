@@ -0,0 +1,209 @@
+package filesystem;
+
+/**
+ * A class of maps from identifiers of disk items to disk items.
+ *    Entries are spread over a fixed number of segments by a hash of
+ *    their identifier. Each segment is an open-addressing table with
+ *    linear probing, holding identifiers in an array of longs and items in
+ *    a parallel array, so that an entry costs two array slots and no
+ *    object of its own. Removing an entry shifts the entries of its probe
+ *    sequence back, so that tables hold no tombstones. Segments are locked
+ *    separately, so that threads constructing and terminating items rarely
+ *    contend.
+ *    Items are referenced strongly: they are only removed when they are
+ *    unregistered explicitly, which happens when they are terminated,
+ *    evicted by their pager, or released with the tree they belong to.
+ *
+ * @see DiskItem#lookupById(long)
+ * @see Directory#releaseTree()
+ */
+final class ItemRegistry {
+
+	/**
+	 * Register the given item under its identifier.
+	 *
+	 * @pre    The identifier of the given item is positive.
+	 */
+	void put(DiskItem item) {
+		long id = item.getId();
+		long hash = mix(id);
+		segments[segment(hash)].put(id, hash, item, true);
+	}
+
+	/**
+	 * Register the given item under the given identifier, unless another
+	 * item is registered under it.
+	 *
+	 * @pre    The given identifier is positive.
+	 * @return True if and only if the given item is registered under the
+	 *         given identifier.
+	 */
+	boolean putIfAbsent(long id, DiskItem item) {
+		long hash = mix(id);
+		return segments[segment(hash)].put(id, hash, item, false);
+	}
+
+	/**
+	 * Return the item registered under the given identifier, or null if no
+	 * item is registered under it.
+	 */
+	DiskItem get(long id) {
+		if (id <= 0)
+			return null;
+		long hash = mix(id);
+		return segments[segment(hash)].get(id, hash);
+	}
+
+	/**
+	 * Unregister the given item, if it is registered under its identifier.
+	 */
+	void remove(DiskItem item) {
+		remove(item.getId(), item);
+	}
+
+	/**
+	 * Unregister the given item, if it is registered under the given
+	 * identifier.
+	 */
+	void remove(long id, DiskItem item) {
+		long hash = mix(id);
+		segments[segment(hash)].remove(id, hash, item);
+	}
+
+	/**
+	 * Return the number of registered items.
+	 */
+	long size() {
+		long result = 0;
+		for (Segment segment : segments)
+			result += segment.size();
+		return result;
+	}
+
+	private static int segment(long hash) {
+		return (int) (hash >>> (64-SEGMENT_BITS));
+	}
+
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= value >>> 33;
+		value *= 0xC4CEB93F53FE6FD5L;
+		return value ^ (value >>> 33);
+	}
+
+	/**
+	 * A class of segments of registries.
+	 *    Empty slots hold the identifier 0, which no item has. Hashes are
+	 *    not stored, but computed again from the identifiers when entries
+	 *    are moved.
+	 */
+	private static final class Segment {
+
+		/**
+		 * Register the given item under the given identifier, replacing
+		 * the item registered under it if the given flag is set.
+		 *
+		 * @return True if and only if the given item is registered under
+		 *         the given identifier.
+		 */
+		synchronized boolean put(long id, long hash, DiskItem item, boolean replace) {
+			if (4L*(size+1) > 3L*ids.length)
+				resize(2*ids.length);
+			int mask = ids.length-1;
+			int slot = (int) hash & mask;
+			while ((ids[slot] != 0) && (ids[slot] != id))
+				slot = (slot+1) & mask;
+			if (ids[slot] == 0)
+				size++;
+			else if (!replace && (items[slot] != item))
+				return false;
+			ids[slot] = id;
+			items[slot] = item;
+			return true;
+		}
+
+		synchronized DiskItem get(long id, long hash) {
+			int slot = find(id, hash);
+			return slot < 0 ? null : items[slot];
+		}
+
+		synchronized void remove(long id, long hash, DiskItem item) {
+			int slot = find(id, hash);
+			if ((slot >= 0) && (items[slot] == item))
+				delete(slot);
+		}
+
+		/**
+		 * Return the slot holding the given identifier, or -1 if it is not
+		 * in this segment.
+		 */
+		private int find(long id, long hash) {
+			int mask = ids.length-1;
+			for (int slot = (int) hash & mask; ids[slot] != 0; slot = (slot+1) & mask)
+				if (ids[slot] == id)
+					return slot;
+			return -1;
+		}
+
+		private void delete(int slot) {
+			int mask = ids.length-1;
+			// Shift back each following entry of the run whose home slot
+			// is not between the freed slot and its own slot.
+			int free = slot;
+			for (int next = (free+1) & mask; ids[next] != 0; next = (next+1) & mask) {
+				int home = (int) mix(ids[next]) & mask;
+				if (((next-home) & mask) >= ((next-free) & mask)) {
+					ids[free] = ids[next];
+					items[free] = items[next];
+					free = next;
+				}
+			}
+			ids[free] = 0;
+			items[free] = null;
+			size--;
+			if ((ids.length > INITIAL_CAPACITY) && (8L*size < ids.length))
+				resize(ids.length/2);
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		private void resize(int capacity) {
+			long[] oldIds = ids;
+			DiskItem[] oldItems = items;
+			ids = new long[capacity];
+			items = new DiskItem[capacity];
+			int mask = capacity-1;
+			for (int i = 0; i < oldIds.length; i++)
+				if (oldIds[i] != 0) {
+					int slot = (int) mix(oldIds[i]) & mask;
+					while (ids[slot] != 0)
+						slot = (slot+1) & mask;
+					ids[slot] = oldIds[i];
+					items[slot] = oldItems[i];
+				}
+		}
+
+		private long[] ids = new long[INITIAL_CAPACITY];
+		private DiskItem[] items = new DiskItem[INITIAL_CAPACITY];
+		private int size;
+	}
+
+	/**
+	 * The number of bits of a hash selecting its segment.
+	 */
+	private static final int SEGMENT_BITS = 6;
+
+	/**
+	 * The initial number of slots of a segment, which is a power of two.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+	{
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new Segment();
+	}
+}
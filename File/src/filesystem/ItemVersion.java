@@ -0,0 +1,115 @@
+package filesystem;
+
+/**
+ * A class of versions of disk items, capturing the state of a disk item
+ * as it was during a range of epochs.
+ *    The versions of a disk item are chained from newest to oldest.
+ *
+ * @invar  Older versions were valid until an earlier epoch.
+ *         | getOlder() == null || getOlder().getValidUntil() < getValidUntil()
+ */
+final class ItemVersion {
+
+	/**
+	 * Initialize a new version capturing the current state of the given
+	 * disk item.
+	 *
+	 * @param  item
+	 *         The disk item whose state is captured.
+	 * @param  validUntil
+	 *         The last epoch in which the captured state is current.
+	 * @param  older
+	 *         The next older version of the given disk item, if any.
+	 */
+	ItemVersion(DiskItem item, long validUntil, ItemVersion older) {
+		this.validUntil = validUntil;
+		this.older = older;
+		this.name = item.getName();
+		this.parentDirectory = item.getParentDirectory();
+		this.modificationTime = item.getModificationTimeMillis();
+		this.isTerminated = item.isTerminated();
+		this.totalDiskUsage = item.getTotalDiskUsage();
+		if (item instanceof RealDiskItem)
+			this.isWritable = ((RealDiskItem) item).isWritable();
+		else
+			this.isWritable = false;
+		if (item instanceof File)
+			this.size = ((File) item).getSize();
+		else
+			this.size = 0;
+		if (item instanceof Directory)
+			this.items = ((Directory) item).getItemArray();
+		else
+			this.items = null;
+		if (item instanceof Link)
+			this.referral = ((Link) item).getReferral();
+		else
+			this.referral = null;
+	}
+
+	/**
+	 * Return the last epoch in which the state captured by this version
+	 * is current.
+	 */
+	long getValidUntil() {
+		return validUntil;
+	}
+
+	/**
+	 * Return the next older version, if any.
+	 */
+	ItemVersion getOlder() {
+		return older;
+	}
+
+	/**
+	 * Drop all versions older than this version.
+	 */
+	void dropOlder() {
+		older = null;
+	}
+
+	/**
+	 * Variables capturing the name, parent directory, modification time,
+	 * termination state and total disk usage of the disk item.
+	 */
+	final String name;
+	final Directory parentDirectory;
+	final long modificationTime;
+	final boolean isTerminated;
+	final long totalDiskUsage;
+
+	/**
+	 * Variable capturing the writability of a real disk item, false for
+	 * links.
+	 */
+	final boolean isWritable;
+
+	/**
+	 * Variable capturing the size of a file, 0 for other disk items.
+	 */
+	final int size;
+
+	/**
+	 * Variable capturing the items of a directory, in order, or null for
+	 * other disk items.
+	 */
+	final DiskItem[] items;
+
+	/**
+	 * Variable capturing the referral of a link, or null for other disk
+	 * items.
+	 */
+	final RealDiskItem referral;
+
+	/**
+	 * Variable registering the last epoch in which the captured state is
+	 * current.
+	 */
+	private final long validUntil;
+
+	/**
+	 * Variable referencing the next older version, if any.
+	 */
+	private volatile ItemVersion older;
+}
@@ -1,5 +1,7 @@
 package filesystem;
 
+import be.kuleuven.cs.som.annotate.Model;
+
 import filesystem.exception.DiskItemNotWritableException;
 import filesystem.exception.ImpossibleDeletionException;
 
@@ -21,24 +23,82 @@ public abstract class  Link extends DiskItem{
 	public Link(Directory parent, String name, RealDiskItem referral) throws DiskItemNotWritableException{
 		super(parent, name);
 		this.setReferral(referral);
+		MutationListeners.itemCreated(this);
+	}
+	/**
+	 * Initialize this new link with a given parent, name and referral,
+	 * without registering it in the given parent.
+	 * @param parent
+	 * 		  The directory in which the link must be placed
+	 * @param name
+	 * 			The name of the new link
+	 * @param referral
+	 * 			The diskitem to which this link has to refer
+	 * @param unregistered
+	 * 			The marker selecting this constructor
+	 * @effect This link is initialized as an unregistered diskitem with
+	 * 			given name and parent
+	 * 			| super(parent, name, unregistered)
+	 */
+	Link(Directory parent, String name, RealDiskItem referral, Unregistered unregistered)
+			throws IllegalArgumentException {
+		super(parent, name, unregistered);
+		this.setReferral(referral);
 	}
 	/**
 	 * Return the disk item to which this link reffers
 	 * 
 	 */
 	public RealDiskItem getReferral() {
+		Pager pager = this.pager;
+		if (pager != null) {
+			referral = pager.resolveReferral(referralKey, referralName);
+			this.pager = null;
+		}
 		return referral;
 	}
 	/**
 	 * Set the disk item to which this link has to reffer
 	 * @param referral
 	 * 			The disk item to reffer to
+	 * @effect This link is registered as changed since the last
+	 * 			checkpoint
+	 * 			| markDirty()
 	 */
 	public void setReferral(RealDiskItem referral) {
+		preserveVersion();
+		this.pager = null;
 		this.referral = referral;
+		markDirty();
 	}
 
 	private RealDiskItem referral;
+
+	/**
+	 * Let the referral of this link be resolved by the given pager, on
+	 * first use.
+	 * @param pager
+	 * 			The pager by which this link has been loaded
+	 * @param key
+	 * 			The key under which the pager records the referral
+	 * @param name
+	 * 			The name under which the pager records the referral, if
+	 * 			the pager needs one
+	 */
+	@Model void pageReferral(Pager pager, long key, String name) {
+		this.referralKey = key;
+		this.referralName = name;
+		this.pager = pager;
+	}
+
+	/**
+	 * Variables referencing the pager by which the referral of this link
+	 * is still to be resolved, if any, and the key and name under which
+	 * it records that referral.
+	 */
+	private volatile Pager pager;
+	private long referralKey;
+	private String referralName;
 	
 	/**
 	 * Check whether this link can be deleted
@@ -74,4 +134,15 @@ public abstract class  Link extends DiskItem{
 	{
 		return 0;
 	}
+
+	/**
+	 * Returns the allocated disk usage of this link (always 0)
+	 *
+	 * @return Returns 0
+	 *			| result == 0
+	 */
+	final public long getTotalAllocatedUsage()
+	{
+		return 0;
+	}
 }
@@ -0,0 +1,23 @@
+package filesystem;
+
+/**
+ * A class of link snapshots, offering a frozen, read-only view of a link
+ * as it was when a snapshot was taken.
+ */
+public class LinkSnapshot extends SnapshotItem {
+
+	/**
+	 * Initialize a new link snapshot for the given link and snapshot.
+	 */
+	LinkSnapshot(Link link, SnapshotEpoch snapshot) {
+		super(link, snapshot);
+	}
+
+	/**
+	 * Return a snapshot of the disk item to which this link referred,
+	 * taken at the same time as this link snapshot.
+	 */
+	public SnapshotItem getReferral() {
+		return SnapshotItem.of(getVersion().referral, getSnapshot());
+	}
+}
@@ -0,0 +1,345 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import filesystem.exception.InvalidImageException;
+
+/**
+ * A class of memory-mapped images of trees of disk items, giving random
+ * access to the records of an image written by DiskImage.
+ *    The image is mapped in regions of at most 1 GiB, so that images
+ *    larger than a single mapped buffer can be read. Values that straddle
+ *    two regions are assembled byte by byte.
+ *
+ * @see DiskImage
+ */
+final class MappedImage {
+
+	/**
+	 * Open and map the image at the given path.
+	 *
+	 * @param  path
+	 *         The path of the image.
+	 * @param  verifyChecksums
+	 *         Whether the checksums of the records and names must be
+	 *         verified. The checksum of the header is always verified.
+	 * @throws InvalidImageException
+	 *         The image is truncated, has an invalid header or an
+	 *         unsupported version, or a verified checksum does not match.
+	 */
+	static MappedImage open(Path path, boolean verifyChecksums) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedImage result = new MappedImage(channel);
+			if (verifyChecksums)
+				result.verifyChecksums();
+			return result;
+		}
+	}
+
+	/**
+	 * Initialize a new mapped image for the image read by the given
+	 * channel, and check its header.
+	 */
+	private MappedImage(FileChannel channel) throws IOException {
+		length = channel.size();
+		if (length < DiskImage.HEADER_SIZE)
+			throw new InvalidImageException("Image is truncated");
+		int nbRegions = (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+		regions = new MappedByteBuffer[nbRegions];
+		for (int i = 0; i < nbRegions; i++) {
+			long start = (long) i * REGION_SIZE;
+			regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+					Math.min(REGION_SIZE, length - start));
+			regions[i].order(ByteOrder.BIG_ENDIAN);
+		}
+		byte[] header = new byte[DiskImage.HEADER_SIZE];
+		getBytes(0, header);
+		CRC32 crc = new CRC32();
+		crc.update(header, 0, DiskImage.HEADER_SIZE - 4);
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		if (buffer.getInt(0) != DiskImage.MAGIC)
+			throw new InvalidImageException("Not an image of disk items");
+		if ((int) crc.getValue() != buffer.getInt(DiskImage.HEADER_SIZE - 4))
+			throw new InvalidImageException("Header checksum mismatch");
+		version = buffer.getInt(4);
+		if (version != DiskImage.VERSION)
+			throw new InvalidImageException("Unsupported image version " + version);
+		nbItems = buffer.getLong(8);
+		namesOffset = buffer.getLong(16);
+		namesLength = buffer.getLong(24);
+		recordsChecksum = buffer.getInt(32);
+		namesChecksum = buffer.getInt(36);
+		nextId = buffer.getLong(40);
+		if ((nbItems < 1) || (nbItems > Integer.MAX_VALUE) ||
+			(namesOffset != DiskImage.HEADER_SIZE + nbItems * DiskImage.RECORD_SIZE) ||
+			(namesOffset + namesLength != length))
+			throw new InvalidImageException("Inconsistent image layout");
+	}
+
+	/**
+	 * Verify the checksums of the records and the names of this image.
+	 *
+	 * @throws InvalidImageException
+	 *         One of the checksums does not match.
+	 */
+	void verifyChecksums() throws InvalidImageException {
+		if (checksum(DiskImage.HEADER_SIZE, namesOffset) != recordsChecksum)
+			throw new InvalidImageException("Record checksum mismatch");
+		if (checksum(namesOffset, length) != namesChecksum)
+			throw new InvalidImageException("Name checksum mismatch");
+	}
+
+	/**
+	 * Return the CRC32 checksum of the bytes of this image from the given
+	 * start position up to the given end position.
+	 */
+	private int checksum(long start, long end) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		for (long position = start; position < end; position += chunk.length) {
+			int count = (int) Math.min(chunk.length, end - position);
+			getBytes(position, chunk, count);
+			crc.update(chunk, 0, count);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**********************************************************
+	 * records
+	 **********************************************************/
+
+	/**
+	 * Return the number of items recorded in this image.
+	 */
+	int getNbItems() {
+		return (int) nbItems;
+	}
+
+	/**
+	 * Return the kind of the item at the given index.
+	 *
+	 * @return One of DiskImage.DIRECTORY, DiskImage.FILE,
+	 *         DiskImage.FILE_LINK or DiskImage.DIRECTORY_LINK.
+	 */
+	byte getKind(int index) {
+		return getByte(record(index));
+	}
+
+	/**
+	 * Check whether the item at the given index is writable.
+	 */
+	boolean isWritable(int index) {
+		return (getByte(record(index) + 1) & DiskImage.WRITABLE) != 0;
+	}
+
+	/**
+	 * Return the type of the file at the given index.
+	 */
+	Type getType(int index) throws InvalidImageException {
+		int ordinal = getByte(record(index) + 2);
+		if ((ordinal < 0) || (ordinal >= Type.values().length))
+			throw new InvalidImageException("Unknown file type " + ordinal);
+		return Type.values()[ordinal];
+	}
+
+	/**
+	 * Return the name of the item at the given index.
+	 */
+	String getName(int index) {
+		long record = record(index);
+		byte[] name = new byte[getInt(record + 4)];
+		getBytes(namesOffset + getLong(record + 40), name);
+		return new String(name, ASCII);
+	}
+
+	/**
+	 * Return the size of the file at the given index.
+	 */
+	int getSize(int index) {
+		return (int) getLong(record(index) + 8);
+	}
+
+	/**
+	 * Return the total disk usage of the directory at the given index.
+	 */
+	long getTotalDiskUsage(int index) {
+		return getLong(record(index) + 8);
+	}
+
+	/**
+	 * Return the index of the first item of the directory at the given
+	 * index.
+	 */
+	int getFirstChild(int index) {
+		return getInt(record(index) + 16);
+	}
+
+	/**
+	 * Return the index of the referral of the link at the given index, or
+	 * -1 if the referral is not recorded in this image.
+	 */
+	int getReferral(int index) {
+		return getInt(record(index) + 16);
+	}
+
+	/**
+	 * Return the number of items of the directory at the given index.
+	 */
+	int getNbChildren(int index) {
+		return getInt(record(index) + 20);
+	}
+
+	/**
+	 * Return the index of the parent directory of the item at the given
+	 * index, or -1 for the root.
+	 */
+	int getParent(int index) {
+		return getInt(record(index) + 48);
+	}
+
+	/**
+	 * Return the creation time of the item at the given index.
+	 */
+	long getCreationTime(int index) {
+		return getLong(record(index) + 24);
+	}
+
+	/**
+	 * Return the modification time of the item at the given index, or
+	 * Long.MIN_VALUE if it has no modification time.
+	 */
+	long getModificationTime(int index) {
+		if ((getByte(record(index) + 1) & DiskImage.MODIFIED) == 0)
+			return Long.MIN_VALUE;
+		return getLong(record(index) + 32);
+	}
+
+	/**
+	 * Return the latest change time in the subtree of the directory at the
+	 * given index.
+	 */
+	long getSubtreeChangeTime(int index) {
+		return getLong(record(index) + 56);
+	}
+
+	/**
+	 * Return the identifier recorded for the item at the given index.
+	 */
+	long getId(int index) {
+		return getLong(record(index) + 64);
+	}
+
+	/**
+	 * Return the identifier following the largest identifier recorded in
+	 * this image.
+	 */
+	long getNextId() {
+		return nextId;
+	}
+
+	/**
+	 * Return the position of the record of the item at the given index.
+	 */
+	private long record(int index) {
+		if ((index < 0) || (index >= nbItems))
+			throw new IllegalArgumentException("Index out of bounds!");
+		return DiskImage.HEADER_SIZE + (long) index * DiskImage.RECORD_SIZE;
+	}
+
+	/**********************************************************
+	 * raw access
+	 **********************************************************/
+
+	/**
+	 * Return the byte at the given position of this image.
+	 */
+	private byte getByte(long position) {
+		return regions[(int) (position / REGION_SIZE)].get((int) (position % REGION_SIZE));
+	}
+
+	/**
+	 * Return the big-endian int at the given position of this image.
+	 */
+	private int getInt(long position) {
+		int offset = (int) (position % REGION_SIZE);
+		MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+		if (offset + 4 <= region.limit())
+			return region.getInt(offset);
+		int result = 0;
+		for (int i = 0; i < 4; i++)
+			result = (result << 8) | (getByte(position + i) & 0xFF);
+		return result;
+	}
+
+	/**
+	 * Return the big-endian long at the given position of this image.
+	 */
+	private long getLong(long position) {
+		int offset = (int) (position % REGION_SIZE);
+		MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+		if (offset + 8 <= region.limit())
+			return region.getLong(offset);
+		return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Copy bytes from the given position of this image to the given
+	 * destination, until the destination is full.
+	 */
+	private void getBytes(long position, byte[] destination) {
+		getBytes(position, destination, destination.length);
+	}
+
+	/**
+	 * Copy the given number of bytes from the given position of this
+	 * image to the given destination.
+	 */
+	private void getBytes(long position, byte[] destination, int count) {
+		int done = 0;
+		while (done < count) {
+			long current = position + done;
+			ByteBuffer region = regions[(int) (current / REGION_SIZE)].duplicate();
+			region.position((int) (current % REGION_SIZE));
+			int chunk = Math.min(count - done, region.remaining());
+			region.get(destination, done, chunk);
+			done += chunk;
+		}
+	}
+
+	/**
+	 * The maximum size of a mapped region.
+	 */
+	private static final long REGION_SIZE = 1L << 30;
+
+	/**
+	 * The character set of the names, which only consist of ASCII
+	 * letters, digits, dots, hyphens and underscores.
+	 */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Variable referencing the mapped regions of this image, in order.
+	 */
+	private final MappedByteBuffer[] regions;
+
+	/**
+	 * Variables registering the length of this image in bytes, and the
+	 * values read from its header.
+	 */
+	private final long length;
+	private final int version;
+	private final long nbItems;
+	private final long namesOffset;
+	private final long namesLength;
+	private final int recordsChecksum;
+	private final int namesChecksum;
+	private final long nextId;
+}
@@ -0,0 +1,593 @@
+package filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import filesystem.exception.InvalidImageException;
+
+/**
+ * A class of embedded key-value stores of metadata, laid out as a
+ * log-structured merge tree.
+ *    Entries are keyed by the id of a parent directory and a folded name.
+ *    Writes go to an in-memory memtable. Once the memtable exceeds its
+ *    budget, it is frozen and written by a background thread to an
+ *    immutable sorted run file. Once there are more runs than configured,
+ *    the background thread merges all runs into a single run, dropping
+ *    deleted entries. Lookups consult the memtable, the frozen memtables
+ *    and the runs from newest to oldest; the Bloom filters of the runs let
+ *    most lookups of absent keys skip them, and their blocks are read
+ *    through a shared block cache.
+ *    The set of live runs is recorded in a manifest that is replaced
+ *    atomically. Entries still in a memtable are only durable once the
+ *    store has been flushed.
+ *
+ * @see StoredTree
+ */
+final class MetadataStore implements Closeable {
+
+	/**
+	 * The value marking a deleted key.
+	 */
+	static final byte[] TOMBSTONE = new byte[0];
+
+	/**
+	 * Open the store in the given directory, creating it if it does not
+	 * exist yet.
+	 *
+	 * @param  directory
+	 *         The directory holding the manifest and the runs of the store.
+	 * @param  memtableBytes
+	 *         The approximate number of bytes after which the memtable is
+	 *         frozen and written to a run.
+	 * @param  cacheBytes
+	 *         The number of bytes of blocks kept in the block cache.
+	 * @param  maxRuns
+	 *         The number of runs above which all runs are merged.
+	 * @throws IllegalArgumentException
+	 *         The given budgets are not positive, or the given number of
+	 *         runs is smaller than one.
+	 * @throws InvalidImageException
+	 *         The manifest or one of the runs it lists is corrupt.
+	 */
+	static MetadataStore open(Path directory, long memtableBytes, long cacheBytes, int maxRuns)
+			throws IOException {
+		if ((memtableBytes <= 0) || (cacheBytes <= 0) || (maxRuns < 1))
+			throw new IllegalArgumentException("Invalid store configuration!");
+		Files.createDirectories(directory);
+		MetadataStore result = new MetadataStore(directory, memtableBytes, cacheBytes, maxRuns);
+		try {
+			result.readManifest();
+		} catch (IOException e) {
+			result.closeRuns(result.runs);
+			result.executor.shutdown();
+			throw e;
+		}
+		return result;
+	}
+
+	/**
+	 * Initialize a new empty store in the given directory.
+	 */
+	private MetadataStore(Path directory, long memtableBytes, long cacheBytes, int maxRuns) {
+		this.directory = directory;
+		this.memtableBytes = memtableBytes;
+		this.maxRuns = maxRuns;
+		this.cache = new StoreRun.BlockCache(cacheBytes);
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread result = new Thread(task, "metadata-store-compactor");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+	}
+
+	/**********************************************************
+	 * entries
+	 **********************************************************/
+
+	/**
+	 * Return the value of the entry with the given key, or null if there
+	 * is no such entry.
+	 */
+	byte[] get(StoreKey key) throws IOException {
+		lock.readLock().lock();
+		try {
+			byte[] result = memtable.get(key);
+			for (int i = 0; (result == null) && (i < frozen.size()); i++)
+				result = frozen.get(i).get(key);
+			for (int i = 0; (result == null) && (i < runs.size()); i++)
+				result = runs.get(i).get(key, cache);
+			return (result == TOMBSTONE)? null : result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the entries whose keys have the given parent id, in key
+	 * order.
+	 */
+	List<Map.Entry<StoreKey, byte[]>> scan(long parent) throws IOException {
+		StoreKey from = StoreKey.first(parent);
+		List<Map.Entry<StoreKey, byte[]>> result = new ArrayList<Map.Entry<StoreKey, byte[]>>();
+		lock.readLock().lock();
+		try {
+			List<Iterator<Map.Entry<StoreKey, byte[]>>> sources =
+					new ArrayList<Iterator<Map.Entry<StoreKey, byte[]>>>();
+			sources.add(memtable.tailMap(from).entrySet().iterator());
+			for (ConcurrentSkipListMap<StoreKey, byte[]> table : frozen)
+				sources.add(table.tailMap(from).entrySet().iterator());
+			for (StoreRun run : runs)
+				sources.add(run.iterator(from, cache));
+			Iterator<Map.Entry<StoreKey, byte[]>> merged = new MergeIterator(sources);
+			while (merged.hasNext()) {
+				Map.Entry<StoreKey, byte[]> entry = merged.next();
+				if (entry.getKey().getParent() != parent)
+					break;
+				if (entry.getValue() != TOMBSTONE)
+					result.add(entry);
+			}
+			return result;
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Let the given key map to the given value.
+	 */
+	void put(StoreKey key, byte[] value) throws IOException {
+		if (value.length == 0)
+			value = new byte[0];
+		write(key, value);
+	}
+
+	/**
+	 * Remove the entry with the given key, if any.
+	 */
+	void delete(StoreKey key) throws IOException {
+		write(key, TOMBSTONE);
+	}
+
+	/**
+	 * Let the given key map to the given value in the memtable, and
+	 * freeze the memtable if it exceeds its budget.
+	 */
+	private void write(StoreKey key, byte[] value) throws IOException {
+		checkFailure();
+		lock.readLock().lock();
+		try {
+			memtable.put(key, value);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (memtableSize.addAndGet(key.getName().length() + value.length + 48) > memtableBytes)
+			freeze();
+	}
+
+	/**
+	 * Write all entries to runs, and wait until they have been written.
+	 */
+	void flush() throws IOException {
+		freeze();
+		await();
+		checkFailure();
+	}
+
+	/**
+	 * Merge all runs into a single run, and wait until they have been
+	 * merged.
+	 */
+	void compact() throws IOException {
+		flush();
+		executor.submit(new Runnable() {
+			public void run() {
+				merge(1);
+			}
+		});
+		await();
+		checkFailure();
+	}
+
+	/**
+	 * Return the number of runs of this store.
+	 */
+	int getNbRuns() {
+		lock.readLock().lock();
+		try {
+			return runs.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the block cache of this store.
+	 */
+	StoreRun.BlockCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Flush this store and close it.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			executor.shutdown();
+			lock.writeLock().lock();
+			try {
+				closeRuns(runs);
+				runs = Collections.emptyList();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**********************************************************
+	 * runs
+	 **********************************************************/
+
+	/**
+	 * Freeze the memtable, if it is not empty, and let the background
+	 * thread write it to a new run.
+	 */
+	private void freeze() {
+		final ConcurrentSkipListMap<StoreKey, byte[]> table;
+		lock.writeLock().lock();
+		try {
+			if (memtable.isEmpty())
+				return;
+			table = memtable;
+			List<ConcurrentSkipListMap<StoreKey, byte[]>> newFrozen =
+					new ArrayList<ConcurrentSkipListMap<StoreKey, byte[]>>(frozen.size() + 1);
+			newFrozen.add(table);
+			newFrozen.addAll(frozen);
+			frozen = newFrozen;
+			memtable = new ConcurrentSkipListMap<StoreKey, byte[]>();
+			memtableSize.set(0);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		executor.submit(new Runnable() {
+			public void run() {
+				writeRun(table);
+			}
+		});
+	}
+
+	/**
+	 * Write the given frozen memtable to a new run, and replace the frozen
+	 * memtable by that run. Merge all runs if there are too many of them.
+	 */
+	private void writeRun(ConcurrentSkipListMap<StoreKey, byte[]> table) {
+		if (failure != null)
+			return;
+		try {
+			long id = nextRunId++;
+			StoreRun run = StoreRun.write(getRunPath(id), id, table.entrySet().iterator(),
+					table.size(), runs.isEmpty());
+			lock.writeLock().lock();
+			try {
+				List<ConcurrentSkipListMap<StoreKey, byte[]>> newFrozen =
+						new ArrayList<ConcurrentSkipListMap<StoreKey, byte[]>>(frozen);
+				newFrozen.remove(table);
+				List<StoreRun> newRuns = new ArrayList<StoreRun>(runs.size() + 1);
+				newRuns.add(run);
+				newRuns.addAll(runs);
+				writeManifest(newRuns);
+				runs = newRuns;
+				frozen = newFrozen;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (IOException e) {
+			failure = e;
+			return;
+		}
+		merge(maxRuns);
+	}
+
+	/**
+	 * Merge all runs into a single run, if there are more runs than the
+	 * given number.
+	 *    Only the background thread changes the list of runs, so the runs
+	 *    merged are still the oldest runs once the merge completes.
+	 */
+	private void merge(int threshold) {
+		List<StoreRun> merged = runs;
+		if ((failure != null) || (merged.size() <= threshold))
+			return;
+		try {
+			List<Iterator<Map.Entry<StoreKey, byte[]>>> sources =
+					new ArrayList<Iterator<Map.Entry<StoreKey, byte[]>>>();
+			long nbEntries = 0;
+			for (StoreRun run : merged) {
+				sources.add(run.iterator(StoreKey.first(Long.MIN_VALUE), cache));
+				nbEntries += run.getNbEntries();
+			}
+			long id = nextRunId++;
+			StoreRun run;
+			try {
+				run = StoreRun.write(getRunPath(id), id, new MergeIterator(sources),
+						nbEntries, true);
+			} catch (IllegalStateException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw e;
+			}
+			lock.writeLock().lock();
+			try {
+				List<StoreRun> newRuns = new ArrayList<StoreRun>(runs);
+				newRuns.removeAll(merged);
+				newRuns.add(run);
+				writeManifest(newRuns);
+				runs = newRuns;
+				closeRuns(merged);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			for (StoreRun old : merged) {
+				cache.invalidate(old.getId());
+				Files.deleteIfExists(old.getPath());
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Wait until the background thread has completed all tasks submitted
+	 * so far.
+	 */
+	private void await() throws IOException {
+		try {
+			executor.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while flushing", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Throw the failure of the background thread, if any.
+	 */
+	private void checkFailure() throws IOException {
+		IOException failure = this.failure;
+		if (failure != null)
+			throw new IOException("Background write failed", failure);
+	}
+
+	/**
+	 * Close the given runs, ignoring failures.
+	 */
+	private void closeRuns(List<StoreRun> runs) {
+		for (StoreRun run : runs)
+			try {
+				run.close();
+			} catch (IOException e) {
+				// the run is no longer used
+			}
+	}
+
+	/**
+	 * Return the path of the run with the given id.
+	 */
+	private Path getRunPath(long id) {
+		return directory.resolve(String.format("run-%016x.dat", id));
+	}
+
+	/**********************************************************
+	 * manifest
+	 **********************************************************/
+
+	/**
+	 * Open the runs listed in the manifest of this store, if any, and
+	 * delete run files it does not list.
+	 */
+	private void readManifest() throws IOException {
+		Path manifest = directory.resolve(MANIFEST);
+		Set<Path> listed = new HashSet<Path>();
+		if (Files.exists(manifest)) {
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(manifest))) {
+				if (in.readInt() != MANIFEST_MAGIC)
+					throw new InvalidImageException("Not a manifest of a metadata store");
+				nextRunId = in.readLong();
+				int nbRuns = in.readInt();
+				List<StoreRun> opened = new ArrayList<StoreRun>(nbRuns);
+				try {
+					for (int i = 0; i < nbRuns; i++) {
+						long id = in.readLong();
+						opened.add(StoreRun.open(getRunPath(id), id));
+						listed.add(getRunPath(id).getFileName());
+					}
+				} catch (IOException e) {
+					closeRuns(opened);
+					throw e;
+				}
+				runs = opened;
+			}
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "run-*.dat")) {
+			for (Path file : files)
+				if (!listed.contains(file.getFileName()))
+					Files.delete(file);
+		}
+	}
+
+	/**
+	 * Replace the manifest of this store by a manifest listing the given
+	 * runs.
+	 */
+	private void writeManifest(List<StoreRun> runs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MANIFEST_MAGIC);
+		out.writeLong(nextRunId);
+		out.writeInt(runs.size());
+		for (StoreRun run : runs)
+			out.writeLong(run.getId());
+		Path temporary = directory.resolve(MANIFEST + ".tmp");
+		Files.write(temporary, bytes.toByteArray());
+		Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**********************************************************
+	 * merging
+	 **********************************************************/
+
+	/**
+	 * A class of iterators merging sorted sources of entries into a single
+	 * sorted sequence, in which the entry of the source listed first wins
+	 * among entries with the same key.
+	 */
+	private static final class MergeIterator implements Iterator<Map.Entry<StoreKey, byte[]>> {
+
+		MergeIterator(List<Iterator<Map.Entry<StoreKey, byte[]>>> sources) {
+			this.sources = sources;
+			for (int i = 0; i < sources.size(); i++)
+				advance(i);
+		}
+
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		public Map.Entry<StoreKey, byte[]> next() {
+			if (heads.isEmpty())
+				throw new NoSuchElementException();
+			Head head = heads.poll();
+			advance(head.source);
+			while (!heads.isEmpty() && heads.peek().entry.getKey().equals(head.entry.getKey()))
+				advance(heads.poll().source);
+			return head.entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Queue the next entry of the source at the given index, if any.
+		 */
+		private void advance(int source) {
+			Iterator<Map.Entry<StoreKey, byte[]>> iterator = sources.get(source);
+			if (iterator.hasNext()) {
+				Map.Entry<StoreKey, byte[]> entry = iterator.next();
+				heads.add(new Head(new AbstractMap.SimpleImmutableEntry<StoreKey, byte[]>(
+						entry.getKey(), entry.getValue()), source));
+			}
+		}
+
+		private final List<Iterator<Map.Entry<StoreKey, byte[]>>> sources;
+
+		private final PriorityQueue<Head> heads = new PriorityQueue<Head>(11, new Comparator<Head>() {
+			public int compare(Head first, Head second) {
+				int result = first.entry.getKey().compareTo(second.entry.getKey());
+				return (result != 0)? result : first.source - second.source;
+			}
+		});
+
+		private static final class Head {
+
+			Head(Map.Entry<StoreKey, byte[]> entry, int source) {
+				this.entry = entry;
+				this.source = source;
+			}
+
+			private final Map.Entry<StoreKey, byte[]> entry;
+			private final int source;
+		}
+	}
+
+	/**
+	 * The name of the manifest, and the magic number at its start ("FSMF").
+	 */
+	private static final String MANIFEST = "MANIFEST";
+	private static final int MANIFEST_MAGIC = 0x46534D46;
+
+	/**
+	 * Variable referencing the directory of this store.
+	 */
+	private final Path directory;
+
+	/**
+	 * Variables registering the budget of the memtable and the number of
+	 * runs above which they are merged.
+	 */
+	private final long memtableBytes;
+	private final int maxRuns;
+
+	/**
+	 * Variable referencing the lock guarding the replacement of the
+	 * memtable, the frozen memtables and the runs. Lookups and writes to
+	 * the memtable hold its read lock.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Variables referencing the memtable and its approximate size, the
+	 * frozen memtables that are being written, newest first, and the
+	 * runs, newest first.
+	 */
+	private volatile ConcurrentSkipListMap<StoreKey, byte[]> memtable =
+			new ConcurrentSkipListMap<StoreKey, byte[]>();
+	private final AtomicLong memtableSize = new AtomicLong();
+	private volatile List<ConcurrentSkipListMap<StoreKey, byte[]>> frozen =
+			Collections.emptyList();
+	private volatile List<StoreRun> runs = Collections.emptyList();
+
+	/**
+	 * Variable registering the id of the next run, only used by the
+	 * background thread once this store is open.
+	 */
+	private long nextRunId;
+
+	/**
+	 * Variables referencing the block cache shared by the runs, the
+	 * background thread writing and merging runs, and its first failure.
+	 */
+	private final StoreRun.BlockCache cache;
+	private final ExecutorService executor;
+	private volatile IOException failure;
+}
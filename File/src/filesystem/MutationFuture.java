@@ -0,0 +1,139 @@
+package filesystem;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A class of futures for mutations that are applied by some other thread.
+ *    A mutation future is completed exactly once, either with a result or
+ *    with the exception the mutation failed with. Once submitted, a mutation
+ *    can no longer be cancelled.
+ *
+ * @param <T> The type of the result of the mutation.
+ */
+final class MutationFuture<T> implements Future<T> {
+
+	/**
+	 * Complete this future with the given result.
+	 *    This method has no effect if this future is already done.
+	 *
+	 * @param  result
+	 *         The result of the mutation.
+	 * @post   This future is done.
+	 *         | new.isDone()
+	 */
+	void complete(T result) {
+		synchronized (done) {
+			if (isDone())
+				return;
+			this.result = result;
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Complete this future with the given failure.
+	 *    This method has no effect if this future is already done.
+	 *
+	 * @param  failure
+	 *         The exception the mutation failed with.
+	 * @post   This future is done.
+	 *         | new.isDone()
+	 */
+	void fail(Throwable failure) {
+		synchronized (done) {
+			if (isDone())
+				return;
+			this.failure = failure;
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Return false: a submitted mutation can not be cancelled.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	/**
+	 * Return false: a submitted mutation can not be cancelled.
+	 */
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/**
+	 * Check whether the mutation of this future has been applied or
+	 * has failed.
+	 */
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait for the mutation of this future to be applied and return its
+	 * result.
+	 *
+	 * @throws ExecutionException
+	 *         The mutation failed.
+	 */
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return report();
+	}
+
+	/**
+	 * Wait at most the given time for the mutation of this future to be
+	 * applied and return its result.
+	 *
+	 * @throws ExecutionException
+	 *         The mutation failed.
+	 * @throws TimeoutException
+	 *         The mutation was not applied in time.
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException();
+		return report();
+	}
+
+	/**
+	 * Return the result of this completed future.
+	 *
+	 * @throws ExecutionException
+	 *         The mutation failed.
+	 */
+	private T report() throws ExecutionException {
+		if (failure instanceof CancellationException)
+			throw (CancellationException) failure;
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return result;
+	}
+
+	/**
+	 * Latch that is released once this future is done.
+	 */
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * Variable referencing the result of the mutation.
+	 */
+	private T result;
+
+	/**
+	 * Variable referencing the exception the mutation failed with, if any.
+	 */
+	private Throwable failure;
+}
@@ -0,0 +1,50 @@
+package filesystem;
+
+/**
+ * An interface of listeners that are notified of each mutation of a disk
+ * item, after it has been applied.
+ *    Listeners are invoked synchronously on the thread performing the
+ *    mutation, so they must be fast and must not mutate disk items
+ *    themselves.
+ *
+ * @see DiskItem#addMutationListener(MutationListener)
+ */
+public interface MutationListener {
+
+	/**
+	 * Notify this listener that the given disk item has been created and
+	 * registered in its parent directory, if any.
+	 */
+	void itemCreated(DiskItem item);
+
+	/**
+	 * Notify this listener that the name of the given disk item has been
+	 * changed from the given old name.
+	 */
+	void nameChanged(DiskItem item, String oldName);
+
+	/**
+	 * Notify this listener that the given disk item has been moved out of
+	 * the given old parent directory, which is null if the item was a root
+	 * item. The item has become a root item if it has no parent directory.
+	 */
+	void itemMoved(DiskItem item, Directory oldParent);
+
+	/**
+	 * Notify this listener that the size of the given file has changed
+	 * with the given delta.
+	 */
+	void sizeChanged(File file, long delta);
+
+	/**
+	 * Notify this listener that the writability of the given disk item has
+	 * been changed.
+	 */
+	void writabilityChanged(RealDiskItem item);
+
+	/**
+	 * Notify this listener that the given disk item has been terminated.
+	 *    The item still references its last parent directory, if any.
+	 */
+	void itemTerminated(DiskItem item);
+}
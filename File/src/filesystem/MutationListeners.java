@@ -0,0 +1,77 @@
+package filesystem;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A class dispatching notifications of mutations of disk items to all
+ * registered mutation listeners.
+ *    Without registered listeners, each notification only checks whether
+ *    the list of listeners is empty.
+ */
+final class MutationListeners {
+
+	/**
+	 * Prevent the instantiation of this class.
+	 */
+	private MutationListeners() {
+	}
+
+	/**
+	 * Register the given listener.
+	 */
+	static void add(MutationListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException();
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregister the given listener.
+	 */
+	static void remove(MutationListener listener) {
+		listeners.remove(listener);
+	}
+
+	static void itemCreated(DiskItem item) {
+		if (!listeners.isEmpty())
+			for (MutationListener listener : listeners)
+				listener.itemCreated(item);
+	}
+
+	static void nameChanged(DiskItem item, String oldName) {
+		if (!listeners.isEmpty())
+			for (MutationListener listener : listeners)
+				listener.nameChanged(item, oldName);
+	}
+
+	static void itemMoved(DiskItem item, Directory oldParent) {
+		if (!listeners.isEmpty())
+			for (MutationListener listener : listeners)
+				listener.itemMoved(item, oldParent);
+	}
+
+	static void sizeChanged(File file, long delta) {
+		if (!listeners.isEmpty())
+			for (MutationListener listener : listeners)
+				listener.sizeChanged(file, delta);
+	}
+
+	static void writabilityChanged(RealDiskItem item) {
+		if (!listeners.isEmpty())
+			for (MutationListener listener : listeners)
+				listener.writabilityChanged(item);
+	}
+
+	static void itemTerminated(DiskItem item) {
+		if (!listeners.isEmpty())
+			for (MutationListener listener : listeners)
+				listener.itemTerminated(item);
+	}
+
+	/**
+	 * Variable referencing the registered listeners.
+	 */
+	private static final List<MutationListener> listeners =
+			new CopyOnWriteArrayList<MutationListener>();
+}
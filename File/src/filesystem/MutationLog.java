@@ -0,0 +1,887 @@
+package filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import filesystem.exception.*;
+
+/**
+ * A class of write-ahead logs of the mutations of a tree of disk items.
+ *    Each mutation of an item in the tree is appended as a compact record
+ *    to an in-memory buffer by the mutating thread. A single writer thread
+ *    writes the buffered records to the log in batches, and forces them to
+ *    disk once a configurable number of records is pending, once a
+ *    configurable interval has elapsed, or as soon as some thread waits for
+ *    its records to become durable. All threads waiting at that moment
+ *    share a single force of the log.
+ *    After a crash, the tree is recovered by loading the latest image of
+ *    it, written by a checkpoint, and replaying the log on top of it.
+ *    Records identify items by their path from the root of the tree.
+ *
+ * @invar  The records of this log describe the mutations of its tree since
+ *         its latest checkpoint.
+ *
+ * @see DiskImage
+ */
+public final class MutationLog implements MutationListener, Closeable {
+
+	/**
+	 * Open the log at the given path for the tree with the given root
+	 * directory, and start logging all mutations of that tree.
+	 *    The tree is first checkpointed to the image at the given path,
+	 *    replacing any state persisted before; typically the tree has just
+	 *    been recovered from that image and that log.
+	 *
+	 * @param  root
+	 *         The root directory of the tree to log.
+	 * @param  imagePath
+	 *         The path of the image written by each checkpoint.
+	 * @param  logPath
+	 *         The path of the log.
+	 * @param  syncBatchSize
+	 *         The number of written records after which the log is forced
+	 *         to disk, or 0 if the log must not be forced for that reason.
+	 * @param  syncIntervalMillis
+	 *         The maximum number of milliseconds a written record remains
+	 *         unforced, or 0 if the log must not be forced for that reason.
+	 * @param  awaitDurability
+	 *         Whether each mutating thread must wait until the records of
+	 *         its mutations have been forced to disk.
+	 * @pre    No items of the given tree are mutated while the log is
+	 *         opened.
+	 * @effect The given tree is checkpointed.
+	 *         | checkpoint()
+	 * @throws IllegalArgumentException
+	 *         The given root directory is not an effective root directory,
+	 *         or the given batch size or interval is negative.
+	 */
+	public static MutationLog open(Directory root, Path imagePath, Path logPath,
+			int syncBatchSize, long syncIntervalMillis, boolean awaitDurability)
+			throws IOException {
+		if ((root == null) || !root.isRoot() || (syncBatchSize < 0) ||
+			(syncIntervalMillis < 0))
+			throw new IllegalArgumentException();
+		FileChannel channel = FileChannel.open(logPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		MutationLog result = new MutationLog(root, imagePath, channel, syncBatchSize,
+				syncIntervalMillis, awaitDurability);
+		try {
+			result.checkpoint();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		DiskItem.addMutationListener(result);
+		result.writer.start();
+		return result;
+	}
+
+	/**
+	 * Recover a tree of disk items by loading the image at the given path
+	 * and replaying the log at the given path on top of it.
+	 *    The log is ignored if it was started for another image, which is
+	 *    the case if a crash occurred after a checkpoint wrote a new image
+	 *    but before it reset the log. A torn record at the end of the log is
+	 *    ignored as well.
+	 *
+	 * @param  imagePath
+	 *         The path of the latest image of the tree.
+	 * @param  logPath
+	 *         The path of the log of the tree since that image was
+	 *         written; the log need not exist.
+	 * @return The root directory of the recovered tree.
+	 * @throws InvalidImageException
+	 *         The image can not be loaded.
+	 * @throws InvalidLogException
+	 *         Some record of the log can not be replayed on the tree.
+	 */
+	public static Directory recover(Path imagePath, Path logPath) throws IOException {
+		Directory root = DiskImage.load(imagePath);
+		long identity = DiskImage.readIdentity(imagePath);
+		if (Files.exists(logPath))
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(logPath)))) {
+				if ((in.readInt() == MAGIC) && (in.readLong() == identity))
+					replayAll(in, root);
+			} catch (EOFException e) {
+				// the log has no complete header, and thus no records.
+			}
+		return root;
+	}
+
+	/**
+	 * Initialize a new log for the tree with the given root directory,
+	 * appending to the given channel.
+	 */
+	private MutationLog(Directory root, Path imagePath, FileChannel channel,
+			int syncBatchSize, long syncIntervalMillis, boolean awaitDurability) {
+		this.root = root;
+		this.imagePath = imagePath;
+		this.channel = channel;
+		this.syncBatchSize = syncBatchSize;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.awaitDurability = awaitDurability;
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				runWriter();
+			}
+		}, "mutation-log-writer");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Return the root directory of the tree logged by this log.
+	 */
+	public Directory getRoot() {
+		return root;
+	}
+
+	/**********************************************************
+	 * durability
+	 **********************************************************/
+
+	/**
+	 * Wait until all records appended to this log so far have been forced
+	 * to disk.
+	 *
+	 * @throws IllegalStateException
+	 *         Writing the log has failed.
+	 */
+	public void sync() throws IllegalStateException {
+		long record;
+		synchronized (lock) {
+			record = nbRecords;
+		}
+		awaitDurable(record);
+	}
+
+	/**
+	 * Write an image of the tree of this log, and reset this log.
+	 *    The image is first written to a temporary file next to its final
+	 *    path, and then moved into place. The reset log is marked with the
+	 *    identity of the new image, so that a crash between both steps
+	 *    leaves the new image with a log that is ignored on recovery.
+	 *
+	 * @pre    No items of the tree of this log are mutated while the
+	 *         checkpoint is taken.
+	 * @throws IllegalStateException
+	 *         Writing the log has failed.
+	 */
+	public void checkpoint() throws IOException {
+		sync();
+		Path temporary = imagePath.resolveSibling(imagePath.getFileName() + ".tmp");
+		long identity = DiskImage.write(root, temporary);
+		Files.move(temporary, imagePath, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putLong(identity).flip();
+		synchronized (channel) {
+			channel.truncate(0);
+			channel.position(0);
+			while (header.hasRemaining())
+				channel.write(header);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Stop logging the mutations of the tree of this log, force all
+	 * appended records to disk and close the log.
+	 *
+	 * @throws IOException
+	 *         Writing the log has failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		DiskItem.removeMutationListener(this);
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Wait until the record with the given sequence number has been
+	 * forced to disk.
+	 */
+	private void awaitDurable(long record) throws IllegalStateException {
+		boolean interrupted = false;
+		synchronized (lock) {
+			nbWaiters++;
+			lock.notifyAll();
+			try {
+				while ((durableRecords < record) && (failure == null) && !writerStopped)
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+			} finally {
+				nbWaiters--;
+			}
+			if (failure != null)
+				throw new IllegalStateException("Mutation log failed", failure);
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Write the buffered records in batches, and force them to disk when
+	 * required, until this log is closed or writing it fails.
+	 */
+	private void runWriter() {
+		try {
+			while (true) {
+				byte[] batch;
+				long lastRecord;
+				synchronized (lock) {
+					while ((pending.size() == 0) && !closed) {
+						if (writtenRecords > durableRecords) {
+							if (nbWaiters > 0)
+								break;
+							if (syncIntervalMillis > 0) {
+								long remaining = lastSync + syncIntervalMillis -
+										System.currentTimeMillis();
+								if (remaining <= 0)
+									break;
+								lock.wait(remaining);
+								continue;
+							}
+						}
+						lock.wait();
+					}
+					batch = pending.toByteArray();
+					pending.reset();
+					lastRecord = nbRecords;
+				}
+				if (batch.length > 0)
+					synchronized (channel) {
+						ByteBuffer buffer = ByteBuffer.wrap(batch);
+						while (buffer.hasRemaining())
+							channel.write(buffer);
+					}
+				boolean mustSync;
+				boolean stop;
+				synchronized (lock) {
+					nbBytesWritten += batch.length;
+					writtenRecords = lastRecord;
+					long unsynced = writtenRecords - durableRecords;
+					stop = closed && (pending.size() == 0);
+					mustSync = (unsynced > 0) && (stop || (nbWaiters > 0) ||
+							((syncBatchSize > 0) && (unsynced >= syncBatchSize)) ||
+							((syncIntervalMillis > 0) &&
+							 (System.currentTimeMillis() - lastSync >= syncIntervalMillis)));
+				}
+				if (mustSync) {
+					synchronized (channel) {
+						channel.force(false);
+					}
+					synchronized (lock) {
+						durableRecords = lastRecord;
+						nbSyncs++;
+						lastSync = System.currentTimeMillis();
+						lock.notifyAll();
+					}
+				}
+				if (stop)
+					return;
+			}
+		} catch (IOException e) {
+			synchronized (lock) {
+				failure = e;
+				lock.notifyAll();
+			}
+		} catch (InterruptedException e) {
+			// the writer is only interrupted when the virtual machine
+			// shuts down.
+		} finally {
+			synchronized (lock) {
+				writerStopped = true;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**********************************************************
+	 * statistics
+	 **********************************************************/
+
+	/**
+	 * Return the number of records appended to this log since it was
+	 * opened.
+	 */
+	public long getNbRecords() {
+		synchronized (lock) {
+			return nbRecords;
+		}
+	}
+
+	/**
+	 * Return the number of bytes written to this log since it was opened.
+	 */
+	public long getNbBytesWritten() {
+		synchronized (lock) {
+			return nbBytesWritten;
+		}
+	}
+
+	/**
+	 * Return the number of times this log has been forced to disk since it
+	 * was opened.
+	 */
+	public long getNbSyncs() {
+		synchronized (lock) {
+			return nbSyncs;
+		}
+	}
+
+	/**********************************************************
+	 * records
+	 **********************************************************/
+
+	/**
+	 * Operation codes of the records.
+	 */
+	private static final byte CREATE_DIRECTORY = 1;
+	private static final byte CREATE_FILE = 2;
+	private static final byte CREATE_FILE_LINK = 3;
+	private static final byte CREATE_DIRECTORY_LINK = 4;
+	private static final byte RENAME = 5;
+	private static final byte MOVE = 6;
+	private static final byte DETACH = 7;
+	private static final byte RESIZE = 8;
+	private static final byte WRITABILITY = 9;
+	private static final byte TERMINATE = 10;
+
+	@Override
+	public void itemCreated(DiskItem item) {
+		List<String> parentPath = getPath(item.getParentDirectory());
+		if (parentPath != null) {
+			Record record = new Record(creationCode(item), parentPath,
+					getTime(item.getParentDirectory()));
+			writeCreation(record, item, item instanceof RealDiskItem &&
+					((RealDiskItem) item).isWritable());
+			append(record);
+		}
+	}
+
+	@Override
+	public void nameChanged(DiskItem item, String oldName) {
+		List<String> path = getPath(item, oldName);
+		if (path != null) {
+			Record record = new Record(RENAME, path, getTime(item));
+			record.writeName(item.getName());
+			append(record);
+		}
+	}
+
+	@Override
+	public void itemMoved(DiskItem item, Directory oldParent) {
+		if (item == root)
+			return;
+		List<String> oldPath = getPath(oldParent);
+		List<String> newParentPath = getPath(item.getParentDirectory());
+		if (oldPath != null) {
+			oldPath.add(item.getName());
+			if (newParentPath == null) {
+				append(new Record(DETACH, oldPath, getTime(oldParent)));
+			} else {
+				Record record = new Record(MOVE, oldPath, getTime(item));
+				record.writePath(newParentPath);
+				record.writeLong(getTime(oldParent));
+				record.writeLong(getTime(item.getParentDirectory()));
+				append(record);
+			}
+		} else if (newParentPath != null) {
+			attach(item, newParentPath);
+		}
+	}
+
+	@Override
+	public void sizeChanged(File file, long delta) {
+		List<String> path = getPath(file);
+		if ((path != null) && !file.isTerminated()) {
+			Record record = new Record(RESIZE, path, getTime(file));
+			record.writeLong(delta);
+			append(record);
+		}
+	}
+
+	@Override
+	public void writabilityChanged(RealDiskItem item) {
+		List<String> path = getPath(item);
+		if (path != null) {
+			Record record = new Record(WRITABILITY, path, NO_TIME);
+			record.writeBoolean(item.isWritable());
+			append(record);
+		}
+	}
+
+	@Override
+	public void itemTerminated(DiskItem item) {
+		List<String> path = getPath(item);
+		if (path != null) {
+			append(new Record(TERMINATE, path, getTime(item.getParentDirectory())));
+		}
+	}
+
+	/**
+	 * Append records creating the given item, which has been moved into
+	 * the tree of this log from outside of it, and all its direct and
+	 * indirect items.
+	 *    Directories are created writable, and made read-only after their
+	 *    items have been created.
+	 */
+	private void attach(DiskItem item, List<String> parentPath) {
+		Record record = new Record(creationCode(item), parentPath,
+				getTime(item.getParentDirectory()));
+		writeCreation(record, item, (item instanceof Directory) ||
+				((item instanceof RealDiskItem) && ((RealDiskItem) item).isWritable()));
+		append(record);
+		if (item instanceof Directory) {
+			Directory directory = (Directory) item;
+			List<String> path = new ArrayList<String>(parentPath);
+			path.add(item.getName());
+			for (DiskItem child : directory.getItemArray())
+				attach(child, path);
+			if (!directory.isWritable()) {
+				Record writability = new Record(WRITABILITY, path, NO_TIME);
+				writability.writeBoolean(false);
+				append(writability);
+			}
+		}
+	}
+
+	/**
+	 * Return the operation code of the record creating the given item.
+	 */
+	private static byte creationCode(DiskItem item) {
+		if (item instanceof Directory)
+			return CREATE_DIRECTORY;
+		if (item instanceof File)
+			return CREATE_FILE;
+		if (item instanceof FileLink)
+			return CREATE_FILE_LINK;
+		return CREATE_DIRECTORY_LINK;
+	}
+
+	/**
+	 * Write the name, creation time and kind-specific state of the given
+	 * created item to the given record.
+	 */
+	private void writeCreation(Record record, DiskItem item, boolean writable) {
+		record.writeName(item.getName());
+		record.writeLong(item.getCreationTimeMillis());
+		if (item instanceof RealDiskItem)
+			record.writeBoolean(writable);
+		if (item instanceof File) {
+			record.writeByte(((File) item).getType().ordinal());
+			record.writeInt(((File) item).getSize());
+		}
+		if (item instanceof Link) {
+			List<String> referral = getPath(((Link) item).getReferral());
+			record.writeBoolean(referral != null);
+			if (referral != null)
+				record.writePath(referral);
+		}
+	}
+
+	/**
+	 * Return the time of the last modification of the given item, or
+	 * NO_TIME if the given item is not effective or has not been modified.
+	 */
+	private static long getTime(DiskItem item) {
+		if (item == null)
+			return NO_TIME;
+		return item.getModificationTimeMillis();
+	}
+
+	/**
+	 * Return the names on the path from the root of this log to the given
+	 * item, or null if the given item is not in the tree of this log.
+	 */
+	private List<String> getPath(DiskItem item) {
+		if (item == null)
+			return null;
+		if (item == root)
+			return new ArrayList<String>();
+		return getPath(item, item.getName());
+	}
+
+	/**
+	 * Return the names on the path from the root of this log to the given
+	 * item, assuming it has the given name, or null if the given item is
+	 * not in the tree of this log.
+	 */
+	private List<String> getPath(DiskItem item, String name) {
+		if (item == root)
+			return new ArrayList<String>();
+		List<String> result = new ArrayList<String>();
+		result.add(name);
+		for (Directory current = item.getParentDirectory(); current != root;
+				current = current.getParentDirectory()) {
+			if (current == null)
+				return null;
+			result.add(current.getName());
+		}
+		for (int i = 0, j = result.size() - 1; i < j; i++, j--)
+			result.set(i, result.set(j, result.get(i)));
+		return result;
+	}
+
+	/**
+	 * Append the given record to the buffer of this log, and wait for it to
+	 * become durable if required.
+	 *
+	 * @throws IllegalStateException
+	 *         Writing this log has failed before.
+	 */
+	private void append(Record record) throws IllegalStateException {
+		byte[] frame = record.toFrame();
+		long sequenceNumber;
+		synchronized (lock) {
+			if (failure != null)
+				throw new IllegalStateException("Mutation log failed", failure);
+			pending.write(frame, 0, frame.length);
+			sequenceNumber = ++nbRecords;
+			lock.notifyAll();
+		}
+		if (awaitDurability)
+			awaitDurable(sequenceNumber);
+	}
+
+	/**
+	 * A class of records under construction. Each record starts with its
+	 * operation code, the path of the item it applies to and the time of
+	 * the last modification of the item whose modification time the
+	 * operation updates.
+	 */
+	private static final class Record {
+
+		Record(byte code, List<String> path, long time) {
+			writeByte(code);
+			writePath(path);
+			writeLong(time);
+		}
+
+		void writeByte(int value) {
+			try {
+				out.writeByte(value);
+			} catch (IOException e) {
+				// cannot occur: the record is written to memory.
+				assert false;
+			}
+		}
+
+		void writeBoolean(boolean value) {
+			writeByte(value? 1 : 0);
+		}
+
+		void writeInt(int value) {
+			try {
+				out.writeInt(value);
+			} catch (IOException e) {
+				assert false;
+			}
+		}
+
+		void writeLong(long value) {
+			try {
+				out.writeLong(value);
+			} catch (IOException e) {
+				assert false;
+			}
+		}
+
+		void writeName(String name) {
+			try {
+				out.writeUTF(name);
+			} catch (IOException e) {
+				assert false;
+			}
+		}
+
+		void writePath(List<String> path) {
+			writeInt(path.size());
+			for (String name : path)
+				writeName(name);
+		}
+
+		/**
+		 * Return this record framed by its length and checksum.
+		 */
+		byte[] toFrame() {
+			byte[] payload = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, payload.length);
+			ByteBuffer frame = ByteBuffer.allocate(payload.length + 8);
+			frame.putInt(payload.length);
+			frame.put(payload);
+			frame.putInt((int) crc.getValue());
+			return frame.array();
+		}
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+	}
+
+	/**********************************************************
+	 * replay
+	 **********************************************************/
+
+	/**
+	 * Replay all complete records read from the given stream on the tree
+	 * with the given root directory.
+	 *
+	 * @throws InvalidLogException
+	 *         A record can not be replayed on the given tree.
+	 */
+	private static void replayAll(DataInputStream in, Directory root) throws IOException {
+		while (true) {
+			byte[] payload;
+			try {
+				int length = in.readInt();
+				if ((length <= 0) || (length > MAX_RECORD_SIZE))
+					return;
+				payload = new byte[length];
+				in.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload, 0, length);
+				if (in.readInt() != (int) crc.getValue())
+					return;
+			} catch (EOFException e) {
+				return;
+			}
+			replay(root, new DataInputStream(new ByteArrayInputStream(payload)));
+		}
+	}
+
+	/**
+	 * Replay the given record on the tree with the given root directory.
+	 *    Modification times are restored to the times in the record.
+	 */
+	private static void replay(Directory root, DataInputStream record) throws IOException {
+		try {
+			byte code = record.readByte();
+			DiskItem item = resolve(root, readPath(record));
+			long time = record.readLong();
+			switch (code) {
+			case CREATE_DIRECTORY:
+			case CREATE_FILE:
+			case CREATE_FILE_LINK:
+			case CREATE_DIRECTORY_LINK:
+				Directory parent = (Directory) item;
+				String name = record.readUTF();
+				long creationTime = record.readLong();
+				DiskItem created;
+				if (code == CREATE_DIRECTORY) {
+					created = new Directory(parent, name, record.readBoolean());
+				} else if (code == CREATE_FILE) {
+					boolean writable = record.readBoolean();
+					created = new File(parent, name, Type.values()[record.readByte()],
+							record.readInt(), writable);
+				} else {
+					RealDiskItem referral = null;
+					if (record.readBoolean())
+						referral = (RealDiskItem) resolve(root, readPath(record));
+					if (code == CREATE_FILE_LINK)
+						created = new FileLink(parent, name, (File) referral);
+					else
+						created = new DirectoryLink(parent, name, (Directory) referral);
+				}
+				if (!created.getName().equals(name))
+					throw new InvalidLogException("Name " + name + " already exists");
+				created.restoreCreationTime(creationTime);
+				restoreTime(parent, time);
+				break;
+			case RENAME:
+				String newName = record.readUTF();
+				item.changeName(newName);
+				if (!item.getName().equals(newName))
+					throw new InvalidLogException("Can not rename to " + newName);
+				restoreTime(item, time);
+				break;
+			case MOVE:
+				Directory oldParent = item.getParentDirectory();
+				Directory target = (Directory) resolve(root, readPath(record));
+				item.move(target);
+				restoreTime(item, time);
+				restoreTime(oldParent, record.readLong());
+				restoreTime(target, record.readLong());
+				break;
+			case DETACH:
+				Directory formerParent = item.getParentDirectory();
+				if (item instanceof Directory)
+					((Directory) item).makeRoot();
+				else
+					item.terminate();
+				restoreTime(formerParent, time);
+				break;
+			case RESIZE:
+				long delta = record.readLong();
+				if (delta > 0)
+					((File) item).enlarge(delta);
+				else
+					((File) item).shorten((int) -delta);
+				restoreTime(item, time);
+				break;
+			case WRITABILITY:
+				((RealDiskItem) item).setWritability(record.readBoolean());
+				break;
+			case TERMINATE:
+				Directory lastParent = item.getParentDirectory();
+				item.terminate();
+				if (lastParent != null)
+					restoreTime(lastParent, time);
+				break;
+			default:
+				throw new InvalidLogException("Unknown operation " + code);
+			}
+		} catch (InvalidLogException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new InvalidLogException("Truncated record");
+		} catch (Exception e) {
+			throw new InvalidLogException("Record can not be replayed: " + e);
+		}
+	}
+
+	/**
+	 * Set the modification time of the given item to the given time,
+	 * unless the given time is NO_TIME.
+	 */
+	private static void restoreTime(DiskItem item, long time) {
+		if (time != NO_TIME)
+			item.setModificationTime(time);
+	}
+
+	/**
+	 * Read a path from the given record.
+	 */
+	private static List<String> readPath(DataInputStream record) throws IOException {
+		int length = record.readInt();
+		if ((length < 0) || (length > MAX_RECORD_SIZE))
+			throw new InvalidLogException("Invalid path length " + length);
+		List<String> result = new ArrayList<String>(length);
+		for (int i = 0; i < length; i++)
+			result.add(record.readUTF());
+		return result;
+	}
+
+	/**
+	 * Return the item at the given path in the tree with the given root
+	 * directory.
+	 *
+	 * @throws InvalidLogException
+	 *         There is no item at the given path.
+	 */
+	private static DiskItem resolve(Directory root, List<String> path)
+			throws InvalidLogException {
+		DiskItem result = root;
+		for (String name : path)
+			try {
+				result = ((Directory) result).getItem(name);
+			} catch (NoSuchItemException e) {
+				throw new InvalidLogException("No item at " + path);
+			} catch (ClassCastException e) {
+				throw new InvalidLogException("No item at " + path);
+			}
+		return result;
+	}
+
+	/**
+	 * The magic number at the start of each log, and the size of the header
+	 * holding it together with the identity of the image the log starts
+	 * from.
+	 */
+	private static final int MAGIC = 0x46534D4C;
+	private static final int HEADER_SIZE = 12;
+
+	/**
+	 * Value recorded instead of a modification time, if there is none.
+	 */
+	private static final long NO_TIME = DiskItem.NO_TIME;
+
+	/**
+	 * The maximum size of a record, guarding against reading garbage
+	 * lengths from a torn log.
+	 */
+	private static final int MAX_RECORD_SIZE = 1 << 20;
+
+	/**
+	 * Variables referencing the root directory of the tree logged by this
+	 * log, the path of its image, the channel to which the log is written
+	 * and the writer thread.
+	 */
+	private final Directory root;
+	private final Path imagePath;
+	private final FileChannel channel;
+	private final Thread writer;
+
+	/**
+	 * Variables registering the configuration of this log.
+	 */
+	private final int syncBatchSize;
+	private final long syncIntervalMillis;
+	private final boolean awaitDurability;
+
+	/**
+	 * Variable referencing the lock guarding the buffer and the counters of
+	 * this log.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * Variable referencing the records appended but not yet written.
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+
+	/**
+	 * Variables registering the number of records appended, written and
+	 * forced to disk; each record is identified by its sequence number.
+	 */
+	private long nbRecords;
+	private long writtenRecords;
+	private long durableRecords;
+
+	/**
+	 * Variables registering the statistics of this log.
+	 */
+	private long nbBytesWritten;
+	private long nbSyncs;
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * Variables registering the number of threads waiting for durability,
+	 * whether this log is closed, whether the writer has stopped and the
+	 * failure that stopped it, if any.
+	 */
+	private int nbWaiters;
+	private boolean closed;
+	private boolean writerStopped;
+	private IOException failure;
+}
@@ -0,0 +1,898 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import filesystem.exception.*;
+
+/**
+ * A class of mutation queues, applying all mutations of a tree of disk
+ * items on a single writer thread.
+ *    Clients submit mutations from any thread and receive a future for
+ *    each of them. The writer thread takes the pending mutations in
+ *    batches. Within a batch, creations, moves and renames are grouped per
+ *    directory they affect, so that the items of each directory are merged
+ *    or re-sorted only once per batch, and enlargements of the same file
+ *    are coalesced into a single change of its size. Grouping never
+ *    reorders mutations of the same item: a mutation of an item or
+ *    directory that is already affected by another group is only applied
+ *    after that group. Terminations act as barriers: mutations submitted
+ *    before a termination are applied before it, mutations submitted after
+ *    it are applied after it.
+ *    Readers on other threads work against published immutable copies of
+ *    the items of directories instead of the live directories. After each
+ *    batch, the writer republishes the copies of the directories it
+ *    touched. Only directories that have been asked for are published, and
+ *    at most a fixed number of them; the others are published again on
+ *    their next request.
+ *
+ *    As long as a mutation queue is in use, all mutations of the trees it
+ *    manages must be submitted through it.
+ *
+ * @invar  The maximum batch size is strictly positive.
+ *         | getMaximumBatchSize() > 0
+ */
+public class MutationQueue {
+
+	/**********************************************************
+	 * Constructors
+	 **********************************************************/
+
+	/**
+	 * Initialize a new mutation queue with given maximum batch size, and
+	 * start its writer thread.
+	 *
+	 * @param  maximumBatchSize
+	 *         The maximum number of mutations applied in one batch.
+	 * @post   The maximum batch size of the new queue is set to the given
+	 *         size.
+	 *         | new.getMaximumBatchSize() == maximumBatchSize
+	 * @throws IllegalArgumentException
+	 *         The given size is not strictly positive.
+	 *         | maximumBatchSize <= 0
+	 */
+	public MutationQueue(int maximumBatchSize) throws IllegalArgumentException {
+		if (maximumBatchSize <= 0)
+			throw new IllegalArgumentException();
+		this.maximumBatchSize = maximumBatchSize;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				runWriter();
+			}
+		}, "filesystem-mutation-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Initialize a new mutation queue with the default maximum batch size.
+	 *
+	 * @effect | this(1024)
+	 */
+	public MutationQueue() {
+		this(1024);
+	}
+
+	/**
+	 * Return the maximum number of mutations applied in one batch.
+	 */
+	public int getMaximumBatchSize() {
+		return maximumBatchSize;
+	}
+
+	/**
+	 * Variable registering the maximum batch size of this queue.
+	 */
+	private final int maximumBatchSize;
+
+	/**********************************************************
+	 * Submission
+	 **********************************************************/
+
+	/**
+	 * Submit the creation of a new file.
+	 *
+	 * @return A future for the new file, initialized as
+	 *         | new File(parent,name,type,size,writable)
+	 *         The name of the new file is made unique in its parent
+	 *         directory in the same way as that constructor does.
+	 * @throws IllegalArgumentException
+	 *         The given parent directory is not effective.
+	 *         | parent == null
+	 */
+	public Future<File> createFile(Directory parent, String name, Type type,
+			int size, boolean writable) throws IllegalArgumentException {
+		if (parent == null)
+			throw new IllegalArgumentException();
+		return submit(new Creation<File>(parent, name, type, size, writable));
+	}
+
+	/**
+	 * Submit the creation of a new directory.
+	 *
+	 * @return A future for the new directory, initialized as
+	 *         | new Directory(parent,name,writable)
+	 * @throws IllegalArgumentException
+	 *         The given parent directory is not effective.
+	 *         | parent == null
+	 */
+	public Future<Directory> createDirectory(Directory parent, String name,
+			boolean writable) throws IllegalArgumentException {
+		if (parent == null)
+			throw new IllegalArgumentException();
+		return submit(new Creation<Directory>(parent, name, null, 0, writable));
+	}
+
+	/**
+	 * Submit a move of the given item to the given directory.
+	 *
+	 * @return A future that completes once the move has been applied
+	 *         with the effect of
+	 *         | item.move(target)
+	 * @throws IllegalArgumentException
+	 *         The given item or target is not effective.
+	 *         | item == null || target == null
+	 */
+	public Future<Void> move(DiskItem item, Directory target)
+			throws IllegalArgumentException {
+		if ((item == null) || (target == null))
+			throw new IllegalArgumentException();
+		return submit(new Move(item, target));
+	}
+
+	/**
+	 * Submit a change of the name of the given item.
+	 *
+	 * @return A future that completes once the name has been changed
+	 *         with the effect of
+	 *         | item.changeName(name)
+	 * @throws IllegalArgumentException
+	 *         The given item is not effective.
+	 *         | item == null
+	 */
+	public Future<Void> changeName(DiskItem item, String name)
+			throws IllegalArgumentException {
+		if (item == null)
+			throw new IllegalArgumentException();
+		return submit(new Rename(item, name));
+	}
+
+	/**
+	 * Submit an enlargement of the given file.
+	 *
+	 * @return A future that completes once the size has been changed
+	 *         with the effect of
+	 *         | file.enlarge(delta)
+	 * @throws IllegalArgumentException
+	 *         The given file is not effective.
+	 *         | file == null
+	 */
+	public Future<Void> enlarge(File file, long delta)
+			throws IllegalArgumentException {
+		if (file == null)
+			throw new IllegalArgumentException();
+		return submit(new Enlargement(file, delta));
+	}
+
+	/**
+	 * Submit the termination of the given item.
+	 *
+	 * @return A future that completes once the item has been terminated
+	 *         with the effect of
+	 *         | item.terminate()
+	 *         The future fails with an impossible deletion exception
+	 *         if the item can not be terminated.
+	 *         | !item.canBeTerminated()
+	 * @throws IllegalArgumentException
+	 *         The given item is not effective.
+	 *         | item == null
+	 */
+	public Future<Void> terminate(DiskItem item)
+			throws IllegalArgumentException {
+		if (item == null)
+			throw new IllegalArgumentException();
+		return submit(new Termination(item));
+	}
+
+	/**
+	 * Add the given command to the pending commands of this queue.
+	 *
+	 * @throws IllegalStateException
+	 *         This queue has been shut down.
+	 */
+	private <T> Future<T> submit(Command<T> command) throws IllegalStateException {
+		if (isShutDown)
+			throw new IllegalStateException("Mutation queue is shut down");
+		pending.add(command);
+		return command.future;
+	}
+
+	/**
+	 * Shut down this queue: apply all pending mutations and stop the
+	 * writer thread.
+	 *
+	 * @post   No more mutations can be submitted to this queue.
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			if (isShutDown)
+				return;
+			isShutDown = true;
+		}
+		pending.add(new Stop());
+		writer.join();
+	}
+
+	/**
+	 * Variable registering whether this queue has been shut down.
+	 */
+	private volatile boolean isShutDown = false;
+
+	/**
+	 * Variable referencing the commands that are not yet applied.
+	 */
+	private final BlockingQueue<Command<?>> pending =
+			new LinkedBlockingQueue<Command<?>>();
+
+	/**********************************************************
+	 * Published items
+	 **********************************************************/
+
+	/**
+	 * Return the items of the given directory as published after the last
+	 * batch that touched that directory.
+	 *    This method must not be invoked from within the writer thread.
+	 *
+	 * @param  directory
+	 *         The directory whose items are to be returned.
+	 * @return An immutable list of the items of the given directory, as
+	 *         they were after some completed batch.
+	 */
+	public List<DiskItem> getPublishedItems(Directory directory)
+			throws InterruptedException {
+		List<DiskItem> result = published.get(directory);
+		if (result != null)
+			return result;
+		// not published, or evicted since it was last published.
+		try {
+			return submit(new Publication(directory)).get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Publish the current items of those of the given directories that
+	 * have been published before or that are requested by the given
+	 * publications, and evict the directories that have been published
+	 * longest ago if more than the maximum number are published.
+	 */
+	private void publish(Set<Directory> directories, List<Publication> publications) {
+		Set<Directory> requested = new HashSet<Directory>();
+		for (Publication publication : publications)
+			requested.add(publication.directory);
+		for (Directory directory : directories) {
+			if (directory.isTerminated()) {
+				published.remove(directory);
+				publishOrder.remove(directory);
+			} else if (requested.contains(directory) || published.containsKey(directory)) {
+				List<DiskItem> items = new ArrayList<DiskItem>(directory.getNbItems());
+				for (int i = 1; i <= directory.getNbItems(); i++)
+					items.add(directory.getItemAt(i));
+				published.put(directory, Collections.unmodifiableList(items));
+				publishOrder.remove(directory);
+				publishOrder.add(directory);
+			}
+		}
+		for (Publication publication : publications)
+			publication.future.complete(published.get(publication.directory));
+		Iterator<Directory> oldest = publishOrder.iterator();
+		while (publishOrder.size() > MAX_PUBLISHED) {
+			published.remove(oldest.next());
+			oldest.remove();
+		}
+	}
+
+	/**
+	 * The maximum number of directories whose items are published.
+	 */
+	private static final int MAX_PUBLISHED = 4096;
+
+	/**
+	 * Variable referencing the published items of the directories that
+	 * have been asked for, and that have not been evicted since.
+	 */
+	private final Map<Directory, List<DiskItem>> published =
+			new ConcurrentHashMap<Directory, List<DiskItem>>();
+
+	/**
+	 * Variable referencing the published directories, in the order in
+	 * which they were last published. Only the writer thread uses it.
+	 */
+	private final Set<Directory> publishOrder = new LinkedHashSet<Directory>();
+
+	/**********************************************************
+	 * Writer
+	 **********************************************************/
+
+	/**
+	 * Take and apply batches of pending commands until this queue is
+	 * shut down.
+	 */
+	private void runWriter() {
+		List<Command<?>> batch = new ArrayList<Command<?>>();
+		boolean running = true;
+		while (running) {
+			try {
+				batch.add(pending.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			pending.drainTo(batch, maximumBatchSize - 1);
+			try {
+				running = applyBatch(batch);
+			} catch (RuntimeException | Error e) {
+				// fail the commands that were not completed, so that no
+				// client waits forever, and keep the writer running.
+				for (Command<?> command : batch) {
+					command.future.fail(e);
+					if (command instanceof Stop)
+						running = false;
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Apply the given batch of commands.
+	 *
+	 * @return False if the batch contains a stop command, true otherwise.
+	 */
+	private boolean applyBatch(List<Command<?>> batch) {
+		Set<Directory> touched = new LinkedHashSet<Directory>();
+		List<Publication> publications = new ArrayList<Publication>();
+		boolean running = true;
+		int start = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			Command<?> command = batch.get(i);
+			if (command instanceof Termination) {
+				applySegment(batch.subList(start, i), touched, publications);
+				applyTermination((Termination) command, touched);
+				start = i + 1;
+			} else if (command instanceof Stop) {
+				running = false;
+			}
+		}
+		applySegment(batch.subList(start, batch.size()), touched, publications);
+		publish(touched, publications);
+		return running;
+	}
+
+	/**
+	 * Apply the given commands, none of which is a termination.
+	 *    Creations, moves and renames are collected in groups per directory
+	 *    they affect. Each group is applied as a whole, so commands of
+	 *    different groups may be applied in another order than they were
+	 *    submitted in. Therefore, a command affecting an item or a
+	 *    directory that some other group affects already first has the
+	 *    groups collected so far applied, so that it can not overtake
+	 *    the commands it depends on.
+	 */
+	private void applySegment(List<Command<?>> segment, Set<Directory> touched,
+			List<Publication> publications) {
+		Map<Directory, List<Command<?>>> groups =
+				new LinkedHashMap<Directory, List<Command<?>>>();
+		// the directory of the group affecting each item, by identity.
+		Map<DiskItem, Directory> owners = new IdentityHashMap<DiskItem, Directory>();
+		Map<File, List<Enlargement>> enlargements =
+				new LinkedHashMap<File, List<Enlargement>>();
+		for (Command<?> command : segment) {
+			if (command instanceof Enlargement) {
+				Enlargement enlargement = (Enlargement) command;
+				List<Enlargement> list = enlargements.get(enlargement.file);
+				if (list == null)
+					enlargements.put(enlargement.file, list = new ArrayList<Enlargement>());
+				list.add(enlargement);
+			} else if (command instanceof Publication) {
+				Publication publication = (Publication) command;
+				touched.add(publication.directory);
+				publications.add(publication);
+			} else if (command instanceof Stop) {
+				command.future.complete(null);
+			} else {
+				Directory directory = command.getDirectory();
+				DiskItem item = command.getItem();
+				if (isOwnedByOther(owners, directory, directory) ||
+					isOwnedByOther(owners, item, directory)) {
+					applyGroups(groups, touched);
+					owners.clear();
+				}
+				if (directory == null) {
+					((Rename) command).applyDirectly();
+					continue;
+				}
+				owners.put(directory, directory);
+				if (item != null)
+					owners.put(item, directory);
+				List<Command<?>> group = groups.get(directory);
+				if (group == null)
+					groups.put(directory, group = new ArrayList<Command<?>>());
+				group.add(command);
+			}
+		}
+		applyGroups(groups, touched);
+		for (Map.Entry<File, List<Enlargement>> entry : enlargements.entrySet())
+			applyEnlargements(entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Check whether the given item is affected by a group of the given
+	 * owners other than the group of the given directory.
+	 */
+	private static boolean isOwnedByOther(Map<DiskItem, Directory> owners,
+			DiskItem item, Directory directory) {
+		if (item == null)
+			return false;
+		Directory owner = owners.get(item);
+		return (owner != null) && (owner != directory);
+	}
+
+	/**
+	 * Apply the given groups in order, and clear them.
+	 */
+	private void applyGroups(Map<Directory, List<Command<?>>> groups,
+			Set<Directory> touched) {
+		for (Map.Entry<Directory, List<Command<?>>> group : groups.entrySet())
+			applyGroup(group.getKey(), group.getValue(), touched);
+		groups.clear();
+	}
+
+	/**
+	 * Apply the given creations, moves and renames, all affecting the
+	 * items of the given directory.
+	 *    Renamed items are first given their new names in place; newly
+	 *    created and moved items are collected. Afterwards, the items of the
+	 *    directory are re-sorted once if needed, and all collected items
+	 *    are merged into them in a single pass.
+	 *    Creations and moves look up names by a binary search over the
+	 *    items of the directory, so the items are re-sorted before a
+	 *    creation or move that follows renames in the same group.
+	 */
+	private void applyGroup(Directory directory, List<Command<?>> group,
+			Set<Directory> touched) {
+		Set<String> newNames = new HashSet<String>();
+		List<DiskItem> added = new ArrayList<DiskItem>();
+		List<Command<?>> applied = new ArrayList<Command<?>>();
+		boolean unsorted = false;
+		for (Command<?> command : group) {
+			try {
+				if (command instanceof Rename) {
+					unsorted |= ((Rename) command).applyInPlace(directory, newNames);
+				} else {
+					if (unsorted) {
+						directory.sortItems();
+						unsorted = false;
+					}
+					if (command instanceof Creation) {
+						added.add(((Creation<?>) command).createIn(directory, newNames));
+					} else {
+						Directory oldParent = ((Move) command).item.getParentDirectory();
+						added.add(((Move) command).detachFor(directory, newNames));
+						if (oldParent != null)
+							touched.add(oldParent);
+					}
+				}
+				applied.add(command);
+			} catch (Exception e) {
+				command.future.fail(e);
+			}
+		}
+		if (unsorted)
+			directory.sortItems();
+		Collections.sort(added, new Comparator<DiskItem>() {
+			public int compare(DiskItem first, DiskItem second) {
+				return first.getName().compareToIgnoreCase(second.getName());
+			}
+		});
+		DiskItemNotWritableException failure = null;
+		try {
+			directory.addAllToItemsAndUpdateModificationTime(added);
+		} catch (DiskItemNotWritableException e) {
+			// the directory has been frozen by another thread since the
+			// items were collected.
+			failure = e;
+		}
+		touched.add(directory);
+		for (Command<?> command : applied) {
+			if ((failure == null) || (command instanceof Rename)) {
+				command.completeApplied();
+			} else {
+				command.discard();
+				command.future.fail(failure);
+			}
+		}
+	}
+
+	/**
+	 * Apply the given enlargements of the given file as a single change of
+	 * its size.
+	 */
+	private static void applyEnlargements(File file, List<Enlargement> enlargements) {
+		long delta = 0;
+		for (Enlargement enlargement : enlargements)
+			delta += enlargement.delta;
+		try {
+			if (delta != 0)
+				file.enlarge(delta);
+			for (Enlargement enlargement : enlargements)
+				enlargement.future.complete(null);
+		} catch (Exception e) {
+			for (Enlargement enlargement : enlargements)
+				enlargement.future.fail(e);
+		}
+	}
+
+	/**
+	 * Apply the given termination.
+	 */
+	private static void applyTermination(Termination termination, Set<Directory> touched) {
+		DiskItem item = termination.item;
+		try {
+			if (!item.canBeTerminated())
+				throw new ImpossibleDeletionException(item);
+			Directory parent = item.getParentDirectory();
+			item.terminate();
+			if (parent != null)
+				touched.add(parent);
+			if (item instanceof Directory)
+				touched.add((Directory) item);
+			termination.future.complete(null);
+		} catch (Exception e) {
+			termination.future.fail(e);
+		}
+	}
+
+	/**
+	 * Return the given name, turned into a valid name that does not occur
+	 * in the given directory nor in the given set of new names (in lower
+	 * case), in the same way the constructors of disk items do.
+	 */
+	private static String getFreshName(Directory directory, String name,
+			Set<String> newNames) {
+		String result = DiskItem.isValidName(name) ? name : "new_item";
+		while (directory.exists(result) || newNames.contains(result.toLowerCase()))
+			result = result + '_';
+		return result;
+	}
+
+	/**
+	 * Check whether the given item may take the given name in the given
+	 * directory, taking into account the given set of new names.
+	 *    The check does not rely on the order of the items in the directory,
+	 *    since that order is temporarily broken while renames are applied.
+	 */
+	private static boolean isFreeName(Directory directory, DiskItem item,
+			String name, Set<String> newNames) {
+		if (newNames.contains(name.toLowerCase()))
+			return false;
+		for (int i = 1; i <= directory.getNbItems(); i++) {
+			DiskItem other = directory.getItemAt(i);
+			if ((other != item) && other.getName().equalsIgnoreCase(name))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Variable referencing the writer thread of this queue.
+	 */
+	private final Thread writer;
+
+	/**********************************************************
+	 * Commands
+	 **********************************************************/
+
+	/**
+	 * A class of commands submitted to a mutation queue.
+	 */
+	private static abstract class Command<T> {
+
+		/**
+		 * Return the directory whose items are affected by this command,
+		 * or null if this command is not grouped per directory.
+		 */
+		Directory getDirectory() {
+			return null;
+		}
+
+		/**
+		 * Return the existing item this command moves or renames, or null
+		 * if it does not move or rename an item.
+		 */
+		DiskItem getItem() {
+			return null;
+		}
+
+		/**
+		 * Complete the future of this command, after it has been applied
+		 * as part of a group.
+		 */
+		void completeApplied() {
+			future.complete(null);
+		}
+
+		/**
+		 * Undo the effects of this command, after it has been applied as
+		 * part of a group whose items could not be registered in their
+		 * directory.
+		 */
+		void discard() {
+		}
+
+		/**
+		 * Variable referencing the future of this command.
+		 */
+		final MutationFuture<T> future = new MutationFuture<T>();
+	}
+
+	/**
+	 * A class of commands creating a new file or directory.
+	 *    A creation without a type creates a directory.
+	 */
+	private static final class Creation<T extends DiskItem> extends Command<T> {
+
+		Creation(Directory parent, String name, Type type, int size, boolean writable) {
+			this.parent = parent;
+			this.name = name;
+			this.type = type;
+			this.size = size;
+			this.writable = writable;
+		}
+
+		@Override
+		Directory getDirectory() {
+			return parent;
+		}
+
+		/**
+		 * Create the new item in the given directory, without registering
+		 * it there yet.
+		 */
+		@SuppressWarnings("unchecked")
+		DiskItem createIn(Directory directory, Set<String> newNames)
+				throws DiskItemNotWritableException {
+			if (directory.isTerminated())
+				throw new IllegalArgumentException();
+			if (!directory.isWritable() || directory.isFrozen())
+				throw new DiskItemNotWritableException(directory);
+			String freshName = getFreshName(directory, name, newNames);
+			newNames.add(freshName.toLowerCase());
+			if (type == null)
+				created = (T) Directory.createUnregistered(directory, freshName, writable);
+			else
+				created = (T) File.createUnregistered(directory, freshName, type, size, writable);
+			return created;
+		}
+
+		@Override
+		void completeApplied() {
+			MutationListeners.itemCreated(created);
+			future.complete(created);
+		}
+
+		@Override
+		void discard() {
+			DiskItem.unregister(created);
+		}
+
+		private final Directory parent;
+		private final String name;
+		private final Type type;
+		private final int size;
+		private final boolean writable;
+		private T created;
+	}
+
+	/**
+	 * A class of commands moving an item to another directory.
+	 */
+	private static final class Move extends Command<Void> {
+
+		Move(DiskItem item, Directory target) {
+			this.item = item;
+			this.target = target;
+		}
+
+		@Override
+		Directory getDirectory() {
+			return target;
+		}
+
+		@Override
+		DiskItem getItem() {
+			return item;
+		}
+
+		/**
+		 * Remove the item of this move from its parent directory and make
+		 * it reference the given target directory, without registering it
+		 * there yet.
+		 */
+		DiskItem detachFor(Directory directory, Set<String> newNames)
+				throws IllegalAddException, DiskItemNotWritableException,
+				       NoSuchItemException {
+			if (item.getParentDirectory() == directory)
+				throw new IllegalArgumentException();
+			if (item.isFrozen() ||
+				((item instanceof Directory) && !((Directory) item).isWritable()))
+				throw new DiskItemNotWritableException(item);
+			if (!directory.isWritable() || directory.isFrozen())
+				throw new DiskItemNotWritableException(directory);
+			if (!directory.canHaveAsItem(item) ||
+				newNames.contains(item.getName().toLowerCase()))
+				throw new IllegalAddException(directory, item);
+			oldParent = item.getParentDirectory();
+			if (!item.isRoot())
+				item.getParentDirectory().removeFromItemsAndUpdateModificationTime(item);
+			item.setParentDirectory(directory);
+			item.setModificationTime();
+			newNames.add(item.getName().toLowerCase());
+			return item;
+		}
+
+		@Override
+		void completeApplied() {
+			MutationListeners.itemMoved(item, oldParent);
+			future.complete(null);
+		}
+
+		/**
+		 * Register the item of this move in its old parent directory again.
+		 *    If that directory can not take it back either, the item is
+		 *    left without a registering directory; the failure of the move
+		 *    is reported through its future.
+		 */
+		@Override
+		void discard() {
+			try {
+				item.setParentDirectory(oldParent);
+				if (oldParent != null)
+					oldParent.addToItemsAndUpdateModificationTime(item);
+			} catch (Exception e) {
+				// the old parent directory has been frozen as well.
+			}
+		}
+
+		private final DiskItem item;
+		private final Directory target;
+		private Directory oldParent;
+	}
+
+	/**
+	 * A class of commands changing the name of an item.
+	 */
+	private static final class Rename extends Command<Void> {
+
+		Rename(DiskItem item, String name) {
+			this.item = item;
+			this.name = name;
+			this.directory = item.getParentDirectory();
+		}
+
+		@Override
+		Directory getDirectory() {
+			return directory;
+		}
+
+		@Override
+		DiskItem getItem() {
+			return item;
+		}
+
+		/**
+		 * Give the item of this rename its new name without restoring the
+		 * order of the items in the given directory.
+		 *    If the item has been moved to another directory since this
+		 *    rename was submitted, the rename is applied directly.
+		 *
+		 * @return True if the order of the items in the given directory
+		 *         must be restored.
+		 */
+		boolean applyInPlace(Directory directory, Set<String> newNames)
+				throws DiskItemNotWritableException {
+			if (item.isFrozen() ||
+				((item instanceof RealDiskItem) && !((RealDiskItem) item).isWritable()))
+				throw new DiskItemNotWritableException(item);
+			if (item.getParentDirectory() != directory) {
+				item.changeName(name);
+				return false;
+			}
+			if (item.isTerminated() || !DiskItem.isValidName(name) ||
+				!isFreeName(directory, item, name, newNames))
+				return false;
+			item.changeNameWithoutReordering(name);
+			return true;
+		}
+
+		/**
+		 * Apply this rename directly, outside of any group.
+		 */
+		void applyDirectly() {
+			try {
+				item.changeName(name);
+				future.complete(null);
+			} catch (Exception e) {
+				future.fail(e);
+			}
+		}
+
+		private final DiskItem item;
+		private final String name;
+		private final Directory directory;
+	}
+
+	/**
+	 * A class of commands enlarging a file.
+	 */
+	private static final class Enlargement extends Command<Void> {
+
+		Enlargement(File file, long delta) {
+			this.file = file;
+			this.delta = delta;
+		}
+
+		private final File file;
+		private final long delta;
+	}
+
+	/**
+	 * A class of commands terminating an item.
+	 */
+	private static final class Termination extends Command<Void> {
+
+		Termination(DiskItem item) {
+			this.item = item;
+		}
+
+		private final DiskItem item;
+	}
+
+	/**
+	 * A class of commands requesting the publication of the items of a
+	 * directory that has not been touched by the queue yet.
+	 */
+	private static final class Publication extends Command<List<DiskItem>> {
+
+		Publication(Directory directory) {
+			this.directory = directory;
+		}
+
+		private final Directory directory;
+	}
+
+	/**
+	 * A class of commands stopping the writer thread.
+	 */
+	private static final class Stop extends Command<Void> {
+
+		@Override
+		void completeApplied() {
+			future.complete(null);
+		}
+	}
+}
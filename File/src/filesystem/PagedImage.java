@@ -0,0 +1,129 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import filesystem.exception.InvalidImageException;
+
+/**
+ * A class of memory-mapped images from which the items of directories are
+ * paged on demand.
+ *    Directories opened from an image are paged under the index of their
+ *    record; their number of items and total disk usage are read from
+ *    their record. Pinned directories are never unpinned, so that
+ *    mutated items are never lost.
+ *
+ * @see DiskImage#open(java.nio.file.Path, int)
+ */
+final class PagedImage extends Pager {
+
+	/**
+	 * Initialize a new paged image for the given mapped image, keeping at
+	 * most the given number of items loaded if possible.
+	 *
+	 * @throws InvalidImageException
+	 *         The image is not rooted at a valid directory.
+	 */
+	PagedImage(MappedImage image, int maxLoadedItems) throws InvalidImageException {
+		super(maxLoadedItems);
+		this.image = image;
+		if (image.getKind(0) != DiskImage.DIRECTORY)
+			throw new InvalidImageException("Image is not rooted at a directory");
+		DiskItem.reserveIds(image.getNextId());
+		try {
+			root = new Directory(image.getName(0), image.isWritable(0));
+		} catch (Exception e) {
+			throw new InvalidImageException("Invalid root directory");
+		}
+		DiskImage.restore(root, image, 0, null);
+		root.page(this, 0, image.getNbChildren(0), image.getTotalDiskUsage(0),
+				image.getSubtreeChangeTime(0));
+	}
+
+	/**
+	 * Return the root directory of this image.
+	 */
+	Directory getRoot() {
+		return root;
+	}
+
+	/**
+	 * Return new items for the records of the items of the given
+	 * directory.
+	 *
+	 * @throws IllegalStateException
+	 *         The records of the items of the given directory are corrupt.
+	 */
+	@Override
+	List<DiskItem> readItems(Directory directory) throws IllegalStateException {
+		int index = (int) directory.getPagedKey();
+		int first = image.getFirstChild(index);
+		int nbChildren = image.getNbChildren(index);
+		if ((nbChildren < 0) || (first <= index) ||
+			(first + (long) nbChildren > image.getNbItems()))
+			throw new IllegalStateException("Invalid directory record " + index);
+		List<DiskItem> children = new ArrayList<DiskItem>(nbChildren);
+		try {
+			for (int child = first; child < first + nbChildren; child++) {
+				DiskItem item = DiskImage.createItem(directory, image, child);
+				DiskImage.restore(item, image, child, null);
+				if (item instanceof Directory)
+					((Directory) item).page(this, child, image.getNbChildren(child),
+							image.getTotalDiskUsage(child), image.getSubtreeChangeTime(child));
+				else if ((item instanceof Link) && (image.getReferral(child) >= 0))
+					((Link) item).pageReferral(this, image.getReferral(child), null);
+				children.add(item);
+			}
+		} catch (InvalidImageException e) {
+			throw new IllegalStateException("Corrupt image", e);
+		}
+		return children;
+	}
+
+	/**
+	 * Return the item loaded from the record at the given index, loading
+	 * the items of its ancestors if needed, and pin its parent directory.
+	 *
+	 * @param  key
+	 *         The index of the record of the referral of some link.
+	 * @param  name
+	 *         Ignored.
+	 * @return The real disk item loaded from that record, or null if it
+	 *         is not a real disk item.
+	 */
+	@Override
+	synchronized RealDiskItem resolveReferral(long key, String name) {
+		DiskItem result = find((int) key);
+		if ((result != null) && (result.getParentDirectory() != null))
+			result.getParentDirectory().pin();
+		return (result instanceof RealDiskItem)? (RealDiskItem) result : null;
+	}
+
+	/**
+	 * Return the item loaded from the record at the given index, loading
+	 * the items of its ancestors if needed.
+	 */
+	private DiskItem find(int index) {
+		if ((index <= 0) || (index >= image.getNbItems()))
+			return (index == 0)? root : null;
+		int parentIndex = image.getParent(index);
+		if ((parentIndex < 0) || (parentIndex >= index))
+			return null;
+		DiskItem parent = find(parentIndex);
+		if (!(parent instanceof Directory))
+			return null;
+		Directory directory = (Directory) parent;
+		load(directory);
+		int offset = index - image.getFirstChild(parentIndex);
+		if ((offset < 0) || (offset >= image.getNbChildren(parentIndex)))
+			return null;
+		return directory.getPagedItemAt(offset);
+	}
+
+	/**
+	 * Variables referencing the mapped image and the root directory
+	 * opened from it.
+	 */
+	private final MappedImage image;
+	private final Directory root;
+}
@@ -0,0 +1,182 @@
+package filesystem;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * A class of sources from which the items of directories are paged on
+ * demand.
+ *    A paged directory only holds the key under which its items are
+ *    recorded until its items are first used; its number of items and
+ *    total disk usage are recorded with it. Once loaded, the items of a
+ *    directory may be evicted again if more items are loaded than the
+ *    configured maximum. Eviction follows the CLOCK approximation of the
+ *    least-recently-used policy: each use of a directory marks it, and
+ *    marked directories get a second chance before being evicted.
+ *    Directories whose items, or whose direct or indirect items, have been
+ *    mutated are pinned, and not evicted until they are unpinned. So are
+ *    the ancestors of the referrals of links that have been resolved.
+ *    Evicted items that are still referenced elsewhere are reused once
+ *    the items of their directory are loaded again, so that references
+ *    held by clients remain part of the tree.
+ *
+ * @see PagedImage
+ * @see StoredTree
+ */
+abstract class Pager {
+
+	/**
+	 * Initialize a new pager keeping at most the given number of items
+	 * loaded if possible.
+	 */
+	Pager(int maxLoadedItems) {
+		this.maxLoadedItems = maxLoadedItems;
+	}
+
+	/**
+	 * Return the number of items currently loaded by this pager, apart
+	 * from the items of pinned directories.
+	 */
+	synchronized int getNbLoadedItems() {
+		return nbLoadedItems;
+	}
+
+	/**
+	 * Load the items of the given directory, and evict the items of other
+	 * directories if too many items are loaded.
+	 *
+	 * @throws IllegalStateException
+	 *         The items of the given directory cannot be read.
+	 */
+	synchronized void load(Directory directory) throws IllegalStateException {
+		if (directory.areItemsLoaded())
+			return;
+		List<DiskItem> children;
+		directory.setLoading(true);
+		try {
+			children = readItems(directory);
+		} finally {
+			directory.setLoading(false);
+		}
+		directory.installPagedItems(children);
+		if (!directory.isPinned()) {
+			nbLoadedItems += children.size();
+			loaded.add(directory);
+		}
+		evict(directory);
+	}
+
+	/**
+	 * Return new items for the records of the items of the given
+	 * directory, in the order of their names.
+	 *    Directories among them are paged by this pager, and the referrals
+	 *    of links among them are resolved by this pager.
+	 *
+	 * @throws IllegalStateException
+	 *         The items of the given directory cannot be read.
+	 */
+	abstract List<DiskItem> readItems(Directory directory) throws IllegalStateException;
+
+	/**
+	 * Check whether the given directory, whose items are not loaded, may
+	 * have an item with the given name.
+	 *    The default implementation always answers true.
+	 */
+	boolean mayContain(Directory directory, String name) {
+		return true;
+	}
+
+	/**
+	 * Return the real disk item recorded under the given key and name,
+	 * loading the items of its ancestors if needed, and pin its parent
+	 * directory.
+	 *
+	 * @return The real disk item, or null if it cannot be found.
+	 */
+	abstract RealDiskItem resolveReferral(long key, String name);
+
+	/**
+	 * Register that the given directory, whose items are paged by this
+	 * pager, has been pinned.
+	 *    The default implementation does nothing.
+	 */
+	void pinned(Directory directory) {
+	}
+
+	/**
+	 * Register that the given directory, whose items are paged by this
+	 * pager and are not loaded, has been terminated or released with its
+	 * tree, so that its items will never be loaded.
+	 *    The default implementation does nothing.
+	 */
+	void dropped(Directory directory) {
+	}
+
+	/**
+	 * Unpin the given directories, so that their items may be evicted
+	 * again.
+	 */
+	synchronized void unpin(Iterable<Directory> directories) {
+		for (Directory directory : directories) {
+			int count = directory.unpin();
+			if (count >= 0) {
+				nbLoadedItems += count;
+				loaded.add(directory);
+			}
+		}
+		evict(null);
+	}
+
+	/**
+	 * Stop paging the items of the given directory, which are loaded, and
+	 * forget the items loaded for it.
+	 */
+	synchronized void release(Directory directory) {
+		nbLoadedItems -= directory.releaseNbPagedItems();
+	}
+
+	/**
+	 * Evict the items of unpinned directories that have not been used
+	 * recently, until at most the maximum number of items is loaded or no
+	 * further directory can be evicted.
+	 *    Directories whose items are no longer loaded or that have been
+	 *    pinned are dropped from the queue of loaded directories. The
+	 *    given directory and its ancestors are never evicted.
+	 */
+	private void evict(Directory current) {
+		for (int budget = 2 * loaded.size();
+				(nbLoadedItems > maxLoadedItems) && (budget > 0) && !loaded.isEmpty();
+				budget--) {
+			Directory candidate = loaded.poll();
+			if (!candidate.areItemsLoaded())
+				continue;
+			if (candidate.isPinned()) {
+				nbLoadedItems -= candidate.releaseNbPagedItems();
+				continue;
+			}
+			if (candidate.testAndClearReferenced() ||
+				((current != null) && candidate.equalsOrIsDirectOrIndirectParentOf(current)))
+				loaded.add(candidate);
+			else
+				nbLoadedItems -= candidate.evictItems();
+		}
+	}
+
+	/**
+	 * Variable registering the maximum number of items to keep loaded.
+	 */
+	private final int maxLoadedItems;
+
+	/**
+	 * Variable registering the number of items loaded for the directories
+	 * in the queue of loaded directories.
+	 */
+	private int nbLoadedItems;
+
+	/**
+	 * Variable referencing the queue of directories whose items have been
+	 * loaded, in the order in which the clock hand visits them.
+	 */
+	private final Queue<Directory> loaded = new ArrayDeque<Directory>();
+}
@@ -32,9 +32,33 @@ public abstract class RealDiskItem extends DiskItem {
 		super(parent, name);
 		if (!parent.isWritable())
 			throw new DiskItemNotWritableException(parent);
-		setWritability(writable);
+		initializeWritability(writable);
 		
 	}
+	/**
+	 * Initialize this real diskitem with a given parent, name and writability,
+	 * without registering it in the given parent.
+	 * 
+	 * @param parent
+	 * 		  The parent folder of this new real diskitem
+	 * @param name
+	 * 		  The name of this new diskitem
+	 * @param writable
+	 * 		  The writability of this new diskitem
+	 * @param unregistered
+	 * 		  The marker selecting this constructor
+	 * @post  The writability of this file equals the given writability
+	 * 			| isWritable == writable
+	 * @effect Initialize this new real diskitem as an unregistered diskitem
+	 * 			with the given parent and name
+	 * 			|super(parent, name, unregistered)
+	 */
+	@Model RealDiskItem(Directory parent, String name, boolean writable, Unregistered unregistered)
+			throws IllegalArgumentException
+	{
+		super(parent, name, unregistered);
+		initializeWritability(writable);
+	}
 	/**
 	 * Initialize a new root disk item with given name.
 	 * 
@@ -128,13 +152,117 @@ public abstract class RealDiskItem extends DiskItem {
 	 *        The new writability
      * @pre    This disk item is not terminated.
      *         | ! isTerminated()  
+	 * @post  The given writability is registered as the writability
+	 *        for this disk item.
+	 *        | new.isWritable() == isWritable
+	 * @effect If the writability changes, this disk item is registered as
+	 *         changed since the last checkpoint, and all mutation
+	 *         listeners are notified of the change.
+	 * @throws DiskItemNotWritableException
+	 *         This disk item is part of a frozen subtree.
+	 *         | isFrozen()
+	 */
+	public void setWritability(boolean isWritable) throws DiskItemNotWritableException {
+		if (isFrozen())
+			throw new DiskItemNotWritableException(this);
+		boolean changed = (this.isWritable != isWritable);
+		initializeWritability(isWritable);
+		if (changed) {
+			markDirty();
+			MutationListeners.writabilityChanged(this);
+		}
+	}
+
+	/**
+	 * Set the writability of this disk item to the given writability,
+	 * while this disk item is being initialized.
+	 *
+	 * @param isWritable
+	 *        The new writability
 	 * @post  The given writability is registered as the writability
 	 *        for this disk item.
 	 *        | new.isWritable() == isWritable
 	 */
-	public void setWritability(boolean isWritable) {
+	@Model void initializeWritability(boolean isWritable) {
+		preserveVersion();
 		this.isWritable = isWritable;
 	}
 
+	/**********************************************************
+	 * cloning
+	 **********************************************************/
+
+	/**
+	 * Return a copy of this real disk item with the given name in the given
+	 * directory.
+	 *    The copy has the type, size, content, writability, creation and
+	 *    modification time of this real disk item, and, for a directory,
+	 *    copies of all its direct and indirect items. Copies are made
+	 *    lazily: the items of a cloned directory are only copied when they
+	 *    are first used, or when the directory they are copied from is about
+	 *    to be mutated, and content is shared until it is written.
+	 *
+	 * @param  target
+	 *         The directory in which the copy is registered.
+	 * @param  name
+	 *         The name of the copy.
+	 * @return The copy is registered in the given directory under the given
+	 *         name.
+	 *         | result.getParentDirectory() == target &&
+	 *         | result.getName().equals(name)
+	 * @effect The copy is added to the given directory.
+	 *         | target.addToItemsAndUpdateModificationTime(result)
+	 * @effect All mutation listeners are notified of the creation of the
+	 *         copy.
+	 * @throws IllegalArgumentException
+	 *         The given directory is not effective, the given name is not
+	 *         valid, or the given directory is this real disk item or one of
+	 *         its direct or indirect items.
+	 *         | (target == null) || !isValidName(name) ||
+	 *         | equalsOrIsDirectOrIndirectParentOf(target)
+	 * @throws DiskItemNotWritableException
+	 *         The given directory is not writable or is frozen.
+	 *         | !target.isWritable() || target.isFrozen()
+	 * @throws IllegalAddException
+	 *         The given directory can not have the copy as item.
+	 *         | !target.canHaveAsItem(result)
+	 */
+	public RealDiskItem cloneInto(Directory target, String name)
+			throws IllegalArgumentException, DiskItemNotWritableException,
+			       IllegalAddException {
+		if ((target == null) || !isValidName(name) ||
+			equalsOrIsDirectOrIndirectParentOf(target))
+			throw new IllegalArgumentException();
+		if (!target.isWritable() || target.isFrozen())
+			throw new DiskItemNotWritableException(target);
+		RealDiskItem result = copy(target, name);
+		try {
+			target.addToItemsAndUpdateModificationTime(result);
+		} catch (DiskItemNotWritableException | IllegalAddException e) {
+			result.discardCopy();
+			throw e;
+		}
+		MutationListeners.itemCreated(result);
+		return result;
+	}
+
+	/**
+	 * Return a copy of this real disk item with the given name in the given
+	 * directory, without registering it in that directory.
+	 *
+	 * @see #cloneInto(Directory, String)
+	 */
+	@Model abstract RealDiskItem copy(Directory parent, String name);
+
+	/**
+	 * Discard this copy, which could not be registered in its directory,
+	 * and release what it holds.
+	 *    The default implementation unregisters the identifier of this
+	 *    copy.
+	 */
+	@Model void discardCopy() {
+		unregister(this);
+	}
+
 
 }
@@ -0,0 +1,28 @@
+package filesystem;
+
+/**
+ * A class of snapshot epochs, shared by all views of one snapshot.
+ *    A snapshot stays live as long as its epoch object is referenced,
+ *    which is the case as long as any view on the snapshot is referenced.
+ */
+final class SnapshotEpoch {
+
+	/**
+	 * Initialize a new snapshot epoch with the given epoch.
+	 */
+	SnapshotEpoch(long epoch) {
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Return the epoch of this snapshot.
+	 */
+	long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Variable registering the epoch of this snapshot.
+	 */
+	private final long epoch;
+}
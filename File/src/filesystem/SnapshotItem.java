@@ -0,0 +1,209 @@
+package filesystem;
+
+import java.util.Date;
+
+/**
+ * A class of snapshot items, offering a frozen, read-only view of a disk
+ * item as it was when a snapshot was taken.
+ *    A snapshot item reflects the state of its disk item at the moment
+ *    the snapshot was taken, regardless of later mutations of that disk
+ *    item. Snapshot items offer the inspectors of disk items, but none of
+ *    their mutators.
+ */
+public abstract class SnapshotItem {
+
+	/**
+	 * Initialize a new snapshot item for the given disk item and snapshot.
+	 *
+	 * @param  item
+	 *         The disk item viewed by the new snapshot item.
+	 * @param  snapshot
+	 *         The snapshot the new snapshot item belongs to.
+	 */
+	SnapshotItem(DiskItem item, SnapshotEpoch snapshot) {
+		this.item = item;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Return a snapshot item for the given disk item in the given snapshot.
+	 *
+	 * @return A directory snapshot if the given item is a directory, a
+	 *         file snapshot if it is a file, a link snapshot otherwise;
+	 *         null if the given item is not effective.
+	 */
+	static SnapshotItem of(DiskItem item, SnapshotEpoch snapshot) {
+		if (item == null)
+			return null;
+		if (item instanceof Directory)
+			return new DirectorySnapshot((Directory) item, snapshot);
+		if (item instanceof File)
+			return new FileSnapshot((File) item, snapshot);
+		return new LinkSnapshot((Link) item, snapshot);
+	}
+
+	/**
+	 * Return the state of the disk item of this snapshot item at the time
+	 * the snapshot was taken.
+	 */
+	ItemVersion getVersion() {
+		return item.getVersionAt(snapshot.getEpoch());
+	}
+
+	/**
+	 * Return the disk item viewed by this snapshot item.
+	 */
+	DiskItem getItem() {
+		return item;
+	}
+
+	/**
+	 * Return the snapshot this snapshot item belongs to.
+	 */
+	SnapshotEpoch getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Return the name of this snapshot item.
+	 */
+	public String getName() {
+		return getVersion().name;
+	}
+
+	/**
+	 * Return the time at which the disk item of this snapshot item was
+	 * created.
+	 */
+	public Date getCreationTime() {
+		return item.getCreationTime();
+	}
+
+	/**
+	 * Return the time at which the disk item of this snapshot item was
+	 * created, in milliseconds since the epoch.
+	 */
+	public long getCreationTimeMillis() {
+		return item.getCreationTimeMillis();
+	}
+
+	/**
+	 * Return the time at which this snapshot item was last modified, or
+	 * null if it was not modified after its construction.
+	 */
+	public Date getModificationTime() {
+		long result = getVersion().modificationTime;
+		return (result == DiskItem.NO_TIME)? null : new Date(result);
+	}
+
+	/**
+	 * Return the time at which this snapshot item was last modified, in
+	 * milliseconds since the epoch, or DiskItem.NO_TIME if it was not
+	 * modified after its construction.
+	 */
+	public long getModificationTimeMillis() {
+		return getVersion().modificationTime;
+	}
+
+	/**
+	 * Check whether this snapshot item was terminated.
+	 */
+	public boolean isTerminated() {
+		return getVersion().isTerminated;
+	}
+
+	/**
+	 * Return the parent directory of this snapshot item, or null if this
+	 * snapshot item is a root item.
+	 */
+	public DirectorySnapshot getParentDirectory() {
+		Directory parent = getVersion().parentDirectory;
+		return parent == null ? null : new DirectorySnapshot(parent, snapshot);
+	}
+
+	/**
+	 * Check whether this snapshot item is a root item.
+	 *
+	 * @return | result == (getParentDirectory() == null)
+	 */
+	public boolean isRoot() {
+		return getVersion().parentDirectory == null;
+	}
+
+	/**
+	 * Check whether the name of this snapshot item is lexicographically
+	 * ordered before the given name, ignoring case.
+	 *
+	 * @return | result == (name != null) &&
+	 *         |           (getName().compareToIgnoreCase(name) < 0)
+	 */
+	public boolean isOrderedBefore(String name) {
+		return (name != null) && (getName().compareToIgnoreCase(name) < 0);
+	}
+
+	/**
+	 * Return the total disk usage of this snapshot item.
+	 *
+	 * @return The result is positive.
+	 *       | result >= 0
+	 */
+	public long getTotalDiskUsage() {
+		return getVersion().totalDiskUsage;
+	}
+
+	/**
+	 * Return the absolute path of this snapshot item.
+	 *
+	 * @return The textual representation of this snapshot item preceded
+	 *         by the names of all its direct and indirect parent
+	 *         directories, each preceded by a slash.
+	 */
+	public String getAbsolutePath() {
+		StringBuilder path = new StringBuilder();
+		for (SnapshotItem item = this; item != null; item = item.getParentDirectory())
+			path.insert(0, item.toString()).insert(0, '/');
+		return path.toString();
+	}
+
+	/**
+	 * Return a textual representation of this snapshot item.
+	 *
+	 * @return The name of this snapshot item.
+	 *       | result.equals(getName())
+	 */
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Check whether this snapshot item equals the given object.
+	 *
+	 * @return True if the given object is a snapshot item viewing the same
+	 *         disk item in the same snapshot.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		return (other instanceof SnapshotItem) &&
+			   (((SnapshotItem) other).item == item) &&
+			   (((SnapshotItem) other).snapshot == snapshot);
+	}
+
+	/**
+	 * Return the hash code of this snapshot item.
+	 */
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(item) * 31 + System.identityHashCode(snapshot);
+	}
+
+	/**
+	 * Variable referencing the disk item viewed by this snapshot item.
+	 */
+	private final DiskItem item;
+
+	/**
+	 * Variable referencing the snapshot this snapshot item belongs to.
+	 */
+	private final SnapshotEpoch snapshot;
+}
@@ -0,0 +1,74 @@
+package filesystem;
+
+/**
+ * A class of keys of entries in a metadata store, consisting of the id of
+ * a parent directory and the name of an item, folded to lower case.
+ *    Keys are ordered on their parent id first, and on their folded name
+ *    next, so that the items of a directory form one contiguous range of
+ *    keys, in the order they have in their directory.
+ */
+final class StoreKey implements Comparable<StoreKey> {
+
+	/**
+	 * Initialize a new key with the given parent id and name.
+	 *
+	 * @param  parent
+	 *         The id of the parent directory.
+	 * @param  name
+	 *         The name of the item, which is folded to lower case.
+	 */
+	StoreKey(long parent, String name) {
+		this.parent = parent;
+		this.name = name.toLowerCase();
+	}
+
+	/**
+	 * Return the id of the parent directory of this key.
+	 */
+	long getParent() {
+		return parent;
+	}
+
+	/**
+	 * Return the folded name of this key.
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the smallest key with the given parent id.
+	 */
+	static StoreKey first(long parent) {
+		return new StoreKey(parent, "");
+	}
+
+	@Override
+	public int compareTo(StoreKey other) {
+		if (parent != other.parent)
+			return (parent < other.parent)? -1 : 1;
+		return name.compareTo(other.name);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return (other instanceof StoreKey) && (((StoreKey) other).parent == parent) &&
+				((StoreKey) other).name.equals(name);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (parent ^ (parent >>> 32)) * 31 + name.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return parent + "/" + name;
+	}
+
+	/**
+	 * Variables registering the parent id and the folded name of this key.
+	 */
+	private final long parent;
+	private final String name;
+}
@@ -0,0 +1,595 @@
+package filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import filesystem.exception.InvalidImageException;
+
+/**
+ * A class of immutable sorted run files of a metadata store.
+ *    A run consists of a sequence of blocks of entries in key order, an
+ *    index holding the first key, the offset and the length of each block,
+ *    a Bloom filter of all keys, and a fixed-size footer. Each block ends
+ *    with a CRC32 checksum. The index and the Bloom filter are kept in
+ *    memory while the run is open; blocks are read on demand through a
+ *    shared block cache.
+ *
+ * @see MetadataStore
+ */
+final class StoreRun {
+
+	/**
+	 * Write the given entries to a new run at the given path, and open it.
+	 *
+	 * @param  path
+	 *         The path of the new run.
+	 * @param  id
+	 *         The id of the new run.
+	 * @param  entries
+	 *         The entries to write, in strictly increasing key order. A value
+	 *         equal to MetadataStore.TOMBSTONE marks a deleted key.
+	 * @param  expectedCount
+	 *         An upper bound on the number of entries, used to size the
+	 *         Bloom filter.
+	 * @param  dropTombstones
+	 *         Whether entries marking deleted keys must be left out.
+	 */
+	static StoreRun write(Path path, long id, Iterator<Map.Entry<StoreKey, byte[]>> entries,
+			long expectedCount, boolean dropTombstones) throws IOException {
+		int nbBits = (int) Math.min(Integer.MAX_VALUE - 63,
+				Math.max(64, expectedCount * BITS_PER_KEY)) & ~63;
+		long[] bloom = new long[nbBits / 64];
+		List<StoreKey> firstKeys = new ArrayList<StoreKey>();
+		List<long[]> extents = new ArrayList<long[]>();
+		long nbEntries = 0;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+			DataOutputStream block = new DataOutputStream(bytes);
+			List<byte[]> pending = new ArrayList<byte[]>();
+			StoreKey first = null;
+			long offset = 0;
+			while (entries.hasNext()) {
+				Map.Entry<StoreKey, byte[]> entry = entries.next();
+				byte[] value = entry.getValue();
+				if (dropTombstones && (value == MetadataStore.TOMBSTONE))
+					continue;
+				if (first == null)
+					first = entry.getKey();
+				pending.add(encode(entry.getKey(), value));
+				addToBloom(bloom, entry.getKey());
+				nbEntries++;
+				if (pending.size() * 32 >= BLOCK_SIZE || size(pending) >= BLOCK_SIZE) {
+					offset += writeBlock(channel, offset, bytes, block, pending, firstKeys,
+							extents, first);
+					first = null;
+				}
+			}
+			if (!pending.isEmpty())
+				offset += writeBlock(channel, offset, bytes, block, pending, firstKeys,
+						extents, first);
+			long indexOffset = offset;
+			bytes.reset();
+			block.writeInt(firstKeys.size());
+			for (int i = 0; i < firstKeys.size(); i++) {
+				writeKey(block, firstKeys.get(i));
+				block.writeLong(extents.get(i)[0]);
+				block.writeInt((int) extents.get(i)[1]);
+			}
+			long bloomOffset = indexOffset + bytes.size();
+			block.writeInt(nbBits);
+			for (long word : bloom)
+				block.writeLong(word);
+			block.writeLong(indexOffset);
+			block.writeLong(bloomOffset);
+			block.writeLong(nbEntries);
+			block.writeInt(MAGIC);
+			write(channel, offset, bytes.toByteArray());
+			channel.force(true);
+		}
+		return open(path, id);
+	}
+
+	/**
+	 * Write a block holding the given encoded entries at the given offset,
+	 * register its first key and extent, and clear the given entries.
+	 *
+	 * @return The length of the written block.
+	 */
+	private static long writeBlock(FileChannel channel, long offset,
+			ByteArrayOutputStream bytes, DataOutputStream block, List<byte[]> pending,
+			List<StoreKey> firstKeys, List<long[]> extents, StoreKey first)
+			throws IOException {
+		bytes.reset();
+		block.writeInt(pending.size());
+		for (byte[] entry : pending)
+			block.write(entry);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray(), 0, bytes.size());
+		block.writeInt((int) crc.getValue());
+		byte[] data = bytes.toByteArray();
+		write(channel, offset, data);
+		firstKeys.add(first);
+		extents.add(new long[] {offset, data.length});
+		pending.clear();
+		return data.length;
+	}
+
+	/**
+	 * Return the total length of the given encoded entries.
+	 */
+	private static int size(List<byte[]> entries) {
+		int result = 0;
+		for (byte[] entry : entries)
+			result += entry.length;
+		return result;
+	}
+
+	/**
+	 * Write all given bytes to the given channel at the given offset.
+	 */
+	private static void write(FileChannel channel, long offset, byte[] data)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining())
+			offset += channel.write(buffer, offset);
+	}
+
+	/**
+	 * Return the encoding of the given entry: its key, followed by the
+	 * length of its value, or -1 for a tombstone, and the value itself.
+	 */
+	private static byte[] encode(StoreKey key, byte[] value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + value.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeKey(out, key);
+		if (value == MetadataStore.TOMBSTONE) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write the given key to the given output.
+	 */
+	private static void writeKey(DataOutputStream out, StoreKey key) throws IOException {
+		byte[] name = key.getName().getBytes(ASCII);
+		out.writeLong(key.getParent());
+		out.writeShort(name.length);
+		out.write(name);
+	}
+
+	/**
+	 * Read a key from the given buffer.
+	 */
+	private static StoreKey readKey(ByteBuffer buffer) {
+		long parent = buffer.getLong();
+		byte[] name = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(name);
+		return new StoreKey(parent, new String(name, ASCII));
+	}
+
+	/**
+	 * Open the run at the given path, reading its index and Bloom filter.
+	 *
+	 * @throws InvalidImageException
+	 *         The run is truncated or corrupted.
+	 */
+	static StoreRun open(Path path, long id) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			if (length < FOOTER_SIZE)
+				throw new InvalidImageException("Run is truncated");
+			ByteBuffer footer = read(channel, length - FOOTER_SIZE, FOOTER_SIZE);
+			long indexOffset = footer.getLong();
+			long bloomOffset = footer.getLong();
+			long nbEntries = footer.getLong();
+			if ((footer.getInt() != MAGIC) || (indexOffset < 0) ||
+				(bloomOffset < indexOffset) || (bloomOffset > length - FOOTER_SIZE))
+				throw new InvalidImageException("Not a run of a metadata store");
+			ByteBuffer index = read(channel, indexOffset, (int) (bloomOffset - indexOffset));
+			int nbBlocks = index.getInt();
+			StoreKey[] firstKeys = new StoreKey[nbBlocks];
+			long[] offsets = new long[nbBlocks];
+			int[] lengths = new int[nbBlocks];
+			for (int i = 0; i < nbBlocks; i++) {
+				firstKeys[i] = readKey(index);
+				offsets[i] = index.getLong();
+				lengths[i] = index.getInt();
+			}
+			ByteBuffer filter = read(channel, bloomOffset,
+					(int) (length - FOOTER_SIZE - bloomOffset));
+			int nbBits = filter.getInt();
+			long[] bloom = new long[(nbBits + 63) / 64];
+			for (int i = 0; i < bloom.length; i++)
+				bloom[i] = filter.getLong();
+			return new StoreRun(path, id, channel, firstKeys, offsets, lengths, bloom,
+					nbBits, nbEntries);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw new InvalidImageException("Run is corrupted");
+		}
+	}
+
+	/**
+	 * Read the given number of bytes at the given offset of the given
+	 * channel.
+	 */
+	private static ByteBuffer read(FileChannel channel, long offset, int length)
+			throws IOException {
+		ByteBuffer result = ByteBuffer.allocate(length);
+		while (result.hasRemaining())
+			if (channel.read(result, offset + result.position()) < 0)
+				throw new InvalidImageException("Run is truncated");
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * Initialize a new open run.
+	 */
+	private StoreRun(Path path, long id, FileChannel channel, StoreKey[] firstKeys,
+			long[] offsets, int[] lengths, long[] bloom, int nbBits, long nbEntries) {
+		this.path = path;
+		this.id = id;
+		this.channel = channel;
+		this.firstKeys = firstKeys;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.bloom = bloom;
+		this.nbBits = nbBits;
+		this.nbEntries = nbEntries;
+	}
+
+	/**
+	 * Return the path of this run.
+	 */
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Return the id of this run; runs with a higher id are newer.
+	 */
+	long getId() {
+		return id;
+	}
+
+	/**
+	 * Return the number of entries in this run.
+	 */
+	long getNbEntries() {
+		return nbEntries;
+	}
+
+	/**
+	 * Close this run.
+	 */
+	void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Return the value of the entry with the given key in this run, the
+	 * tombstone if the key is marked deleted, or null if this run has no
+	 * entry with the given key.
+	 */
+	byte[] get(StoreKey key, BlockCache cache) throws IOException {
+		if (!mayContain(key))
+			return null;
+		int block = findBlock(key);
+		if (block < 0)
+			return null;
+		Block contents = getBlock(block, cache);
+		int position = Arrays.binarySearch(contents.keys, key);
+		return (position >= 0)? contents.values[position] : null;
+	}
+
+	/**
+	 * Return an iterator over the entries of this run with keys from the
+	 * given key onwards, in key order.
+	 */
+	Iterator<Map.Entry<StoreKey, byte[]>> iterator(final StoreKey from, final BlockCache cache) {
+		return new Iterator<Map.Entry<StoreKey, byte[]>>() {
+
+			public boolean hasNext() {
+				try {
+					while ((current == null) || (position >= current.keys.length)) {
+						if (block >= firstKeys.length)
+							return false;
+						current = getBlock(block++, cache);
+						position = 0;
+						while ((position < current.keys.length) &&
+							   (current.keys[position].compareTo(from) < 0))
+							position++;
+					}
+					return true;
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			public Map.Entry<StoreKey, byte[]> next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				Map.Entry<StoreKey, byte[]> result = new java.util.AbstractMap.SimpleImmutableEntry<StoreKey, byte[]>(
+						current.keys[position], current.values[position]);
+				position++;
+				return result;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private int block = Math.max(0, findBlock(from));
+			private Block current;
+			private int position;
+		};
+	}
+
+	/**
+	 * Return the index of the last block whose first key is not after the
+	 * given key, or -1 if there is no such block.
+	 */
+	private int findBlock(StoreKey key) {
+		int position = Arrays.binarySearch(firstKeys, key);
+		return (position >= 0)? position : -position - 2;
+	}
+
+	/**
+	 * Return the contents of the block with the given index, from the given
+	 * cache if possible.
+	 */
+	private Block getBlock(int index, BlockCache cache) throws IOException {
+		Block result = cache.get(id, index);
+		if (result == null) {
+			ByteBuffer data = read(channel, offsets[index], lengths[index]);
+			CRC32 crc = new CRC32();
+			crc.update(data.array(), 0, lengths[index] - 4);
+			if ((int) crc.getValue() != data.getInt(lengths[index] - 4))
+				throw new InvalidImageException("Block checksum mismatch in " + path);
+			int nbEntries = data.getInt();
+			StoreKey[] keys = new StoreKey[nbEntries];
+			byte[][] values = new byte[nbEntries][];
+			for (int i = 0; i < nbEntries; i++) {
+				keys[i] = readKey(data);
+				int length = data.getInt();
+				if (length < 0) {
+					values[i] = MetadataStore.TOMBSTONE;
+				} else {
+					values[i] = new byte[length];
+					data.get(values[i]);
+				}
+			}
+			result = new Block(keys, values, lengths[index]);
+			cache.put(id, index, result);
+		}
+		return result;
+	}
+
+	/**********************************************************
+	 * Bloom filter
+	 **********************************************************/
+
+	/**
+	 * Check whether the Bloom filter of this run admits the given key.
+	 */
+	private boolean mayContain(StoreKey key) {
+		long hash = hash(key);
+		int first = (int) hash, second = (int) (hash >>> 32);
+		for (int i = 0; i < NB_HASHES; i++) {
+			int bit = ((first + i * second) & Integer.MAX_VALUE) % nbBits;
+			if ((bloom[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add the given key to the given Bloom filter.
+	 */
+	private static void addToBloom(long[] bloom, StoreKey key) {
+		int nbBits = bloom.length * 64;
+		long hash = hash(key);
+		int first = (int) hash, second = (int) (hash >>> 32);
+		for (int i = 0; i < NB_HASHES; i++) {
+			int bit = ((first + i * second) & Integer.MAX_VALUE) % nbBits;
+			bloom[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Return a well-mixed 64-bit hash of the given key.
+	 */
+	private static long hash(StoreKey key) {
+		long result = key.getParent() * 0x9E3779B97F4A7C15L + key.getName().hashCode();
+		result ^= result >>> 33;
+		result *= 0xFF51AFD7ED558CCDL;
+		result ^= result >>> 33;
+		result *= 0xC4CEB9FE1A85EC53L;
+		return result ^ (result >>> 33);
+	}
+
+	/**
+	 * A class of decoded blocks.
+	 */
+	static final class Block {
+
+		Block(StoreKey[] keys, byte[][] values, int size) {
+			this.keys = keys;
+			this.values = values;
+			this.size = size;
+		}
+
+		/**
+		 * Return the size of the encoded block in bytes.
+		 */
+		int getSize() {
+			return size;
+		}
+
+		private final StoreKey[] keys;
+		private final byte[][] values;
+		private final int size;
+	}
+
+	/**
+	 * A class of caches of decoded blocks shared by the runs of a store,
+	 *    evicting the least recently used blocks once the encoded size of
+	 *    the cached blocks exceeds a budget.
+	 */
+	static final class BlockCache {
+
+		/**
+		 * Initialize a new block cache with the given budget in bytes.
+		 */
+		BlockCache(long capacity) {
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Return the cached block with the given index of the run with the
+		 * given id, or null.
+		 */
+		synchronized Block get(long run, int index) {
+			Block result = blocks.get(key(run, index));
+			if (result != null)
+				hits++;
+			else
+				misses++;
+			return result;
+		}
+
+		/**
+		 * Cache the given block with the given index of the run with the
+		 * given id, and evict the least recently used blocks beyond the
+		 * budget of this cache.
+		 */
+		synchronized void put(long run, int index, Block block) {
+			Block previous = blocks.put(key(run, index), block);
+			if (previous != null)
+				size -= previous.getSize();
+			size += block.getSize();
+			Iterator<Block> eldest = blocks.values().iterator();
+			while ((size > capacity) && eldest.hasNext()) {
+				size -= eldest.next().getSize();
+				eldest.remove();
+			}
+		}
+
+		/**
+		 * Drop all cached blocks of the run with the given id.
+		 */
+		synchronized void invalidate(long run) {
+			Iterator<Map.Entry<String, Block>> entries = blocks.entrySet().iterator();
+			String prefix = run + ":";
+			while (entries.hasNext()) {
+				Map.Entry<String, Block> entry = entries.next();
+				if (entry.getKey().startsWith(prefix)) {
+					size -= entry.getValue().getSize();
+					entries.remove();
+				}
+			}
+		}
+
+		/**
+		 * Return the number of lookups answered by this cache, and the
+		 * number of lookups it could not answer.
+		 */
+		synchronized long getNbHits() {
+			return hits;
+		}
+
+		synchronized long getNbMisses() {
+			return misses;
+		}
+
+		/**
+		 * Return the key of the block with the given index of the run with
+		 * the given id.
+		 */
+		private static String key(long run, int index) {
+			return run + ":" + index;
+		}
+
+		private final long capacity;
+		private long size;
+		private long hits;
+		private long misses;
+		private final LinkedHashMap<String, Block> blocks =
+				new LinkedHashMap<String, Block>(64, 0.75f, true);
+	}
+
+	/**
+	 * The target size of a block in bytes.
+	 */
+	private static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * The number of bits per key and the number of hash functions of the
+	 * Bloom filter, giving a false positive rate of about 1%.
+	 */
+	private static final int BITS_PER_KEY = 10;
+	private static final int NB_HASHES = 7;
+
+	/**
+	 * The magic number at the end of each run ("FSRN"), and the size of the
+	 * footer holding it.
+	 */
+	private static final int MAGIC = 0x4653524E;
+	private static final int FOOTER_SIZE = 28;
+
+	/**
+	 * The character set of folded names.
+	 */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Variables referencing the path, id and channel of this run.
+	 */
+	private final Path path;
+	private final long id;
+	private final FileChannel channel;
+
+	/**
+	 * Variables referencing the index of this run: the first key, the
+	 * offset and the length of each block.
+	 */
+	private final StoreKey[] firstKeys;
+	private final long[] offsets;
+	private final int[] lengths;
+
+	/**
+	 * Variables referencing the Bloom filter of this run and its number
+	 * of bits.
+	 */
+	private final long[] bloom;
+	private final int nbBits;
+
+	/**
+	 * Variable registering the number of entries in this run.
+	 */
+	private final long nbEntries;
+}
@@ -0,0 +1,706 @@
+package filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import filesystem.exception.InvalidImageException;
+import filesystem.exception.NoSuchItemException;
+
+/**
+ * A class of directory trees whose metadata is kept in an embedded
+ * log-structured metadata store, so that trees larger than memory can be
+ * used.
+ *    Each item is recorded under the id of its parent directory and its
+ *    name folded to lower case, so that the items of a directory form one
+ *    contiguous range of keys in the order they have in their directory.
+ *    The items of a directory are loaded by a range scan on first use, and
+ *    evicted again as by DiskImage#open(Path, int) once more than the
+ *    configured number of items is loaded. Looking up a name that a
+ *    directory whose items are not loaded does not contain is answered by
+ *    a point lookup, without loading its items.
+ *    Mutations of the tree are tracked through its mutation listener;
+ *    mutated items and their ancestors are pinned in memory until they
+ *    are flushed to the store. Flushing happens explicitly, on close, and
+ *    whenever the number of mutated items exceeds the configured maximum.
+ *    Mutations are only durable once they have been flushed.
+ *    The referral of a link is recorded by the id of the parent directory
+ *    and the name of that referral. A link whose referral is renamed or
+ *    moved while that link is not loaded, loses its referral.
+ *
+ * @see MetadataStore
+ */
+public final class StoredTree implements MutationListener, Closeable {
+
+	/**
+	 * Open the tree stored in the given directory, creating a tree with
+	 * a writable root directory with the given name if it does not exist
+	 * yet.
+	 *
+	 * @param  directory
+	 *         The directory holding the metadata store of the tree.
+	 * @param  rootName
+	 *         The name of the root directory of a new tree.
+	 * @param  maxLoadedItems
+	 *         The number of loaded items above which directories are
+	 *         evicted.
+	 * @param  maxDirtyItems
+	 *         The number of mutated items above which the tree is flushed.
+	 * @throws IllegalArgumentException
+	 *         One of the given maxima is negative, or the given name is not
+	 *         a valid name for a new root directory.
+	 * @throws InvalidImageException
+	 *         The metadata store is corrupted.
+	 * @throws IOException
+	 *         The metadata store could not be read.
+	 */
+	public static StoredTree open(Path directory, String rootName, int maxLoadedItems,
+			int maxDirtyItems) throws IllegalArgumentException, IOException {
+		if ((maxLoadedItems < 0) || (maxDirtyItems < 0))
+			throw new IllegalArgumentException();
+		MetadataStore store = MetadataStore.open(directory, MEMTABLE_BYTES, CACHE_BYTES, MAX_RUNS);
+		try {
+			StoredTree result = new StoredTree(store, rootName, maxLoadedItems, maxDirtyItems);
+			DiskItem.addMutationListener(result);
+			return result;
+		} catch (IOException | RuntimeException e) {
+			store.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Initialize a new tree kept in the given store.
+	 */
+	private StoredTree(MetadataStore store, String rootName, int maxLoadedItems,
+			int maxDirtyItems) throws IOException {
+		this.pager = new StorePager(maxLoadedItems);
+		this.store = store;
+		this.maxDirtyItems = maxDirtyItems;
+		byte[] meta = store.get(NEXT_ID_KEY);
+		byte[] record = store.get(ROOT_KEY);
+		if ((meta == null) || (record == null)) {
+			try {
+				root = new Directory(rootName, true);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Invalid root name!");
+			}
+			nextId = 1;
+			root.adopt(pager, ROOT_ID);
+			markDirty(root);
+		} else {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta));
+			nextId = in.readLong();
+			DiskItem.reserveIds(in.readLong());
+			Record decoded = new Record(record);
+			if (decoded.kind != DiskImage.DIRECTORY)
+				throw new InvalidImageException("Tree is not rooted at a directory");
+			try {
+				root = new Directory(decoded.name, decoded.isWritable());
+			} catch (Exception e) {
+				throw new InvalidImageException("Invalid root directory");
+			}
+			decoded.restore(root);
+			root.page(pager, ROOT_ID, decoded.nbItems, decoded.size,
+					decoded.subtreeChangeTime);
+		}
+	}
+
+	/**
+	 * Return the root directory of this tree.
+	 */
+	public Directory getRoot() {
+		return root;
+	}
+
+	/**
+	 * Return the number of items currently loaded for this tree, apart
+	 * from the items of pinned directories.
+	 */
+	public int getNbLoadedItems() {
+		return pager.getNbLoadedItems();
+	}
+
+	/**
+	 * Return the number of mutated items that have not been flushed yet.
+	 */
+	public synchronized int getNbDirtyItems() {
+		return dirty.size();
+	}
+
+	/**
+	 * Write all mutated items of this tree to its metadata store, make
+	 * them durable, and unpin the directories pinned for them.
+	 *
+	 * @throws IOException
+	 *         The metadata store could not be written.
+	 */
+	public synchronized void flush() throws IOException {
+		for (StoreKey key : deletes)
+			store.delete(key);
+		deletes.clear();
+		for (Long id : subtreeDeletes)
+			deleteSubtree(id);
+		subtreeDeletes.clear();
+		for (DiskItem item : dirty) {
+			if (item.isTerminated() || !isInTree(item))
+				continue;
+			store.put(getKey(item), encode(item));
+			if ((item instanceof Directory) && (item != root))
+				store.put(getIndexKey(getId((Directory) item)), encodeIndex(item));
+		}
+		ByteArrayOutputStream meta = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(meta);
+		out.writeLong(nextId);
+		out.writeLong(DiskItem.getNextId());
+		store.put(NEXT_ID_KEY, meta.toByteArray());
+		store.flush();
+		dirty.clear();
+		dirtyDirectories.clear();
+		List<Directory> unpinned = new ArrayList<Directory>(pinned.size());
+		Set<Directory> kept = newIdentitySet();
+		for (Directory directory : referralPins)
+			for (Directory dir = directory; dir != null; dir = dir.getParentDirectory())
+				kept.add(dir);
+		for (Directory directory : pinned)
+			if (!kept.contains(directory))
+				unpinned.add(directory);
+		pinned.clear();
+		pinned.addAll(kept);
+		pager.unpin(unpinned);
+	}
+
+	/**
+	 * Flush this tree, stop tracking its mutations, release its items, and
+	 * close its metadata store.
+	 *    The items of this tree must no longer be used afterwards.
+	 *
+	 * @throws IOException
+	 *         The metadata store could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			DiskItem.removeMutationListener(this);
+			root.releaseTree();
+			store.close();
+		}
+	}
+
+	/**********************************************************
+	 * mutation tracking
+	 **********************************************************/
+
+	@Override
+	public synchronized void itemCreated(DiskItem item) {
+		if (!isInTree(item))
+			return;
+		adoptSubtree(item);
+		markSubtreeDirty(item);
+		flushIfNeeded();
+	}
+
+	@Override
+	public synchronized void nameChanged(DiskItem item, String oldName) {
+		if (!isInTree(item))
+			return;
+		if (item != root)
+			deletes.add(new StoreKey(getId(item.getParentDirectory()), oldName));
+		markDirty(item);
+		flushIfNeeded();
+	}
+
+	@Override
+	public synchronized void itemMoved(DiskItem item, Directory oldParent) {
+		boolean wasInTree = (oldParent != null) && isInTree(oldParent) &&
+				(oldParent.getPager() == pager);
+		boolean isInTree = isInTree(item);
+		if (wasInTree) {
+			deletes.add(new StoreKey(getId(oldParent), item.getName()));
+			markDirty(oldParent);
+		}
+		if (isInTree) {
+			if (wasInTree) {
+				markDirty(item);
+			} else {
+				adoptSubtree(item);
+				markSubtreeDirty(item);
+			}
+		} else if (wasInTree && (item instanceof Directory)) {
+			subtreeDeletes.add(getId((Directory) item));
+			((Directory) item).unpage();
+		}
+		flushIfNeeded();
+	}
+
+	@Override
+	public synchronized void sizeChanged(File file, long delta) {
+		if (isInTree(file)) {
+			markDirty(file);
+			flushIfNeeded();
+		}
+	}
+
+	@Override
+	public synchronized void writabilityChanged(RealDiskItem item) {
+		if (isInTree(item)) {
+			markDirty(item);
+			flushIfNeeded();
+		}
+	}
+
+	@Override
+	public synchronized void itemTerminated(DiskItem item) {
+		if ((item == root) || !isInTree(item))
+			return;
+		Directory parent = item.getParentDirectory();
+		deletes.add(new StoreKey(getId(parent), item.getName()));
+		if (item instanceof Directory)
+			subtreeDeletes.add(getId((Directory) item));
+		dirty.remove(item);
+		markDirty(parent);
+		flushIfNeeded();
+	}
+
+	/**
+	 * Register the given item and its ancestors as mutated.
+	 */
+	private void markDirty(DiskItem item) {
+		for (; item != null; item = item.getParentDirectory()) {
+			dirty.add(item);
+			if (item instanceof Directory)
+				dirtyDirectories.put(getId((Directory) item), (Directory) item);
+		}
+	}
+
+	/**
+	 * Register the given item, its direct and indirect items, and its
+	 * ancestors as mutated.
+	 */
+	private void markSubtreeDirty(DiskItem item) {
+		markDirty(item);
+		if (item instanceof Directory)
+			for (DiskItem child : ((Directory) item).getItemArray())
+				markSubtreeDirty(child);
+	}
+
+	/**
+	 * Let the items of the given directory and of its direct and indirect
+	 * subdirectories be paged by this tree, if they are not paged by it
+	 * yet.
+	 */
+	private void adoptSubtree(DiskItem item) {
+		if (!(item instanceof Directory))
+			return;
+		Directory directory = (Directory) item;
+		if (directory.getPager() == pager)
+			return;
+		DiskItem[] children = directory.getItemArray();
+		directory.unpage();
+		directory.adopt(pager, nextId++);
+		for (DiskItem child : children)
+			adoptSubtree(child);
+	}
+
+	/**
+	 * Flush this tree if too many items are mutated.
+	 */
+	private void flushIfNeeded() {
+		if (dirty.size() > maxDirtyItems)
+			try {
+				flush();
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot flush stored tree", e);
+			}
+	}
+
+	/**
+	 * Delete the entries of the items of the directory with the given id,
+	 * and of all its direct and indirect subdirectories, from the store.
+	 */
+	private void deleteSubtree(long id) throws IOException {
+		for (Map.Entry<StoreKey, byte[]> entry : store.scan(id)) {
+			Record record = new Record(entry.getValue());
+			if (record.kind == DiskImage.DIRECTORY)
+				deleteSubtree(record.id);
+			store.delete(entry.getKey());
+		}
+		store.delete(getIndexKey(id));
+	}
+
+	/**********************************************************
+	 * keys
+	 **********************************************************/
+
+	/**
+	 * Check whether the given item belongs to this tree.
+	 */
+	private boolean isInTree(DiskItem item) {
+		while (item.getParentDirectory() != null)
+			item = item.getParentDirectory();
+		return item == root;
+	}
+
+	/**
+	 * Return the id of the given directory of this tree.
+	 */
+	private long getId(Directory directory) {
+		return directory.getPagedKey();
+	}
+
+	/**
+	 * Return the key under which the given item of this tree is recorded.
+	 */
+	private StoreKey getKey(DiskItem item) {
+		if (item == root)
+			return ROOT_KEY;
+		return new StoreKey(getId(item.getParentDirectory()), item.getName());
+	}
+
+	/**
+	 * Return the key of the entry recording the parent id and the name of
+	 * the directory with the given id.
+	 */
+	private static StoreKey getIndexKey(long id) {
+		return new StoreKey(INDEX_PARENT, String.format("%016x", id));
+	}
+
+	/**
+	 * Return the directory of this tree with the given id, loading the
+	 * items of its ancestors if needed, or null if there is no such
+	 * directory.
+	 */
+	private Directory findDirectory(long id) throws IOException {
+		if (id == ROOT_ID)
+			return root;
+		Directory result = dirtyDirectories.get(id);
+		if (result != null)
+			return result;
+		byte[] index = store.get(getIndexKey(id));
+		if (index == null)
+			return null;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+		Directory parent = findDirectory(in.readLong());
+		if (parent == null)
+			return null;
+		try {
+			DiskItem item = parent.getItem(in.readUTF());
+			return (item instanceof Directory)? (Directory) item : null;
+		} catch (NoSuchItemException e) {
+			return null;
+		}
+	}
+
+	/**********************************************************
+	 * records
+	 **********************************************************/
+
+	/**
+	 * Return the record of the given item.
+	 *    A record holds, in order, the kind of the item, its flags, the
+	 *    ordinal of its type, its size or, for a directory, its total disk
+	 *    usage, its number of items, its id, its creation and modification
+	 *    time, for a directory, the latest change time in its subtree, the
+	 *    identifier of the item, its name, and for a link, whether its referral is recorded,
+	 *    followed by the id of the parent directory and the name of that
+	 *    referral.
+	 */
+	private byte[] encode(DiskItem item) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte flags = 0;
+		if ((item instanceof RealDiskItem) && ((RealDiskItem) item).isWritable())
+			flags |= DiskImage.WRITABLE;
+		long modificationTime = item.getModificationTimeMillis();
+		if (modificationTime != DiskItem.NO_TIME)
+			flags |= DiskImage.MODIFIED;
+		if (item instanceof Directory) {
+			out.writeByte(DiskImage.DIRECTORY);
+			out.writeByte(flags);
+			out.writeByte(0);
+			out.writeLong(item.getTotalDiskUsage());
+			out.writeInt(((Directory) item).getNbItems());
+			out.writeLong(getId((Directory) item));
+		} else if (item instanceof File) {
+			out.writeByte(DiskImage.FILE);
+			out.writeByte(flags);
+			out.writeByte(((File) item).getType().ordinal());
+			out.writeLong(((File) item).getSize());
+			out.writeInt(0);
+			out.writeLong(0);
+		} else {
+			out.writeByte((item instanceof DirectoryLink)? DiskImage.DIRECTORY_LINK :
+					DiskImage.FILE_LINK);
+			out.writeByte(flags);
+			out.writeByte(0);
+			out.writeLong(0);
+			out.writeInt(0);
+			out.writeLong(0);
+		}
+		out.writeLong(item.getCreationTimeMillis());
+		out.writeLong((modificationTime == DiskItem.NO_TIME)? 0 : modificationTime);
+		out.writeLong((item instanceof Directory)?
+				((Directory) item).getSubtreeChangeTimeMillis() : 0);
+		out.writeLong(item.getId());
+		out.writeUTF(item.getName());
+		if (item instanceof Link) {
+			RealDiskItem referral = ((Link) item).getReferral();
+			boolean recorded = (referral != null) && !referral.isTerminated() &&
+					isInTree(referral);
+			out.writeBoolean(recorded);
+			if (recorded) {
+				out.writeLong((referral == root)? ROOT_PARENT :
+						getId(referral.getParentDirectory()));
+				out.writeUTF(referral.getName());
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Return the entry recording the id of the parent directory and the
+	 * name of the given directory.
+	 */
+	private byte[] encodeIndex(DiskItem directory) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(getId(directory.getParentDirectory()));
+		out.writeUTF(directory.getName());
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A class of decoded records.
+	 */
+	private static final class Record {
+
+		Record(byte[] bytes) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			kind = in.readByte();
+			flags = in.readByte();
+			type = in.readByte();
+			size = in.readLong();
+			nbItems = in.readInt();
+			id = in.readLong();
+			creationTime = in.readLong();
+			modificationTime = in.readLong();
+			subtreeChangeTime = in.readLong();
+			itemId = in.readLong();
+			name = in.readUTF();
+			if (((kind == DiskImage.FILE_LINK) || (kind == DiskImage.DIRECTORY_LINK)) &&
+				in.readBoolean()) {
+				referralParent = in.readLong();
+				referralName = in.readUTF();
+			} else {
+				referralParent = 0;
+				referralName = null;
+			}
+		}
+
+		boolean isWritable() {
+			return (flags & DiskImage.WRITABLE) != 0;
+		}
+
+		/**
+		 * Return a new item in the given directory for this record, without
+		 * registering it there.
+		 */
+		DiskItem createItem(Directory parent) throws InvalidImageException {
+			try {
+				switch (kind) {
+				case DiskImage.DIRECTORY:
+					return Directory.createUnregistered(parent, name, isWritable());
+				case DiskImage.FILE:
+					if ((type < 0) || (type >= Type.values().length))
+						throw new InvalidImageException("Unknown file type " + type);
+					return File.createUnregistered(parent, name, Type.values()[type], (int) size,
+							isWritable());
+				case DiskImage.FILE_LINK:
+					return FileLink.createUnregistered(parent, name, null);
+				case DiskImage.DIRECTORY_LINK:
+					return DirectoryLink.createUnregistered(parent, name, null);
+				default:
+					throw new InvalidImageException("Unknown item kind " + kind);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new InvalidImageException("Invalid item record " + name);
+			}
+		}
+
+		/**
+		 * Restore the identifier, and the creation and modification time
+		 * of the given item from this record.
+		 */
+		void restore(DiskItem item) {
+			DiskItem.restoreId(item, itemId);
+			item.restoreCreationTime(creationTime);
+			if ((flags & DiskImage.MODIFIED) != 0)
+				item.setModificationTime(modificationTime);
+		}
+
+		private final byte kind;
+		private final byte flags;
+		private final byte type;
+		private final long size;
+		private final int nbItems;
+		private final long id;
+		private final long creationTime;
+		private final long modificationTime;
+		private final long subtreeChangeTime;
+		private final long itemId;
+		private final String name;
+		private final long referralParent;
+		private final String referralName;
+	}
+
+	/**********************************************************
+	 * paging
+	 **********************************************************/
+
+	/**
+	 * A class of pagers loading the items of the directories of this
+	 * tree from its metadata store.
+	 */
+	private final class StorePager extends Pager {
+
+		StorePager(int maxLoadedItems) {
+			super(maxLoadedItems);
+		}
+
+		@Override
+		List<DiskItem> readItems(Directory directory) throws IllegalStateException {
+			try {
+				List<Map.Entry<StoreKey, byte[]>> entries = store.scan(getId(directory));
+				List<DiskItem> children = new ArrayList<DiskItem>(entries.size());
+				for (Map.Entry<StoreKey, byte[]> entry : entries) {
+					Record record = new Record(entry.getValue());
+					DiskItem item = record.createItem(directory);
+					record.restore(item);
+					if (item instanceof Directory)
+						((Directory) item).page(this, record.id, record.nbItems, record.size,
+								record.subtreeChangeTime);
+					else if ((item instanceof Link) && (record.referralName != null))
+						((Link) item).pageReferral(this, record.referralParent,
+								record.referralName);
+					children.add(item);
+				}
+				return children;
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read stored directory", e);
+			}
+		}
+
+		@Override
+		boolean mayContain(Directory directory, String name) {
+			try {
+				return store.get(new StoreKey(getId(directory), name)) != null;
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		@Override
+		RealDiskItem resolveReferral(long key, String name) {
+			synchronized (StoredTree.this) {
+				if (key == ROOT_PARENT)
+					return root;
+				try {
+					Directory parent = findDirectory(key);
+					if (parent == null)
+						return null;
+					DiskItem result = parent.getItem(name);
+					parent.pin();
+					referralPins.add(parent);
+					return (result instanceof RealDiskItem)? (RealDiskItem) result : null;
+				} catch (IOException | NoSuchItemException e) {
+					return null;
+				}
+			}
+		}
+
+		@Override
+		void pinned(Directory directory) {
+			synchronized (StoredTree.this) {
+				pinned.add(directory);
+			}
+		}
+	}
+
+	/**
+	 * Return a new empty set of directories compared by identity.
+	 */
+	private static Set<Directory> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Directory, Boolean>());
+	}
+
+	/**
+	 * The budgets of the metadata store: the size of its memtable, the
+	 * size of its block cache and its number of runs before merging.
+	 */
+	private static final long MEMTABLE_BYTES = 4L << 20;
+	private static final long CACHE_BYTES = 32L << 20;
+	private static final int MAX_RUNS = 8;
+
+	/**
+	 * The id of the root directory, the parent id under which the root is
+	 * recorded, and the parent id under which the parent id and name of
+	 * each other directory is recorded.
+	 */
+	private static final long ROOT_ID = 0;
+	private static final long ROOT_PARENT = -2;
+	private static final long INDEX_PARENT = -1;
+
+	/**
+	 * The keys of the record of the root directory and of the next
+	 * directory id, followed by a bound on the identifiers of the items
+	 * recorded so far.
+	 */
+	private static final StoreKey ROOT_KEY = new StoreKey(ROOT_PARENT, "root");
+	private static final StoreKey NEXT_ID_KEY = new StoreKey(ROOT_PARENT, "next-id");
+
+	/**
+	 * Variables referencing the pager, the metadata store and the root
+	 * directory of this tree.
+	 */
+	private final StorePager pager;
+	private final MetadataStore store;
+	private final Directory root;
+
+	/**
+	 * Variables registering the number of mutated items above which this
+	 * tree is flushed, and the id of the next new directory.
+	 */
+	private final int maxDirtyItems;
+	private long nextId;
+
+	/**
+	 * Variables referencing the mutated items, the mutated directories by
+	 * their id, the keys and the ids of the subtrees to delete on the next
+	 * flush.
+	 */
+	private final Set<DiskItem> dirty =
+			Collections.newSetFromMap(new IdentityHashMap<DiskItem, Boolean>());
+	private final Map<Long, Directory> dirtyDirectories = new HashMap<Long, Directory>();
+	private final List<StoreKey> deletes = new ArrayList<StoreKey>();
+	private final List<Long> subtreeDeletes = new ArrayList<Long>();
+
+	/**
+	 * Variables referencing the directories pinned since the last flush,
+	 * and the directories pinned for resolved referrals, which stay pinned.
+	 */
+	private final Set<Directory> pinned = newIdentitySet();
+	private final Set<Directory> referralPins = newIdentitySet();
+}
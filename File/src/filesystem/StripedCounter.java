@@ -0,0 +1,278 @@
+package filesystem;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A class of striped counters, holding a long value that can be updated
+ * by many threads at once without them contending on a single variable.
+ *    As long as updates do not collide, a striped counter behaves as a
+ *    single atomic long. As soon as two threads collide on it, the counter
+ *    spreads further updates over a number of cells, chosen by the updating
+ *    thread. The value of the counter is the sum of its base and all its
+ *    cells.
+ *    Once at most one cell has been updated during a whole collapse
+ *    window, the cells are folded back into the base and released, so
+ *    that counters that were contended once do not keep their cells. The
+ *    check is made by updates and by reads of the counter.
+ *
+ * @invar  The number of cells is a power of two, or there are no cells.
+ *         | getNbCells() == 0 || (getNbCells() & (getNbCells()-1)) == 0
+ */
+final class StripedCounter {
+
+	/**
+	 * Initialize a new striped counter with the given value.
+	 *
+	 * @param  value
+	 *         The initial value for the new counter.
+	 * @post   The value of the new counter is equal to the given value.
+	 *         | new.sum() == value
+	 */
+	StripedCounter(long value) {
+		base = value;
+	}
+
+	/**
+	 * Initialize a new striped counter with value 0.
+	 *
+	 * @effect The new counter is initialized with value 0.
+	 *         | this(0)
+	 */
+	StripedCounter() {
+		this(0);
+	}
+
+	/**
+	 * Add the given delta to the value of this counter.
+	 *
+	 * @param  delta
+	 *         The amount to add.
+	 * @post   The value of this counter is incremented with the given delta.
+	 *         | new.sum() == sum() + delta
+	 */
+	void add(long delta) {
+		AtomicLongArray cells = this.cells;
+		if (cells == null) {
+			long current = base;
+			if (baseUpdater.compareAndSet(this, current, current + delta))
+				return;
+			cells = expand();
+		}
+		int[] probe = PROBE.get();
+		int mask = cells.length() / PADDING - 1;
+		int index;
+		for (;;) {
+			index = (probe[0] & mask) * PADDING;
+			long current = cells.get(index);
+			if (current == COLLAPSED) {
+				// The cells have been folded into the base meanwhile.
+				baseUpdater.getAndAdd(this, delta);
+				return;
+			}
+			if (cells.compareAndSet(index, current, current + delta))
+				break;
+			// Another thread shares this cell: move on to another one.
+			probe[0] = rehash(probe[0]);
+		}
+		if (cells.get(index + ACTIVE) == 0)
+			cells.lazySet(index + ACTIVE, 1);
+		if ((++probe[1] & (SAMPLE_PERIOD - 1)) == 0)
+			collapseIfIdle(cells);
+	}
+
+	/**
+	 * Return the value of this counter.
+	 *    The result is only exact if no updates are in progress.
+	 */
+	long sum() {
+		for (;;) {
+			AtomicLongArray cells = this.cells;
+			if (cells == null)
+				return base;
+			long result = base;
+			for (int i = 0; i < cells.length(); i += PADDING) {
+				long value = cells.get(i);
+				if (value != COLLAPSED)
+					result += value;
+			}
+			// Values moved into the base while they were read may have
+			// been counted twice or not at all.
+			if (cells.get(COLLAPSING) == 0) {
+				collapseIfIdle(cells);
+				return result;
+			}
+			while (this.cells == cells)
+				Thread.yield();
+		}
+	}
+
+	/**
+	 * Set the value of this counter to the given value.
+	 *    This method must not be invoked while other threads are
+	 *    updating this counter.
+	 *
+	 * @param  value
+	 *         The new value for this counter.
+	 * @post   The value of this counter is equal to the given value.
+	 *         | new.sum() == value
+	 * @post   This counter has no cells.
+	 *         | new.getNbCells() == 0
+	 */
+	void reset(long value) {
+		cells = null;
+		base = value;
+	}
+
+	/**
+	 * Return the number of cells over which this counter is striped.
+	 */
+	int getNbCells() {
+		AtomicLongArray cells = this.cells;
+		return cells == null ? 0 : cells.length() / PADDING;
+	}
+
+	/**
+	 * Return the cells of this counter, creating them if they do not
+	 * exist yet.
+	 */
+	private synchronized AtomicLongArray expand() {
+		AtomicLongArray cells = this.cells;
+		if (cells == null) {
+			cells = new AtomicLongArray(NB_CELLS * PADDING);
+			cells.set(LAST_CHECK, System.nanoTime());
+			this.cells = cells;
+		}
+		return cells;
+	}
+
+	/**
+	 * Fold the given cells of this counter into its base and release them,
+	 * if at most one of them has been updated since they were last
+	 * checked, and they were last checked at least a collapse window ago.
+	 *    Each cell is replaced by a marker before its value is added to the
+	 *    base, so that updates that still reach it add to the base instead.
+	 *    The cells are only released once all values have been moved, and
+	 *    are marked as collapsing meanwhile, so that reads do not count
+	 *    moved values twice.
+	 */
+	private void collapseIfIdle(AtomicLongArray cells) {
+		long now = System.nanoTime();
+		if (now - cells.get(LAST_CHECK) < COLLAPSE_WINDOW)
+			return;
+		synchronized (this) {
+			if ((this.cells != cells) || (now - cells.get(LAST_CHECK) < COLLAPSE_WINDOW))
+				return;
+			cells.set(LAST_CHECK, now);
+			int nbActive = 0;
+			for (int i = 0; i < cells.length(); i += PADDING)
+				if (cells.getAndSet(i + ACTIVE, 0) != 0)
+					nbActive++;
+			if (nbActive > 1)
+				return;
+			cells.set(COLLAPSING, 1);
+			for (int i = 0; i < cells.length(); i += PADDING)
+				baseUpdater.getAndAdd(this, cells.getAndSet(i, COLLAPSED));
+			this.cells = null;
+		}
+	}
+
+	/**
+	 * Return the next hash value in the xorshift sequence of the given
+	 * non-zero hash value.
+	 */
+	private static int rehash(int hash) {
+		hash ^= hash << 13;
+		hash ^= hash >>> 17;
+		return hash ^ (hash << 5);
+	}
+
+	/**
+	 * Variable referencing the hash value of each thread, used to select
+	 * a cell, followed by the number of updates of cells by that thread.
+	 * A thread that collides with another one on a cell moves on to the
+	 * next value in its xorshift sequence, so that threads that initially
+	 * share a cell are spread over distinct cells.
+	 */
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			long id = Thread.currentThread().getId();
+			int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+			hash ^= hash >>> 16;
+			return new int[] { hash == 0 ? 1 : hash, 0 };
+		}
+	};
+
+	/**
+	 * The number of cells over which contended counters are striped.
+	 */
+	private static final int NB_CELLS;
+
+	static {
+		int nbCells = 1;
+		while (nbCells < Runtime.getRuntime().availableProcessors())
+			nbCells <<= 1;
+		NB_CELLS = nbCells;
+	}
+
+	/**
+	 * The distance (in longs) between two cells, to keep distinct cells
+	 * on distinct cache lines. The longs following a cell are otherwise
+	 * unused, except for the ones at the offsets below.
+	 */
+	private static final int PADDING = 8;
+
+	/**
+	 * The offset from each cell of the flag registering whether the cell
+	 * has been updated since the cells were last checked.
+	 */
+	private static final int ACTIVE = 1;
+
+	/**
+	 * The index of the time at which the cells were last checked.
+	 */
+	private static final int LAST_CHECK = 2;
+
+	/**
+	 * The index of the flag registering whether the cells are being folded
+	 * into the base.
+	 */
+	private static final int COLLAPSING = 3;
+
+	/**
+	 * The value marking a cell that has been folded into the base. Cells
+	 * hold partial sums of the updates, which never reach this value in
+	 * practice.
+	 */
+	private static final long COLLAPSED = Long.MIN_VALUE;
+
+	/**
+	 * The minimal time (in nanoseconds) between two checks of the cells
+	 * of a counter.
+	 */
+	private static final long COLLAPSE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The number of updates of cells after which a thread checks the
+	 * cells it updates, which is a power of two.
+	 */
+	private static final int SAMPLE_PERIOD = 1024;
+
+	/**
+	 * Variable registering the base value of this counter, updated as long
+	 * as there is no contention.
+	 */
+	private volatile long base;
+
+	private static final AtomicLongFieldUpdater<StripedCounter> baseUpdater =
+		AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+
+	/**
+	 * Variable referencing the cells of this counter, or null if no
+	 * contention has been seen since the cells were last folded into the
+	 * base.
+	 */
+	private volatile AtomicLongArray cells;
+}
@@ -0,0 +1,173 @@
+package filesystem;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class administering the epochs of snapshots of disk items.
+ *    All mutations of disk items happen in the current epoch. Taking a
+ *    snapshot closes the current epoch: the snapshot sees the state of
+ *    each disk item as it was at the end of that epoch. The first time a
+ *    disk item is mutated in a later epoch, while some live snapshot can
+ *    still see its current state, that state is preserved as a version of
+ *    the item.
+ *    Snapshots are tracked through weak references. Once a snapshot is
+ *    no longer referenced, the versions that were only kept for it are
+ *    pruned from all items.
+ */
+final class Versions {
+
+	/**
+	 * Prevent the instantiation of this class.
+	 */
+	private Versions() {
+	}
+
+	/**
+	 * Return the epoch in which mutations currently happen.
+	 */
+	static long getCurrentEpoch() {
+		return currentEpoch.get();
+	}
+
+	/**
+	 * Check whether a state written in the given epoch may still be seen by
+	 * some live snapshot.
+	 *    The check is conservative: it may return true for states no live
+	 *    snapshot can see.
+	 *
+	 * @param  writeEpoch
+	 *         The epoch in which the state was last written.
+	 */
+	static boolean isVisibleToSomeSnapshot(long writeEpoch) {
+		return (oldestLiveEpoch != NO_SNAPSHOT) && (latestEpoch >= writeEpoch);
+	}
+
+	/**
+	 * Take a new snapshot, closing the current epoch.
+	 *
+	 * @return The epoch of the new snapshot, which is the epoch that was
+	 *         current before this method was invoked.
+	 */
+	static synchronized SnapshotEpoch takeSnapshot() {
+		expunge();
+		SnapshotEpoch result = new SnapshotEpoch(currentEpoch.getAndIncrement());
+		live.add(new EpochReference(result));
+		latestEpoch = result.getEpoch();
+		if (oldestLiveEpoch == NO_SNAPSHOT)
+			oldestLiveEpoch = result.getEpoch();
+		return result;
+	}
+
+	/**
+	 * Return the epoch of the oldest snapshot that may still be live, or
+	 * Long.MAX_VALUE if there is no such snapshot.
+	 */
+	static long getOldestLiveEpoch() {
+		return oldestLiveEpoch;
+	}
+
+	/**
+	 * Register the given disk item as having preserved versions, so that
+	 * they can be pruned once they are no longer needed.
+	 */
+	static void registerVersionedItem(DiskItem item) {
+		versionedItems.add(item);
+		if (collected.poll() != null)
+			synchronized (Versions.class) {
+				sweep();
+			}
+	}
+
+	/**
+	 * Forget the snapshots that are no longer referenced, and prune the
+	 * versions that were kept for them.
+	 */
+	static synchronized void expunge() {
+		if (collected.poll() != null)
+			sweep();
+	}
+
+	/**
+	 * Drop all cleared snapshot references, recompute the oldest live
+	 * epoch, and prune the versions of all versioned items.
+	 */
+	private static void sweep() {
+		while (collected.poll() != null)
+			;
+		long oldest = NO_SNAPSHOT;
+		for (Iterator<EpochReference> it = live.iterator(); it.hasNext();) {
+			EpochReference reference = it.next();
+			if (reference.get() == null)
+				it.remove();
+			else
+				oldest = Math.min(oldest, reference.epoch);
+		}
+		oldestLiveEpoch = oldest;
+		for (Iterator<DiskItem> it = versionedItems.iterator(); it.hasNext();)
+			if (!it.next().pruneVersions(oldest))
+				it.remove();
+	}
+
+	/**
+	 * Value of the oldest live epoch when there are no live snapshots.
+	 */
+	private static final long NO_SNAPSHOT = Long.MAX_VALUE;
+
+	/**
+	 * Variable referencing the epoch in which mutations currently happen.
+	 */
+	private static final AtomicLong currentEpoch = new AtomicLong();
+
+	/**
+	 * Variable registering the epoch of the latest snapshot taken, or -1
+	 * if no snapshot has been taken yet.
+	 */
+	private static volatile long latestEpoch = -1;
+
+	/**
+	 * Variable registering the epoch of the oldest snapshot that may still
+	 * be live.
+	 */
+	private static volatile long oldestLiveEpoch = NO_SNAPSHOT;
+
+	/**
+	 * Variable referencing the weak references to all snapshots that may
+	 * still be live.
+	 */
+	private static final Set<EpochReference> live =
+			Collections.newSetFromMap(new ConcurrentHashMap<EpochReference, Boolean>());
+
+	/**
+	 * Variable referencing the queue on which references to collected
+	 * snapshots are enqueued.
+	 */
+	private static final ReferenceQueue<SnapshotEpoch> collected =
+			new ReferenceQueue<SnapshotEpoch>();
+
+	/**
+	 * Variable referencing all disk items that may have preserved versions.
+	 */
+	private static final Queue<DiskItem> versionedItems =
+			new ConcurrentLinkedQueue<DiskItem>();
+
+	/**
+	 * A class of weak references to snapshots, remembering their epoch.
+	 */
+	private static final class EpochReference extends WeakReference<SnapshotEpoch> {
+
+		EpochReference(SnapshotEpoch snapshot) {
+			super(snapshot, collected);
+			this.epoch = snapshot.getEpoch();
+		}
+
+		private final long epoch;
+	}
+}
@@ -0,0 +1,284 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A class of watches, notifying a watch listener of all changes of the
+ * direct and indirect items of a directory.
+ *    The mutating thread only looks up the watches of the ancestors of the
+ *    changed item, appends an event to the lock-free queue of each of them
+ *    and wakes up its dispatcher thread if it is idle. Once woken up, the
+ *    dispatcher waits for the coalescing window of its watch to elapse,
+ *    drains the queue, merges the size changes of each file that are not
+ *    separated by other events of that file, and delivers the batch to the
+ *    listener. Each watch has its own dispatcher, so that a slow listener
+ *    only delays its own events.
+ *
+ * @see DiskItem#watch(Directory, WatchListener, long)
+ */
+public final class Watch implements Closeable {
+
+	/**
+	 * Start watching the given directory for the given listener, with the
+	 * given coalescing window.
+	 */
+	static Watch start(Directory directory, WatchListener listener, long windowMillis)
+			throws IllegalArgumentException {
+		if ((directory == null) || (listener == null) || (windowMillis < 0))
+			throw new IllegalArgumentException();
+		Watch result = new Watch(directory, listener, windowMillis);
+		synchronized (watches) {
+			if (watches.isEmpty())
+				DiskItem.addMutationListener(dispatcher);
+			Watch[] current = watches.get(directory);
+			if (current == null)
+				current = new Watch[0];
+			current = Arrays.copyOf(current, current.length+1);
+			current[current.length-1] = result;
+			watches.put(directory, current);
+		}
+		result.thread.start();
+		return result;
+	}
+
+	/**
+	 * Initialize a new watch of the given directory for the given listener.
+	 */
+	private Watch(Directory directory, WatchListener listener, long windowMillis) {
+		this.directory = directory;
+		this.listener = listener;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, "watch-dispatcher");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Return the directory watched by this watch.
+	 */
+	public Directory getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Return the listener notified by this watch.
+	 */
+	public WatchListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Stop this watch.
+	 *    Events that have not yet been delivered are discarded.
+	 */
+	@Override
+	public void close() {
+		synchronized (watches) {
+			Watch[] current = watches.get(directory);
+			if (current != null) {
+				List<Watch> remaining = new ArrayList<Watch>(Arrays.asList(current));
+				remaining.remove(this);
+				if (remaining.isEmpty())
+					watches.remove(directory);
+				else
+					watches.put(directory, remaining.toArray(new Watch[remaining.size()]));
+				if (watches.isEmpty())
+					DiskItem.removeMutationListener(dispatcher);
+			}
+		}
+		closed = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**********************************************************
+	 * dispatching
+	 **********************************************************/
+
+	/**
+	 * Append the given event to the queue of this watch, and wake up its
+	 * dispatcher if it is idle.
+	 */
+	private void post(WatchEvent event) {
+		queue.add(event);
+		if (scheduled.compareAndSet(false, true))
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Deliver the queued events in batches, each collected over the
+	 * coalescing window of this watch, until this watch is closed.
+	 */
+	private void dispatch() {
+		while (!closed) {
+			if (!scheduled.get()) {
+				LockSupport.park(this);
+				continue;
+			}
+			long deadline = System.nanoTime() + windowNanos;
+			for (long remaining = windowNanos; (remaining > 0) && !closed;
+					remaining = deadline - System.nanoTime())
+				LockSupport.parkNanos(this, remaining);
+			// Events posted from now on wake up the dispatcher again.
+			scheduled.set(false);
+			List<WatchEvent> batch = drain();
+			if (!batch.isEmpty() && !closed)
+				try {
+					listener.changed(batch);
+				} catch (RuntimeException e) {
+					// a failing listener does not stop its watch.
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+				}
+		}
+	}
+
+	/**
+	 * Remove all events from the queue of this watch, and return them with
+	 * successive size changes of the same file merged.
+	 */
+	private List<WatchEvent> drain() {
+		List<WatchEvent> result = new ArrayList<WatchEvent>();
+		Map<DiskItem, Integer> resized = new IdentityHashMap<DiskItem, Integer>();
+		WatchEvent event;
+		while ((event = queue.poll()) != null) {
+			if (event.getKind() == WatchEvent.Kind.RESIZED) {
+				Integer index = resized.get(event.getItem());
+				if (index != null) {
+					result.set(index, result.get(index).merge(event));
+					continue;
+				}
+				resized.put(event.getItem(), result.size());
+			} else {
+				resized.remove(event.getItem());
+			}
+			result.add(event);
+		}
+		return result;
+	}
+
+	/**********************************************************
+	 * routing
+	 **********************************************************/
+
+	/**
+	 * Post an event of the given kind to all watches of the directories the
+	 * given item directly or indirectly belongs to.
+	 */
+	private static void postToAncestors(DiskItem item, WatchEvent.Kind kind,
+			String oldName, long delta) {
+		if (watches.isEmpty())
+			return;
+		WatchEvent event = null;
+		for (Directory dir = item.getParentDirectory(); dir != null;
+				dir = dir.getParentDirectory()) {
+			Watch[] current = watches.get(dir);
+			if (current != null) {
+				if (event == null)
+					event = new WatchEvent(kind, item, oldName, null, delta);
+				for (Watch watch : current)
+					watch.post(event);
+			}
+		}
+	}
+
+	/**
+	 * Post events for the move of the given item out of the given old
+	 * parent directory: the watches of its new ancestors only see it added,
+	 * those of its old ancestors only see it removed, and those of their
+	 * common ancestors see it moved.
+	 */
+	private static void postMove(DiskItem item, Directory oldParent) {
+		if (watches.isEmpty())
+			return;
+		List<Watch> old = new ArrayList<Watch>();
+		for (Directory dir = oldParent; dir != null; dir = dir.getParentDirectory()) {
+			Watch[] current = watches.get(dir);
+			if (current != null)
+				old.addAll(Arrays.asList(current));
+		}
+		for (Directory dir = item.getParentDirectory(); dir != null;
+				dir = dir.getParentDirectory()) {
+			Watch[] current = watches.get(dir);
+			if (current != null)
+				for (Watch watch : current)
+					watch.post(new WatchEvent(old.remove(watch)? WatchEvent.Kind.MOVED :
+							WatchEvent.Kind.ADDED, item, null, oldParent, 0));
+		}
+		for (Watch watch : old)
+			watch.post(new WatchEvent(WatchEvent.Kind.REMOVED, item, null, oldParent, 0));
+	}
+
+	/**
+	 * The mutation listener routing all mutations to the watches they
+	 * concern, registered as long as some watch is active.
+	 */
+	private static final MutationListener dispatcher = new MutationListener() {
+
+		public void itemCreated(DiskItem item) {
+			postToAncestors(item, WatchEvent.Kind.ADDED, null, 0);
+		}
+
+		public void nameChanged(DiskItem item, String oldName) {
+			postToAncestors(item, WatchEvent.Kind.RENAMED, oldName, 0);
+		}
+
+		public void itemMoved(DiskItem item, Directory oldParent) {
+			postMove(item, oldParent);
+		}
+
+		public void sizeChanged(File file, long delta) {
+			postToAncestors(file, WatchEvent.Kind.RESIZED, null, delta);
+		}
+
+		public void writabilityChanged(RealDiskItem item) {
+		}
+
+		public void itemTerminated(DiskItem item) {
+			postToAncestors(item, WatchEvent.Kind.TERMINATED, null, 0);
+		}
+	};
+
+	/**********************************************************
+	 * variables
+	 **********************************************************/
+
+	/**
+	 * Variable referencing the active watches of each watched directory.
+	 *    Directories are compared by identity, since they do not override
+	 *    equals. Arrays of watches are replaced, never changed.
+	 */
+	private static final Map<Directory, Watch[]> watches =
+			new ConcurrentHashMap<Directory, Watch[]>();
+
+	private final Directory directory;
+	private final WatchListener listener;
+	private final long windowNanos;
+	private final Thread thread;
+
+	/**
+	 * Variable referencing the events posted to this watch and not yet
+	 * delivered.
+	 */
+	private final Queue<WatchEvent> queue = new ConcurrentLinkedQueue<WatchEvent>();
+
+	/**
+	 * Variable registering whether the dispatcher has been woken up for
+	 * events that it has not yet drained.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private volatile boolean closed;
+}
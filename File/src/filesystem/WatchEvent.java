@@ -0,0 +1,100 @@
+package filesystem;
+
+/**
+ * A class of events delivered to watch listeners, describing a change of
+ * a disk item in a watched subtree.
+ *    Events are immutable. Repeated size changes of the same file within
+ *    a coalescing window are merged into a single event whose delta is
+ *    the sum of their deltas.
+ *
+ * @see WatchListener
+ */
+public final class WatchEvent {
+
+	/**
+	 * An enumeration of the kinds of watch events.
+	 */
+	public enum Kind {
+		/** The item was created in, or moved into, the watched subtree. */
+		ADDED,
+		/** The item was moved out of the watched subtree. */
+		REMOVED,
+		/** The item was renamed; the old name is registered. */
+		RENAMED,
+		/** The item was moved within the watched subtree; the old parent
+		 *  directory is registered. */
+		MOVED,
+		/** The size of the file changed; the delta is registered. */
+		RESIZED,
+		/** The item was terminated. */
+		TERMINATED
+	}
+
+	/**
+	 * Initialize a new event of the given kind for the given item.
+	 */
+	WatchEvent(Kind kind, DiskItem item, String oldName, Directory oldParent, long delta) {
+		this.kind = kind;
+		this.item = item;
+		this.oldName = oldName;
+		this.oldParent = oldParent;
+		this.delta = delta;
+	}
+
+	/**
+	 * Return the kind of this event.
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Return the disk item changed by this event.
+	 */
+	public DiskItem getItem() {
+		return item;
+	}
+
+	/**
+	 * Return the name of the item before it was renamed, or null if this
+	 * event is not a renaming.
+	 */
+	public String getOldName() {
+		return oldName;
+	}
+
+	/**
+	 * Return the parent directory of the item before it was moved, or null
+	 * if this event is not a move, or if the item was a root item.
+	 */
+	public Directory getOldParent() {
+		return oldParent;
+	}
+
+	/**
+	 * Return the total change of the size of the file, or 0 if this event
+	 * is not a size change.
+	 */
+	public long getDelta() {
+		return delta;
+	}
+
+	/**
+	 * Return an event registering the size changes of this event and the
+	 * given event, which are size changes of the same file.
+	 */
+	WatchEvent merge(WatchEvent other) {
+		return new WatchEvent(Kind.RESIZED, item, null, null, delta + other.delta);
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + item;
+	}
+
+	private final Kind kind;
+	private final DiskItem item;
+	private final String oldName;
+	private final Directory oldParent;
+	private final long delta;
+}
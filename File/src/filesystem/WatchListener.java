@@ -0,0 +1,23 @@
+package filesystem;
+
+import java.util.List;
+
+/**
+ * An interface of listeners that are notified of the changes in a watched
+ * subtree of disk items.
+ *    Unlike mutation listeners, watch listeners are invoked asynchronously,
+ *    on a thread of their own watch, with batches of events collected over
+ *    a coalescing window. A slow listener thus delays its own events only,
+ *    and never the mutating threads. Listeners may mutate disk items.
+ *
+ * @see DiskItem#watch(Directory, WatchListener)
+ */
+public interface WatchListener {
+
+	/**
+	 * Notify this listener of the given events, in the order in which they
+	 * occurred.
+	 *    The events are not empty.
+	 */
+	void changed(List<WatchEvent> events);
+}
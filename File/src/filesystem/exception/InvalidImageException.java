@@ -0,0 +1,29 @@
+package filesystem.exception;
+
+import java.io.IOException;
+
+/**
+ * A class for signalling persistent images of disk items that can not be
+ * read, because they are truncated, corrupted or written in an
+ * unsupported format.
+ */
+public class InvalidImageException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Initialize this new invalid image exception with the given message.
+	 * 
+	 * @param	message
+	 * 			The message describing what is wrong with the image.
+	 * @effect	The new invalid image exception is an IO exception with the
+	 * 			given message.
+	 * 			| super(message)
+	 */
+	public InvalidImageException(String message) {
+		super(message);
+	}
+}
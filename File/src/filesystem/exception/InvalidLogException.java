@@ -0,0 +1,28 @@
+package filesystem.exception;
+
+import java.io.IOException;
+
+/**
+ * A class for signalling mutation logs that can not be replayed, because
+ * they are corrupted or do not match the tree they are replayed on.
+ */
+public class InvalidLogException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Initialize this new invalid log exception with the given message.
+	 * 
+	 * @param	message
+	 * 			The message describing what is wrong with the log.
+	 * @effect	The new invalid log exception is an IO exception with the
+	 * 			given message.
+	 * 			| super(message)
+	 */
+	public InvalidLogException(String message) {
+		super(message);
+	}
+}
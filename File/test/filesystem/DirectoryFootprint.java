@@ -0,0 +1,104 @@
+package filesystem;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * A program measuring the heap retained per directory.
+ *    The program is not a test. It is run by hand, preferably with
+ *    -XX:+UseSerialGC and a fixed -XX:ActiveProcessorCount, so that the
+ *    number of cells of striped counters is known:
+ *
+ *      java -XX:ActiveProcessorCount=16 -XX:+UseSerialGC -Xmx2g \
+ *           filesystem.DirectoryFootprint sizes
+ *      java -XX:ActiveProcessorCount=16 -XX:+UseSerialGC -Xmx2g \
+ *           filesystem.DirectoryFootprint contended
+ *
+ *    Each figure is the growth of the used heap after a full collection,
+ *    divided by the number of directories created. The items of the
+ *    directories are included. Contended directories are measured in a
+ *    separate run, so that garbage of the other measurements does not
+ *    blur them.
+ */
+public class DirectoryFootprint {
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length > 0) && args[0].equals("contended"))
+			measureContended();
+		else
+			measureSizes();
+	}
+
+	/**
+	 * Measure empty directories, and directories of 4 and 1000 files.
+	 */
+	private static void measureSizes() throws Exception {
+		report("empty", 200000, 0);
+		report("4 files", 50000, 4);
+		report("1000 files", 200, 1000);
+	}
+
+	private static void report(String label, int nbDirectories, int nbFiles)
+			throws Exception {
+		Directory[] directories = new Directory[nbDirectories];
+		long before = usedHeap();
+		for (int i = 0; i < nbDirectories; i++) {
+			directories[i] = new Directory("d");
+			for (int j = 0; j < nbFiles; j++)
+				new File(directories[i], "f" + j, Type.TEXT);
+		}
+		long after = usedHeap();
+		print(label, after - before, directories.length);
+	}
+
+	/**
+	 * Measure directories whose usage counters have been striped, before
+	 * and after a quiet window followed by a read of their usage.
+	 */
+	private static void measureContended() throws Exception {
+		Directory[] directories = new Directory[20000];
+		long before = usedHeap();
+		for (int i = 0; i < directories.length; i++) {
+			directories[i] = new Directory("d");
+			stripe(directories[i]);
+		}
+		long striped = usedHeap();
+		print("contended, cells expanded", striped - before, directories.length);
+		Thread.sleep(1500);
+		for (Directory directory : directories) {
+			directory.getTotalDiskUsage();
+			directory.getTotalAllocatedUsage();
+		}
+		long idle = usedHeap();
+		print("contended, then idle and read", idle - before, directories.length);
+	}
+
+	/**
+	 * Stripe the usage counters of the given directory, as contention on
+	 * them would. Contention can not be provoked reliably on every machine,
+	 * so the counters are expanded directly.
+	 */
+	private static void stripe(Directory directory) throws Exception {
+		Method expand = StripedCounter.class.getDeclaredMethod("expand");
+		expand.setAccessible(true);
+		for (String name : new String[] { "totalDiskUsage", "allocatedUsage" }) {
+			Field field = Directory.class.getDeclaredField(name);
+			field.setAccessible(true);
+			expand.invoke(field.get(directory));
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void print(String label, long bytes, int nbDirectories) {
+		System.out.printf("%-32s %10.0f bytes/directory%n", label,
+				bytes / (double) nbDirectories);
+	}
+}
@@ -0,0 +1,102 @@
+package filesystem;
+
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A class collecting tests for the class of item registries.
+ */
+public class ItemRegistryTest {
+
+	private ItemRegistry registry;
+
+	@Before
+	public void setUpFixture() {
+		registry = new ItemRegistry();
+	}
+
+	/**
+	 * Run the garbage collector until the given reference is cleared, or
+	 * until it is clear that it will not be.
+	 */
+	private static void collect(WeakReference<?> reference) throws InterruptedException {
+		for (int i = 0; (i < 50) && (reference.get() != null); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void putGetRemove() throws Exception {
+		Directory root = new Directory("root");
+		File file = new File(root, "file", Type.TEXT);
+		registry.put(root);
+		registry.put(file);
+		assertSame(root, registry.get(root.getId()));
+		assertSame(file, registry.get(file.getId()));
+		assertEquals(2, registry.size());
+		registry.remove(file);
+		assertNull(registry.get(file.getId()));
+		assertSame(root, registry.get(root.getId()));
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void putIfAbsent() throws Exception {
+		Directory root = new Directory("root");
+		File file = new File(root, "file", Type.TEXT);
+		registry.put(root);
+		assertFalse(registry.putIfAbsent(root.getId(), file));
+		assertSame(root, registry.get(root.getId()));
+		assertTrue(registry.putIfAbsent(root.getId(), root));
+		assertTrue(registry.putIfAbsent(file.getId(), file));
+		assertSame(file, registry.get(file.getId()));
+	}
+
+	@Test
+	public void releasedTreeIsReclaimed() throws Exception {
+		Directory root = new Directory("root");
+		Directory sub = new Directory(root, "sub");
+		File file = new File(sub, "file", Type.TEXT);
+		long rootId = root.getId(), fileId = file.getId();
+		assertSame(file, DiskItem.lookupById(fileId));
+		root.releaseTree();
+		assertNull(DiskItem.lookupById(rootId));
+		assertNull(DiskItem.lookupById(fileId));
+		WeakReference<Directory> reference = new WeakReference<Directory>(root);
+		root = null;
+		sub = null;
+		file = null;
+		collect(reference);
+		assertNull(reference.get());
+	}
+
+	@Test
+	public void idsSurviveImages() throws Exception {
+		Directory root = new Directory("root");
+		Directory sub = new Directory(root, "sub");
+		File file = new File(sub, "file", Type.TEXT);
+		Path path = Files.createTempFile("registry", ".img");
+		try {
+			DiskImage.write(root, path);
+			Directory copy = DiskImage.load(path);
+			assertTrue(copy.getId() != root.getId());
+			copy.releaseTree();
+			root.releaseTree();
+			Directory opened = DiskImage.open(path, 0);
+			assertEquals(root.getId(), opened.getId());
+			DiskItem loaded = ((Directory) opened.getItem("sub")).getItem("file");
+			assertEquals(file.getId(), loaded.getId());
+			assertSame(loaded, DiskItem.lookupById(file.getId()));
+			opened.releaseTree();
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
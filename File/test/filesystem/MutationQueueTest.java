@@ -0,0 +1,205 @@
+package filesystem;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import filesystem.exception.*;
+
+/**
+ * A class collecting tests for the class of mutation queues.
+ */
+public class MutationQueueTest {
+
+	private MutationQueue queue;
+	private Directory root;
+	private File fileA, fileM, fileY;
+
+	@Before
+	public void setUpFixture() throws Exception {
+		queue = new MutationQueue();
+		root = new Directory("root");
+		fileA = new File(root, "a", Type.TEXT);
+		fileM = new File(root, "m", Type.TEXT);
+		fileY = new File(root, "y", Type.TEXT);
+	}
+
+	@After
+	public void tearDownFixture() throws Exception {
+		queue.shutdown();
+	}
+
+	/**
+	 * Hold the writer thread of the queue of this test until the returned
+	 * latch is counted down, so that all mutations submitted meanwhile are
+	 * applied in a single batch.
+	 */
+	private CountDownLatch holdWriter() throws Exception {
+		final CountDownLatch held = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final MutationListener gate = new MutationListener() {
+			public void itemCreated(DiskItem item) {
+				if (item.getName().equals("gate")) {
+					held.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			public void nameChanged(DiskItem item, String oldName) {
+			}
+			public void itemMoved(DiskItem item, Directory oldParent) {
+			}
+			public void sizeChanged(File file, long delta) {
+			}
+			public void writabilityChanged(RealDiskItem item) {
+			}
+			public void itemTerminated(DiskItem item) {
+			}
+		};
+		DiskItem.addMutationListener(gate);
+		queue.createDirectory(new Directory("gates"), "gate", true);
+		held.await();
+		DiskItem.removeMutationListener(gate);
+		return release;
+	}
+
+	@Test
+	public void renameFollowedByCreation_SameBatch() throws Exception {
+		CountDownLatch release = holdWriter();
+		Future<Void> rename = queue.changeName(fileY, "b");
+		Future<File> creation = queue.createFile(root, "b", Type.TEXT, 0, true);
+		release.countDown();
+		rename.get();
+		File created = creation.get();
+		assertEquals("b", fileY.getName());
+		assertEquals("b_", created.getName());
+		assertEquals(4, root.getNbItems());
+		assertTrue(root.hasAsItem(created));
+		assertTrue(root.hasValidItems());
+		assertSame(fileA, root.getItemAt(1));
+		assertSame(fileY, root.getItemAt(2));
+		assertSame(created, root.getItemAt(3));
+		assertSame(fileM, root.getItemAt(4));
+	}
+
+	@Test
+	public void renameFollowedByMove_SameBatch() throws Exception {
+		Directory other = new Directory("other");
+		File b = new File(other, "b", Type.TEXT);
+		CountDownLatch release = holdWriter();
+		Future<Void> rename = queue.changeName(fileY, "b");
+		Future<Void> move = queue.move(b, root);
+		release.countDown();
+		rename.get();
+		try {
+			move.get();
+			fail("moved an item onto a name that has just been taken");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalAddException);
+		}
+		assertSame(other, b.getParentDirectory());
+		assertEquals(3, root.getNbItems());
+		assertTrue(root.hasValidItems());
+	}
+
+	@Test
+	public void movesAcrossDirectories_SameBatch() throws Exception {
+		Directory b = new Directory(root, "b");
+		Directory c = new Directory(root, "c");
+		Directory x = new Directory(root, "x");
+		CountDownLatch release = holdWriter();
+		Future<Void> first = queue.move(x, b);
+		Future<Void> second = queue.move(x, c);
+		Future<Void> third = queue.move(x, b);
+		release.countDown();
+		first.get();
+		second.get();
+		third.get();
+		assertSame(b, x.getParentDirectory());
+		assertTrue(b.hasAsItem(x));
+		assertFalse(c.hasAsItem(x));
+		assertFalse(root.hasAsItem(x));
+	}
+
+	@Test
+	public void moveAndRenameAcrossDirectories_SameBatch() throws Exception {
+		Directory b = new Directory(root, "b");
+		CountDownLatch release = holdWriter();
+		Future<Void> move = queue.move(fileM, b);
+		Future<Void> rename = queue.changeName(fileM, "y");
+		release.countDown();
+		move.get();
+		rename.get();
+		assertSame(b, fileM.getParentDirectory());
+		assertEquals("y", fileM.getName());
+		assertTrue(root.hasValidItems());
+		assertTrue(b.hasValidItems());
+	}
+
+	@Test
+	public void publishedItems() throws Exception {
+		List<DiskItem> items = queue.getPublishedItems(root);
+		assertEquals(Arrays.<DiskItem>asList(fileA, fileM, fileY), items);
+		File b = queue.createFile(root, "b", Type.TEXT, 0, true).get();
+		// the items are published once the whole batch is applied, which
+		// is the case once a later batch has been applied.
+		queue.createDirectory(new Directory("elsewhere"), "later", true).get();
+		items = queue.getPublishedItems(root);
+		assertEquals(Arrays.<DiskItem>asList(fileA, b, fileM, fileY), items);
+	}
+
+	/**
+	 * Check that the given future fails with an exception signalling that
+	 * some item is not writable.
+	 */
+	private static void assertNotWritable(Future<?> future) throws Exception {
+		try {
+			future.get();
+			fail("mutated a frozen directory");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DiskItemNotWritableException);
+		}
+	}
+
+	@Test
+	public void creationInFrozenDirectory() throws Exception {
+		root.freeze();
+		assertNotWritable(queue.createFile(root, "x", Type.TEXT, 0, true));
+		assertEquals(3, root.getNbItems());
+		root.thaw();
+		File created = queue.createFile(root, "x", Type.TEXT, 0, true).get();
+		assertTrue(root.hasAsItem(created));
+	}
+
+	@Test
+	public void moveIntoAndOutOfFrozenDirectory() throws Exception {
+		Directory other = new Directory("other");
+		File b = new File(other, "b", Type.TEXT);
+		root.freeze();
+		assertNotWritable(queue.move(b, root));
+		assertNotWritable(queue.move(fileA, other));
+		assertSame(other, b.getParentDirectory());
+		assertTrue(other.hasAsItem(b));
+		assertSame(root, fileA.getParentDirectory());
+		assertEquals(3, root.getNbItems());
+	}
+
+	@Test
+	public void renameInFrozenDirectory() throws Exception {
+		root.freeze();
+		assertNotWritable(queue.changeName(fileY, "b"));
+		assertEquals("y", fileY.getName());
+		assertTrue(root.hasValidItems());
+	}
+}